@@ -0,0 +1,96 @@
+package edu.vtc.nessie.bench
+
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import org.antlr.runtime.{ANTLRStringStream, CommonTokenStream}
+import org.antlr.runtime.tree.{CommonTree, Tree}
+import edu.vtc.nesc.{ASTNode, ASTNodeAdaptor}
+import edu.vtc.nesc.parser.{NesCLexer, NesCParser}
+import edu.vtc.nessie.Main
+
+/**
+ * One file of the benchmark corpus along with the results of each phase up to processing. The
+ * benchmark of each phase starts from the output of the previous phase computed here.
+ *
+ * @param name The name of the file.
+ * @param text The contents of the file.
+ * @param antlrTree The tree produced by the parser with ANTLR's default tree adaptor.
+ * @param abstractSyntax The tree produced by the parser as Nessie uses it.
+ * @param nodeCount The number of nodes in the tree.
+ */
+final case class CorpusFile(name          : String,
+                            text          : String,
+                            antlrTree     : CommonTree,
+                            abstractSyntax: ASTNode,
+                            nodeCount     : Int) {
+  val byteCount: Int = text.getBytes(StandardCharsets.UTF_8).length
+
+  /** Adds the size of this file to a benchmark's counters. */
+  def countIn(throughput: Throughput): Unit = {
+    throughput.bytes += byteCount
+    throughput.nodes += nodeCount
+  }
+}
+
+
+/**
+ * The files used as input to the benchmarks. These are the files in testData/Syntax/Positive
+ * that are complete nesC files. Many files in that folder only contain declarations or
+ * statements and can't be parsed as a nesC file; they are left out. The folder can be changed
+ * with the nessie.corpus system property.
+ */
+object Corpus {
+
+  lazy val files: Vector[CorpusFile] = {
+    val folder = corpusFolder
+    val names = Option(folder.list()).getOrElse(Array[String]()).filter(_.endsWith(".nc")).sorted
+    val result = names.toVector.flatMap(name => load(new File(folder, name)))
+    if (result.isEmpty) throw new IllegalStateException("No usable nesC files in " + folder.getAbsolutePath)
+    result
+  }
+
+  /** Parses text as a nesC file in the same way as Nessie does. */
+  def parse(text: String): ASTNode = {
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(new ANTLRStringStream(text))))
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    parser.setSymbols(Main.initializeGlobalSymbols())
+    parser.nesC_file().getTree.asInstanceOf[ASTNode]
+  }
+
+  /** Returns the number of nodes in a tree. */
+  def countNodes(tree: Tree): Int = {
+    var count = 1
+    for (i <- 0 until tree.getChildCount) count += countNodes(tree.getChild(i))
+    count
+  }
+
+
+  // Benchmarks normally run in the bench folder, but they might be started from the root.
+  private def corpusFolder: File = {
+    val configured = System.getProperty("nessie.corpus")
+    if (configured != null) new File(configured)
+    else {
+      val relative = "testData" + File.separator + "Syntax" + File.separator + "Positive"
+      Seq(new File(relative), new File(".." + File.separator + relative)).find(_.isDirectory)
+        .getOrElse(new File(relative))
+    }
+  }
+
+  private def load(file: File): Option[CorpusFile] = {
+    val text = new String(Files.readAllBytes(file.toPath), StandardCharsets.UTF_8)
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(new ANTLRStringStream(text)))) {
+      override def emitErrorMessage(message: String): Unit = { }
+    }
+    parser.setSymbols(Main.initializeGlobalSymbols())
+    try {
+      val tree = parser.nesC_file().getTree.asInstanceOf[CommonTree]
+      if (parser.getNumberOfSyntaxErrors != 0) None
+      else Some(CorpusFile(file.getName, text, tree, parse(text), countNodes(tree)))
+    }
+    catch {
+      case _: Exception => None
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+package edu.vtc.nessie.bench
+
+import java.util.concurrent.TimeUnit
+import org.antlr.runtime.{ANTLRStringStream, Token}
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+import edu.vtc.nesc.NesCScanner
+import edu.vtc.nesc.parser.NesCLexer
+
+/** Measures tokenization of the corpus by NesCLexer and by NesCScanner. */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class LexerBenchmark {
+
+  @Benchmark
+  def tokenize(throughput: Throughput, blackhole: Blackhole): Unit = {
+    for (file <- Corpus.files) {
+      val lexer = new NesCLexer(new ANTLRStringStream(file.text))
+      var token = lexer.nextToken()
+      while (token.getType != Token.EOF) {
+        blackhole.consume(token)
+        token = lexer.nextToken()
+      }
+      file.countIn(throughput)
+    }
+  }
+
+  @Benchmark
+  def scan(throughput: Throughput, blackhole: Blackhole): Unit = {
+    for (file <- Corpus.files) {
+      blackhole.consume(NesCScanner.scan(new ANTLRStringStream(file.text)))
+      file.countIn(throughput)
+    }
+  }
+
+}
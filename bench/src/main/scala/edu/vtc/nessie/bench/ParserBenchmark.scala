@@ -0,0 +1,23 @@
+package edu.vtc.nessie.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+/** Measures NesCParser.nesC_file building ASTNode trees, including the lexing it drives. */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class ParserBenchmark {
+
+  @Benchmark
+  def parse(throughput: Throughput, blackhole: Blackhole): Unit = {
+    for (file <- Corpus.files) {
+      blackhole.consume(Corpus.parse(file.text))
+      file.countIn(throughput)
+    }
+  }
+
+}
@@ -0,0 +1,57 @@
+package edu.vtc.nessie.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+import edu.vtc.nessie.{ConfigurationProcessor, InterfaceProcessor, Main, ModuleProcessor, Processor}
+
+/**
+ * Measures Processor.process for each kind of processor. Each run uses the corpus files that
+ * Nessie would give to the selected kind of processor. Files the processor fails on are left
+ * out.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+class ProcessorBenchmark {
+
+  @Param(Array("interface", "configuration", "module"))
+  var kind: String = ""
+
+  private var inputs: Vector[CorpusFile] = Vector()
+
+  @Setup
+  def selectInputs(): Unit = {
+    def isSelected(processor: Processor): Boolean = (kind, processor) match {
+      case ("interface",     _: InterfaceProcessor)     => true
+      case ("configuration", _: ConfigurationProcessor) => true
+      case ("module",        _: ModuleProcessor)        => true
+      case _ => false
+    }
+
+    def processes(file: CorpusFile): Boolean =
+      try {
+        Main.createProcessor(file.abstractSyntax).process()
+        true
+      }
+      catch {
+        case _: Exception => false
+      }
+
+    inputs = Corpus.files filter { file =>
+      isSelected(Main.createProcessor(file.abstractSyntax)) && processes(file)
+    }
+  }
+
+  @Benchmark
+  def process(throughput: Throughput, blackhole: Blackhole): Unit = {
+    for (file <- inputs) {
+      blackhole.consume(Main.createProcessor(file.abstractSyntax).process())
+      file.countIn(throughput)
+    }
+  }
+
+}
@@ -0,0 +1,212 @@
+package edu.vtc.nessie.bench
+
+import java.io.{File, IOException, PrintWriter}
+import java.nio.charset.StandardCharsets
+import scala.util.Random
+
+/**
+ * The size and shape of a generated program.
+ *
+ * @param components The number of modules. There is one interface for each module and a single
+ * configuration that wires them together.
+ * @param wiringDensity The number of interfaces of other modules that each module uses.
+ * @param nestingDepth The depth of the nested control statements in each command.
+ * @param structFields The number of fields in each structure.
+ * @param headerDeclarations The number of declarations in the header shared by all files.
+ */
+final case class ProgramShape(components        : Int = 100,
+                              wiringDensity     : Int = 3,
+                              nestingDepth      : Int = 4,
+                              structFields      : Int = 8,
+                              headerDeclarations: Int = 200) {
+  require(components >= 2, "A program needs at least two components")
+  require(wiringDensity >= 0 && wiringDensity < components, "Each module can only use the other modules")
+  require(nestingDepth >= 0 && structFields >= 1 && headerDeclarations >= 0)
+}
+
+
+/**
+ * Writes large nesC programs that Nessie can compile. The programs have the structure of a
+ * TinyOS application: modules that provide and use interfaces, a configuration wiring them
+ * together, and headers included by every file. The code means nothing, but it uses the
+ * declarations, statements, and expressions found in real programs so that every phase of the
+ * compiler has work to do. The same shape and seed always produce the same program.
+ */
+object ProgramGenerator {
+
+  private val FieldTypes = Array("uint8_t", "uint16_t", "uint32_t", "int16_t", "int32_t")
+
+  /**
+   * Writes a program into a folder.
+   *
+   * @param shape The size and shape of the program.
+   * @param folder The folder to write. It is created if necessary.
+   * @param seed Selects which modules are wired together.
+   * @return The names of the nesC files written.
+   * @throws IOException if the files can't be written.
+   */
+  def write(shape: ProgramShape, folder: File, seed: Long = 1): Seq[String] = {
+    if (!folder.isDirectory && !folder.mkdirs())
+      throw new IOException("Unable to create " + folder.getPath)
+    val random = new Random(seed)
+
+    writeFile(new File(folder, "Common.h"))(commonHeader(shape, _))
+    val nesCFiles = for (i <- 0 until shape.components) yield {
+      // Each module uses distinct modules other than itself.
+      val others = random.shuffle((0 until shape.components).filter(_ != i).toVector)
+      val used = others.take(shape.wiringDensity)
+      writeFile(new File(folder, s"Node$i.h"))(nodeHeader(shape, i, _))
+      writeFile(new File(folder, s"Step$i.nc"))(stepInterface(i, _))
+      writeFile(new File(folder, s"Node${i}M.nc"))(module(shape, i, used, _))
+      Seq(s"Step$i.nc", s"Node${i}M.nc") -> used.map(j => (i, j))
+    }
+    writeFile(new File(folder, "AppC.nc"))(configuration(shape, nesCFiles.flatMap(_._2), _))
+    nesCFiles.flatMap(_._1) :+ "AppC.nc"
+  }
+
+
+  private def writeFile(file: File)(body: PrintWriter => Unit): Unit = {
+    val output = new PrintWriter(file, StandardCharsets.UTF_8)
+    try {
+      body(output)
+    }
+    finally {
+      output.close()
+    }
+    if (output.checkError()) throw new IOException("Unable to write " + file.getPath)
+  }
+
+  private def struct(name: String, fields: Int, output: PrintWriter): Unit = {
+    output.println(s"typedef struct $name {")
+    for (f <- 0 until fields) output.println(s"  ${FieldTypes(f % FieldTypes.length)} f$f;")
+    output.println(s"} $name;")
+  }
+
+
+  /** The header included by every file. Its declarations rotate through several kinds. */
+  private def commonHeader(shape: ProgramShape, output: PrintWriter): Unit = {
+    output.println("#ifndef COMMON_H")
+    output.println("#define COMMON_H")
+    output.println()
+    for (d <- 0 until shape.headerDeclarations) {
+      d % 4 match {
+        case 0 =>
+          struct(s"Record$d", shape.structFields, output)
+        case 1 =>
+          output.println(s"#define LIMIT_$d ($d + 16)")
+          output.println(s"enum { MODE_${d}_A = $d, MODE_${d}_B, MODE_${d}_C = LIMIT_$d };")
+        case 2 =>
+          output.println(s"typedef uint16_t count${d}_t;")
+          output.println(s"extern count${d}_t total$d;")
+        case _ =>
+          output.println(s"uint16_t helper$d(Record${d - 3} *record, uint8_t mode);")
+      }
+    }
+    output.println()
+    output.println("#endif")
+  }
+
+  private def nodeHeader(shape: ProgramShape, i: Int, output: PrintWriter): Unit = {
+    output.println(s"#ifndef NODE${i}_H")
+    output.println(s"#define NODE${i}_H")
+    output.println()
+    struct(s"Node${i}Data", shape.structFields, output)
+    output.println()
+    output.println("#endif")
+  }
+
+  private def stepInterface(i: Int, output: PrintWriter): Unit = {
+    output.println("#include \"Common.h\"")
+    output.println()
+    output.println(s"interface Step$i {")
+    output.println("  command uint16_t run(uint16_t value);")
+    output.println("  event void done(uint16_t result);")
+    output.println("}")
+  }
+
+
+  private def module(shape: ProgramShape, i: Int, used: Seq[Int], output: PrintWriter): Unit = {
+    output.println("#include \"Common.h\"")
+    output.println(s"#include \"Node$i.h\"")
+    output.println()
+    output.println(s"module Node${i}M {")
+    output.println(s"  provides interface Step$i;")
+    for ((j, k) <- used.zipWithIndex) output.println(s"  uses interface Step$j as Next$k;")
+    output.println("}")
+    output.println("implementation {")
+    output.println()
+    output.println(s"  Node${i}Data state;")
+    output.println("  uint16_t pending;")
+    output.println()
+    output.println(s"  command uint16_t Step$i.run(uint16_t value) {")
+    output.println("    uint16_t result = value;")
+    output.println("    uint16_t i;")
+    nestedStatements(shape, i, used.size, 0, "    ", output)
+    output.println(s"    pending = ${used.size};")
+    output.println("    return result;")
+    output.println("  }")
+    for (k <- used.indices) {
+      output.println()
+      output.println(s"  event void Next$k.done(uint16_t result) {")
+      output.println(s"    state.f0 = state.f0 + result;")
+      output.println("    pending--;")
+      output.println("    if (pending == 0) {")
+      output.println(s"      signal Step$i.done(state.f0);")
+      output.println("    }")
+      output.println("  }")
+    }
+    output.println()
+    output.println("}")
+  }
+
+  /** Writes control statements nested to the depth of the shape, with calls at the bottom. */
+  private def nestedStatements(shape    : ProgramShape,
+                               i        : Int,
+                               usedCount: Int,
+                               depth    : Int,
+                               indent   : String,
+                               output   : PrintWriter): Unit = {
+    if (depth == shape.nestingDepth) {
+      val field = s"f${depth % shape.structFields}"
+      output.println(s"${indent}state.$field = (state.$field << 1) ^ result;")
+      for (k <- 0 until usedCount) output.println(s"${indent}result += call Next$k.run(result + $k);")
+    }
+    else {
+      val inner = indent + "  "
+      depth % 3 match {
+        case 0 =>
+          output.println(s"${indent}if (result > $depth) {")
+          nestedStatements(shape, i, usedCount, depth + 1, inner, output)
+          output.println(s"$indent}")
+          output.println(s"${indent}else {")
+          output.println(s"${inner}result = result * 3 + $depth;")
+          output.println(s"$indent}")
+        case 1 =>
+          output.println(s"${indent}for (i = 0; i < ${depth + 2}; i++) {")
+          nestedStatements(shape, i, usedCount, depth + 1, inner, output)
+          output.println(s"$indent}")
+        case _ =>
+          output.println(s"${indent}while (result < ${100 * depth}) {")
+          output.println(s"${inner}result += sizeof(Node${i}Data) - i;")
+          nestedStatements(shape, i, usedCount, depth + 1, inner, output)
+          output.println(s"$indent}")
+      }
+    }
+  }
+
+
+  private def configuration(shape: ProgramShape, wires: Seq[(Int, Int)], output: PrintWriter): Unit = {
+    output.println("configuration AppC {")
+    output.println("}")
+    output.println("implementation {")
+    output.println("  components " + (0 until shape.components).map(i => s"Node${i}M").mkString(", ") + ";")
+    output.println()
+    val usedIndex = collection.mutable.Map[Int, Int]().withDefaultValue(0)
+    for ((user, provider) <- wires) {
+      output.println(s"  Node${user}M.Next${usedIndex(user)} -> Node${provider}M.Step$provider;")
+      usedIndex(user) += 1
+    }
+    output.println("}")
+  }
+
+}
@@ -0,0 +1,27 @@
+package edu.vtc.nessie.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+import edu.vtc.nesc.parser.{Emitter, SyntaxViewer}
+
+/** Measures SyntaxViewer.rewrite on the corpus. The output is written to memory. */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+class RewriteBenchmark {
+
+  @Benchmark
+  def rewrite(throughput: Throughput, blackhole: Blackhole): Unit = {
+    for (file <- Corpus.files) {
+      val output = new Emitter()
+      new SyntaxViewer(output, file.abstractSyntax).rewrite()
+      blackhole.consume(output)
+      file.countIn(throughput)
+    }
+  }
+
+}
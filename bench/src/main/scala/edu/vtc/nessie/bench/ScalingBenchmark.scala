@@ -0,0 +1,271 @@
+package edu.vtc.nessie.bench
+
+import java.io.{File, IOException, PrintWriter}
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.Locale
+import scala.collection.mutable
+
+/**
+ * Measures how Nessie's time and memory grow with the size of the program. For each of several
+ * sizes a program is generated by ProgramGenerator and compiled from scratch by Main, with all
+ * phases, in a fresh JVM as when Nessie is run from the command line. The statistics report of
+ * each run gives the time and peak heap size of each phase. A summary is printed and written
+ * as CSV so that the scaling curve can be plotted; a cost per token that rises with the size
+ * shows nonlinear behavior.
+ *
+ * The arguments have the form name=value:
+ *
+ *   sizes=25,50,100,200,400  The numbers of components to measure.
+ *   wiring=3                 The interfaces used by each module.
+ *   depth=4                  The nesting depth of statements.
+ *   fields=8                 The fields in each structure.
+ *   header=200               The declarations in the shared header.
+ *   jobs=1                   Files compiled in parallel. Peak heap per phase needs one.
+ *   preprocessor=internal    The preprocessor given to Nessie with -p.
+ *   folder={path}            The work folder. Default is nessie-scaling in the temporary folder.
+ *
+ * JVM options for the compiler, such as -Xmx, can be given with the nessie.scaling.jvmOptions
+ * system property.
+ */
+object ScalingBenchmark {
+
+  private val Phases = Seq("preprocess", "parse", "process", "rewrite")
+
+  /**
+   * The results of compiling a program of one size.
+   *
+   * @param components The number of components in the program.
+   * @param totals The totals object of the statistics report.
+   * @param wallMillis The wall time of the whole run as measured by Nessie.
+   */
+  private final case class Measurement(components: Int, totals: Map[String, Any], wallMillis: Double) {
+    def number(name: String): Double = totals(name).asInstanceOf[Double]
+
+    def phase(phase: String, name: String): Double = {
+      val phases = totals("phases").asInstanceOf[Map[String, Any]]
+      phases.get(phase).map(_.asInstanceOf[Map[String, Any]](name).asInstanceOf[Double]).getOrElse(0.0)
+    }
+  }
+
+
+  def main(args: Array[String]): Unit = {
+    val options = args.map { argument =>
+      argument.split("=", 2) match {
+        case Array(name, value) => name -> value
+        case _ => throw new IllegalArgumentException("Arguments must have the form name=value: " + argument)
+      }
+    }.toMap
+
+    def intOption(name: String, default: Int): Int = options.get(name).map(_.toInt).getOrElse(default)
+
+    val sizes = options.getOrElse("sizes", "25,50,100,200,400").split(",").map(_.trim.toInt).toSeq
+    val shape = ProgramShape(
+      wiringDensity      = intOption("wiring", 3),
+      nestingDepth       = intOption("depth", 4),
+      structFields       = intOption("fields", 8),
+      headerDeclarations = intOption("header", 200))
+    val jobs = intOption("jobs", 1)
+    val preprocessor = options.getOrElse("preprocessor", "internal")
+    val workFolder = new File(options.getOrElse("folder", new File(System.getProperty("java.io.tmpdir"), "nessie-scaling").getPath))
+
+    println(s"Components ${sizes.mkString(", ")} with wiring=${shape.wiringDensity}, depth=${shape.nestingDepth}, " +
+            s"fields=${shape.structFields}, header=${shape.headerDeclarations} in $workFolder")
+    val measurements = for (size <- sizes) yield {
+      val measurement = measure(shape.copy(components = size), new File(workFolder, size.toString), jobs, preprocessor)
+      println(f"  $size%6d components: ${measurement.wallMillis}%10.1f ms")
+      measurement
+    }
+
+    val table = summary(measurements)
+    println()
+    table foreach { row => println(row.mkString("  ")) }
+    val csvFile = new File(workFolder, "scaling.csv")
+    val output = new PrintWriter(csvFile, StandardCharsets.UTF_8)
+    try {
+      table foreach { row => output.println(row.map(_.trim).mkString(",")) }
+    }
+    finally {
+      output.close()
+    }
+    println("\nWrote " + csvFile.getPath)
+  }
+
+
+  /** Generates a program and compiles it in a new JVM. */
+  private def measure(shape: ProgramShape, folder: File, jobs: Int, preprocessor: String): Measurement = {
+    deleteTree(folder)
+    val inputFolder = new File(folder, "in")
+    val nesCFiles = ProgramGenerator.write(shape, inputFolder)
+    val report = new File(folder, "statistics.json")
+    val configuration = new File(folder, "empty.cfg")
+    Files.write(configuration.toPath, Array[Byte]())
+
+    val java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath
+    val jvmOptions = Option(System.getProperty("nessie.scaling.jvmOptions")).toSeq.flatMap(_.split("\\s+")).filter(_.nonEmpty)
+    val command = Seq(java) ++ jvmOptions ++ Seq(
+      "-cp", System.getProperty("java.class.path"),
+      "edu.vtc.nessie.Main",
+      "-config=" + configuration.getPath,
+      "-i=" + inputFolder.getPath,
+      "-o=" + new File(folder, "out").getPath,
+      "-t=" + new File(folder, "tmp").getPath,
+      "-p=" + preprocessor,
+      "-j=" + jobs,
+      "-stats=" + report.getPath)
+    val log = new File(folder, "nessie.log")
+    val process = new ProcessBuilder(command: _*).redirectErrorStream(true).redirectOutput(log).start()
+    val exitStatus = process.waitFor()
+    if (exitStatus != 0 || !report.isFile)
+      throw new IOException(s"Nessie failed with status $exitStatus on ${nesCFiles.size} files; see ${log.getPath}")
+
+    val json = new JsonReader(new String(Files.readAllBytes(report.toPath), StandardCharsets.UTF_8)).read()
+      .asInstanceOf[Map[String, Any]]
+    Measurement(shape.components, json("totals").asInstanceOf[Map[String, Any]], json("wallMillis").asInstanceOf[Double])
+  }
+
+
+  /** Returns the summary table, starting with its header, with aligned columns. */
+  private def summary(measurements: Seq[Measurement]): Seq[Seq[String]] = {
+    val header = Seq("components", "files", "ppBytes", "tokens", "nodes", "wallMs", "nsPerToken") ++
+      Phases.flatMap(phase => Seq(phase + "Ms", phase + "PeakMB"))
+    val rows = measurements map { m =>
+      val tokens = m.number("tokens")
+      Seq(m.components.toString,
+          "%.0f".format(m.number("files")),
+          "%.0f".format(m.number("preprocessedBytes")),
+          "%.0f".format(tokens),
+          "%.0f".format(m.number("nodes")),
+          String.format(Locale.ROOT, "%.1f", Double.box(m.wallMillis)),
+          String.format(Locale.ROOT, "%.0f", Double.box(if (tokens > 0) m.wallMillis * 1.0e6 / tokens else 0.0))) ++
+      Phases.flatMap { phase =>
+        Seq(String.format(Locale.ROOT, "%.1f", Double.box(m.phase(phase, "wallMillis"))),
+            String.format(Locale.ROOT, "%.1f", Double.box(m.phase(phase, "peakHeapBytes") / (1024.0 * 1024.0))))
+      }
+    }
+    val table = header +: rows
+    val widths = header.indices.map(column => table.map(_(column).length).max)
+    table.map(row => row.zip(widths).map { case (cell, width) => cell.reverse.padTo(width, ' ').reverse })
+  }
+
+
+  private def deleteTree(file: File): Unit = {
+    if (file.isDirectory) Option(file.listFiles).getOrElse(Array[File]()) foreach deleteTree
+    if (file.exists() && !file.delete()) throw new IOException("Unable to delete " + file.getPath)
+  }
+
+
+  /**
+   * Reads JSON text such as the statistics report. Objects are read as maps, arrays as
+   * sequences, and numbers as doubles.
+   */
+  private final class JsonReader(text: String) {
+    private var position = 0
+
+    def read(): Any = {
+      val result = value()
+      skipSpace()
+      if (position != text.length) error("Extra text")
+      result
+    }
+
+    private def error(message: String): Nothing =
+      throw new IllegalArgumentException(s"$message at offset $position of statistics report")
+
+    private def skipSpace(): Unit = {
+      while (position < text.length && Character.isWhitespace(text.charAt(position))) position += 1
+    }
+
+    private def expect(c: Char): Unit = {
+      skipSpace()
+      if (position >= text.length || text.charAt(position) != c) error(s"Expected '$c'")
+      position += 1
+    }
+
+    private def peek: Char = {
+      skipSpace()
+      if (position >= text.length) error("Unexpected end")
+      text.charAt(position)
+    }
+
+    private def value(): Any = peek match {
+      case '{' =>
+        expect('{')
+        val result = mutable.LinkedHashMap[String, Any]()
+        if (peek == '}') position += 1
+        else {
+          var more = true
+          while (more) {
+            val name = string()
+            expect(':')
+            result(name) = value()
+            if (peek == ',') position += 1 else { expect('}'); more = false }
+          }
+        }
+        result.toMap
+
+      case '[' =>
+        expect('[')
+        val result = mutable.ArrayBuffer[Any]()
+        if (peek == ']') position += 1
+        else {
+          var more = true
+          while (more) {
+            result += value()
+            if (peek == ',') position += 1 else { expect(']'); more = false }
+          }
+        }
+        result.toSeq
+
+      case '"' => string()
+      case 't' => literal("true", true)
+      case 'f' => literal("false", false)
+      case 'n' => literal("null", null)
+      case _   => number()
+    }
+
+    private def literal(word: String, result: Any): Any = {
+      if (!text.startsWith(word, position)) error("Unknown value")
+      position += word.length
+      result
+    }
+
+    private def number(): Double = {
+      val start = position
+      while (position < text.length && "+-0123456789.eE".indexOf(text.charAt(position).toInt) >= 0) position += 1
+      try text.substring(start, position).toDouble
+      catch {
+        case _: NumberFormatException => error("Bad number")
+      }
+    }
+
+    private def string(): String = {
+      expect('"')
+      val result = new StringBuilder
+      while (position < text.length && text.charAt(position) != '"') {
+        val c = text.charAt(position)
+        if (c != '\\') {
+          result.append(c)
+          position += 1
+        }
+        else {
+          if (position + 1 >= text.length) error("Unexpected end")
+          text.charAt(position + 1) match {
+            case 'n' => result.append('\n')
+            case 'r' => result.append('\r')
+            case 't' => result.append('\t')
+            case 'u' =>
+              if (position + 6 > text.length) error("Unexpected end")
+              result.append(Integer.parseInt(text.substring(position + 2, position + 6), 16).toChar)
+              position += 4
+            case other => result.append(other)
+          }
+          position += 2
+        }
+      }
+      expect('"')
+      result.toString
+    }
+  }
+
+}
@@ -0,0 +1,27 @@
+//-----------------------------------------------------------------------
+// FILE    : Throughput.java
+// SUBJECT : Counters reported by the Nessie benchmarks.
+//
+//-----------------------------------------------------------------------
+package edu.vtc.nessie.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Counts the bytes and tree nodes handled by a benchmark. JMH reports each counter as a rate alongside the main score,
+ * giving throughput in bytes/s and nodes/s. This class is written in Java because JMH only reports public fields and
+ * Scala does not create them.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+    public long bytes;
+    public long nodes;
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        bytes = 0;
+        nodes = 0;
+    }
+}
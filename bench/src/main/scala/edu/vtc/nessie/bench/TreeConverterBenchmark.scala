@@ -0,0 +1,32 @@
+package edu.vtc.nessie.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+import edu.vtc.nesc.TreeConverter
+
+/** Measures the conversions between ANTLR trees and ASTNode trees. */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class TreeConverterBenchmark {
+
+  @Benchmark
+  def antlrToScala(throughput: Throughput, blackhole: Blackhole): Unit = {
+    for (file <- Corpus.files) {
+      blackhole.consume(TreeConverter.ANTLRToScala(file.antlrTree))
+      file.countIn(throughput)
+    }
+  }
+
+  @Benchmark
+  def scalaToANTLR(throughput: Throughput, blackhole: Blackhole): Unit = {
+    for (file <- Corpus.files) {
+      blackhole.consume(TreeConverter.scalaToANTLR(file.abstractSyntax))
+      file.countIn(throughput)
+    }
+  }
+
+}
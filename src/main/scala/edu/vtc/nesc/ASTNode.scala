@@ -1,26 +1,226 @@
 package edu.vtc.nesc
 
+import org.antlr.runtime.tree.Tree
+
 /**
  * Class representing nodes in the AST of a nesC program. Either the field children or the field parent must be a var so
  * that mutually referential ASTNode instances can be built.
  *
+ * ASTNode also implements ANTLR's Tree interface. This allows the parser to build ASTNode trees directly (see
+ * ASTNodeAdaptor) and allows SyntaxViewer to rewrite them. The mutating methods of that interface are only meant to be
+ * used while the parser builds the tree.
+ *
+ * Since nodes change as the tree is built, ASTNode is not a case class: two nodes are only equal if they are the same
+ * node, and the parent link is not part of a node's value. Equality and hash codes thus never change, and nodes can be
+ * used as keys in hash based collections. The companion object still provides apply and unapply so that nodes can be
+ * created and matched as before.
+ *
  * @param tokenType Token identifier as defined by ANTLR.
- * @param text The actual text of the token as it appears in the source.
+ * @param text The actual text of the token as it appears in the source. This is null for the "nil" nodes ANTLR uses to
+ * hold lists of nodes while building a tree.
  * @param children The child nodes of this node in the AST.
  * @param parent The parent node or None for the root node.
  * @param symbolTable The symbol table associated with this node, if any.
  */
-sealed case class ASTNode(
-  tokenType  : Int,
-  text       : String,
-  children   : List[ASTNode],
+final class ASTNode(
+  val tokenType  : Int,
+  val text       : String,
+  var children: Vector[ASTNode],
   var parent : Option[ASTNode],
-  var symbolTable: Option[Symbols])
+  var symbolTable: Option[Symbols]) extends Tree
 {
   // I don't really want to match on these and the class's parameter list is already too long. Thus I'm making these
-  // class members. They need to be vars so they can be set during tree conversion. They should never be modified after
+  // class members. They need to be vars so they can be set while the tree is built. They should never be modified after
   // that, however.
-  // 
+  //
   var line = 0
   var positionInLine = 0
+
+  // Nodes for imaginary tokens have no position of their own. They take the position of their first child.
+  private var inheritsPosition = false
+  private var childIndex = -1
+
+
+  /**
+   * Makes this node take its position from its first child. The position is updated whenever the first child, or its
+   * position, changes.
+   */
+  private[nesc] def inheritPosition(): Unit = {
+    inheritsPosition = true
+    updatePosition()
+  }
+
+  // Updates the position of this node and those ancestors that take their position from it. This is done without
+  // recursion since a chain of such nodes can be long.
+  private def updatePosition(): Unit = {
+    var node = this
+    var done = false
+    while (!done && node.inheritsPosition) {
+      val (newLine, newPosition) = node.children.headOption.map(c => (c.line, c.positionInLine)).getOrElse((0, 1))
+      if (newLine == node.line && newPosition == node.positionInLine) done = true
+      else {
+        node.line = newLine
+        node.positionInLine = newPosition
+        node.parent match {
+          case Some(up) if node.childIndex == 0 => node = up
+          case _ => done = true
+        }
+      }
+    }
+  }
+
+  // Makes a node a child of this node at the given index.
+  private def adopt(child: ASTNode, index: Int): Unit = {
+    child.parent = Some(this)
+    child.childIndex = index
+  }
+
+  private def childrenOf(t: Tree): Vector[ASTNode] = {
+    val node = t.asInstanceOf[ASTNode]
+    if (node.isNil) node.children else Vector(node)
+  }
+
+  private def renumberChildren(from: Int): Unit = {
+    for (i <- from until children.length) adopt(children(i), i)
+  }
+
+
+  // Methods of Tree
+  // ---------------
+
+  override def getChild(i: Int): Tree = if (i >= 0 && i < children.length) children(i) else null
+
+  override def getChildCount: Int = children.length
+
+  override def getParent: Tree = parent.orNull
+
+  override def setParent(t: Tree): Unit = {
+    parent = Option(t.asInstanceOf[ASTNode])
+  }
+
+  override def hasAncestor(ttype: Int): Boolean = getAncestor(ttype) != null
+
+  override def getAncestor(ttype: Int): Tree = {
+    var ancestor = parent
+    while (ancestor.isDefined && ancestor.get.tokenType != ttype) ancestor = ancestor.get.parent
+    ancestor.orNull
+  }
+
+  override def getAncestors: java.util.List[_] = {
+    val ancestors = new java.util.ArrayList[Tree]()
+    var ancestor = parent
+    while (ancestor.isDefined) {
+      ancestors.add(0, ancestor.get)
+      ancestor = ancestor.get.parent
+    }
+    if (ancestors.isEmpty) null else ancestors
+  }
+
+  override def getChildIndex: Int = childIndex
+
+  override def setChildIndex(index: Int): Unit = {
+    childIndex = index
+  }
+
+  override def freshenParentAndChildIndexes(): Unit = renumberChildren(0)
+
+  /** Adds a child to the end of the children. If the child is a nil node, its children are added instead. */
+  override def addChild(t: Tree): Unit = {
+    if (t != null) {
+      val first = children.length
+      children = children ++ childrenOf(t)
+      renumberChildren(first)
+      if (first == 0) updatePosition()
+    }
+  }
+
+  override def setChild(i: Int, t: Tree): Unit = {
+    if (t != null) {
+      val node = t.asInstanceOf[ASTNode]
+      if (node.isNil) throw new IllegalArgumentException("Can't set single child to a list")
+      children = children.updated(i, node)
+      adopt(node, i)
+      if (i == 0) updatePosition()
+    }
+  }
+
+  override def deleteChild(i: Int): AnyRef = {
+    val removed = children(i)
+    children = children.patch(i, Nil, 1)
+    renumberChildren(i)
+    if (i == 0) updatePosition()
+    removed
+  }
+
+  override def replaceChildren(startChildIndex: Int, stopChildIndex: Int, t: AnyRef): Unit = {
+    val replacements = childrenOf(t.asInstanceOf[Tree])
+    children = children.patch(startChildIndex, replacements, stopChildIndex - startChildIndex + 1)
+    renumberChildren(startChildIndex)
+    if (startChildIndex == 0) updatePosition()
+  }
+
+  override def isNil: Boolean = text == null
+
+  // Nessie doesn't use the range of tokens covered by a node, so it is not recorded.
+  override def getTokenStartIndex: Int = -1
+  override def setTokenStartIndex(index: Int): Unit = { }
+  override def getTokenStopIndex: Int = -1
+  override def setTokenStopIndex(index: Int): Unit = { }
+
+  override def dupNode(): Tree = {
+    val duplicate = ASTNode(tokenType, text, Vector(), None, symbolTable)
+    duplicate.line = line
+    duplicate.positionInLine = positionInLine
+    duplicate
+  }
+
+  override def getType: Int = tokenType
+
+  override def getText: String = text
+
+  override def getLine: Int = line
+
+  // ANTLR's positions within a line are zero based.
+  override def getCharPositionInLine: Int = positionInLine - 1
+
+  override def toStringTree: String = {
+    val result = new StringBuilder
+    // The second element of each pair is true when the node's subtree is finished.
+    val pending = new scala.collection.mutable.Stack[(ASTNode, Boolean)]
+    pending.push((this, false))
+    while (pending.nonEmpty) {
+      pending.pop() match {
+        case (_, true) =>
+          result.append(')')
+        case (node, false) if node.isNil && node.children.nonEmpty =>
+          for (child <- node.children.reverseIterator) pending.push((child, false))
+        case (node, false) =>
+          if (result.nonEmpty) result.append(' ')
+          if (node.children.isEmpty) result.append(node.toString)
+          else {
+            result.append('(').append(node.toString)
+            pending.push((node, true))
+            for (child <- node.children.reverseIterator) pending.push((child, false))
+          }
+      }
+    }
+    result.toString
+  }
+
+  override def toString: String = if (isNil) "nil" else text
+}
+
+
+object ASTNode {
+
+  def apply(
+    tokenType  : Int,
+    text       : String,
+    children   : Vector[ASTNode],
+    parent     : Option[ASTNode],
+    symbolTable: Option[Symbols]): ASTNode = new ASTNode(tokenType, text, children, parent, symbolTable)
+
+  /** Extracts the fields of a node. The result is always defined, so matching a node on it can't fail. */
+  def unapply(node: ASTNode): Some[(Int, String, Vector[ASTNode], Option[ASTNode], Option[Symbols])] =
+    Some((node.tokenType, node.text, node.children, node.parent, node.symbolTable))
 }
@@ -0,0 +1,47 @@
+package edu.vtc.nesc
+
+import org.antlr.runtime.{RecognitionException, Token, TokenStream}
+import org.antlr.runtime.tree.{CommonErrorNode, CommonTreeAdaptor}
+
+/**
+ * A tree adaptor that makes the parser build ASTNode trees instead of CommonTree trees. This
+ * avoids building a CommonTree for each file only to convert it to an ASTNode immediately. The
+ * line and position of each node are taken from its token. Nodes for imaginary tokens take the
+ * position of their first child as CommonTree does. Use it by calling the parser's
+ * setTreeAdaptor method before parsing.
+ */
+class ASTNodeAdaptor extends CommonTreeAdaptor {
+
+  override def create(payload: Token): AnyRef = {
+    if (payload == null) ASTNode(Token.INVALID_TOKEN_TYPE, null, Vector(), None, None)
+    else {
+      val node = ASTNode(payload.getType, payload.getText, Vector(), None, None)
+      if (payload.getLine == 0) {
+        node.inheritPosition()
+      }
+      else {
+        // ANTLR uses one based positions for line numbers and zero based positions for column
+        // numbers. In contrast Nessie uses one based positions for both lines and columns.
+        //
+        node.line = payload.getLine
+        node.positionInLine = payload.getCharPositionInLine + 1
+      }
+      node
+    }
+  }
+
+  /**
+   * Creates a node to stand for text the parser could not recognize. The node's text is the
+   * text of the tokens that were skipped, as for ANTLR's own error nodes.
+   */
+  override def errorNode(input           : TokenStream,
+                         start           : Token,
+                         stop            : Token,
+                         recognitionError: RecognitionException): AnyRef = {
+    val skippedText = new CommonErrorNode(input, start, stop, recognitionError).getText
+    val node = ASTNode(Token.INVALID_TOKEN_TYPE, skippedText, Vector(), None, None)
+    node.positionInLine = 1
+    node
+  }
+
+}
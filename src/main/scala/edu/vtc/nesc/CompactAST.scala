@@ -0,0 +1,242 @@
+package edu.vtc.nesc
+
+import scala.collection.mutable.Stack
+import org.antlr.runtime.tree.Tree
+
+/**
+ * A compact, read-only form of an abstract syntax tree, or of a list of trees. The nodes are
+ * numbered in depth first order starting with zero for the first root, and each attribute of the
+ * nodes is kept in its own array indexed by node number. The roots are siblings without a
+ * parent. Each distinct text is stored once in a table that belongs to the tree, so it is
+ * released along with the tree. This uses a small fraction of the memory needed by ASTNode
+ * trees, which makes it practical to keep many trees for a long time. HeaderRegionCache keeps
+ * the trees of the header regions it has parsed in this form.
+ *
+ * Nodes are examined through CompactAST.Node views, which can be matched like ASTNodes:
+ * {{{
+ *   node match {
+ *     case CompactAST.Node(NesCLexer.MODULE, _, children, _) => ...
+ *   }
+ * }}}
+ *
+ * @param texts The distinct texts of the nodes.
+ * @param tokenTypes The token type of each node.
+ * @param textIds The index of each node's text in texts or -1 for nil nodes.
+ * @param firstChildren The first child of each node or -1 if the node has no children.
+ * @param nextSiblings The next sibling of each node or -1 if the node is the last child.
+ * @param parents The parent of each node or -1 for the root.
+ * @param lines The line of each node.
+ * @param positions The position of each node in its line, starting at one.
+ */
+final class CompactAST private (texts        : Array[String],
+                                tokenTypes   : Array[Int],
+                                textIds      : Array[Int],
+                                firstChildren: Array[Int],
+                                nextSiblings : Array[Int],
+                                parents      : Array[Int],
+                                lines        : Array[Int],
+                                positions    : Array[Int]) {
+  import CompactAST._
+
+  /** The number of nodes in the tree. */
+  def size: Int = tokenTypes.length
+
+  /** The root of the tree. If the tree holds a list of trees, this is the first root. */
+  def root: Node = new Node(this, 0)
+
+  /** The roots of the trees held. */
+  def roots: Vector[Node] = {
+    val result = Vector.newBuilder[Node]
+    var current = if (size == 0) -1 else 0
+    while (current != -1) {
+      result += new Node(this, current)
+      current = nextSiblings(current)
+    }
+    result.result()
+  }
+
+  def tokenType(node: Int): Int = tokenTypes(node)
+
+  def text(node: Int): String = if (textIds(node) == -1) null else texts(textIds(node))
+
+  def textId(node: Int): Int = textIds(node)
+
+  def firstChild(node: Int): Int = firstChildren(node)
+
+  def nextSibling(node: Int): Int = nextSiblings(node)
+
+  def parent(node: Int): Int = parents(node)
+
+  def line(node: Int): Int = lines(node)
+
+  def positionInLine(node: Int): Int = positions(node)
+
+
+  /**
+   * Converts the tree, or a subtree of it, to ASTNodes. This is done without recursion.
+   *
+   * @param node The root of the subtree to convert.
+   * @param lineDelta The amount added to the line of each node that has a line.
+   * @return The converted subtree. The parent of its root is None.
+   */
+  def toASTNode(node: Int = 0, lineDelta: Int = 0): ASTNode = {
+    // Nodes are numbered in depth first order so a subtree occupies consecutive numbers. The
+    // nodes are created from last to first so that each node's children exist before it does.
+    val last = subtreeEnd(node) - 1
+    val converted = new Array[ASTNode](last - node + 1)
+    for (i <- last to node by -1) {
+      val children = Vector.newBuilder[ASTNode]
+      var child = firstChildren(i)
+      while (child != -1) {
+        children += converted(child - node)
+        child = nextSiblings(child)
+      }
+      val newNode = ASTNode(tokenTypes(i), text(i), children.result(), None, None)
+      newNode.line = if (lines(i) > 0) lines(i) + lineDelta else lines(i)
+      newNode.positionInLine = positions(i)
+      newNode.freshenParentAndChildIndexes()
+      converted(i - node) = newNode
+    }
+    converted(0)
+  }
+
+  // Returns the number just past the last node in the given node's subtree. That is the next
+  // sibling of the node or of its nearest ancestor that has one.
+  private def subtreeEnd(node: Int): Int = {
+    var current = node
+    while (current != -1 && nextSiblings(current) == -1) current = parents(current)
+    if (current == -1) size else nextSiblings(current)
+  }
+
+}
+
+
+object CompactAST {
+
+  /**
+   * A view of one node of a CompactAST. Views are created as needed; the tree does not contain
+   * them.
+   *
+   * @param tree The tree containing the node.
+   * @param index The number of the node in the tree.
+   */
+  final class Node(val tree: CompactAST, val index: Int) {
+
+    def tokenType: Int = tree.tokenType(index)
+
+    def text: String = tree.text(index)
+
+    def line: Int = tree.line(index)
+
+    def positionInLine: Int = tree.positionInLine(index)
+
+    def parent: Option[Node] = {
+      val parentIndex = tree.parent(index)
+      if (parentIndex == -1) None else Some(new Node(tree, parentIndex))
+    }
+
+    def children: Vector[Node] = {
+      val result = Vector.newBuilder[Node]
+      var child = tree.firstChild(index)
+      while (child != -1) {
+        result += new Node(tree, child)
+        child = tree.nextSibling(child)
+      }
+      result.result()
+    }
+
+    override def equals(other: Any): Boolean = other match {
+      case that: Node => (tree eq that.tree) && index == that.index
+      case _ => false
+    }
+
+    override def hashCode: Int = System.identityHashCode(tree) * 31 + index
+
+    override def toString: String = text
+  }
+
+  object Node {
+    /** Extracts the token type, text, children, and parent of a node, in the manner of ASTNode. */
+    def unapply(node: Node): Some[(Int, String, Vector[Node], Option[Node])] =
+      Some((node.tokenType, node.text, node.children, node.parent))
+  }
+
+
+  /**
+   * Creates a compact copy of a tree. Any implementation of Tree can be copied, including
+   * ASTNode trees and the trees built by ANTLR's default tree adaptor. The tree is walked
+   * without recursion.
+   *
+   * @param root The root of the tree to copy.
+   * @return The compact copy.
+   */
+  def apply(root: Tree): CompactAST = apply(Seq(root))
+
+  /**
+   * Creates a compact copy of a list of trees, such as the top level nodes of a file.
+   *
+   * @param roots The roots of the trees to copy.
+   * @return The compact copy. Its roots are in the same order as the given roots.
+   */
+  def apply(roots: Seq[Tree]): CompactAST = {
+    val nodes = new scala.collection.mutable.ArrayBuffer[Tree]
+    val parentList = new scala.collection.mutable.ArrayBuffer[Int]
+
+    // Number the nodes in depth first order.
+    val pending = new Stack[(Tree, Int)]
+    for (root <- roots.reverseIterator) pending.push((root, -1))
+    while (pending.nonEmpty) {
+      val (node, parentIndex) = pending.pop()
+      val index = nodes.length
+      nodes += node
+      parentList += parentIndex
+      for (i <- node.getChildCount - 1 to 0 by -1) pending.push((node.getChild(i), index))
+    }
+
+    val size = nodes.length
+    val tokenTypes = new Array[Int](size)
+    val textIds = new Array[Int](size)
+    val firstChildren = Array.fill(size)(-1)
+    val nextSiblings = Array.fill(size)(-1)
+    val parents = parentList.toArray
+    val lines = new Array[Int](size)
+    val positions = new Array[Int](size)
+
+    val textIndex = new java.util.HashMap[String, Integer]()
+    val texts = new scala.collection.mutable.ArrayBuffer[String]
+
+    // The most recent child of each node seen so far while scanning in order.
+    val lastChildren = Array.fill(size)(-1)
+    var lastRoot = -1
+    for (i <- 0 until size) {
+      val node = nodes(i)
+      tokenTypes(i) = node.getType
+      textIds(i) =
+        if (node.isNil) -1
+        else {
+          val text = node.getText
+          val existing = textIndex.get(text)
+          if (existing != null) existing.intValue
+          else {
+            textIndex.put(text, texts.length)
+            texts += text
+            texts.length - 1
+          }
+        }
+      lines(i) = node.getLine
+      positions(i) = node.getCharPositionInLine + 1
+      val parentIndex = parents(i)
+      if (parentIndex != -1) {
+        if (lastChildren(parentIndex) == -1) firstChildren(parentIndex) = i
+        else nextSiblings(lastChildren(parentIndex)) = i
+        lastChildren(parentIndex) = i
+      }
+      else {
+        if (lastRoot != -1) nextSiblings(lastRoot) = i
+        lastRoot = i
+      }
+    }
+    new CompactAST(texts.toArray, tokenTypes, textIds, firstChildren, nextSiblings, parents, lines, positions)
+  }
+
+}
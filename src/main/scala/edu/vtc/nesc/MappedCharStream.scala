@@ -0,0 +1,226 @@
+package edu.vtc.nesc
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.{CodingErrorAction, StandardCharsets}
+import java.nio.file.StandardOpenOption
+import java.util.ArrayList
+import org.antlr.runtime.CharStream
+
+/**
+ * A character stream for the lexer that reads UTF-8 text directly from a buffer, normally a
+ * memory mapped file. Unlike ANTLRFileStream and ANTLRInputStream, the text is not copied into
+ * a character array before lexing starts. Preprocessed nesC files are large but nearly always
+ * pure ASCII, and in ASCII text each byte is one character. Thus the bytes are checked as the
+ * lexer reaches them, and as long as they are ASCII they are used as characters directly. If a
+ * byte that is not ASCII is found, the rest of the text is decoded at that time.
+ *
+ * The behavior of this class otherwise matches that of ANTLRStringStream. Invalid UTF-8 is
+ * replaced with U+FFFD as done by ANTLRFileStream.
+ *
+ * @param bytes The text to read. The buffer's position and limit mark the text; they are not
+ * changed by this class.
+ * @param sourceName The name of the text's source for use in error messages.
+ */
+final class MappedCharStream(bytes: ByteBuffer, sourceName: String) extends CharStream {
+  import MappedCharStream._
+
+  private val text = bytes.slice()
+  private val byteCount = text.limit()
+
+  // The bytes before asciiEnd are known to be ASCII. If a byte after that has been found not
+  // to be ASCII, tail holds the decoded text starting at asciiEnd.
+  private var asciiEnd = 0
+  private var tail: Array[Char] = null
+
+  private var p = 0
+  private var line = 1
+  private var charPositionInLine = 0
+
+  private var markers: ArrayList[StreamState] = null
+  private var markDepth = 0
+  private var lastMarker = 0
+
+
+  /**
+   * Returns the character at a given index or EOF if the index is outside the text.
+   */
+  private def charAt(index: Int): Int = {
+    if (index < asciiEnd) {
+      if (index < 0) CharStream.EOF else text.get(index).toInt
+    }
+    else {
+      scanTo(index)
+      if (index < asciiEnd) text.get(index).toInt
+      else if (tail != null && index - asciiEnd < tail.length) tail(index - asciiEnd).toInt
+      else CharStream.EOF
+    }
+  }
+
+
+  /**
+   * Checks bytes for ASCII at least up to the given index, and somewhat beyond it so that
+   * this is not done for every character.
+   */
+  private def scanTo(index: Int): Unit = {
+    if (tail == null) {
+      val limit = math.min(byteCount, math.max(index + 1, asciiEnd + ScanBlockSize))
+      while (asciiEnd < limit && text.get(asciiEnd) >= 0) asciiEnd += 1
+      if (asciiEnd < limit) decodeTail()
+    }
+  }
+
+
+  private def decodeTail(): Unit = {
+    val rest = text.duplicate()
+    rest.position(asciiEnd)
+    val decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    val decoded = decoder.decode(rest)
+    tail = new Array[Char](decoded.remaining)
+    decoded.get(tail): @annotation.nowarn("msg=discarded non-Unit value")
+  }
+
+
+  override def consume(): Unit = {
+    val ch = charAt(p)
+    if (ch != CharStream.EOF) {
+      charPositionInLine += 1
+      if (ch == '\n') {
+        line += 1
+        charPositionInLine = 0
+      }
+      p += 1
+    }
+  }
+
+  override def LA(i: Int): Int = {
+    if (i == 0) 0
+    else if (i < 0) charAt(p + i)
+    else charAt(p + i - 1)
+  }
+
+  override def LT(i: Int): Int = LA(i)
+
+  override def index(): Int = p
+
+  /** Returns the number of characters in the text. This requires the entire text be checked. */
+  override def size(): Int = {
+    scanTo(byteCount)
+    asciiEnd + (if (tail == null) 0 else tail.length)
+  }
+
+  override def mark(): Int = {
+    if (markers == null) {
+      markers = new ArrayList[StreamState]()
+      markers.add(null)
+    }
+    markDepth += 1
+    val state =
+      if (markDepth >= markers.size) {
+        val newState = new StreamState
+        markers.add(newState)
+        newState
+      }
+      else markers.get(markDepth)
+    state.p = p
+    state.line = line
+    state.charPositionInLine = charPositionInLine
+    lastMarker = markDepth
+    markDepth
+  }
+
+  override def rewind(marker: Int): Unit = {
+    val state = markers.get(marker)
+    seek(state.p)
+    line = state.line
+    charPositionInLine = state.charPositionInLine
+    release(marker)
+  }
+
+  override def rewind(): Unit = rewind(lastMarker)
+
+  override def release(marker: Int): Unit = {
+    markDepth = marker - 1
+  }
+
+  override def seek(index: Int): Unit = {
+    if (index <= p) p = index
+    else while (p < index && charAt(p) != CharStream.EOF) consume()
+  }
+
+  override def substring(start: Int, stop: Int): String = {
+    val result = new Array[Char](math.max(stop - start + 1, 0))
+    for (i <- result.indices) result(i) = charAt(start + i).toChar
+    new String(result)
+  }
+
+  override def getLine: Int = line
+
+  override def setLine(line: Int): Unit = {
+    this.line = line
+  }
+
+  override def getCharPositionInLine: Int = charPositionInLine
+
+  override def setCharPositionInLine(position: Int): Unit = {
+    charPositionInLine = position
+  }
+
+  override def getSourceName: String = sourceName
+
+  override def toString: String = substring(0, size() - 1)
+}
+
+
+object MappedCharStream {
+
+  // The number of bytes checked for ASCII at once.
+  private val ScanBlockSize = 4096
+
+  /** The position saved by mark. */
+  private final class StreamState {
+    var p = 0
+    var line = 0
+    var charPositionInLine = 0
+  }
+
+  /**
+   * Maps a file into memory. The mapping remains valid after the file is closed. It is released
+   * when the buffer is no longer referenced.
+   *
+   * @param file The file to map.
+   * @return A buffer holding the file's contents.
+   * @throws java.io.IOException if the file can't be opened or mapped.
+   */
+  def mapFile(file: File): ByteBuffer = {
+    val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+    try {
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size)
+    }
+    finally {
+      channel.close()
+    }
+  }
+
+  /**
+   * Maps a file into memory and returns a character stream over it.
+   *
+   * @param file The file to read.
+   * @return A character stream over the file's contents.
+   * @throws java.io.IOException if the file can't be opened or mapped.
+   */
+  def apply(file: File): MappedCharStream = new MappedCharStream(mapFile(file), file.getPath)
+
+  /**
+   * Returns a character stream over text already in memory. The array is not copied.
+   *
+   * @param contents The UTF-8 text to read.
+   * @param sourceName The name of the text's source for use in error messages.
+   */
+  def apply(contents: Array[Byte], sourceName: String): MappedCharStream =
+    new MappedCharStream(ByteBuffer.wrap(contents), sourceName)
+
+}
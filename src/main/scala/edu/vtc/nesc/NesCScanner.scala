@@ -0,0 +1,467 @@
+package edu.vtc.nesc
+
+import scala.annotation.switch
+import org.antlr.runtime.{CharStream, Token}
+import parser.{NesCLexer, NesCParser}
+
+/**
+ * A lexer for nesC written by hand. It recognizes the same tokens as the lexer generated from
+ * NesC.g and reports the same errors, but it records the tokens in a TokenBuffer instead of
+ * making an object for each one. Scanning allocates nothing per token; in particular the text
+ * of identifiers is compared with the keywords without making a string. The tokens can be given
+ * to NesCParser with a TokenBufferStream.
+ *
+ * If the lexer rules in NesC.g are changed, this class must be changed to match.
+ *
+ * @param input The text to scan.
+ */
+class NesCScanner(input: CharStream) {
+  import NesCScanner._
+
+  // The first characters of the current identifier; enough to hold any keyword.
+  private val identifier = new Array[Char](MaxKeywordLength)
+
+  private var errors = 0
+
+
+  /**
+   * Scans the input from its current position to its end.
+   *
+   * @return The tokens found. Characters that do not begin a token are reported and skipped.
+   */
+  def scan(): TokenBuffer = {
+    val buffer = new TokenBuffer(input)
+    var c = input.LA(1)
+    while (c != CharStream.EOF) {
+      val start = input.index()
+      val line = input.getLine
+      val column = input.getCharPositionInLine
+      val tokenType = scanToken(c.toChar)
+      if (tokenType != Token.INVALID_TOKEN_TYPE) buffer.add(tokenType, start, input.index() - start, line, column)
+      c = input.LA(1)
+    }
+    buffer.finish(input.index(), input.getLine, input.getCharPositionInLine)
+    buffer
+  }
+
+
+  /** The number of errors reported so far, as given by getNumberOfSyntaxErrors in ANTLR. */
+  def numberOfErrors: Int = errors
+
+
+  /**
+   * Displays an error message. By default the message is printed on the standard error stream
+   * as done by ANTLR's lexers.
+   */
+  protected def emitErrorMessage(message: String): Unit = {
+    System.err.println(message)
+  }
+
+
+  /**
+   * Scans one token starting with the given character.
+   *
+   * @return The type of the token or INVALID_TOKEN_TYPE if there was an error.
+   */
+  private def scanToken(c: Char): Int = {
+    (c: @switch) match {
+      case ' ' | '\t' | '\r' | '\n' | '\f' =>
+        input.consume()
+        while (isWhitespace(input.LA(1))) input.consume()
+        NesCLexer.WHITESPACE
+
+      case '"'  => scanQuoted('"', NesCLexer.STRING_LITERAL)
+      case '\'' => scanQuoted('\'', NesCLexer.CHARACTER_LITERAL)
+
+      case '/' =>
+        input.LA(2) match {
+          case '*' => scanBlockComment()
+          case '/' => scanLineComment()
+          case '=' => punctuator(2, NesCLexer.DIVASSIGN)
+          case _   => punctuator(1, NesCLexer.DIVIDE)
+        }
+
+      case '&' =>
+        input.LA(2) match {
+          case '&' => punctuator(2, NesCLexer.AND)
+          case '=' => punctuator(2, NesCLexer.BITANDASSIGN)
+          case _   => punctuator(1, NesCLexer.AMP)
+        }
+
+      case '|' =>
+        input.LA(2) match {
+          case '|' => punctuator(2, NesCLexer.OR)
+          case '=' => punctuator(2, NesCLexer.BITORASSIGN)
+          case _   => punctuator(1, NesCLexer.BITOR)
+        }
+
+      case '-' =>
+        input.LA(2) match {
+          case '>' => punctuator(2, NesCLexer.ARROW)
+          case '=' => punctuator(2, NesCLexer.MINUSASSIGN)
+          case '-' => punctuator(2, NesCLexer.MINUSMINUS)
+          case _   => punctuator(1, NesCLexer.MINUS)
+        }
+
+      case '+' =>
+        input.LA(2) match {
+          case '+' => punctuator(2, NesCLexer.PLUSPLUS)
+          case '=' => punctuator(2, NesCLexer.PLUSASSIGN)
+          case _   => punctuator(1, NesCLexer.PLUS)
+        }
+
+      case '<' =>
+        input.LA(2) match {
+          case '<' => if (input.LA(3) == '=') punctuator(3, NesCLexer.LSHIFTASSIGN) else punctuator(2, NesCLexer.LSHIFT)
+          case '=' => punctuator(2, NesCLexer.LESSEQUAL)
+          case '-' => punctuator(2, LeftArrow)
+          case _   => punctuator(1, NesCLexer.LESS)
+        }
+
+      case '>' =>
+        input.LA(2) match {
+          case '>' => if (input.LA(3) == '=') punctuator(3, NesCLexer.RSHIFTASSIGN) else punctuator(2, NesCLexer.RSHIFT)
+          case '=' => punctuator(2, NesCLexer.GREATEREQUAL)
+          case _   => punctuator(1, NesCLexer.GREATER)
+        }
+
+      case '.' => if (input.LA(2) == '.') scanEllipsis() else punctuator(1, NesCLexer.DOT)
+
+      case '=' => withEquals(NesCLexer.ASSIGN, NesCLexer.EQUAL)
+      case '!' => withEquals(NesCLexer.NOT, NesCLexer.NOTEQUAL)
+      case '*' => withEquals(NesCLexer.STAR, NesCLexer.MULASSIGN)
+      case '%' => withEquals(NesCLexer.MODULUS, NesCLexer.MODASSIGN)
+      case '^' => withEquals(NesCLexer.BITXOR, NesCLexer.BITXORASSIGN)
+
+      case '@' => punctuator(1, NesCLexer.ATTRIBUTE)
+      case '~' => punctuator(1, NesCLexer.BITCOMPLEMENT)
+      case ',' => punctuator(1, NesCLexer.COMMA)
+      case '#' => punctuator(1, NesCLexer.HASH)
+      case '{' => punctuator(1, NesCLexer.LBRACE)
+      case '}' => punctuator(1, NesCLexer.RBRACE)
+      case '[' => punctuator(1, NesCLexer.LBRACKET)
+      case ']' => punctuator(1, NesCLexer.RBRACKET)
+      case '(' => punctuator(1, NesCLexer.LPARENS)
+      case ')' => punctuator(1, NesCLexer.RPARENS)
+      case ':' => punctuator(1, Colon)
+      case ';' => punctuator(1, Semicolon)
+      case '?' => punctuator(1, Question)
+
+      case _ =>
+        if (isIdentifierStart(c)) scanIdentifier()
+        else if (isDigit(c)) scanNumber()
+        else {
+          reportError("no viable alternative at character " + display(c))
+          input.consume()
+          Token.INVALID_TOKEN_TYPE
+        }
+    }
+  }
+
+
+  private def punctuator(length: Int, tokenType: Int): Int = {
+    var i = 0
+    while (i < length) {
+      input.consume()
+      i += 1
+    }
+    tokenType
+  }
+
+  private def withEquals(plain: Int, assign: Int): Int =
+    if (input.LA(2) == '=') punctuator(2, assign) else punctuator(1, plain)
+
+
+  private def scanEllipsis(): Int = {
+    input.consume()
+    input.consume()
+    expect('.', NesCLexer.ELLIPSIS)
+  }
+
+
+  /**
+   * Scans an identifier and decides if it is a keyword. Only the first few characters of the
+   * identifier are kept since longer identifiers can't be keywords.
+   */
+  private def scanIdentifier(): Int = {
+    var length = 0
+    var hash = 0
+    var c = input.LA(1)
+    while (isIdentifierPart(c)) {
+      if (length < MaxKeywordLength) identifier(length) = c.toChar
+      hash = 31 * hash + c
+      length += 1
+      input.consume()
+      c = input.LA(1)
+    }
+    if (length > MaxKeywordLength) NesCLexer.RAW_IDENTIFIER else keywordType(hash, length)
+  }
+
+  private def keywordType(hash: Int, length: Int): Int = {
+    var slot = hash & KeywordMask
+    var result = NesCLexer.RAW_IDENTIFIER
+    var done = false
+    while (!done && keywordNames(slot) != null) {
+      if (keywordHashes(slot) == hash && sameText(keywordNames(slot), length)) {
+        result = keywordTypes(slot)
+        done = true
+      }
+      slot = (slot + 1) & KeywordMask
+    }
+    result
+  }
+
+  private def sameText(keyword: String, length: Int): Boolean = {
+    if (keyword.length != length) false
+    else {
+      var i = 0
+      while (i < length && keyword.charAt(i) == identifier(i)) i += 1
+      i == length
+    }
+  }
+
+
+  /** Scans a decimal or hexadecimal constant with an optional suffix. */
+  private def scanNumber(): Int = {
+    if (input.LA(1) == '0' && input.LA(2) == 'x') {
+      input.consume()
+      input.consume()
+      if (!isHexDigit(input.LA(1))) return earlyExit()
+      while (isHexDigit(input.LA(1))) input.consume()
+    }
+    else {
+      while (isDigit(input.LA(1))) input.consume()
+    }
+
+    val first = input.LA(1)
+    val second = input.LA(2)
+    if ((first == 'l' && second == 'u') || (first == 'u' && second == 'l') ||
+        (first == 'L' && second == 'U') || (first == 'U' && second == 'L')) {
+      input.consume()
+      input.consume()
+    }
+    else if (first == 'l' || first == 'L' || first == 'u' || first == 'U') {
+      input.consume()
+    }
+    NesCLexer.CONSTANT
+  }
+
+
+  /** Scans a string or character literal. Escape sequences are not recognized. */
+  private def scanQuoted(quote: Char, tokenType: Int): Int = {
+    input.consume()
+    var c = input.LA(1)
+    while (c != quote && c != CharStream.EOF) {
+      input.consume()
+      c = input.LA(1)
+    }
+    expect(quote, tokenType)
+  }
+
+
+  private def scanBlockComment(): Int = {
+    input.consume()
+    input.consume()
+    // As in NesCLexer, a '*' just before the end of the text is taken as the start of "*/".
+    while (!(input.LA(1) == '*' && (input.LA(2) == '/' || input.LA(2) == CharStream.EOF)) &&
+           input.LA(1) != CharStream.EOF) input.consume()
+    if (input.LA(1) == CharStream.EOF) expect('*', NesCLexer.COMMENT1)
+    else {
+      input.consume()
+      expect('/', NesCLexer.COMMENT1)
+    }
+  }
+
+
+  /** Scans a comment up to and including the character that ends its line. */
+  private def scanLineComment(): Int = {
+    input.consume()
+    input.consume()
+    var c = input.LA(1)
+    while (c != '\r' && c != '\n' && c != CharStream.EOF) {
+      input.consume()
+      c = input.LA(1)
+    }
+    if (c == CharStream.EOF) {
+      reportError("mismatched character " + display(c) + " expecting set null")
+      Token.INVALID_TOKEN_TYPE
+    }
+    else {
+      input.consume()
+      NesCLexer.COMMENT2
+    }
+  }
+
+
+  /**
+   * Consumes the character that ends a token. If it is missing, the error is reported, the
+   * character found instead is skipped, and the token is dropped.
+   */
+  private def expect(expected: Char, tokenType: Int): Int = {
+    val c = input.LA(1)
+    if (c == expected) {
+      input.consume()
+      tokenType
+    }
+    else {
+      reportError("mismatched character " + display(c) + " expecting " + display(expected))
+      input.consume()
+      Token.INVALID_TOKEN_TYPE
+    }
+  }
+
+  /** Handles a hexadecimal prefix with no digits after it. */
+  private def earlyExit(): Int = {
+    reportError("required (...)+ loop did not match anything at character " + display(input.LA(1)))
+    input.consume()
+    Token.INVALID_TOKEN_TYPE
+  }
+
+  private def reportError(message: String): Unit = {
+    errors += 1
+    val source = Option(input.getSourceName).map(_ + " ").getOrElse("")
+    emitErrorMessage(s"${source}line ${input.getLine}:${input.getCharPositionInLine} $message")
+  }
+
+}
+
+
+object NesCScanner {
+
+  /**
+   * Scans an entire text.
+   *
+   * @param input The text to scan.
+   * @return The tokens of the text.
+   */
+  def scan(input: CharStream): TokenBuffer = new NesCScanner(input).scan()
+
+
+  /** True for the tokens that NesCLexer puts on the hidden channel. */
+  def isHidden(tokenType: Int): Boolean = {
+    tokenType == NesCLexer.WHITESPACE ||
+    tokenType == NesCLexer.COMMENT1   ||
+    tokenType == NesCLexer.COMMENT2   ||
+    tokenType == NesCLexer.COMMENT3
+  }
+
+  // Tokens written as literals in the parser rules of NesC.g have generated names such as
+  // T__195. Their types are found by their display names so they don't depend on that order.
+  private def literalType(literal: String): Int = {
+    val tokenType = NesCParser.tokenNames.indexOf("'" + literal + "'")
+    if (tokenType < 0) throw new IllegalStateException("No token for " + literal)
+    tokenType
+  }
+
+  private val Colon     = literalType(":")
+  private val Semicolon = literalType(";")
+  private val LeftArrow = literalType("<-")
+  private val Question  = literalType("?")
+
+  /** The words given their own token types in the tokens section of NesC.g. */
+  private val Keywords = Seq(
+    "auto" -> NesCLexer.AUTO, "break" -> NesCLexer.BREAK, "case" -> NesCLexer.CASE,
+    "char" -> NesCLexer.CHAR, "const" -> NesCLexer.CONST, "continue" -> NesCLexer.CONTINUE,
+    "default" -> NesCLexer.DEFAULT, "do" -> NesCLexer.DO, "double" -> NesCLexer.DOUBLE,
+    "else" -> NesCLexer.ELSE, "enum" -> NesCLexer.ENUM, "extern" -> NesCLexer.EXTERN,
+    "float" -> NesCLexer.FLOAT, "for" -> NesCLexer.FOR, "goto" -> NesCLexer.GOTO,
+    "if" -> NesCLexer.IF, "inline" -> NesCLexer.INLINE, "int" -> NesCLexer.INT,
+    "long" -> NesCLexer.LONG, "register" -> NesCLexer.REGISTER, "restrict" -> NesCLexer.RESTRICT,
+    "return" -> NesCLexer.RETURN, "short" -> NesCLexer.SHORT, "signed" -> NesCLexer.SIGNED,
+    "sizeof" -> NesCLexer.SIZEOF, "static" -> NesCLexer.STATIC, "struct" -> NesCLexer.STRUCT,
+    "switch" -> NesCLexer.SWITCH, "typedef" -> NesCLexer.TYPEDEF, "union" -> NesCLexer.UNION,
+    "unsigned" -> NesCLexer.UNSIGNED, "void" -> NesCLexer.VOID, "volatile" -> NesCLexer.VOLATILE,
+    "while" -> NesCLexer.WHILE,
+
+    "__attribute__" -> NesCLexer.GCCATTRIBUTE,
+    "__builtin_va_list" -> NesCLexer.BUILTIN_VA_LIST,
+    "__builtin_va_arg" -> NesCLexer.BUILTIN_VA_ARG,
+    "__extension__" -> NesCLexer.COMMENT3,
+
+    "int8_t" -> NesCLexer.INT8_T, "int16_t" -> NesCLexer.INT16_T,
+    "int32_t" -> NesCLexer.INT32_T, "int64_t" -> NesCLexer.INT64_T,
+    "uint8_t" -> NesCLexer.UINT8_T, "uint16_t" -> NesCLexer.UINT16_T,
+    "uint32_t" -> NesCLexer.UINT32_T, "uint64_t" -> NesCLexer.UINT64_T,
+    "nx_int8_t" -> NesCLexer.NX_INT8_T, "nx_int16_t" -> NesCLexer.NX_INT16_T,
+    "nx_int32_t" -> NesCLexer.NX_INT32_T, "nx_int64_t" -> NesCLexer.NX_INT64_T,
+    "nx_uint8_t" -> NesCLexer.NX_UINT8_T, "nx_uint16_t" -> NesCLexer.NX_UINT16_T,
+    "nx_uint32_t" -> NesCLexer.NX_UINT32_T, "nx_uint64_t" -> NesCLexer.NX_UINT64_T,
+    "nxle_int8_t" -> NesCLexer.NXLE_INT8_T, "nxle_int16_t" -> NesCLexer.NXLE_INT16_T,
+    "nxle_int32_t" -> NesCLexer.NXLE_INT32_T, "nxle_int64_t" -> NesCLexer.NXLE_INT64_T,
+    "nxle_uint8_t" -> NesCLexer.NXLE_UINT8_T, "nxle_uint16_t" -> NesCLexer.NXLE_UINT16_T,
+    "nxle_uint32_t" -> NesCLexer.NXLE_UINT32_T, "nxle_uint64_t" -> NesCLexer.NXLE_UINT64_T,
+
+    "abstract" -> NesCLexer.ABSTRACT, "as" -> NesCLexer.AS, "async" -> NesCLexer.ASYNC,
+    "atomic" -> NesCLexer.ATOMIC, "call" -> NesCLexer.CALL, "command" -> NesCLexer.COMMAND,
+    "component" -> NesCLexer.COMPONENT, "components" -> NesCLexer.COMPONENTS,
+    "configuration" -> NesCLexer.CONFIGURATION, "event" -> NesCLexer.EVENT,
+    "generic" -> NesCLexer.GENERIC, "implementation" -> NesCLexer.IMPLEMENTATION,
+    "interface" -> NesCLexer.INTERFACE, "module" -> NesCLexer.MODULE, "new" -> NesCLexer.NEW,
+    "norace" -> NesCLexer.NORACE, "nx_struct" -> NesCLexer.NX_STRUCT,
+    "nx_union" -> NesCLexer.NX_UNION, "post" -> NesCLexer.POST, "provides" -> NesCLexer.PROVIDES,
+    "signal" -> NesCLexer.SIGNAL, "task" -> NesCLexer.TASK, "uses" -> NesCLexer.USES)
+
+  private val Punctuators = Seq(
+    "&" -> NesCLexer.AMP, "&&" -> NesCLexer.AND, "->" -> NesCLexer.ARROW,
+    "=" -> NesCLexer.ASSIGN, "@" -> NesCLexer.ATTRIBUTE, "&=" -> NesCLexer.BITANDASSIGN,
+    "~" -> NesCLexer.BITCOMPLEMENT, "|" -> NesCLexer.BITOR, "|=" -> NesCLexer.BITORASSIGN,
+    "^" -> NesCLexer.BITXOR, "^=" -> NesCLexer.BITXORASSIGN, "," -> NesCLexer.COMMA,
+    "/=" -> NesCLexer.DIVASSIGN, "/" -> NesCLexer.DIVIDE, "." -> NesCLexer.DOT,
+    "..." -> NesCLexer.ELLIPSIS, "==" -> NesCLexer.EQUAL, ">" -> NesCLexer.GREATER,
+    ">=" -> NesCLexer.GREATEREQUAL, "#" -> NesCLexer.HASH, "{" -> NesCLexer.LBRACE,
+    "[" -> NesCLexer.LBRACKET, "<" -> NesCLexer.LESS, "<=" -> NesCLexer.LESSEQUAL,
+    "(" -> NesCLexer.LPARENS, "<<" -> NesCLexer.LSHIFT, "<<=" -> NesCLexer.LSHIFTASSIGN,
+    "-" -> NesCLexer.MINUS, "-=" -> NesCLexer.MINUSASSIGN, "--" -> NesCLexer.MINUSMINUS,
+    "%=" -> NesCLexer.MODASSIGN, "%" -> NesCLexer.MODULUS, "*=" -> NesCLexer.MULASSIGN,
+    "!" -> NesCLexer.NOT, "!=" -> NesCLexer.NOTEQUAL, "||" -> NesCLexer.OR,
+    "+" -> NesCLexer.PLUS, "+=" -> NesCLexer.PLUSASSIGN, "++" -> NesCLexer.PLUSPLUS,
+    "}" -> NesCLexer.RBRACE, "]" -> NesCLexer.RBRACKET, ")" -> NesCLexer.RPARENS,
+    ">>" -> NesCLexer.RSHIFT, ">>=" -> NesCLexer.RSHIFTASSIGN, "*" -> NesCLexer.STAR,
+    ":" -> Colon, ";" -> Semicolon, "<-" -> LeftArrow, "?" -> Question)
+
+  private val MaxKeywordLength = Keywords.map(_._1.length).max
+
+  // An open addressing hash table of the keywords, keyed by String.hashCode.
+  private val KeywordMask = 255
+  private val keywordNames  = new Array[String](KeywordMask + 1)
+  private val keywordHashes = new Array[Int](KeywordMask + 1)
+  private val keywordTypes  = new Array[Int](KeywordMask + 1)
+  for ((name, tokenType) <- Keywords) {
+    var slot = name.hashCode & KeywordMask
+    while (keywordNames(slot) != null) slot = (slot + 1) & KeywordMask
+    keywordNames(slot) = name
+    keywordHashes(slot) = name.hashCode
+    keywordTypes(slot) = tokenType
+  }
+
+  /** The text shared by all tokens of a type, or null if tokens of the type vary. */
+  private[nesc] val fixedText: Array[String] = {
+    val result = new Array[String](NesCParser.tokenNames.length)
+    for ((text, tokenType) <- Keywords ++ Punctuators) result(tokenType) = text
+    result
+  }
+
+
+  private def isWhitespace(c: Int): Boolean = c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f'
+
+  private def isDigit(c: Int): Boolean = c >= '0' && c <= '9'
+
+  private def isHexDigit(c: Int): Boolean = isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F')
+
+  private def isIdentifierStart(c: Int): Boolean = c == '_' || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+
+  private def isIdentifierPart(c: Int): Boolean = isIdentifierStart(c) || isDigit(c)
+
+  /** Displays a character in an error message as ANTLR's lexers do. */
+  private def display(c: Int): String = {
+    val text = c match {
+      case CharStream.EOF => "<EOF>"
+      case '\n' => "\\n"
+      case '\t' => "\\t"
+      case '\r' => "\\r"
+      case _    => c.toChar.toString
+    }
+    "'" + text + "'"
+  }
+
+}
@@ -1,5 +1,9 @@
 package edu.vtc.nesc
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import scala.util.hashing.MurmurHash3
+
 object NesCTypes {
 
   class NesCTypeException(message: String) extends Exception(message)
@@ -28,13 +32,22 @@ object NesCTypes {
   // Structured types.
   type TypeBound = (TypeVariable, Representation)
   type TypeBinding = (String, Representation)
-  case class Structure(name: String, members: List[(String, Representation)]) extends Representation
-  case class Array(elementType: Representation, size: String) extends Representation
-  case class Pointer(targetType: Representation) extends Representation
+  // The hash codes of structured types are computed once since their parts can be large.
+  case class Structure(name: String, members: List[(String, Representation)]) extends Representation {
+    override lazy val hashCode: Int = MurmurHash3.productHash(this)
+  }
+  case class Array(elementType: Representation, size: String) extends Representation {
+    override lazy val hashCode: Int = MurmurHash3.productHash(this)
+  }
+  case class Pointer(targetType: Representation) extends Representation {
+    override lazy val hashCode: Int = MurmurHash3.productHash(this)
+  }
   
   case class Function(
     returnType    : Representation,
-    parameterTypes: List[Representation]) extends Representation
+    parameterTypes: List[Representation]) extends Representation {
+    override lazy val hashCode: Int = MurmurHash3.productHash(this)
+  }
 
   
   // Module types.
@@ -44,7 +57,128 @@ object NesCTypes {
     typeParameters : List[TypeBound],
     valueParameters: List[TypeBinding],
     imports        : List[Import],
-    exports        : List[Export]) extends Representation
+    exports        : List[Export]) extends Representation {
+    override lazy val hashCode: Int = MurmurHash3.productHash(this)
+  }
+
+
+  // Type tables
+  // -----------
+
+  /** A canonical representation and its ID. */
+  private final case class Interned(representation: Representation, id: Int)
+
+  /** The arguments of a type query, given as IDs. */
+  private final case class Query(delta: Int, left: Int, right: Int)
+
+  /**
+   * A type environment together with an ID that identifies it in the tables that created it.
+   * Environments are created once by a run so the delta map isn't hashed on every query.
+   */
+  final class TypeEnvironment private[NesCTypes] (val delta: Map[String, Representation], val id: Int)
+
+  /**
+   * The canonical types of one type checking run and the results of its subtype and least
+   * upper bound queries. The tables are dropped with the run, so nothing is kept between runs.
+   */
+  final class TypeTables {
+    private val nextId = new AtomicInteger()
+    private val interned = new ConcurrentHashMap[Representation, Interned]()
+    private val subtypeResults = new ConcurrentHashMap[Query, java.lang.Boolean]()
+    private val upperBounds = new ConcurrentHashMap[Query, Representation]()
+
+    /**
+     * Returns the canonical instance of a type. Equal types, and types whose parts are equal,
+     * are represented by the same canonical instance, so comparing canonical types only needs
+     * to compare references.
+     *
+     * @param t The type to intern.
+     * @return The canonical instance equal to t.
+     */
+    def intern(t: Representation): Representation = internedEntry(t).representation
+
+    /**
+     * Returns a small integer that identifies a type. Equal types have the same ID.
+     *
+     * @param t The type to identify.
+     * @return The ID of t's canonical instance.
+     */
+    def typeId(t: Representation): Int = internedEntry(t).id
+
+    /**
+     * Creates an environment for the queries of this run. Queries in the same environment
+     * share their remembered results.
+     *
+     * @param delta The type variables of the environment and their types.
+     * @return An environment with a new ID.
+     */
+    def environment(delta: Map[String, Representation]): TypeEnvironment =
+      new TypeEnvironment(delta, nextId.getAndIncrement())
+
+    /**
+     * Returns true if left <: right using nesT subtyping rules. Results are remembered for each
+     * combination of environment, left, and right.
+     */
+    def areSubtypes(delta: TypeEnvironment, left: Representation, right: Representation): Boolean = {
+      val query = Query(delta.id, typeId(left), typeId(right))
+      val known = subtypeResults.get(query)
+      if (known != null) known.booleanValue
+      else {
+        val result = computeSubtypes(delta.delta, intern(left), intern(right), areSubtypes(delta, _, _))
+        subtypeResults.put(query, result)
+        result
+      }
+    }
+
+    /**
+     * Returns the least upper bound between two integer types. Results are remembered.
+     */
+    def leastUpperBound(left: Representation, right: Representation): Representation = {
+      val query = Query(-1, typeId(left), typeId(right))
+      val known = upperBounds.get(query)
+      if (known != null) known
+      else {
+        val result = intern(computeLeastUpperBound(intern(left), intern(right)))
+        upperBounds.put(query, result)
+        result
+      }
+    }
+
+    /** The number of subtype and least upper bound results remembered so far. */
+    private[nesc] def rememberedResults: Int = subtypeResults.size + upperBounds.size
+
+    private def internedEntry(t: Representation): Interned = {
+      val existing = interned.get(t)
+      if (existing != null) existing
+      else {
+        val canonical = withInternedParts(t)
+        val entry = Interned(canonical, nextId.getAndIncrement())
+        val previous = interned.putIfAbsent(canonical, entry)
+        if (previous == null) entry else previous
+      }
+    }
+
+    // Returns a type equal to t built from the canonical instances of its parts.
+    private def withInternedParts(t: Representation): Representation = t match {
+      case Structure(name, members) =>
+        Structure(name, members map { case (memberName, memberType) => (memberName, intern(memberType)) })
+      case Array(elementType, size) =>
+        Array(intern(elementType), size)
+      case Pointer(targetType) =>
+        Pointer(intern(targetType))
+      case Function(returnType, parameterTypes) =>
+        Function(intern(returnType), parameterTypes map intern)
+      case Module(typeParameters, valueParameters, imports, exports) =>
+        def internBinding(binding: (String, Representation)): (String, Representation) = (binding._1, intern(binding._2))
+        Module(
+          typeParameters map { case (variable, bound) => (variable, intern(bound)) },
+          valueParameters map internBinding,
+          imports map internBinding,
+          exports map internBinding)
+      case _ => t
+    }
+  }
+
   
   
   def promote(delta: Map[String, Representation], t: Option[Representation]): Representation = {
@@ -75,28 +209,22 @@ object NesCTypes {
       case _ => throw new NesCTypeException("Must be structure type")
     }
 
-    var currMbr = memberList.size
-    
-    while (currMbr > 0) {
-    
-      currMbr = currMbr - 1
-      
-      val (mbrName, mbrType) = memberList(currMbr) match {
-        case (str, someType) => (str,someType)
-        case _ => throw new NesCTypeException("Invalid member")
-      }
-      
-      if (index == mbrName)
-        return mbrType
+    // Later members with the same name take precedence.
+    memberList.reverseIterator.find(_._1 == index) match {
+      case Some((_, mbrType)) => return mbrType
+      case None =>
     }
     return Function(Uninit,List()) // FLAG - just a placeholder to see what happens with Interfaces
     throw new NesCTypeException("Invalid address")
   }
     
   /**
-   * Returns the least upper bound between two integer types
+   * Returns the least upper bound between two integer types.
    */
-  def leastUpperBound(left: Representation, right: Representation) = {
+  def leastUpperBound(left: Representation, right: Representation): Representation =
+    computeLeastUpperBound(left, right)
+
+  private def computeLeastUpperBound(left: Representation, right: Representation): Representation = {
     val message = s"Incompatible Types: $left, $right"
     if (left == right) left
     else {
@@ -151,21 +279,32 @@ object NesCTypes {
   }
 
   /**
-   * Returns true if left <: right using nesT subtyping rules.
+   * Returns true if left <: right using nesT subtyping rules. The results of nested checks are
+   * remembered while the check runs. Use a TypeTables to remember results across checks.
    */
   def areSubtypes(delta: Map[String, Representation], left: Representation, right: Representation): Boolean = {
-    val message = s"Subtyping Error: $left $right"
+    val tables = new TypeTables
+    tables.areSubtypes(tables.environment(delta), left, right)
+  }
+
+  // Checks subtyping of canonical types. Nested checks go through check so they are also
+  // remembered.
+  private def computeSubtypes(
+    delta: Map[String, Representation],
+    left : Representation,
+    right: Representation,
+    check: (Representation, Representation) => Boolean): Boolean = {
     
     val typeCase = (left, right) match {
-      case (TypeVariable(x), TypeVariable(y)) => areSubtypes(delta, lookupTypeVar(delta,x), lookupTypeVar(delta,y))
-      case (TypeVariable(x), _) => areSubtypes(delta, lookupTypeVar(delta,x), right)
-      case (_, TypeVariable(y)) => areSubtypes(delta, left, lookupTypeVar(delta,y))
+      case (TypeVariable(x), TypeVariable(y)) => check(lookupTypeVar(delta,x), lookupTypeVar(delta,y))
+      case (TypeVariable(x), _) => check(lookupTypeVar(delta,x), right)
+      case (_, TypeVariable(y)) => check(left, lookupTypeVar(delta,y))
       case _ => false
     }
     
     if (typeCase) return true
     
-    if (left == right || right == Top) true
+    if ((left eq right) || right == Top) true
     else {
       
       left match {
@@ -204,28 +343,13 @@ object NesCTypes {
         */
         
         case Structure(_, leftMemberList) => right match {
-          case Structure(_, rightMemberList) => {
-            var passedTest = true
-            var tempTypeLeft: Representation = Okay
-            var tempTypeRight: Representation = Okay
-            if (leftMemberList.size < rightMemberList.size)
-              passedTest = false
-            else {
-              for (i <- 0 until rightMemberList.size) {
-                val (tempStringLeft, tempTypeLeft) = leftMemberList(i) match {
-                  case (someString, typeRep) => (someString, typeRep)
-                  case _ => throw new NesCTypeException(message)
-                }
-                val (tempStringRight, tempTypeRight) = rightMemberList(i) match {
-                  case (someString, typeRep) => (someString, typeRep)
-                  case _ => throw new NesCTypeException(message)
-                }
-                if ((!areSubtypes(delta, tempTypeLeft,tempTypeRight)) || (!(tempStringLeft==tempStringRight)))
-                  passedTest = false
+          case Structure(_, rightMemberList) =>
+            // Walk both member lists together; indexing a List would make this quadratic.
+            leftMemberList.lengthCompare(rightMemberList) >= 0 &&
+              (leftMemberList.iterator zip rightMemberList.iterator).forall {
+                case ((leftName, leftType), (rightName, rightType)) =>
+                  leftName == rightName && check(leftType, rightType)
               }
-            }
-            passedTest
-          }
           case _ => false 
         } // To be a subtype, the relevant fields of the structures must occur in the same order
           // and be at the start of the field list - Hopefully update to be more fluid
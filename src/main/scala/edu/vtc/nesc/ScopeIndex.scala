@@ -0,0 +1,140 @@
+package edu.vtc.nesc
+
+import java.util.{HashMap, IdentityHashMap}
+import scala.collection.mutable.Stack
+
+/**
+ * An index of the scopes in a decorated abstract syntax tree. It answers the same questions
+ * as Symbols.lookupVariable, lookupTypeVariable, and lookupStructVariable, but instead of
+ * walking the parent links of the tree for every lookup, it maps each node directly to its
+ * nearest enclosing scope. Scopes are linked to their enclosing scopes and remember the result
+ * of each name they have resolved.
+ *
+ * The index reflects the symbol tables present when it was built. It should thus be built after
+ * Symbols.decorateAST and built again if the tree's symbol tables change. An index must not be
+ * used by more than one thread at once.
+ *
+ * @param root The root of the tree to index. If the root has ancestors, their scopes are also
+ * searched.
+ */
+final class ScopeIndex(root: ASTNode) {
+  import ScopeIndex._
+
+  // Keyed by node identity: each node of the tree maps to its nearest enclosing scope.
+  private val scopes = new IdentityHashMap[ASTNode, Scope]()
+
+  {
+    // The scopes around the root, from the outermost in.
+    val ancestorScopes = Iterator.iterate(root.parent)(_.flatMap(_.parent))
+      .takeWhile(_.isDefined).map(_.get).filter(_.symbolTable.isDefined).toList.reverse
+    val rootScope = ancestorScopes.foldLeft(null: Scope)((outer, node) => new Scope(node.symbolTable.get, outer))
+
+    val pending = new Stack[(ASTNode, Scope)]
+    pending.push((root, rootScope))
+    while (pending.nonEmpty) {
+      val (node, enclosing) = pending.pop()
+      val scope = node.symbolTable.map(new Scope(_, enclosing)).getOrElse(enclosing)
+      scopes.put(node, scope)
+      for (child <- node.children) pending.push((child, scope))
+    }
+  }
+
+  /** The number of nodes in the index. */
+  def size: Int = scopes.size
+
+
+  /**
+   * Returns the type associated with a variable name in the scope of a node.
+   *
+   * @param node The node where the search begins. If it is not in the index the search is done
+   * by Symbols.lookupVariable.
+   * @param name The name of the variable to locate.
+   * @return The type of the variable or NesCTypes.Uninit if it is not declared.
+   */
+  def lookupVariable(node: ASTNode, name: String): NesCTypes.Representation =
+    if (scopes.containsKey(node)) resolve(scopes.get(node), VariableNames, name)
+    else Symbols.lookupVariable(node, name)
+
+  /**
+   * Returns the type associated with a type name in the scope of a node.
+   *
+   * @param node The node where the search begins. If it is not in the index the search is done
+   * by Symbols.lookupTypeVariable.
+   * @param name The name of the type to locate.
+   * @return The type or NesCTypes.Uninit if it is not declared.
+   */
+  def lookupTypeVariable(node: ASTNode, name: String): NesCTypes.Representation =
+    if (scopes.containsKey(node)) resolve(scopes.get(node), TypeNames, name)
+    else Symbols.lookupTypeVariable(node, name)
+
+  /**
+   * Returns the type associated with a structure name in the scope of a node.
+   *
+   * @param node The node where the search begins. If it is not in the index the search is done
+   * by Symbols.lookupStructVariable.
+   * @param name The name of the structure to locate.
+   * @return The structure's type or NesCTypes.Uninit if it is not declared.
+   */
+  def lookupStructVariable(node: ASTNode, name: String): NesCTypes.Representation =
+    if (scopes.containsKey(node)) resolve(scopes.get(node), StructureNames, name)
+    else Symbols.lookupStructVariable(node, name)
+
+}
+
+
+object ScopeIndex {
+
+  // The kinds of names, used as indices into the tables of a scope.
+  private val StructureNames = 0
+  private val TypeNames = 1
+  private val VariableNames = 2
+
+  /**
+   * A scope in the indexed tree.
+   *
+   * @param symbols The names declared in the scope.
+   * @param enclosing The enclosing scope or null for the outermost scope.
+   */
+  private final class Scope(symbols: Symbols, val enclosing: Scope) {
+    private val tables = Array(symbols.structureNames, symbols.typeNames, symbols.variableNames)
+
+    // The results of earlier lookups starting in this scope, for each kind of name.
+    private val resolved = Array.fill(3)(new HashMap[String, NesCTypes.Representation]())
+
+    def declared(kind: Int, name: String): Option[NesCTypes.Representation] = tables(kind).get(name)
+
+    def remembered(kind: Int, name: String): NesCTypes.Representation = resolved(kind).get(name)
+
+    def remember(kind: Int, name: String, result: NesCTypes.Representation): Unit = {
+      resolved(kind).put(name, result): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+
+  /**
+   * Finds a name by searching outward from a scope. The result is remembered by every scope
+   * that was searched.
+   */
+  private def resolve(start: Scope, kind: Int, name: String): NesCTypes.Representation = {
+    var result: NesCTypes.Representation = null
+    var scope = start
+    while (result == null && scope != null) {
+      result = scope.remembered(kind, name)
+      if (result == null) {
+        scope.declared(kind, name) match {
+          case Some(declaredType) => result = declaredType
+          case None => scope = scope.enclosing
+        }
+      }
+    }
+    if (result == null) result = NesCTypes.Uninit
+
+    var searched = start
+    while (searched != scope) {
+      searched.remember(kind, name, result)
+      searched = searched.enclosing
+    }
+    result
+  }
+
+}
@@ -0,0 +1,212 @@
+package edu.vtc.nesc
+
+import java.util.Arrays
+import org.antlr.runtime.{CharStream, Token}
+
+/**
+ * The tokens of a text as found by NesCScanner. The type, position, and length of each token
+ * are held in parallel arrays of integers so that a large file does not need an object for
+ * every token. The text of a token is only taken from the input when it is asked for, and a
+ * Token object is only made for a token when some part of the parser needs one. Keywords and
+ * punctuators share a single string for each kind of token.
+ *
+ * Tokens are numbered from zero in the order they appear in the text, counting tokens on the
+ * hidden channel, as done by CommonTokenStream. A buffer should only be used by one thread at a
+ * time.
+ *
+ * @param input The text that was scanned. It is used to get the text of tokens.
+ */
+final class TokenBuffer private[nesc] (val input: CharStream) {
+  import TokenBuffer._
+
+  // The arrays are sized for the expected number of tokens so that they rarely have to grow.
+  private val capacity = math.max(MinimumCapacity, (input.size - input.index) / CharactersPerToken)
+
+  private var types   = new Array[Int](capacity)
+  private var starts  = new Array[Int](capacity)
+  private var lengths = new Array[Int](capacity)
+  private var lines   = new Array[Int](capacity)
+  private var columns = new Array[Int](capacity)
+  private var count = 0
+
+  // The indices of the tokens on the default channel, in increasing order.
+  private var significant = new Array[Int](capacity / 2)
+  private var significantCount = 0
+
+  // The position just past the end of the text, where the EOF token is.
+  private var endIndex = 0
+  private var endLine = 1
+  private var endColumn = 0
+
+  // Tokens that have been made for the parser. Allocated on first use.
+  private var tokens: Array[Token] = null
+  private var endOfFile: Token = null
+
+
+  private[nesc] def add(tokenType: Int, start: Int, length: Int, line: Int, column: Int): Unit = {
+    if (count == types.length) {
+      val newCapacity = 2 * count
+      types   = Arrays.copyOf(types, newCapacity)
+      starts  = Arrays.copyOf(starts, newCapacity)
+      lengths = Arrays.copyOf(lengths, newCapacity)
+      lines   = Arrays.copyOf(lines, newCapacity)
+      columns = Arrays.copyOf(columns, newCapacity)
+    }
+    types(count) = tokenType
+    starts(count) = start
+    lengths(count) = length
+    lines(count) = line
+    columns(count) = column
+    if (!isHidden(tokenType)) {
+      if (significantCount == significant.length) significant = Arrays.copyOf(significant, 2 * significantCount)
+      significant(significantCount) = count
+      significantCount += 1
+    }
+    count += 1
+  }
+
+  private[nesc] def finish(index: Int, line: Int, column: Int): Unit = {
+    endIndex = index
+    endLine = line
+    endColumn = column
+  }
+
+
+  /** The number of tokens, not counting EOF. */
+  def size: Int = count
+
+  /** The number of tokens on the default channel, not counting EOF. */
+  def significantSize: Int = significantCount
+
+  def tokenType(index: Int): Int = types(index)
+
+  /** The index in the input of the token's first character. */
+  def start(index: Int): Int = starts(index)
+
+  def length(index: Int): Int = lengths(index)
+
+  /** The token's line, counting from one. */
+  def line(index: Int): Int = lines(index)
+
+  /** The token's position in its line, counting from zero as done by ANTLR. */
+  def column(index: Int): Int = columns(index)
+
+  def channel(index: Int): Int =
+    if (isHidden(types(index))) Token.HIDDEN_CHANNEL else Token.DEFAULT_CHANNEL
+
+  def isSignificant(index: Int): Boolean = !isHidden(types(index))
+
+  /**
+   * Returns the index of the n-th token on the default channel.
+   *
+   * @param n The position of the token among the tokens on the default channel.
+   */
+  def significantIndex(n: Int): Int = significant(n)
+
+  /**
+   * Returns the number of tokens on the default channel that come before a given token.
+   * This is also the position among them of the first one at or after the given token.
+   */
+  def significantBefore(index: Int): Int = {
+    val found = Arrays.binarySearch(significant, 0, significantCount, index)
+    if (found >= 0) found else -found - 1
+  }
+
+
+  /** Returns the text of a token. */
+  def text(index: Int): String = {
+    val fixed = NesCScanner.fixedText(types(index))
+    if (fixed != null) fixed else input.substring(starts(index), starts(index) + lengths(index) - 1)
+  }
+
+
+  /**
+   * Returns a Token for a token in the buffer. The same object is returned each time a
+   * particular token is asked for.
+   */
+  def token(index: Int): Token = {
+    if (tokens == null) tokens = new Array[Token](count)
+    var result = tokens(index)
+    if (result == null) {
+      result = new BufferToken(this, index)
+      tokens(index) = result
+    }
+    result
+  }
+
+
+  /** Returns the EOF token at the end of the text. Its index is the number of tokens. */
+  def eofToken: Token = {
+    if (endOfFile == null) endOfFile = newEofToken(count)
+    endOfFile
+  }
+
+  /** Makes another EOF token at the end of the text with the given index. */
+  private[nesc] def newEofToken(index: Int): Token =
+    new BufferToken(this, index, Token.EOF, endLine, endColumn, endIndex, endIndex, "<EOF>")
+
+}
+
+
+object TokenBuffer {
+
+  private val MinimumCapacity = 1024
+
+  // Preprocessed nesC has about one token, counting whitespace, for every three characters.
+  private val CharactersPerToken = 3
+
+  private def isHidden(tokenType: Int): Boolean = NesCScanner.isHidden(tokenType)
+
+
+  /**
+   * A token held in a TokenBuffer. The text is taken from the buffer when it is first asked
+   * for. Like CommonToken, a token can be changed after it is made; this does not change the
+   * buffer. Tokens made by this class display themselves as CommonToken does so that error
+   * messages are the same whichever lexer is used.
+   */
+  private[nesc] final class BufferToken(buffer            : TokenBuffer,
+                                        private var index : Int,
+                                        private var kind  : Int,
+                                        private var line  : Int,
+                                        private var column: Int,
+                                        start             : Int,
+                                        stop              : Int,
+                                        private var text  : String) extends Token {
+
+    private val bufferIndex = index
+    private var channel = if (isHidden(kind)) Token.HIDDEN_CHANNEL else Token.DEFAULT_CHANNEL
+    private var inputStream = buffer.input
+
+    def this(buffer: TokenBuffer, index: Int) =
+      this(buffer, index, buffer.tokenType(index), buffer.line(index), buffer.column(index),
+           buffer.start(index), buffer.start(index) + buffer.length(index) - 1, null)
+
+    override def getText: String = {
+      if (text == null) text = buffer.text(bufferIndex)
+      text
+    }
+
+    override def setText(text: String): Unit = { this.text = text }
+    override def getType: Int = kind
+    override def setType(ttype: Int): Unit = { kind = ttype }
+    override def getLine: Int = line
+    override def setLine(line: Int): Unit = { this.line = line }
+    override def getCharPositionInLine: Int = column
+    override def setCharPositionInLine(pos: Int): Unit = { column = pos }
+    override def getChannel: Int = channel
+    override def setChannel(channel: Int): Unit = { this.channel = channel }
+    override def getTokenIndex: Int = index
+    override def setTokenIndex(index: Int): Unit = { this.index = index }
+    override def getInputStream: CharStream = inputStream
+    override def setInputStream(input: CharStream): Unit = { inputStream = input }
+
+    override def toString: String = {
+      val channelText = if (channel > 0) ",channel=" + channel else ""
+      val displayText = Option(getText) map { text =>
+        text.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t")
+      } getOrElse "<no text>"
+      s"[@$index,$start:$stop='$displayText',<$kind>$channelText,$line:$column]"
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+package edu.vtc.nesc
+
+import scala.collection.mutable.ArrayBuffer
+import org.antlr.runtime.{CommonToken, Token, TokenSource, TokenStream}
+
+/**
+ * Gives the parser the tokens in a range of a TokenBuffer, followed by EOF. It behaves like a
+ * CommonTokenStream on the default channel: the tokens on the hidden channel are skipped by
+ * LT and LA but are included by the toString methods. Token indices are those of the buffer,
+ * even when the range does not start at the beginning of the buffer. Looking ahead with LA does
+ * not make Token objects, and LT only makes them for the tokens it returns.
+ *
+ * As with CommonTokenStream, EOF can be consumed. Each position past the end of the range then
+ * holds another EOF token with the next index. The parser's error recovery relies on this to
+ * notice that it has made progress.
+ *
+ * @param buffer The tokens.
+ * @param start The index of the first token in the range.
+ * @param end The index just past the last token in the range.
+ */
+final class TokenBufferStream(buffer: TokenBuffer, start: Int, end: Int) extends TokenStream {
+
+  def this(buffer: TokenBuffer) = this(buffer, 0, buffer.size)
+
+  // Positions in the stream count only the tokens on the default channel. The current position
+  // is p. The tokens of the range are at positions first until last, and EOF tokens are at the
+  // positions after that.
+  private val first = buffer.significantBefore(start)
+  private val last = buffer.significantBefore(end)
+  private var p = first
+  private var lastMarker = first
+  private var furthest = -1
+
+  private val endOfFile: Token = {
+    if (end == buffer.size) buffer.eofToken
+    else {
+      val token = new CommonToken(Token.EOF, "<EOF>")
+      token.setTokenIndex(end)
+      if (end > start) token.setLine(buffer.line(end - 1))
+      token
+    }
+  }
+  private val endsOfFile = ArrayBuffer(endOfFile)
+
+  /** Returns the EOF token that is the given number of positions past the end of the range. */
+  private def eofToken(n: Int): Token = {
+    while (endsOfFile.length <= n) {
+      val index = end + endsOfFile.length
+      if (end == buffer.size) endsOfFile += buffer.newEofToken(index)
+      else {
+        val token = new CommonToken(endOfFile)
+        token.setTokenIndex(index)
+        endsOfFile += token
+      }
+    }
+    endsOfFile(n)
+  }
+
+  private def tokenAt(position: Int): Token =
+    if (position >= last) eofToken(position - last) else buffer.token(buffer.significantIndex(position))
+
+
+  override def LT(k: Int): Token = {
+    if (k == 0) null
+    else if (k < 0) LB(-k)
+    else {
+      val token = tokenAt(p + k - 1)
+      if (token.getTokenIndex > furthest) furthest = token.getTokenIndex
+      token
+    }
+  }
+
+  private def LB(k: Int): Token = {
+    val position = p - k
+    if (position < first) null else tokenAt(position)
+  }
+
+  override def LA(i: Int): Int = {
+    if (i > 0) {
+      val position = p + i - 1
+      if (position >= last) Token.EOF else buffer.tokenType(buffer.significantIndex(position))
+    }
+    else {
+      val token = LT(i)
+      if (token == null) Token.INVALID_TOKEN_TYPE else token.getType
+    }
+  }
+
+  override def consume(): Unit = {
+    p += 1
+  }
+
+  override def index(): Int = if (p < last) buffer.significantIndex(p) else end + (p - last)
+
+  override def seek(index: Int): Unit = {
+    p = if (index > end) last + (index - end) else math.min(math.max(buffer.significantBefore(index), first), last)
+  }
+
+  override def mark(): Int = {
+    lastMarker = p
+    p
+  }
+
+  override def release(marker: Int): Unit = { }
+
+  override def rewind(marker: Int): Unit = { p = marker }
+
+  override def rewind(): Unit = { p = lastMarker }
+
+  /** The number of token indices in the stream, counting the EOF tokens reached so far. */
+  override def size(): Int = end + endsOfFile.length
+
+  override def range(): Int = furthest
+
+  override def get(i: Int): Token = if (i < end) buffer.token(i) else eofToken(i - end)
+
+  override def getSourceName: String = buffer.input.getSourceName
+
+
+  /** Provides the tokens of the range on all channels followed by EOF. */
+  override def getTokenSource: TokenSource = new TokenSource {
+    private var position = start
+
+    override def nextToken(): Token = {
+      if (position < end) {
+        position += 1
+        buffer.token(position - 1)
+      }
+      else endOfFile
+    }
+
+    override def getSourceName: String = buffer.input.getSourceName
+  }
+
+
+  /** Returns the text of the tokens with indices from startIndex to stopIndex inclusive. */
+  override def toString(startIndex: Int, stopIndex: Int): String = {
+    if (startIndex < 0 || stopIndex < 0) null
+    else {
+      val result = new StringBuilder
+      for (i <- math.max(startIndex, start) to math.min(stopIndex, end - 1)) result.append(buffer.text(i))
+      result.toString
+    }
+  }
+
+  override def toString(startToken: Token, stopToken: Token): String = {
+    if (startToken == null || stopToken == null) null
+    else toString(startToken.getTokenIndex, stopToken.getTokenIndex)
+  }
+
+  override def toString: String = toString(start, end - 1)
+
+}
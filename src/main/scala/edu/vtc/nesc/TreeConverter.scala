@@ -1,5 +1,6 @@
 package edu.vtc.nesc
 
+import scala.collection.mutable.Stack
 import org.antlr.runtime.CommonToken
 import org.antlr.runtime.tree._
 
@@ -15,29 +16,69 @@ object TreeConverter {
    * Convert an ANTLR-style abstract syntax tree into an ASTNode case class instance. Note that
    * some of the information contained inside the ANTLR produced tree is not preserved in the
    * case class instance. Currently this is information not needed by Nessie.
+   *
+   * The conversion takes time proportional to the size of the tree. It uses an explicit stack
+   * rather than recursion so that very deep trees, such as those of long else-if chains, can't
+   * overflow the call stack.
    * 
    * @param t The ANTLR-style abstract syntax tree to be converted.
    * @return An ASTNode instance that represents the tree.
    */
   def ANTLRToScala(t: Tree): ASTNode = {
-    var childList = List[ASTNode]()
-    for (i <- 0 until t.getChildCount) {
-      // I'm thinking there is probably a better way to do this.
-      childList = childList ::: List(ANTLRToScala(t.getChild(i)))
+
+    // A node whose children are being converted. The node itself is created once all of its
+    // children are done because the children of an ASTNode can't be changed.
+    final class Pending(val tree: Tree) {
+      var nextChild = 0
+      val children = Vector.newBuilder[ASTNode]
     }
-    val newNode = ASTNode(t.getType, t.getText, childList, None, None)
 
-    // ANTLR uses one based positions for line numbers and zero based positions for column
-    // numbers. In contrast Nessie uses one based positions for both lines and columns.
-    //
-    newNode.line = t.getLine
-    newNode.positionInLine = t.getCharPositionInLine + 1
+    def createNode(pending: Pending): ASTNode = {
+      val tree = pending.tree
+      val childList = pending.children.result()
+      val newNode = ASTNode(tree.getType, tree.getText, childList, None, None)
+
+      // ANTLR uses one based positions for line numbers and zero based positions for column
+      // numbers. In contrast Nessie uses one based positions for both lines and columns.
+      //
+      // Nodes for imaginary tokens take their position from their first child. CommonTree
+      // finds that position recursively so it is taken from the converted child instead.
+      //
+      tree match {
+        case commonTree: CommonTree =>
+          val token = commonTree.getToken
+          val firstChild = childList.headOption
+          newNode.line =
+            if (token != null && token.getLine != 0) token.getLine
+            else firstChild.map(_.line).getOrElse(0)
+          newNode.positionInLine =
+            if (token != null && token.getCharPositionInLine != -1) token.getCharPositionInLine + 1
+            else firstChild.map(_.positionInLine).getOrElse(1)
+        case _ =>
+          newNode.line = tree.getLine
+          newNode.positionInLine = tree.getCharPositionInLine + 1
+      }
 
-    // Update the parent reference in each child to link that child to this parent.
-    for (child <- childList) {
-      child.parent = Some(newNode)
+      // Update the parent reference in each child to link that child to this parent.
+      newNode.freshenParentAndChildIndexes()
+      newNode
+    }
+
+    val pendingNodes = new Stack[Pending]
+    pendingNodes.push(new Pending(t))
+    var result: ASTNode = null
+    while (pendingNodes.nonEmpty) {
+      val current = pendingNodes.top
+      if (current.nextChild < current.tree.getChildCount) {
+        pendingNodes.push(new Pending(current.tree.getChild(current.nextChild)))
+        current.nextChild += 1
+      }
+      else {
+        val newNode = createNode(pendingNodes.pop())
+        if (pendingNodes.isEmpty) result = newNode else pendingNodes.top.children += newNode
+      }
     }
-    newNode
+    result
   }
 
 
@@ -47,28 +88,29 @@ object TreeConverter {
    * The ANTLR-style abstract syntax tree returned does not contain all the information about
    * tokens that would normally be present. Nessie does not use this information so this is not
    * an immediate problem.
+   *
+   * Like ANTLRToScala, the conversion takes linear time and does not use recursion.
    * 
    * @param root The ASTNode instance to convert.
    * @return An ANTLR-style abstract syntax tree.
    */ 
   def scalaToANTLR(root: ASTNode): CommonTree = {
 
-    def processChildren(tree: CommonTree, children: List[ASTNode]): CommonTree = {
-      children foreach ( child => tree addChild processSubtree(child) )
-      tree
-    }
-
-
-    def processSubtree(node: ASTNode): CommonTree = {
-      node match {
-        case ASTNode(myType, myText, myChildren, _, _) =>
-          val freshToken = new CommonToken(myType, myText)
-          val freshTree = new CommonTree(freshToken)
-          processChildren(freshTree, myChildren)
+    def freshTree(node: ASTNode): CommonTree = new CommonTree(new CommonToken(node.tokenType, node.text))
+
+    // Each tree on the stack has been created but its children have not.
+    val unfinished = new Stack[(ASTNode, CommonTree)]
+    val result = freshTree(root)
+    unfinished.push((root, result))
+    while (unfinished.nonEmpty) {
+      val (node, tree) = unfinished.pop()
+      for (child <- node.children) {
+        val childTree = freshTree(child)
+        tree.addChild(childTree)
+        unfinished.push((child, childTree))
       }
     }
-
-    processSubtree(root)
+    result
   }
 
 
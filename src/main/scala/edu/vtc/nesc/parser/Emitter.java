@@ -0,0 +1,167 @@
+package edu.vtc.nesc.parser;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Collects the text produced by SyntaxViewer. The rewriter produces its output a token at a time. Instead of passing
+ * each token through a synchronized PrintStream, the text is accumulated in a buffer and written to a channel, as UTF-8,
+ * in large blocks. An emitter without a channel keeps all of its text in memory; such emitters are used to render parts
+ * of a file separately so that they can be appended to the main emitter later.
+ *
+ * Emitters are not thread safe. Each thread rendering part of a file should use its own emitter.
+ */
+public final class Emitter implements Closeable {
+
+    // The number of characters collected before they are written to the channel.
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final StringBuilder       text = new StringBuilder();
+    private final WritableByteChannel channel;
+    private final boolean             ownsChannel;
+    private CharsetEncoder            encoder;
+    private ByteBuffer                bytes;
+
+
+    /**
+     * Constructs an emitter that keeps its text in memory.
+     */
+    public Emitter()
+    {
+        this(null, false);
+    }
+
+
+    /**
+     * Constructs an emitter that writes to a channel.
+     *
+     * @param channel The channel to write to or null to keep the text in memory.
+     * @param ownsChannel True if closing the emitter should close the channel.
+     */
+    public Emitter(WritableByteChannel channel, boolean ownsChannel)
+    {
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+    }
+
+
+    /**
+     * Opens a file for writing, replacing any existing contents, and returns an emitter that writes to it. The file is
+     * closed when the emitter is closed.
+     *
+     * @param file The file to write.
+     * @return An emitter that writes to the file.
+     * @throws IOException if the file can't be opened.
+     */
+    public static Emitter open(File file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(
+            file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new Emitter(channel, true);
+    }
+
+
+    public void print(String s)
+    {
+        text.append(s);
+        if (channel != null && text.length() >= BLOCK_SIZE) flush();
+    }
+
+
+    public void print(Object x)
+    {
+        print(String.valueOf(x));
+    }
+
+
+    /**
+     * Adds the text collected by another emitter, which should be an emitter that keeps its text in memory.
+     *
+     * @param other The emitter holding the text to add.
+     */
+    public void append(Emitter other)
+    {
+        text.append(other.text);
+        if (channel != null && text.length() >= BLOCK_SIZE) flush();
+    }
+
+
+    /** Returns the text collected and not yet written to the channel. */
+    @Override
+    public String toString()
+    {
+        return text.toString();
+    }
+
+
+    /**
+     * Writes the collected text to the channel. This method does nothing if there is no channel.
+     *
+     * @throws UncheckedIOException if the text can't be written.
+     */
+    public void flush()
+    {
+        if (channel == null || text.length() == 0) return;
+        if (encoder == null) {
+            encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            bytes = ByteBuffer.allocateDirect(BLOCK_SIZE * 2);
+        }
+        try {
+            CharBuffer chars = CharBuffer.wrap(text);
+            encoder.reset();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, bytes, true);
+                if (result.isOverflow()) writeBytes();
+            } while (result.isOverflow());
+            while (encoder.flush(bytes).isOverflow()) writeBytes();
+            writeBytes();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        text.setLength(0);
+    }
+
+
+    private void writeBytes() throws IOException
+    {
+        bytes.flip();
+        while (bytes.hasRemaining()) channel.write(bytes);
+        bytes.clear();
+    }
+
+
+    /**
+     * Writes the collected text to the channel and closes the channel if the emitter owns it.
+     *
+     * @throws IOException if the text can't be written or the channel can't be closed.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            flush();
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            if (ownsChannel) channel.close();
+        }
+    }
+
+}
@@ -230,6 +230,35 @@ tokens {
     public void setSymbols(ParserSymbolsManager globalSymbols)
     {
         symbols = globalSymbols;
+        ruleMemoVersion = -1;
+    }
+
+    // Statements are memoized so that nested if statements are not parsed again each time the
+    // parser backtracks over an else clause. Whether a statement parses depends on which names
+    // are types, so what is remembered is forgotten whenever the version of the symbols changes.
+    private int ruleMemoVersion = -1;
+
+    private void checkRuleMemoVersion()
+    {
+        int version = symbols.version();
+        if (version != ruleMemoVersion) {
+            if (state.ruleMemo != null) java.util.Arrays.fill(state.ruleMemo, null);
+            ruleMemoVersion = version;
+        }
+    }
+
+    @Override
+    public boolean alreadyParsedRule(IntStream input, int ruleIndex)
+    {
+        checkRuleMemoVersion();
+        return super.alreadyParsedRule(input, ruleIndex);
+    }
+
+    @Override
+    public void memoize(IntStream input, int ruleIndex, int ruleStartIndex)
+    {
+        checkRuleMemoVersion();
+        super.memoize(input, ruleIndex, ruleStartIndex);
     }
 
 //    // The following two magic methods, together with the @rulecatch section below cause the
@@ -749,6 +778,7 @@ initializer_list
 //
 // See also the comment at line_directive.
 statement
+options { memoize = true; }
     :    labeled_statement
     |    compound_statement
     |    expression_statement
@@ -1090,6 +1120,9 @@ identifier
 /* Lexer rules */
 /* =========== */
 
+// NesCScanner is a hand written lexer that must recognize exactly the same tokens. If you change
+// the lexer rules or the tokens section, be sure to update it as well.
+
 COMMENT1
     :    '/*' (options {greedy=false;} : .)* '*/' {$channel = HIDDEN;};
     
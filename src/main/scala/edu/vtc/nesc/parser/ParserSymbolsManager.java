@@ -6,23 +6,111 @@
 //-----------------------------------------------------------------------
 package edu.vtc.nesc.parser;
 
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
 
 /**
- * Class that manages a stack of symbol tables. This allows proper handling of nested scopes. Whenever a new scope is
- * entered, a new symbol table is created for that scope. Right now the only symbol information managed by this class is
- * that symbol's status as a type name. Properly parsing nesC requires that identifiers that are type names be tokenized
- * as such. This class assists with that process.
+ * Class that manages the symbols in a set of nested scopes. Right now the only symbol information managed by this class
+ * is that symbol's status as a type name. Properly parsing nesC requires that identifiers that are type names be
+ * tokenized as such. This class assists with that process. Because of the possibility of hiding it is necessary to
+ * record non-type names so that they can be found in inner scopes properly.
+ *
+ * Every name seen by the lexer is checked, so lookups need to be fast regardless of how deeply scopes are nested. Thus
+ * all scopes share a single hash table mapping each name to its innermost binding. Each binding refers to the binding
+ * it hides, if any. The bindings made in each scope are recorded in an undo log so that they can be removed, and the
+ * hidden bindings restored, when the scope is exited.
+ *
+ * While the parser backtracks it remembers which parts of the text it has already tried to parse. So that it knows
+ * when that is no longer valid, the manager keeps a version number that changes whenever isType may answer differently.
  *
  * @author Peter
  */
 public final class ParserSymbolsManager {
-    private Stack<ParserSymbols> scopes = new Stack<ParserSymbols>();
+    /**
+     * A name added to the global scope.
+     */
+    public static final class GlobalAddition {
+        public final String name;
+        public final boolean isType;
+
+        public GlobalAddition(String name, boolean isType)
+        {
+            this.name = name;
+            this.isType = isType;
+        }
+    }
+
+    /**
+     * The names in the global scope at some point, as returned by saveGlobalScope.
+     */
+    public static final class GlobalScope {
+        private final String[] names;
+        private final boolean[] isType;
+
+        private GlobalScope(String[] names, boolean[] isType)
+        {
+            this.names = names;
+            this.isType = isType;
+        }
+    }
+
+    /**
+     * The association of a name with its meaning in a particular scope.
+     */
+    private static final class Binding {
+        final String name;
+        final boolean isType;
+        final int depth;         // The number of scopes active when the binding was made.
+        final Binding hidden;    // The binding of the same name in an enclosing scope or null if there is none.
+
+        Binding(String name, boolean isType, int depth, Binding hidden)
+        {
+            this.name = name;
+            this.isType = isType;
+            this.depth = depth;
+            this.hidden = hidden;
+        }
+    }
+
+    // The innermost binding of each name.
+    private HashMap<String, Binding> bindings = new HashMap<String, Binding>();
+
+    // The bindings made in all active scopes in the order they were made.
+    private ArrayList<Binding> undoLog = new ArrayList<Binding>();
+
+    // The size of the undo log when each active scope was entered. The first element is for the global scope.
+    private int[] scopeStarts = new int[16];
+    private int scopeCount = 0;
+
+    // The sum of the hashes of all names in the global scope. Since addition is commutative, two global scopes with the
+    // same names have the same fingerprint regardless of the order in which the names were added.
+    private long globalFingerprint = 0;
+
+    // Additions to the global scope since recording started or null if not recording.
+    private ArrayList<GlobalAddition> recording = null;
+
+    // Increased whenever a binding is made or removed.
+    private int version = 0;
+
+
+    /**
+     * Computes a 64 bit hash of a name (FNV-1a). The hash is different for type names and ordinary identifiers.
+     */
+    private static long nameHash(String name, boolean isType)
+    {
+        long hash = isType ? 0xcbf29ce484222325L : 0x84222325cbf29ce4L;
+        for (int i = 0; i < name.length(); ++i) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
 
 
     /**
-     * Creates an empty symbol table stack with a single, empty symbol table for the global
-     * scope.
+     * Creates an empty symbol table with a single, empty global scope.
      */
     public ParserSymbolsManager()
     {
@@ -32,77 +120,75 @@ public final class ParserSymbolsManager {
 
 
     /**
-     * Stacks a new, empty symbol table on top of the scopes. This method should be called
-     * whenever a new scope is entered.
+     * Starts a new, empty scope nested inside the current scope. This method should be called whenever a new scope is
+     * entered.
      */
     public void enterScope()
     {
-        scopes.push(new ParserSymbols());
+        if (scopeCount == scopeStarts.length) {
+            int[] newStarts = new int[2 * scopeStarts.length];
+            System.arraycopy(scopeStarts, 0, newStarts, 0, scopeCount);
+            scopeStarts = newStarts;
+        }
+        scopeStarts[scopeCount++] = undoLog.size();
+    }
+
+
+    /**
+     * Binds a name in the current scope. A name that is already bound in the current scope is left unchanged, whether
+     * it was bound as a type name or as an ordinary identifier.
+     */
+    private void bind(String name, boolean isType)
+    {
+        if (recording != null && scopeCount == 1) recording.add(new GlobalAddition(name, isType));
+        Binding existing = bindings.get(name);
+        if (existing != null && existing.depth == scopeCount) {
+            // Duplicate and conflicting definitions should be reported, but at the moment I don't know how to allow
+            // user defined exceptions through ANTLR generated code. Google for "ANTLR throws spec".
+            return;
+        }
+        Binding binding = new Binding(name, isType, scopeCount, existing);
+        bindings.put(name, binding);
+        undoLog.add(binding);
+        ++version;
+        if (scopeCount == 1) globalFingerprint += nameHash(name, isType);
     }
 
 
     /**
-     * Adds a type name to the currently active scope (at the top of the scope stack).
+     * Adds a type name to the currently active scope. Redefinitions of a name in the same scope are ignored.
      *
      * @param name The name of the type to add.
-     * @throws edu.vtc.nesc.parser.ParserSymbols.SymbolRedefinitionException
-     * @throws edu.vtc.nesc.parser.ParserSymbols.SymbolConflictException
      */
     public void addType(String name)
-            // throws SymbolTable.SymbolRedefinitionException, SymbolTable.SymbolConflictException
     {
-        try {
-            scopes.peek().addType(name);
-        }
-        catch (Exception e) {
-            // Eat all exceptions for now. These should be passed up but at the moment I don't know how to allow user
-            // defined exceptions through ANTLR generated code. Google for "ANTLR throws spec" (the ANTLR site is down
-            // at the moment).
-        }
+        bind(name, true);
     }
 
 
     /**
-     * Adds an ordinary identifier (non-type name) to the currently active scope (at the top of the scope stack).
+     * Adds an ordinary identifier (non-type name) to the currently active scope. Redefinitions of a name in the same
+     * scope are ignored.
+     *
      * @param name The name of the identifier to add.
-     * @throws edu.vtc.nesc.parser.ParserSymbols.SymbolRedefinitionException
-     * @throws edu.vtc.nesc.parser.ParserSymbols.SymbolConflictException
      */
     public void addIdentifier(String name)
-            // throws SymbolTable.SymbolRedefinitionException, SymbolTable.SymbolConflictException
     {
-        try {
-            scopes.peek().addIdentifier(name);
-        }
-        catch (Exception e) {
-            // Eat all exceptions for now. These should be passed up but at the moment I don't know how to allow user
-            // defined exceptions through ANTLR generated code. Google for "ANTLR throws spec" (the ANTLR site is down
-            // at the moment).
-        }
+        bind(name, false);
     }
 
 
     /**
-     * Checks to see if the given name is the name of a type. Scopes are searched from the current scope outward through
-     * all enclosing scopes until the global scope is reached and searched. Note that a non-type name can hide a type
-     * name in an enclosing scope.
+     * Checks to see if the given name is the name of a type in the current scope or any of its enclosing scopes. Note
+     * that a non-type name can hide a type name in an enclosing scope.
      *
      * @param name The name to check.
      * @return true if the name specifies a type, false otherwise.
      */
     public boolean isType(String name)
     {
-        boolean result = false;
-        for (int i = scopes.size() - 1; i >= 0; --i) {
-            if (scopes.get(i).isType(name)) {
-                result = true;
-                break;
-            }
-            if (scopes.get(i).isDefined(name)) {
-                result = false;
-                break;
-            }
-        }
+        Binding binding = bindings.get(name);
+        boolean result = binding != null && binding.isType;
         // The following is sometimes useful for debugging.
         // System.out.println("Checking " + name + " as a type; result = " + result);
         return result;
@@ -110,11 +196,139 @@ public final class ParserSymbolsManager {
 
 
     /**
-     * Pops the scope stack by removing the top symbol table. This method should be called whenever a scope is exited.
+     * Discards the current scope along with all the names it contains. Names in enclosing scopes hidden by those names
+     * become visible again. This method should be called whenever a scope is exited.
      */
     public void exitScope()
     {
-        scopes.pop();
+        int start = scopeStarts[--scopeCount];
+        if (undoLog.size() > start) ++version;
+        for (int i = undoLog.size() - 1; i >= start; --i) {
+            Binding binding = undoLog.remove(i);
+            if (binding.hidden == null) {
+                bindings.remove(binding.name);
+            }
+            else {
+                bindings.put(binding.name, binding.hidden);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the version of the symbols. The version changes whenever a name is bound or a scope holding names is
+     * exited. Entering a scope, or exiting an empty one, does not change it since that can't change the meaning of any
+     * name. Thus isType gives the same answer for a name as long as the version is the same.
+     *
+     * @return The current version.
+     */
+    public int version()
+    {
+        return version;
+    }
+
+
+    /**
+     * Returns the number of scopes currently on the stack. This is one when only the global scope is active.
+     */
+    public int scopeDepth()
+    {
+        return scopeCount;
+    }
+
+
+    /**
+     * Returns a summary of the names in the global scope. Global scopes containing the same names have the same
+     * fingerprint. Global scopes containing different names almost certainly have different fingerprints.
+     *
+     * @return A 64 bit hash of the contents of the global scope.
+     */
+    public long globalFingerprint()
+    {
+        return globalFingerprint;
+    }
+
+
+    /**
+     * Returns the names in the global scope. Unlike the fingerprint, the result can be used to tell for certain whether
+     * the global scope holds the same names at some later time.
+     *
+     * @return The names currently in the global scope.
+     */
+    public GlobalScope saveGlobalScope()
+    {
+        int end = (scopeCount > 1) ? scopeStarts[1] : undoLog.size();
+        String[] names = new String[end];
+        boolean[] isType = new boolean[end];
+        for (int i = 0; i < end; ++i) {
+            Binding binding = undoLog.get(i);
+            names[i] = binding.name;
+            isType[i] = binding.isType;
+        }
+        return new GlobalScope(names, isType);
+    }
+
+
+    /**
+     * Checks if the global scope holds exactly the same names as when it was saved, regardless of the order in which
+     * they were added. This is only meaningful when the global scope is the current scope.
+     *
+     * @param saved The names in the global scope as returned by saveGlobalScope.
+     * @return true if the same names are in the global scope now, each as a type name or not as before.
+     */
+    public boolean hasGlobalScope(GlobalScope saved)
+    {
+        int end = (scopeCount > 1) ? scopeStarts[1] : undoLog.size();
+        if (end != saved.names.length) return false;
+        for (int i = 0; i < saved.names.length; ++i) {
+            // Names are bound at most once in a scope so equal sizes and no missing names mean the sets are equal.
+            Binding binding = bindings.get(saved.names[i]);
+            while (binding != null && binding.depth > 1) binding = binding.hidden;
+            if (binding == null || binding.isType != saved.isType[i]) return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Starts recording the names added to the global scope. This allows the effect of parsing a part of a file to be
+     * saved and later repeated without parsing that part again.
+     */
+    public void startRecording()
+    {
+        recording = new ArrayList<GlobalAddition>();
+    }
+
+
+    /**
+     * Stops recording the names added to the global scope.
+     *
+     * @return The names added since recording started in the order they were added.
+     */
+    public List<GlobalAddition> stopRecording()
+    {
+        List<GlobalAddition> result = recording;
+        recording = null;
+        return result;
+    }
+
+
+    /**
+     * Adds names to the global scope as previously recorded by startRecording and stopRecording. If the global scope
+     * is in the same state as when the names were recorded, it will be in the same state afterward as well.
+     *
+     * @param additions The names to add.
+     */
+    public void replay(List<GlobalAddition> additions)
+    {
+        for (GlobalAddition addition : additions) {
+            if (addition.isType) {
+                addType(addition.name);
+            }
+            else {
+                addIdentifier(addition.name);
+            }
+        }
     }
 
 
@@ -123,8 +337,15 @@ public final class ParserSymbolsManager {
      */
     public void dump()
     {
-        for (int i = scopes.size() - 1; i >= 0; --i) {
-            System.out.println("SCOPE LEVEL " + i + ": " + scopes.get(i));
+        for (int level = scopeCount - 1; level >= 0; --level) {
+            int end = (level == scopeCount - 1) ? undoLog.size() : scopeStarts[level + 1];
+            TreeSet<String> types = new TreeSet<String>();
+            TreeSet<String> identifiers = new TreeSet<String>();
+            for (int i = scopeStarts[level]; i < end; ++i) {
+                Binding binding = undoLog.get(i);
+                (binding.isType ? types : identifiers).add(binding.name);
+            }
+            System.out.println("SCOPE LEVEL " + level + ": (Types: " + types + "; Identifiers: " + identifiers);
         }
         System.out.println("");
     }
@@ -1,7 +1,12 @@
 package edu.vtc.nesc.parser;
 
 import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import org.antlr.runtime.tree.*;
 
 /**
@@ -10,7 +15,14 @@ import org.antlr.runtime.tree.*;
  */
 public class SyntaxViewer {
 
-    private PrintStream sink;
+    // Files with at least this many top level nodes have their top level declarations rendered in parallel.
+    private static final int PARALLEL_THRESHOLD = 256;
+
+    // The number of top level declarations rendered by each parallel task, at most.
+    private static final int MAXIMUM_BATCH_SIZE = 64;
+
+    private Emitter     sink;
+    private PrintStream stream;  // Flushed after each write if the output was given as a PrintStream.
     private Tree        syntaxTree;
     private int         indentationLevel = 0;
     private boolean     suppressRewriting = false;
@@ -38,9 +50,10 @@ public class SyntaxViewer {
      * Constructs a SyntaxViewer.
      *
      * @param outputDestination The object into which the output is sent.
-     * @param syntax The tree that this viewer will use.
+     * @param syntax The tree that this viewer will use. Only the methods of the Tree interface are used so this can be
+     * either a tree built by ANTLR's default tree adaptor or one built of ASTNodes.
      */
-    public SyntaxViewer(PrintStream outputDestination, Tree syntax)
+    public SyntaxViewer(Emitter outputDestination, Tree syntax)
     {
         sink = outputDestination;
         syntaxTree = syntax;
@@ -49,14 +62,37 @@ public class SyntaxViewer {
 
 
     /**
-     * Outputs the entire syntax tree in ANTLR's tree notation. The output is sent to the PrintStream object previously
-     * given to the constructor. This method adds a '\n' to the end of the output.
+     * Constructs a SyntaxViewer that writes to a PrintStream. The output is written to the stream, as UTF-8, in large
+     * blocks and the stream is flushed after each complete write.
+     *
+     * @param outputDestination The object into which the output is sent.
+     * @param syntax The tree that this viewer will use.
+     */
+    public SyntaxViewer(PrintStream outputDestination, Tree syntax)
+    {
+        this(new Emitter(Channels.newChannel(outputDestination), false), syntax);
+        stream = outputDestination;
+    }
+
+
+    // Writes the collected output to the destination.
+    private void flush()
+    {
+        sink.flush();
+        if (stream != null) stream.flush();
+    }
+
+
+    /**
+     * Outputs the entire syntax tree in ANTLR's tree notation. The output is sent to the destination previously given to
+     * the constructor. This method adds a '\n' to the end of the output.
      *
      */
     public void writeAST()
     {
         sink.print(syntaxTree.toStringTree());
         sink.print("\n");
+        flush();
     }
 
 
@@ -73,20 +109,97 @@ public class SyntaxViewer {
 
 
     /**
-     * Outputs the entire syntax tree in source code form. The output is sent to the PrintStream object previously given
-     * to the constructor. This method adds a '\n' to the end of the output.
+     * Outputs the entire syntax tree in source code form. The output is sent to the destination previously given to the
+     * constructor. This method adds a '\n' to the end of the output. The top level declarations of large files are
+     * rendered in parallel; the output is the same as if they were rendered in order.
      *
      */
     public void rewrite()
     {
-        rewrite(syntaxTree);
+        if (syntaxTree.getType() == NesCLexer.FILE && syntaxTree.getChildCount() >= PARALLEL_THRESHOLD) {
+            rewriteFileInParallel(syntaxTree);
+        }
+        else {
+            rewrite(syntaxTree);
+        }
         sink.print("\n");
+        flush();
+    }
+
+
+    /**
+     * Outputs a FILE node with its top level declarations rendered in parallel. Line directives decide which
+     * declarations are rendered, so they are processed in order by this viewer. The declarations are rendered in
+     * batches, each by a separate viewer into a separate emitter, and the results are appended in order. This relies on
+     * each top level declaration leaving the viewer's state as it found it.
+     *
+     * @param t The FILE node to output.
+     */
+    private void rewriteFileInParallel(Tree t)
+    {
+        int batchSize = Math.max(1, Math.min(
+            MAXIMUM_BATCH_SIZE, t.getChildCount() / (4 * Runtime.getRuntime().availableProcessors())));
+        List<CompletableFuture<Emitter>> parts = new ArrayList<>();
+        List<Tree> batch = new ArrayList<>();
+
+        for (int i = 0; i < t.getChildCount(); ++i) {
+            Tree child = t.getChild(i);
+            if (child.getType() == NesCLexer.LINE_DIRECTIVE) {
+                parts.add(renderBatch(batch));
+                batch = new ArrayList<>();
+
+                Emitter directive = new Emitter();
+                Emitter saved = sink;
+                sink = directive;
+                try {
+                    rewrite(child);
+                }
+                finally {
+                    sink = saved;
+                }
+                parts.add(CompletableFuture.completedFuture(directive));
+            }
+            else if (!suppressRewriting) {
+                batch.add(child);
+                if (batch.size() == batchSize) {
+                    parts.add(renderBatch(batch));
+                    batch = new ArrayList<>();
+                }
+            }
+        }
+        parts.add(renderBatch(batch));
+
+        for (CompletableFuture<Emitter> part : parts) {
+            try {
+                sink.append(part.join());
+            }
+            catch (CompletionException e) {
+                // Report the failure of a batch as it would have been reported without parallelism.
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+                throw e;
+            }
+        }
+    }
+
+
+    // Starts rendering a list of top level declarations into a new emitter.
+    private static CompletableFuture<Emitter> renderBatch(List<Tree> batch)
+    {
+        if (batch.isEmpty()) return CompletableFuture.completedFuture(new Emitter());
+        return CompletableFuture.supplyAsync(() -> {
+            Emitter output = new Emitter();
+            SyntaxViewer viewer = new SyntaxViewer(output, null);
+            for (Tree declaration : batch) {
+                viewer.rewrite(declaration);
+            }
+            return output;
+        });
     }
 
 
     /**
-     * Outputs the syntax tree rooted at t in source code form. The output is sent to the PrintStream object previously
-     * given to the constructor.
+     * Outputs the syntax tree rooted at t in source code form. The output is sent to the destination previously given to
+     * the constructor.
      *
      * @param t The tree to output.
      */
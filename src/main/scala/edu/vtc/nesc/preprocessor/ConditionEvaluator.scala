@@ -0,0 +1,233 @@
+package edu.vtc.nesc.preprocessor
+
+/**
+ * Evaluates the controlling expressions of #if and #elif directives. The expression must
+ * already be fully macro expanded and have all uses of the 'defined' operator replaced. Any
+ * identifiers remaining are taken to be zero as required by the C standard. All arithmetic is
+ * done in 64 bits. Unsigned arithmetic is not distinguished from signed arithmetic; this only
+ * matters for unusual expressions involving negative values.
+ */
+object ConditionEvaluator {
+
+  /** Exception thrown when the expression is malformed. */
+  class ConditionException(message: String) extends Exception(message)
+
+  /**
+   * Evaluates an expression.
+   *
+   * @param tokens The tokens of the expression. White space tokens are ignored.
+   * @return The value of the expression.
+   * @throws ConditionException if the expression is malformed.
+   */
+  def evaluate(tokens: Seq[PPToken]): Long = {
+    val parser = new Parser(tokens.filterNot(_.isWhitespace).toIndexedSeq)
+    val result = parser.conditional()
+    if (!parser.atEnd) throw new ConditionException("missing binary operator before token \"" + parser.peek + "\"")
+    result
+  }
+
+
+  /**
+   * Converts the text of an integer constant to its value.
+   *
+   * @throws ConditionException if the text is not an integer constant.
+   */
+  def integerValue(text: String): Long = {
+    val digits = text.reverse.dropWhile(ch => "uUlL".indexOf(ch.toInt) >= 0).reverse
+    try {
+      if (digits.startsWith("0x") || digits.startsWith("0X"))
+        java.lang.Long.parseUnsignedLong(digits.substring(2), 16)
+      else if (digits.startsWith("0b") || digits.startsWith("0B"))
+        java.lang.Long.parseUnsignedLong(digits.substring(2), 2)
+      else if (digits.length > 1 && digits.startsWith("0"))
+        java.lang.Long.parseUnsignedLong(digits.substring(1), 8)
+      else
+        java.lang.Long.parseUnsignedLong(digits)
+    }
+    catch {
+      case _: NumberFormatException =>
+        throw new ConditionException("invalid integer constant \"" + text + "\" in #if")
+    }
+  }
+
+
+  /** Converts the text of a character constant to its value. */
+  def characterValue(text: String): Long = {
+    val body = text.substring(text.indexOf('\'') + 1, math.max(text.lastIndexOf('\''), text.indexOf('\'') + 1))
+    if (body.isEmpty) throw new ConditionException("empty character constant in #if")
+    if (body.charAt(0) != '\\') body.charAt(0).toLong
+    else if (body.length < 2) throw new ConditionException("invalid character constant in #if")
+    else body.charAt(1) match {
+      case 'n'  => 10
+      case 't'  => 9
+      case 'r'  => 13
+      case 'a'  => 7
+      case 'b'  => 8
+      case 'f'  => 12
+      case 'v'  => 11
+      case 'e'  => 27
+      case 'x'  => java.lang.Long.parseLong(body.substring(2), 16)
+      case digit if digit >= '0' && digit <= '7' => java.lang.Long.parseLong(body.substring(1), 8)
+      case other => other.toLong
+    }
+  }
+
+
+  /** Recursive descent parser that evaluates as it parses. */
+  private class Parser(tokens: IndexedSeq[PPToken]) {
+    private var position = 0
+
+    def atEnd: Boolean = position >= tokens.length
+
+    def peek: String = if (atEnd) "" else tokens(position).text
+
+    private def accept(text: String): Boolean = {
+      if (!atEnd && tokens(position).kind == PPToken.Punctuator && tokens(position).text == text) {
+        position += 1
+        true
+      }
+      else false
+    }
+
+    private def expect(text: String): Unit = {
+      if (!accept(text)) throw new ConditionException("expected '" + text + "' in #if")
+    }
+
+    def conditional(): Long = {
+      val condition = logicalOr()
+      if (accept("?")) {
+        val whenTrue = conditional()
+        expect(":")
+        val whenFalse = conditional()
+        if (condition != 0) whenTrue else whenFalse
+      }
+      else condition
+    }
+
+    private def logicalOr(): Long = {
+      var result = logicalAnd()
+      while (accept("||")) {
+        val right = logicalAnd()
+        result = if (result != 0 || right != 0) 1 else 0
+      }
+      result
+    }
+
+    private def logicalAnd(): Long = {
+      var result = bitwiseOr()
+      while (accept("&&")) {
+        val right = bitwiseOr()
+        result = if (result != 0 && right != 0) 1 else 0
+      }
+      result
+    }
+
+    private def bitwiseOr(): Long = {
+      var result = bitwiseXor()
+      while (accept("|")) result = result | bitwiseXor()
+      result
+    }
+
+    private def bitwiseXor(): Long = {
+      var result = bitwiseAnd()
+      while (accept("^")) result = result ^ bitwiseAnd()
+      result
+    }
+
+    private def bitwiseAnd(): Long = {
+      var result = equality()
+      while (accept("&")) result = result & equality()
+      result
+    }
+
+    private def equality(): Long = {
+      var result = relational()
+      var done = false
+      while (!done) {
+        if (accept("==")) result = if (result == relational()) 1 else 0
+        else if (accept("!=")) result = if (result != relational()) 1 else 0
+        else done = true
+      }
+      result
+    }
+
+    private def relational(): Long = {
+      var result = shift()
+      var done = false
+      while (!done) {
+        if (accept("<")) result = if (result < shift()) 1 else 0
+        else if (accept(">")) result = if (result > shift()) 1 else 0
+        else if (accept("<=")) result = if (result <= shift()) 1 else 0
+        else if (accept(">=")) result = if (result >= shift()) 1 else 0
+        else done = true
+      }
+      result
+    }
+
+    private def shift(): Long = {
+      var result = additive()
+      var done = false
+      while (!done) {
+        if (accept("<<")) result = result << additive()
+        else if (accept(">>")) result = result >> additive()
+        else done = true
+      }
+      result
+    }
+
+    private def additive(): Long = {
+      var result = multiplicative()
+      var done = false
+      while (!done) {
+        if (accept("+")) result = result + multiplicative()
+        else if (accept("-")) result = result - multiplicative()
+        else done = true
+      }
+      result
+    }
+
+    private def multiplicative(): Long = {
+      var result = unary()
+      var done = false
+      while (!done) {
+        if (accept("*")) result = result * unary()
+        else if (accept("/") || accept("%")) {
+          val isDivision = tokens(position - 1).text == "/"
+          val divisor = unary()
+          if (divisor == 0) throw new ConditionException("division by zero in #if")
+          result = if (isDivision) result / divisor else result % divisor
+        }
+        else done = true
+      }
+      result
+    }
+
+    private def unary(): Long = {
+      if (accept("+")) unary()
+      else if (accept("-")) -unary()
+      else if (accept("~")) ~unary()
+      else if (accept("!")) { if (unary() == 0) 1 else 0 }
+      else primary()
+    }
+
+    private def primary(): Long = {
+      if (atEnd) throw new ConditionException("#if with no expression")
+      if (accept("(")) {
+        val result = conditional()
+        expect(")")
+        result
+      }
+      else {
+        val token = tokens(position)
+        position += 1
+        token.kind match {
+          case PPToken.Number      => integerValue(token.text)
+          case PPToken.CharLiteral => characterValue(token.text)
+          case PPToken.Identifier  => 0
+          case _ => throw new ConditionException("token \"" + token.text + "\" is not valid in preprocessor expressions")
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,56 @@
+package edu.vtc.nesc.preprocessor
+
+import java.io.{File, IOException}
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A cache of source files that have been broken into logical lines. The same headers are
+ * included by nearly every file in a nesC program; this cache allows each of them to be read
+ * and split only once. A cached file is checked against the file system each time it is
+ * requested and read again if its size or modification time has changed. The cache can be used
+ * by any number of threads at once.
+ */
+final class IncludeCache {
+  import IncludeCache._
+
+  private val entries = new ConcurrentHashMap[String, Entry]()
+
+  /**
+   * Returns the contents of a file.
+   *
+   * @param canonicalPath The canonical path to the file. Using the canonical path ensures that
+   * a file referred to by several different names is only cached once.
+   * @return The file broken into logical lines. The same object is returned for as long as the
+   * file remains unchanged.
+   * @throws IOException if the file can't be read.
+   */
+  def source(canonicalPath: String): SourceText = {
+    val file = new File(canonicalPath)
+    val lastModified = file.lastModified()
+    val length = file.length()
+    val existing = entries.get(canonicalPath)
+    if (existing != null && existing.lastModified == lastModified && existing.length == length) {
+      existing.text
+    }
+    else {
+      if (!file.isFile) throw new IOException(canonicalPath + ": No such file or directory")
+      val contents = new String(Files.readAllBytes(file.toPath), StandardCharsets.ISO_8859_1)
+      val text = SourceText(contents)
+      entries.put(canonicalPath, Entry(lastModified, length, text))
+      text
+    }
+  }
+
+  /** Removes all files from the cache. */
+  def clear(): Unit = entries.clear()
+
+}
+
+
+object IncludeCache {
+
+  private final case class Entry(lastModified: Long, length: Long, text: SourceText)
+
+}
@@ -0,0 +1,85 @@
+package edu.vtc.nesc.preprocessor
+
+import scala.collection.immutable.HashMap
+import scala.util.hashing.MurmurHash3
+
+/**
+ * A macro definition.
+ *
+ * @param name The name of the macro.
+ * @param functionLike True for function-like macros, even those without parameters.
+ * @param parameters The names of the parameters. For variadic macros the last parameter
+ * collects the variable arguments. It is named __VA_ARGS__ unless the macro gives it a name.
+ * @param variadic True if the macro takes a variable number of arguments.
+ * @param body The replacement list with leading and trailing white space removed and each
+ * interior run of white space reduced to a single space.
+ */
+final case class Macro(name        : String,
+                       functionLike: Boolean,
+                       parameters  : Vector[String],
+                       variadic    : Boolean,
+                       body        : Vector[PPToken]) {
+
+  /** A 64 bit hash of the complete definition. */
+  lazy val fingerprint: Long =
+    (MurmurHash3.productHash(this, 0x3c074a61).toLong << 32) |
+      (MurmurHash3.productHash(this, 0x7f4a7c15).toLong & 0xFFFFFFFFL)
+}
+
+
+/**
+ * An immutable table of macro definitions. Because the table is immutable a snapshot of the
+ * macros in effect at any point during preprocessing costs nothing to take. Each table carries
+ * a fingerprint summarizing all the definitions it contains. The fingerprint is maintained
+ * incrementally and allows the state after a header has been processed to be looked up
+ * quickly.
+ *
+ * @param definitions The macros in the table indexed by name.
+ * @param fingerprint The sum of the fingerprints of all definitions.
+ */
+final class MacroTable private (val definitions: HashMap[String, Macro], val fingerprint: Long) {
+
+  def get(name: String): Option[Macro] = definitions.get(name)
+
+  def contains(name: String): Boolean = definitions.contains(name)
+
+  /**
+   * Returns a table with the given definition added. Any existing definition of the same name
+   * is replaced.
+   */
+  def define(definition: Macro): MacroTable = {
+    val withoutOld = definitions.get(definition.name) match {
+      case Some(old) => fingerprint - old.fingerprint
+      case None      => fingerprint
+    }
+    new MacroTable(definitions.updated(definition.name, definition), withoutOld + definition.fingerprint)
+  }
+
+  /** Returns a table with the named definition removed, if it exists. */
+  def undefine(name: String): MacroTable = {
+    definitions.get(name) match {
+      case Some(old) => new MacroTable(definitions.removed(name), fingerprint - old.fingerprint)
+      case None      => this
+    }
+  }
+
+  /**
+   * Two tables are equal when they contain the same definitions. Comparing the fingerprints
+   * first makes unequal tables cheap to reject. Tables derived from a common snapshot share
+   * most of their structure which makes comparing equal tables cheap as well.
+   */
+  override def equals(other: Any): Boolean = other match {
+    case that: MacroTable =>
+      (this eq that) || (fingerprint == that.fingerprint && definitions == that.definitions)
+    case _ => false
+  }
+
+  override def hashCode: Int = fingerprint.hashCode
+}
+
+
+object MacroTable {
+
+  val empty = new MacroTable(HashMap.empty, 0L)
+
+}
@@ -0,0 +1,157 @@
+package edu.vtc.nesc.preprocessor
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * A preprocessing token. Preprocessing tokens are coarser than the tokens seen by the parser.
+ * For example all punctuators share a single kind and keywords are ordinary identifiers.
+ * White space is kept as tokens so that the output can preserve the layout of the input.
+ *
+ * @param kind One of the kind constants in the companion object.
+ * @param text The text of the token as it appears in the source.
+ * @param hideSet The names of the macros that may not be expanded from this token. This is
+ * used to prevent recursive macro expansion.
+ */
+final case class PPToken(kind: Int, text: String, hideSet: Set[String] = Set.empty) {
+  import PPToken._
+
+  def isWhitespace: Boolean = kind == Whitespace || kind == Newline
+
+  def isPunctuator(punctuator: String): Boolean = kind == Punctuator && text == punctuator
+}
+
+
+object PPToken {
+
+  // Token kinds.
+  val Identifier    = 0
+  val Number        = 1
+  val CharLiteral   = 2
+  val StringLiteral = 3
+  val Punctuator    = 4
+  val Whitespace    = 5
+  val Newline       = 6
+  val Other         = 7
+  val Placemarker   = 8   // Stands for an empty macro argument during token pasting.
+
+  /** A token containing a single space. */
+  val Space = PPToken(Whitespace, " ")
+
+  /** The punctuators of C, longest first so that the first match is the longest match. */
+  private val punctuators = Array(
+    "...", "<<=", ">>=",
+    "->", "++", "--", "<<", ">>", "<=", ">=", "==", "!=", "&&", "||",
+    "*=", "/=", "%=", "+=", "-=", "&=", "^=", "|=", "##",
+    "[", "]", "(", ")", "{", "}", ".", "&", "*", "+", "-", "~", "!", "/", "%", "<", ">", "^",
+    "|", "?", ":", ";", "=", ",", "#", "@")
+
+  private val punctuatorSet = punctuators.toSet
+
+  private def isIdentifierStart(ch: Char) = ch == '_' || ch == '$' || Character.isLetter(ch)
+
+  private def isIdentifierPart(ch: Char) = ch == '_' || ch == '$' || Character.isLetterOrDigit(ch)
+
+
+  /**
+   * Breaks a logical line into preprocessing tokens. The line is assumed to be free of comments
+   * and line splices. Unterminated character and string literals extend to the end of the line.
+   *
+   * @param line The text to tokenize.
+   * @return The tokens of the line, including white space tokens.
+   */
+  def tokenize(line: String): ArrayBuffer[PPToken] = {
+    val result = new ArrayBuffer[PPToken]()
+    val length = line.length
+    var i = 0
+
+    // Returns the index just past a literal starting with the quote at position start.
+    def scanLiteral(start: Int, quote: Char): Int = {
+      var j = start + 1
+      while (j < length && line.charAt(j) != quote) {
+        if (line.charAt(j) == '\\' && j + 1 < length) j += 1
+        j += 1
+      }
+      if (j < length) j + 1 else length
+    }
+
+    while (i < length) {
+      val ch = line.charAt(i)
+      val start = i
+      if (ch == ' ' || ch == '\t' || ch == '\f' || ch == '\u000b' || ch == '\r') {
+        while (i < length && " \t\f\u000b\r".indexOf(line.charAt(i).toInt) >= 0) i += 1
+        result += PPToken(Whitespace, line.substring(start, i))
+      }
+      else if ((ch == 'L' || ch == 'u' || ch == 'U') &&
+               i + 1 < length && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\'')) {
+        val quote = line.charAt(i + 1)
+        i = scanLiteral(i + 1, quote)
+        result += PPToken(if (quote == '"') StringLiteral else CharLiteral, line.substring(start, i))
+      }
+      else if (isIdentifierStart(ch)) {
+        while (i < length && isIdentifierPart(line.charAt(i))) i += 1
+        result += PPToken(Identifier, line.substring(start, i))
+      }
+      else if (Character.isDigit(ch) ||
+               (ch == '.' && i + 1 < length && Character.isDigit(line.charAt(i + 1)))) {
+        i += 1
+        var done = false
+        while (i < length && !done) {
+          val current = line.charAt(i)
+          if ((current == '+' || current == '-') && "eEpP".indexOf(line.charAt(i - 1).toInt) >= 0)
+            i += 1
+          else if (isIdentifierPart(current) || current == '.')
+            i += 1
+          else
+            done = true
+        }
+        result += PPToken(Number, line.substring(start, i))
+      }
+      else if (ch == '"' || ch == '\'') {
+        i = scanLiteral(i, ch)
+        result += PPToken(if (ch == '"') StringLiteral else CharLiteral, line.substring(start, i))
+      }
+      else {
+        val punctuator = punctuators.find(line.startsWith(_, i))
+        punctuator match {
+          case Some(text) =>
+            i += text.length
+            result += PPToken(Punctuator, text)
+          case None =>
+            i += 1
+            result += PPToken(Other, line.substring(start, i))
+        }
+      }
+    }
+    result
+  }
+
+
+  /**
+   * Decides if two tokens would run together if written next to each other without any
+   * intervening white space. When this is the case a space must be written between them so
+   * that the output lexes the same way as the token sequence produced by macro expansion.
+   *
+   * @param left The token written first.
+   * @param right The token written immediately after.
+   * @return True if a space is needed between the tokens.
+   */
+  def wouldPaste(left: PPToken, right: PPToken): Boolean = {
+    if (left.text.isEmpty || right.text.isEmpty) false
+    else {
+      val last  = left.text.charAt(left.text.length - 1)
+      val first = right.text.charAt(0)
+      (left.kind, right.kind) match {
+        case (Identifier | Number, Identifier | Number) => true
+        case (Number, Punctuator) => first == '.' || ((first == '+' || first == '-') && "eEpP".indexOf(last.toInt) >= 0)
+        case (Identifier, StringLiteral | CharLiteral) => left.text == "L" || left.text == "u" || left.text == "U"
+        case (Punctuator, Number) => last == '.'
+        case (Punctuator, Punctuator) =>
+          (last == '/' && (first == '/' || first == '*')) ||
+            punctuatorSet.contains(left.text + first) ||
+            (right.text.length > 1 && punctuatorSet.contains(left.text + right.text.substring(0, 2)))
+        case _ => false
+      }
+    }
+  }
+
+}
@@ -0,0 +1,1141 @@
+package edu.vtc.nesc.preprocessor
+
+import java.io.{File, IOException, PrintStream}
+import java.time.LocalDateTime
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * A C preprocessor that runs inside the JVM. Its output is intended to be interchangeable with
+ * that of the GNU C preprocessor: the same tokens are produced and line markers are written in
+ * the same format so that the parser sees the same file boundaries.
+ *
+ * A single instance can preprocess any number of files, concurrently if desired. Because nearly
+ * every file in a nesC program includes the same headers, three kinds of work are shared
+ * between files:
+ *
+ * 1. The text of each source file is read and broken into lines only once (see IncludeCache).
+ *
+ * 2. The location found for each #include is remembered.
+ *
+ * 3. The result of processing a header is remembered along with the macro table in effect at
+ * the point where it was included. If the same header is later included with an identical macro
+ * table, the previous output and the macro table that resulted are reused without processing
+ * the header again. Because included headers usually come first, this means that the common
+ * prefix of headers shared by many files is only processed once.
+ *
+ * Headers that use __COUNTER__ or __BASE_FILE__ are never reused since their output depends on
+ * more than the macro table. The locations of headers are not checked again once found so an
+ * instance should not be kept across changes to the folders it searches.
+ *
+ * @param includePaths The folders searched for included files, in order.
+ * @param systemIncludePaths Folders searched after includePaths. Files found in these folders
+ * are marked as system headers in the output.
+ * @param definitions Macros to define before processing starts. Each definition has the form
+ * used by the -D option of cpp: NAME, NAME=VALUE, or NAME(PARAMETERS)=VALUE.
+ * @param implicitIncludes Headers included at the start of every file, in the way GCC includes
+ * stdc-predef.h. They are found using the search path. Headers that can't be found are skipped.
+ * @param cache The cache used to hold the contents of source files. It can be shared between
+ * preprocessors with different settings.
+ * @throws IllegalArgumentException if one of the definitions is invalid.
+ */
+class Preprocessor(includePaths      : Seq[String],
+                   systemIncludePaths: Seq[String],
+                   definitions       : Seq[String],
+                   implicitIncludes  : Seq[String] = Seq(),
+                   cache             : IncludeCache = new IncludeCache) {
+  import Preprocessor._
+
+  private val searchPath = (includePaths ++ systemIncludePaths).toIndexedSeq
+  private val firstSystemIndex = includePaths.length
+
+  private val (dateText, timeText) = {
+    val now = LocalDateTime.now()
+    val month = now.getMonth.toString.substring(0, 1) + now.getMonth.toString.substring(1, 3).toLowerCase
+    (f"\"$month ${now.getDayOfMonth}%2d ${now.getYear}%d\"",
+     f"\"${now.getHour}%02d:${now.getMinute}%02d:${now.getSecond}%02d\"")
+  }
+
+  private val initialMacros = {
+    var table = MacroTable.empty
+    for (definition <- StandardDefinitions ++ definitions) {
+      val text = definition.indexOf('=') match {
+        case -1    => definition + " 1"
+        case index => definition.substring(0, index) + " " + definition.substring(index + 1)
+      }
+      parseDefinition(PPToken.tokenize(text).toIndexedSeq) match {
+        case Right(definedMacro) => table = table.define(definedMacro)
+        case Left(message)       => throw new IllegalArgumentException("-D" + definition + ": " + message)
+      }
+    }
+    table
+  }
+
+  private val resolutions = new ConcurrentHashMap[ResolutionKey, Option[Resolved]]()
+  private val headerResults = new ConcurrentHashMap[HeaderKey, List[HeaderResult]]()
+  private val hits = new AtomicLong()
+  private val misses = new AtomicLong()
+
+  /** The number of times a header was included by reusing an earlier result. */
+  def headerCacheHits: Long = hits.get
+
+  /** The number of times a header had to be processed. */
+  def headerCacheMisses: Long = misses.get
+
+
+  /**
+   * Preprocesses a file.
+   *
+   * @param file The file to preprocess.
+   * @param log The stream where diagnostics are written.
+   * @return The preprocessed text and the number of errors found. If a fatal error occurs (such
+   * as a missing header) the text is incomplete.
+   * @throws IOException if the file can't be read.
+   */
+  def preprocess(file: File, log: PrintStream): Result = new Session(file, log).run()
+
+
+  /**
+   * Finds an included file. The folder of the including file is searched first for quoted
+   * names, followed by the folders in the search path starting with the given index.
+   */
+  private def resolve(key: ResolutionKey): Option[Resolved] = {
+    val existing = resolutions.get(key)
+    if (existing != null) existing
+    else {
+      def candidate(folder: String, index: Int, isSystem: Boolean): Option[Resolved] = {
+        val displayName =
+          if (folder.isEmpty) key.name
+          else if (folder.endsWith("/")) folder + key.name
+          else folder + "/" + key.name
+        val file = new File(displayName)
+        if (file.isFile) Some(Resolved(file.getCanonicalPath, displayName, index, isSystem)) else None
+      }
+
+      val result =
+        if (new File(key.name).isAbsolute) candidate("", -1, isSystem = false)
+        else {
+          val local = if (key.angled) None else candidate(key.folder, -1, key.folderIsSystem)
+          local orElse {
+            (key.startIndex until searchPath.length).iterator.map { index =>
+              candidate(searchPath(index), index, index >= firstSystemIndex)
+            }.collectFirst { case Some(found) => found }
+          }
+        }
+      resolutions.put(key, result)
+      result
+    }
+  }
+
+
+  /** An open source file along with the state of its conditional directives. */
+  private final class Frame(val source       : SourceText,
+                            val canonicalPath: String,
+                            val displayName  : String,
+                            val searchIndex  : Int,
+                            var isSystem     : Boolean,
+                            val depth        : Int) {
+    var nextLine = 0
+    var currentLine = 1
+    var presumedName = displayName
+    var lineOffset = 0
+    val conditionals = new ArrayBuffer[Conditional]()
+
+    def presumedLine: Int = currentLine + lineOffset
+
+    def folder: String = Option(new File(displayName).getParent).getOrElse("")
+
+    def active: Boolean = conditionals.isEmpty || conditionals.last.active
+
+    /** Returns the tokens of the next line if it is ordinary text, otherwise null. */
+    def pullLine(): IndexedSeq[PPToken] = {
+      if (nextLine >= source.lines.length || source.lines(nextLine).isDirective) null
+      else {
+        val line = source.lines(nextLine)
+        nextLine += 1
+        currentLine = line.firstLine
+        line.tokens
+      }
+    }
+  }
+
+
+  /** The state of preprocessing a single file, including the headers it includes. */
+  private final class Session(mainFile: File, log: PrintStream) {
+    private var macros = initialMacros
+    private var onceFiles = Set.empty[String]
+    private val output = new StringBuilder
+    private var outputName = ""
+    private var outputLine = 0
+    private var errorCount = 0
+    private val diagnostics = new ArrayBuffer[String]()
+    private val sourcesRead = new ArrayBuffer[(String, SourceText)]()
+    private var counter = 0
+    private var impureUses = 0
+    private var frame: Frame = _
+
+    def run(): Result = {
+      val canonicalPath = mainFile.getCanonicalPath
+      val source = cache.source(canonicalPath)
+      try {
+        processFile(new Frame(source, canonicalPath, mainFile.getPath, -1, false, 0), "")
+      }
+      catch {
+        case _: FatalError => // The error has already been reported.
+      }
+      Result(output.toString, errorCount)
+    }
+
+
+    // Diagnostics
+    // -----------
+
+    private def report(kind: String, message: String): Unit = {
+      val diagnostic = s"${frame.presumedName}:${frame.presumedLine}: $kind: $message"
+      diagnostics += diagnostic
+      log.println(diagnostic)
+      if (kind != "warning") errorCount += 1
+    }
+
+    private def error(message: String): Unit = report("error", message)
+
+    private def warning(message: String): Unit = report("warning", message)
+
+    private def fatal(message: String): Nothing = {
+      report("fatal error", message)
+      throw new FatalError
+    }
+
+
+    // Output
+    // ------
+
+    private def writeMarker(line: Int, name: String, flag: String): Unit = {
+      output.append("# ").append(line).append(" ").append(quote(name))
+      if (flag.nonEmpty) output.append(' ').append(flag)
+      if (frame.isSystem) output.append(" 3")
+      output.append('\n')
+      outputName = name
+      outputLine = line
+    }
+
+    /** Positions the output at the current line, using blank lines if it is close enough. */
+    private def synchronizeLine(): Unit = {
+      val name = frame.presumedName
+      val line = frame.presumedLine
+      if (name == outputName && line >= outputLine && line - outputLine <= MaximumPadding) {
+        while (outputLine < line) {
+          output.append('\n')
+          outputLine += 1
+        }
+      }
+      else {
+        writeMarker(line, name, "")
+      }
+    }
+
+    private def writeTokens(tokens: Seq[PPToken]): Unit = {
+      var previous: PPToken = null
+      for (token <- tokens) {
+        if (token.kind == PPToken.Newline) {
+          output.append('\n')
+          outputLine += 1
+          previous = null
+        }
+        else if (token.kind == PPToken.Whitespace) {
+          output.append(token.text)
+          previous = null
+        }
+        else {
+          if (previous != null && PPToken.wouldPaste(previous, token)) output.append(' ')
+          output.append(token.text)
+          previous = token
+        }
+      }
+      output.append('\n')
+      outputLine += 1
+    }
+
+
+    // Files
+    // -----
+
+    private def readSource(canonicalPath: String): SourceText = {
+      val source =
+        try {
+          cache.source(canonicalPath)
+        }
+        catch {
+          case e: IOException => fatal(e.getMessage)
+        }
+      sourcesRead += ((canonicalPath, source))
+      source
+    }
+
+    private def processFile(file: Frame, flag: String): Unit = {
+      val includer = frame
+      frame = file
+      try {
+        writeMarker(1, file.displayName, flag)
+        if (file.depth == 0) {
+          for (name <- implicitIncludes) {
+            resolve(ResolutionKey(name, angled = true, "", folderIsSystem = false, 0)) foreach { resolved =>
+              if (!onceFiles.contains(resolved.canonicalPath)) includeFile(resolved, 1)
+            }
+          }
+        }
+        val lines = file.source.lines
+        while (file.nextLine < lines.length) {
+          val line = lines(file.nextLine)
+          file.nextLine += 1
+          file.currentLine = line.firstLine
+          if (line.isDirective) directive(line)
+          else if (file.active) textLine(line)
+        }
+        for (conditional <- file.conditionals.reverseIterator) {
+          file.currentLine = conditional.line
+          error("unterminated #" + conditional.directive)
+        }
+      }
+      finally {
+        frame = includer
+      }
+    }
+
+    private def textLine(line: LogicalLine): Unit = {
+      val tokens = line.tokens
+      if (tokens.exists(!_.isWhitespace)) {
+        synchronizeLine()
+        if (!tokens.exists(token => token.kind == PPToken.Identifier && isMacroName(token.text))) {
+          output.append(line.text).append('\n')
+          outputLine += 1
+        }
+        else {
+          val currentFrame = frame
+          val input = new TokenInput(tokens, () => currentFrame.pullLine())
+          val expanded = new ArrayBuffer[PPToken]()
+          expand(input, expanded, inCondition = false)
+          writeTokens(expanded.toSeq)
+        }
+      }
+    }
+
+    private def include(line: LogicalLine, operand: IndexedSeq[PPToken], isNext: Boolean, isImport: Boolean): Unit = {
+      headerName(operand) match {
+        case None =>
+          error("#include expects \"FILENAME\" or <FILENAME>")
+
+        case Some((name, _)) if name.isEmpty =>
+          error("empty filename in #include")
+
+        case Some((name, angled)) =>
+          val key =
+            if (isNext && frame.searchIndex >= 0)
+              ResolutionKey(name, angled = true, "", folderIsSystem = false, frame.searchIndex + 1)
+            else
+              ResolutionKey(name, angled, frame.folder, frame.isSystem, 0)
+          val resolved = resolve(key) getOrElse fatal(name + ": No such file or directory")
+          if (frame.depth + 1 >= MaximumIncludeDepth) {
+            error(s"#include nested depth ${frame.depth + 1} exceeds maximum of $MaximumIncludeDepth")
+          }
+          else if (!onceFiles.contains(resolved.canonicalPath)) {
+            if (isImport) onceFiles += resolved.canonicalPath
+            includeFile(resolved, line.firstLine + line.lineCount)
+          }
+      }
+    }
+
+    /**
+     * Includes a file, reusing the result of an earlier inclusion made under the same
+     * conditions if possible.
+     *
+     * @param resolved The file to include.
+     * @param returnLine The line in the current file just after the #include directive.
+     */
+    private def includeFile(resolved: Resolved, returnLine: Int): Unit = {
+      val source = readSource(resolved.canonicalPath)
+      if (!source.includeGuard.exists(macros.contains)) {
+        val key = HeaderKey(
+          resolved.displayName, resolved.searchIndex, resolved.isSystem, frame.depth + 1, onceFiles, macros.fingerprint)
+        val previous = Option(headerResults.get(key)) flatMap { results =>
+          results find { result => result.macrosBefore == macros && result.sources.forall(isUnchanged) }
+        }
+        previous match {
+          case Some(result) =>
+            hits.incrementAndGet()
+            output.append(result.text)
+            macros = result.macrosAfter
+            onceFiles = result.onceFilesAfter
+            for (diagnostic <- result.diagnostics) {
+              diagnostics += diagnostic
+              log.println(diagnostic)
+            }
+            errorCount += result.errorCount
+            sourcesRead ++= result.sources
+
+          case None =>
+            misses.incrementAndGet()
+            val macrosBefore = macros
+            val outputStart = output.length
+            val diagnosticsStart = diagnostics.length
+            val errorsBefore = errorCount
+            val impureUsesBefore = impureUses
+            val sourcesStart = sourcesRead.length
+            processFile(
+              new Frame(source, resolved.canonicalPath, resolved.displayName,
+                        resolved.searchIndex, resolved.isSystem, frame.depth + 1), "1")
+            if (impureUses == impureUsesBefore) {
+              val result = new HeaderResult(
+                macrosBefore,
+                output.substring(outputStart),
+                macros,
+                onceFiles,
+                diagnostics.slice(diagnosticsStart, diagnostics.length).toVector,
+                errorCount - errorsBefore,
+                sourcesRead.slice(sourcesStart, sourcesRead.length).distinct.toVector)
+              headerResults.merge(key, List(result), (existing, added) => added ::: existing)
+            }
+        }
+        writeMarker(returnLine + frame.lineOffset, frame.presumedName, "2")
+      }
+    }
+
+    private def isUnchanged(sourceRead: (String, SourceText)): Boolean = {
+      try {
+        cache.source(sourceRead._1) eq sourceRead._2
+      }
+      catch {
+        case _: IOException => false
+      }
+    }
+
+    /**
+     * Extracts the name from the operand of an #include directive. If the operand is not in one
+     * of the two standard forms, it is macro expanded first.
+     *
+     * @return The name and true if it was given in angle brackets.
+     */
+    private def headerName(operand: IndexedSeq[PPToken]): Option[(String, Boolean)] = {
+      def extract(text: String): Option[(String, Boolean)] = {
+        if (text.startsWith("\"") && text.indexOf('"', 1) > 0)
+          Some((text.substring(1, text.indexOf('"', 1)), false))
+        else if (text.startsWith("<") && text.indexOf('>') > 0)
+          Some((text.substring(1, text.indexOf('>')), true))
+        else
+          None
+      }
+
+      extract(operand.map(_.text).mkString.trim) orElse {
+        val expanded = new ArrayBuffer[PPToken]()
+        expand(new TokenInput(operand, null), expanded, inCondition = false)
+        extract(expanded.map(_.text).mkString.trim)
+      }
+    }
+
+
+    // Directives
+    // ----------
+
+    private def directive(line: LogicalLine): Unit = {
+      val tokens = line.tokens
+      var index = skipWhitespace(tokens, skipWhitespace(tokens, 0) + 1)
+      if (index < tokens.length) {
+        val nameToken = tokens(index)
+        val operand = tokens.drop(index + 1)
+        index = skipWhitespace(tokens, index + 1)
+        val firstIdentifier =
+          if (index < tokens.length && tokens(index).kind == PPToken.Identifier) Some(tokens(index).text) else None
+
+        nameToken.text match {
+          case "if" =>
+            beginConditional(line, "if", evaluate(operand))
+
+          case "ifdef" | "ifndef" =>
+            beginConditional(line, nameToken.text, {
+              if (firstIdentifier.isEmpty) error("no macro name given in #" + nameToken.text + " directive")
+              firstIdentifier.exists(isMacroName) == (nameToken.text == "ifdef")
+            })
+
+          case "elif" =>
+            continueConditional("elif", evaluate(operand))
+
+          case "elifdef" | "elifndef" =>
+            continueConditional(nameToken.text, firstIdentifier.exists(isMacroName) == (nameToken.text == "elifdef"))
+
+          case "else" =>
+            continueConditional("else", true)
+
+          case "endif" =>
+            if (frame.conditionals.isEmpty) error("#endif without #if")
+            else frame.conditionals.remove(frame.conditionals.length - 1): @annotation.nowarn("msg=discarded non-Unit value")
+
+          case _ if !frame.active => // Other directives in skipped groups are ignored.
+
+          case _ if nameToken.kind == PPToken.Number =>
+            changeLine(line, nameToken +: operand, expandOperand = false)
+
+          case "include" =>
+            include(line, operand, isNext = false, isImport = false)
+
+          case "include_next" =>
+            include(line, operand, isNext = true, isImport = false)
+
+          case "import" =>
+            include(line, operand, isNext = false, isImport = true)
+
+          case "define" =>
+            parseDefinition(operand) match {
+              case Left(message) => error(message)
+              case Right(definition) =>
+                macros.get(definition.name) foreach { existing =>
+                  if (existing != definition) warning("\"" + definition.name + "\" redefined")
+                }
+                macros = macros.define(definition)
+            }
+
+          case "undef" =>
+            firstIdentifier match {
+              case Some(name) => macros = macros.undefine(name)
+              case None       => error("no macro name given in #undef directive")
+            }
+
+          case "line" =>
+            changeLine(line, operand, expandOperand = true)
+
+          case "error" =>
+            error("#error" + directiveText(operand))
+
+          case "warning" =>
+            warning("#warning" + directiveText(operand))
+
+          case "pragma" =>
+            firstIdentifier match {
+              case Some("once") =>
+                onceFiles += frame.canonicalPath
+              case Some("GCC") if operand.filterNot(_.isWhitespace).map(_.text).contains("system_header") =>
+                if (frame.depth > 0) frame.isSystem = true
+              case _ =>
+                passThrough(line)
+            }
+
+          case "ident" | "sccs" =>
+            passThrough(line)
+
+          case other =>
+            error("invalid preprocessing directive #" + other)
+        }
+      }
+    }
+
+    private def directiveText(operand: IndexedSeq[PPToken]): String = {
+      val text = operand.map(_.text).mkString.trim
+      if (text.isEmpty) "" else " " + text
+    }
+
+    private def passThrough(line: LogicalLine): Unit = {
+      synchronizeLine()
+      output.append(line.text.trim).append('\n')
+      outputLine += 1
+    }
+
+    private def beginConditional(line: LogicalLine, directiveName: String, condition: => Boolean): Unit = {
+      val parentActive = frame.active
+      val value = parentActive && condition
+      frame.conditionals += new Conditional(directiveName, line.firstLine, parentActive, value): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+
+    private def continueConditional(directiveName: String, condition: => Boolean): Unit = {
+      if (frame.conditionals.isEmpty) {
+        error("#" + directiveName + " without #if")
+      }
+      else {
+        val conditional = frame.conditionals.last
+        if (conditional.sawElse) {
+          error("#" + directiveName + " after #else")
+        }
+        else {
+          if (directiveName == "else") conditional.sawElse = true
+          if (conditional.taken || !conditional.parentActive) {
+            conditional.active = false
+          }
+          else {
+            conditional.active = condition
+            conditional.taken = conditional.active
+          }
+        }
+      }
+    }
+
+    private def evaluate(operand: IndexedSeq[PPToken]): Boolean = {
+      val expanded = new ArrayBuffer[PPToken]()
+      expand(new TokenInput(operand, null), expanded, inCondition = true)
+      try {
+        ConditionEvaluator.evaluate(expanded.toSeq) != 0
+      }
+      catch {
+        case e: ConditionEvaluator.ConditionException =>
+          error(e.getMessage)
+          false
+      }
+    }
+
+    /** Handles both #line and the line markers written by cpp itself. */
+    private def changeLine(line: LogicalLine, operand: IndexedSeq[PPToken], expandOperand: Boolean): Unit = {
+      val tokens =
+        if (!expandOperand) operand.filterNot(_.isWhitespace)
+        else {
+          val expanded = new ArrayBuffer[PPToken]()
+          expand(new TokenInput(operand, null), expanded, inCondition = false)
+          expanded.filterNot(_.isWhitespace).toIndexedSeq
+        }
+      val lineNumber = tokens.headOption.filter(_.kind == PPToken.Number).flatMap(_.text.toIntOption)
+      lineNumber match {
+        case Some(number) if number >= 0 =>
+          frame.lineOffset = number - (line.firstLine + line.lineCount)
+          if (tokens.length > 1) {
+            if (tokens(1).kind == PPToken.StringLiteral)
+              frame.presumedName = unquote(tokens(1).text)
+            else
+              error("invalid filename \"" + tokens(1).text + "\"")
+          }
+          if (!expandOperand) {
+            // Like cpp, pass line markers through at once with their flags so later tools
+            // still see where included files begin and end.
+            val flags = tokens.drop(2).map(_.text)
+            if (flags.contains("3")) frame.isSystem = true
+            val flag = flags.find(flag => flag == "1" || flag == "2").getOrElse("")
+            writeMarker(number, frame.presumedName, flag)
+          }
+        case _ =>
+          error("\"" + tokens.headOption.map(_.text).getOrElse("") + "\" after #line is not a positive integer")
+      }
+    }
+
+
+    // Macro Expansion
+    // ---------------
+
+    private def isMacroName(name: String): Boolean = macros.contains(name) || BuiltinNames.contains(name)
+
+    /**
+     * Expands all macros in the input. This uses the hide set algorithm of Dave Prosser. Each
+     * token carries the names of the macros whose expansion produced it; a token is not expanded
+     * again by any of those macros.
+     *
+     * @param input The tokens to expand. Function-like macro invocations may draw more lines
+     * from the input if their arguments span several lines.
+     * @param result The buffer where the expanded tokens are appended.
+     * @param inCondition True when expanding the condition of #if. This enables the 'defined'
+     * and '__has_include' operators.
+     */
+    private def expand(input: TokenInput, result: ArrayBuffer[PPToken], inCondition: Boolean): Unit = {
+      while (input.hasNext) {
+        val token = input.next()
+        if (token.kind != PPToken.Identifier || token.hideSet.contains(token.text)) {
+          result += token
+        }
+        else if (inCondition && token.text == "defined") {
+          result += definedOperator(input)
+        }
+        else if (inCondition && (token.text == "__has_include" || token.text == "__has_include_next")) {
+          result += hasIncludeOperator(input, token.text == "__has_include_next")
+        }
+        else {
+          macros.get(token.text) match {
+            case None =>
+              result += builtin(token).getOrElse(token)
+
+            case Some(definition) if !definition.functionLike =>
+              input.pushFront(substitute(definition, Vector(), token.hideSet + definition.name, inCondition))
+
+            case Some(definition) =>
+              val skipped = new ArrayBuffer[PPToken]()
+              while (input.hasMore && input.peek.isWhitespace) skipped += input.next()
+              if (input.hasMore && input.peek.isPunctuator("(")) {
+                input.next()
+                collectArguments(definition, input) match {
+                  case Some((arguments, closing)) =>
+                    val hideSet = (token.hideSet intersect closing.hideSet) + definition.name
+                    input.pushFront(substitute(definition, arguments, hideSet, inCondition))
+                  case None =>
+                    // Like cpp, keep the name of a macro that was invoked incorrectly.
+                    result += token
+                }
+              }
+              else {
+                // The name of a function-like macro is not expanded unless followed by '('.
+                result += token
+                input.pushFront(skipped.toIndexedSeq)
+              }
+          }
+        }
+      }
+    }
+
+    private def builtin(token: PPToken): Option[PPToken] = {
+      token.text match {
+        case "__FILE__" =>
+          Some(PPToken(PPToken.StringLiteral, quote(frame.presumedName)))
+        case "__LINE__" =>
+          Some(PPToken(PPToken.Number, frame.presumedLine.toString))
+        case "__INCLUDE_LEVEL__" =>
+          Some(PPToken(PPToken.Number, frame.depth.toString))
+        case "__COUNTER__" =>
+          impureUses += 1
+          counter += 1
+          Some(PPToken(PPToken.Number, (counter - 1).toString))
+        case "__BASE_FILE__" =>
+          impureUses += 1
+          Some(PPToken(PPToken.StringLiteral, quote(mainFile.getPath)))
+        case "__DATE__" =>
+          Some(PPToken(PPToken.StringLiteral, dateText))
+        case "__TIME__" =>
+          Some(PPToken(PPToken.StringLiteral, timeText))
+        case _ =>
+          None
+      }
+    }
+
+    private def definedOperator(input: TokenInput): PPToken = {
+      def skip(): Unit = while (input.hasNext && input.peek.isWhitespace) input.next()
+
+      skip()
+      val parenthesized = input.hasNext && input.peek.isPunctuator("(")
+      if (parenthesized) {
+        input.next()
+        skip()
+      }
+      val name =
+        if (input.hasNext && input.peek.kind == PPToken.Identifier) Some(input.next().text) else None
+      if (parenthesized) {
+        skip()
+        if (input.hasNext && input.peek.isPunctuator(")")) input.next()
+        else error("missing ')' after \"defined\"")
+      }
+      if (name.isEmpty) error("operator \"defined\" requires an identifier")
+      PPToken(PPToken.Number, if (name.exists(isMacroName)) "1" else "0")
+    }
+
+    private def hasIncludeOperator(input: TokenInput, isNext: Boolean): PPToken = {
+      val operand = new ArrayBuffer[PPToken]()
+      var depth = 0
+      var done = false
+      while (input.hasNext && !done) {
+        val token = input.next()
+        if (token.isPunctuator("(")) depth += 1
+        if (token.isPunctuator(")")) depth -= 1
+        if (depth == 0 && token.isPunctuator(")")) done = true
+        else if (depth > 1 || !token.isPunctuator("(")) operand += token
+      }
+      val found = headerName(operand.toIndexedSeq) match {
+        case None =>
+          error("operator \"__has_include\" requires a header-name")
+          false
+        case Some((name, angled)) =>
+          val key =
+            if (isNext && frame.searchIndex >= 0)
+              ResolutionKey(name, angled = true, "", folderIsSystem = false, frame.searchIndex + 1)
+            else
+              ResolutionKey(name, angled, frame.folder, frame.isSystem, 0)
+          name.nonEmpty && resolve(key).isDefined
+      }
+      PPToken(PPToken.Number, if (found) "1" else "0")
+    }
+
+    /**
+     * Reads the arguments of a function-like macro invocation. The opening parenthesis has
+     * already been consumed.
+     *
+     * @return The arguments with white space normalized and the closing parenthesis, or None if
+     * the invocation is erroneous.
+     */
+    private def collectArguments(definition: Macro, input: TokenInput): Option[(IndexedSeq[IndexedSeq[PPToken]], PPToken)] = {
+      val arguments = ArrayBuffer(new ArrayBuffer[PPToken]())
+      var depth = 0
+      var closing: PPToken = null
+      while (closing == null) {
+        if (!input.hasMore) {
+          error("unterminated argument list invoking macro \"" + definition.name + "\"")
+          return None
+        }
+        val token = input.next()
+        if (token.isPunctuator(")") && depth == 0) {
+          closing = token
+        }
+        else if (token.isPunctuator(",") && depth == 0 &&
+                 !(definition.variadic && arguments.length == definition.parameters.length)) {
+          arguments += new ArrayBuffer[PPToken]()
+        }
+        else {
+          if (token.isPunctuator("(")) depth += 1
+          if (token.isPunctuator(")")) depth -= 1
+          arguments.last += token
+        }
+      }
+
+      val normalized = arguments.map(argument => normalizeWhitespace(argument.toIndexedSeq))
+      val expected = definition.parameters.length
+      if (expected == 0 && normalized.length == 1 && normalized.head.isEmpty)
+        Some((Vector(), closing))
+      else if (normalized.length == expected)
+        Some((normalized.toIndexedSeq, closing))
+      else if (definition.variadic && normalized.length == expected - 1)
+        Some(((normalized :+ Vector()).toIndexedSeq, closing))
+      else {
+        if (normalized.length < expected)
+          error(s"macro \"${definition.name}\" requires $expected arguments, but only ${normalized.length} given")
+        else
+          error(s"macro \"${definition.name}\" passed ${normalized.length} arguments, but takes just $expected")
+        None
+      }
+    }
+
+    /**
+     * Produces the replacement of a macro invocation. Parameters are replaced by their
+     * arguments and the # and ## operators are applied.
+     *
+     * @param definition The macro being expanded.
+     * @param arguments The arguments of the invocation.
+     * @param hideSet The hide set to add to every token of the replacement.
+     * @param inCondition True if the invocation is in the condition of #if.
+     * @return The replacement tokens, ready to be rescanned.
+     */
+    private def substitute(definition: Macro,
+                           arguments  : IndexedSeq[IndexedSeq[PPToken]],
+                           hideSet    : Set[String],
+                           inCondition: Boolean): IndexedSeq[PPToken] = {
+      val body = definition.body
+      val result = new ArrayBuffer[PPToken]()
+      val expandedArguments = new Array[IndexedSeq[PPToken]](arguments.length)
+
+      def parameterIndex(token: PPToken): Int =
+        if (definition.functionLike && token.kind == PPToken.Identifier) definition.parameters.indexOf(token.text) else -1
+
+      def rawArgument(index: Int): IndexedSeq[PPToken] =
+        if (arguments(index).isEmpty) Vector(Placemarker) else arguments(index)
+
+      def isStringizing(index: Int): Boolean = definition.functionLike && body(index).isPunctuator("#")
+
+      var i = 0
+      while (i < body.length) {
+        val token = body(i)
+        val parameter = parameterIndex(token)
+        if (isStringizing(i)) {
+          val next = skipWhitespace(body, i + 1)
+          result += stringize(arguments(parameterIndex(body(next))))
+          i = next + 1
+        }
+        else if (token.isPunctuator("##")) {
+          while (result.nonEmpty && result.last.isWhitespace) result.remove(result.length - 1)
+          var next = skipWhitespace(body, i + 1)
+          val rightParameter = parameterIndex(body(next))
+          val right =
+            if (isStringizing(next)) {
+              next = skipWhitespace(body, next + 1)
+              Vector(stringize(arguments(parameterIndex(body(next)))))
+            }
+            else if (rightParameter >= 0) rawArgument(rightParameter)
+            else Vector(body(next))
+
+          if (definition.variadic && rightParameter == definition.parameters.length - 1 &&
+              result.nonEmpty && result.last.isPunctuator(",")) {
+            // GNU extension: ', ## __VA_ARGS__' removes the comma if there are no variable arguments.
+            if (arguments(rightParameter).isEmpty) result.remove(result.length - 1)
+            else result ++= arguments(rightParameter)
+          }
+          else {
+            val left = if (result.nonEmpty) result.remove(result.length - 1) else Placemarker
+            result ++= paste(left, right.head)
+            result ++= right.tail
+          }
+          i = next + 1
+        }
+        else if (parameter >= 0) {
+          val next = skipWhitespace(body, i + 1)
+          if (next < body.length && body(next).isPunctuator("##")) {
+            result ++= rawArgument(parameter)
+          }
+          else {
+            if (expandedArguments(parameter) == null) {
+              val expanded = new ArrayBuffer[PPToken]()
+              expand(new TokenInput(arguments(parameter), null), expanded, inCondition)
+              expandedArguments(parameter) = expanded.toIndexedSeq
+            }
+            result ++= expandedArguments(parameter)
+          }
+          i += 1
+        }
+        else {
+          result += token
+          i += 1
+        }
+      }
+
+      result.iterator.filter(_.kind != PPToken.Placemarker).map { token =>
+        if (token.isWhitespace) token else token.copy(hideSet = token.hideSet ++ hideSet)
+      }.toIndexedSeq
+    }
+
+    private def paste(left: PPToken, right: PPToken): Seq[PPToken] = {
+      if (left.kind == PPToken.Placemarker) Seq(right)
+      else if (right.kind == PPToken.Placemarker) Seq(left)
+      else {
+        val combined = PPToken.tokenize(left.text + right.text)
+        if (combined.length == 1) Seq(combined.head)
+        else {
+          error("pasting \"" + left.text + "\" and \"" + right.text + "\" does not give a valid preprocessing token")
+          Seq(left, right)
+        }
+      }
+    }
+  }
+
+}
+
+
+object Preprocessor {
+
+  /**
+   * The result of preprocessing a file.
+   *
+   * @param text The preprocessed text.
+   * @param errorCount The number of errors found.
+   */
+  final case class Result(text: String, errorCount: Int)
+
+  /** Macros defined by every conforming preprocessor. */
+  private val StandardDefinitions = Seq("__STDC__", "__STDC_VERSION__=201710L", "__STDC_HOSTED__")
+
+  /** Names handled by the preprocessor itself. They count as defined macros. */
+  private val BuiltinNames = Set(
+    "__FILE__", "__LINE__", "__INCLUDE_LEVEL__", "__COUNTER__", "__BASE_FILE__", "__DATE__", "__TIME__",
+    "__has_include", "__has_include_next")
+
+  private val MaximumIncludeDepth = 200
+
+  /** The most blank lines written to keep the output in step before a line marker is used. */
+  private val MaximumPadding = 8
+
+  private val Placemarker = PPToken(PPToken.Placemarker, "")
+
+  private val NewlineToken = PPToken(PPToken.Newline, "\n")
+
+  /** Thrown to abandon preprocessing after a fatal error has been reported. */
+  private class FatalError extends Exception
+
+  private final case class Resolved(canonicalPath: String, displayName: String, searchIndex: Int, isSystem: Boolean)
+
+  /**
+   * Identifies a search for an included file.
+   *
+   * @param name The name of the file as given in the #include directive.
+   * @param angled True if the name was given in angle brackets.
+   * @param folder The folder of the including file.
+   * @param folderIsSystem True if the including file is a system header.
+   * @param startIndex The first entry of the search path to consider.
+   */
+  private final case class ResolutionKey(name          : String,
+                                         angled        : Boolean,
+                                         folder        : String,
+                                         folderIsSystem: Boolean,
+                                         startIndex    : Int)
+
+  /** Identifies the conditions under which a header was processed, except for the macro table. */
+  private final case class HeaderKey(displayName: String,
+                                     searchIndex: Int,
+                                     isSystem   : Boolean,
+                                     depth      : Int,
+                                     onceFiles  : Set[String],
+                                     macros     : Long)
+
+  /**
+   * The result of processing a header.
+   *
+   * @param macrosBefore The macro table in effect when the header was included.
+   * @param text The output produced by the header, including the files it included.
+   * @param macrosAfter The macro table in effect after the header was processed.
+   * @param onceFilesAfter The files that may not be included again after the header.
+   * @param diagnostics The diagnostics produced by the header.
+   * @param errorCount The number of errors produced by the header.
+   * @param sources The files read while processing the header. The result is only valid if none
+   * of them has changed.
+   */
+  private final class HeaderResult(val macrosBefore  : MacroTable,
+                                   val text          : String,
+                                   val macrosAfter   : MacroTable,
+                                   val onceFilesAfter: Set[String],
+                                   val diagnostics   : Vector[String],
+                                   val errorCount    : Int,
+                                   val sources       : Vector[(String, SourceText)])
+
+  /** The state of a conditional directive. */
+  private final class Conditional(val directive   : String,
+                                  val line        : Int,
+                                  val parentActive: Boolean,
+                                  var active      : Boolean) {
+    var taken: Boolean = active
+    var sawElse = false
+  }
+
+
+  /**
+   * A sequence of tokens being expanded. Tokens produced by macro expansion are pushed back on
+   * the front to be rescanned.
+   *
+   * @param initial The tokens to expand.
+   * @param moreLines A function that provides the tokens of following lines as needed to
+   * complete a macro invocation, or returns null if there are none. If null, the input ends
+   * with the initial tokens.
+   */
+  private final class TokenInput(initial: IndexedSeq[PPToken], moreLines: () => IndexedSeq[PPToken]) {
+    private val pending = new ArrayDeque[PPToken](math.max(initial.length, 1))
+    initial.foreach(pending.addLast)
+
+    /** True if there are tokens left on the current line. */
+    def hasNext: Boolean = !pending.isEmpty
+
+    /** True if there are tokens left on the current line or on lines that follow it. */
+    def hasMore: Boolean = {
+      if (pending.isEmpty && moreLines != null) {
+        val line = moreLines()
+        if (line != null) {
+          pending.addLast(NewlineToken)
+          line.foreach(pending.addLast)
+        }
+      }
+      !pending.isEmpty
+    }
+
+    def peek: PPToken = pending.peekFirst()
+
+    def next(): PPToken = pending.removeFirst()
+
+    def pushFront(tokens: IndexedSeq[PPToken]): Unit = {
+      var i = tokens.length - 1
+      while (i >= 0) {
+        pending.addFirst(tokens(i))
+        i -= 1
+      }
+    }
+  }
+
+
+  private def skipWhitespace(tokens: IndexedSeq[PPToken], start: Int): Int = {
+    var i = start
+    while (i < tokens.length && tokens(i).isWhitespace) i += 1
+    i
+  }
+
+  /**
+   * Removes leading and trailing white space and reduces each interior run of white space
+   * (including line breaks) to a single space.
+   */
+  private def normalizeWhitespace(tokens: IndexedSeq[PPToken]): IndexedSeq[PPToken] = {
+    val result = new ArrayBuffer[PPToken]()
+    var pendingSpace = false
+    for (token <- tokens) {
+      if (token.isWhitespace) pendingSpace = result.nonEmpty
+      else {
+        if (pendingSpace) result += PPToken.Space
+        result += token
+        pendingSpace = false
+      }
+    }
+    result.toIndexedSeq
+  }
+
+  private def quote(text: String): String =
+    "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+
+  private def unquote(text: String): String = {
+    val body = text.substring(text.indexOf('"') + 1, text.length - 1)
+    body.replace("\\\"", "\"").replace("\\\\", "\\")
+  }
+
+  /** Applies the # operator to an argument. */
+  private def stringize(argument: IndexedSeq[PPToken]): PPToken = {
+    val result = new StringBuilder("\"")
+    for (token <- argument) {
+      if (token.kind == PPToken.StringLiteral || token.kind == PPToken.CharLiteral)
+        result.append(token.text.replace("\\", "\\\\").replace("\"", "\\\""))
+      else if (token.isWhitespace)
+        result.append(' ')
+      else
+        result.append(token.text)
+    }
+    result.append('"')
+    PPToken(PPToken.StringLiteral, result.toString)
+  }
+
+
+  /**
+   * Parses the operand of a #define directive.
+   *
+   * @param tokens The tokens following the directive name.
+   * @return The macro defined or an error message.
+   */
+  private def parseDefinition(tokens: IndexedSeq[PPToken]): Either[String, Macro] = {
+    var i = skipWhitespace(tokens, 0)
+    if (i >= tokens.length) return Left("no macro name given in #define directive")
+    if (tokens(i).kind != PPToken.Identifier) return Left("macro names must be identifiers")
+    val name = tokens(i).text
+    if (name == "defined") return Left("\"defined\" cannot be used as a macro name")
+    i += 1
+
+    val functionLike = i < tokens.length && tokens(i).isPunctuator("(")
+    val parameters = new ArrayBuffer[String]()
+    var variadic = false
+    if (functionLike) {
+      i = skipWhitespace(tokens, i + 1)
+      var done = i < tokens.length && tokens(i).isPunctuator(")")
+      if (done) i += 1
+      while (!done) {
+        if (i >= tokens.length) return Left("missing ')' in macro parameter list")
+        val token = tokens(i)
+        if (token.isPunctuator("...")) {
+          parameters += "__VA_ARGS__"
+          variadic = true
+        }
+        else if (token.kind == PPToken.Identifier) {
+          if (parameters.contains(token.text)) return Left("duplicate macro parameter \"" + token.text + "\"")
+          parameters += token.text
+          val next = skipWhitespace(tokens, i + 1)
+          if (next < tokens.length && tokens(next).isPunctuator("...")) {
+            variadic = true
+            i = next
+          }
+        }
+        else {
+          return Left("expected parameter name, found \"" + token.text + "\"")
+        }
+        i = skipWhitespace(tokens, i + 1)
+        if (i < tokens.length && tokens(i).isPunctuator(")")) {
+          done = true
+          i += 1
+        }
+        else if (!variadic && i < tokens.length && tokens(i).isPunctuator(",")) {
+          i = skipWhitespace(tokens, i + 1)
+        }
+        else {
+          return Left("expected ',' or ')', found \"" + (if (i < tokens.length) tokens(i).text else "") + "\"")
+        }
+      }
+    }
+
+    val body = normalizeWhitespace(tokens.drop(i)).toVector
+    val significant = body.filterNot(_.isWhitespace)
+    if (significant.nonEmpty && (significant.head.isPunctuator("##") || significant.last.isPunctuator("##")))
+      return Left("'##' cannot appear at either end of a macro expansion")
+    if (functionLike) {
+      for (index <- body.indices if body(index).isPunctuator("#")) {
+        val next = skipWhitespace(body, index + 1)
+        if (next >= body.length || body(next).kind != PPToken.Identifier || !parameters.contains(body(next).text))
+          return Left("'#' is not followed by a macro parameter")
+      }
+    }
+    Right(Macro(name, functionLike, parameters.toVector, variadic, body))
+  }
+
+}
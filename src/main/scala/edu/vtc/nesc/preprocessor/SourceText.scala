@@ -0,0 +1,197 @@
+package edu.vtc.nesc.preprocessor
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * A logical source line. Line splices have been removed and each comment has been replaced by
+ * a single space. Because comments and splices can span physical lines, a logical line may
+ * cover several physical lines.
+ *
+ * @param text The text of the line without its terminating newline.
+ * @param firstLine The (one based) number of the first physical line covered.
+ * @param lineCount The number of physical lines covered.
+ */
+final case class LogicalLine(text: String, firstLine: Int, lineCount: Int) {
+
+  /** True if this line is a preprocessing directive. */
+  val isDirective: Boolean = {
+    var i = 0
+    while (i < text.length && (text.charAt(i) == ' ' || text.charAt(i) == '\t')) i += 1
+    i < text.length && text.charAt(i) == '#'
+  }
+
+  /** The preprocessing tokens of this line. They are computed only once, when first needed. */
+  lazy val tokens: IndexedSeq[PPToken] = PPToken.tokenize(text).toIndexedSeq
+}
+
+
+/**
+ * The contents of a source file broken into logical lines. Instances are immutable and can be
+ * shared by any number of preprocessors.
+ *
+ * @param lines The logical lines of the file.
+ * @param includeGuard The name of the macro used as an include guard if the entire file is
+ * wrapped in '#ifndef NAME' ... '#endif'. A file with such a guard doesn't need to be read again
+ * once NAME is defined.
+ */
+final class SourceText(val lines: IndexedSeq[LogicalLine], val includeGuard: Option[String])
+
+
+object SourceText {
+
+  /**
+   * Breaks raw file contents into logical lines. This takes care of the early translation
+   * phases: line splices are removed and comments are replaced by a single space. Comment
+   * markers inside character and string literals are not treated as comments.
+   *
+   * @param contents The raw contents of a source file.
+   * @return The logical lines of the file along with its include guard, if any.
+   */
+  def apply(contents: String): SourceText = {
+    val lines  = new ArrayBuffer[LogicalLine]()
+    val length = contents.length
+    val current = new StringBuilder
+    var firstLine = 1
+    var physicalLine = 1
+    var i = 0
+
+    def isNewline(index: Int) = contents.charAt(index) == '\n'
+
+    // Returns the length of a line splice at index or zero if there is none.
+    def spliceLength(index: Int): Int = {
+      if (contents.charAt(index) != '\\') 0
+      else if (index + 1 < length && isNewline(index + 1)) 2
+      else if (index + 2 < length && contents.charAt(index + 1) == '\r' && isNewline(index + 2)) 3
+      else 0
+    }
+
+    def endLine(): Unit = {
+      lines += LogicalLine(current.toString, firstLine, physicalLine - firstLine + 1)
+      current.clear()
+      physicalLine += 1
+      firstLine = physicalLine
+    }
+
+    // Copies a literal starting at the quote at index i, stopping at the end of the line.
+    def copyLiteral(quote: Char): Unit = {
+      current.append(quote)
+      i += 1
+      var done = false
+      while (i < length && !done) {
+        val splice = spliceLength(i)
+        if (splice > 0) {
+          i += splice
+          physicalLine += 1
+        }
+        else if (isNewline(i)) {
+          done = true
+        }
+        else {
+          val ch = contents.charAt(i)
+          current.append(ch)
+          i += 1
+          if (ch == quote) done = true
+          else if (ch == '\\' && i < length && !isNewline(i) && spliceLength(i) == 0) {
+            current.append(contents.charAt(i))
+            i += 1
+          }
+        }
+      }
+    }
+
+    while (i < length) {
+      val splice = spliceLength(i)
+      if (splice > 0) {
+        i += splice
+        physicalLine += 1
+      }
+      else {
+        val ch = contents.charAt(i)
+        if (ch == '\n') {
+          if (current.nonEmpty && current.charAt(current.length - 1) == '\r')
+            current.setLength(current.length - 1)
+          endLine()
+          i += 1
+        }
+        else if (ch == '"' || ch == '\'') {
+          copyLiteral(ch)
+        }
+        else if (ch == '/' && i + 1 < length && contents.charAt(i + 1) == '*') {
+          i += 2
+          while (i < length && !(contents.charAt(i) == '*' && i + 1 < length && contents.charAt(i + 1) == '/')) {
+            if (isNewline(i)) physicalLine += 1
+            i += 1
+          }
+          i = math.min(i + 2, length)
+          current.append(' ')
+        }
+        else if (ch == '/' && i + 1 < length && contents.charAt(i + 1) == '/') {
+          // A line comment ends at the newline, but a splice continues it onto the next line.
+          while (i < length && !isNewline(i)) {
+            val commentSplice = spliceLength(i)
+            if (commentSplice > 0) {
+              i += commentSplice
+              physicalLine += 1
+            }
+            else {
+              i += 1
+            }
+          }
+          current.append(' ')
+        }
+        else {
+          current.append(ch)
+          i += 1
+        }
+      }
+    }
+    if (current.nonEmpty) endLine()
+
+    new SourceText(lines.toIndexedSeq, findIncludeGuard(lines))
+  }
+
+
+  /**
+   * Looks for the classic include guard idiom. The file must start with '#ifndef NAME' (or
+   * '#if !defined NAME') and end with the '#endif' that matches it, with only blank lines
+   * outside.
+   */
+  private def findIncludeGuard(lines: ArrayBuffer[LogicalLine]): Option[String] = {
+    val significant = lines.indices.filter(index => lines(index).text.trim.nonEmpty)
+    if (significant.isEmpty) None
+    else {
+      val first = directiveTokens(lines(significant.head))
+      val guardName = first match {
+        case Seq("ifndef", name) => Some(name)
+        case Seq("if", "!", "defined", name) => Some(name)
+        case Seq("if", "!", "defined", "(", name, ")") => Some(name)
+        case _ => None
+      }
+      guardName.filter { _ =>
+        // Find the #endif that matches the opening conditional. It must be the last line.
+        var depth = 0
+        var matchingIndex = -1
+        for (index <- significant if matchingIndex == -1 && lines(index).isDirective) {
+          directiveTokens(lines(index)).headOption match {
+            case Some("if" | "ifdef" | "ifndef") => depth += 1
+            case Some("endif") =>
+              depth -= 1
+              if (depth == 0) matchingIndex = index
+            case _ =>
+          }
+        }
+        matchingIndex == significant.last
+      }
+    }
+  }
+
+
+  /** Returns the non-white space token texts of a directive line after the '#'. */
+  private def directiveTokens(line: LogicalLine): Seq[String] = {
+    if (!line.isDirective) Seq()
+    else {
+      line.tokens.filterNot(_.isWhitespace).map(_.text).drop(1)
+    }
+  }
+
+}
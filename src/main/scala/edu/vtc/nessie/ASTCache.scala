@@ -0,0 +1,306 @@
+package edu.vtc.nessie
+
+import java.io.{ByteArrayOutputStream, File, IOException}
+import java.nio.{BufferUnderflowException, ByteBuffer}
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption, StandardOpenOption}
+import java.security.MessageDigest
+import java.util.Arrays
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.mutable
+import edu.vtc.nesc.ASTNode
+import edu.vtc.nesc.parser.NesCParser
+
+/**
+ * Keeps the abstract syntax trees of parsed files in a folder so that they can be loaded instead
+ * of parsed again. A tree is stored under the hash of the preprocessed text it was parsed from;
+ * the same text always produces the same tree, so a stored tree can be used by any later run
+ * that sees that text, in any program. This helps most when the same components are compiled
+ * for many applications.
+ *
+ * Each file starts with a fingerprint of the parser that built the tree. Trees built by a
+ * different parser, for example before the grammar changed, are treated as missing.
+ *
+ * Each tree is kept in its own file in a compact binary form: a table of the distinct texts of
+ * the nodes, followed by the token type, text, number of children, and position of each node in
+ * depth first order. Numbers are written in a variable length encoding and lines as the
+ * difference from the line of the previous node, so most nodes take only a few bytes. Files are
+ * memory mapped when they are loaded.
+ *
+ * Files are written under a temporary name and then renamed, so a reader never sees a partly
+ * written tree, and the cache can be used by any number of threads or processes at once. A file
+ * that can't be read is treated as missing. The folder may be deleted at any time. Nothing is
+ * ever removed from it by this class.
+ *
+ * @param folder The folder holding the trees. It is created when the first tree is stored.
+ */
+class ASTCache(val folder: File) {
+  import ASTCache._
+
+  private val hits = new AtomicLong()
+  private val misses = new AtomicLong()
+
+  /** The number of trees that were loaded. */
+  def treeHits: Long = hits.get
+
+  /** The number of trees that were looked for but not found. */
+  def treeMisses: Long = misses.get
+
+  private def treeFile(contentHash: String): File = new File(folder, contentHash + ".ast")
+
+
+  /**
+   * Loads the tree of a text if it has been stored.
+   *
+   * @param contentHash The hash of the preprocessed text, as computed by BuildManifest.hashBytes.
+   * @return The tree and the number of tokens in the text, not counting those on hidden
+   * channels, or None if the tree is not in the cache.
+   */
+  def load(contentHash: String): Option[(ASTNode, Int)] = {
+    val file = treeFile(contentHash)
+    val result =
+      if (!file.isFile) None
+      else {
+        try {
+          val channel = FileChannel.open(file.toPath, StandardOpenOption.READ)
+          val contents =
+            try {
+              channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size)
+            }
+            finally {
+              channel.close()
+            }
+          decode(contents)
+        }
+        catch {
+          // The file was removed or is not usable. It will be replaced when the text is parsed.
+          case _: IOException => None
+        }
+      }
+    if (result.isDefined) hits.incrementAndGet() else misses.incrementAndGet()
+    result
+  }
+
+
+  /**
+   * Stores the tree of a text. Only the parse of a text without errors should be stored, since
+   * loading the tree does not report the errors again.
+   *
+   * @param contentHash The hash of the preprocessed text, as computed by BuildManifest.hashBytes.
+   * @param tree The tree of the text. It is not changed.
+   * @param tokenCount The number of tokens in the text, not counting those on hidden channels.
+   * @throws IOException if the tree can't be written.
+   */
+  def store(contentHash: String, tree: ASTNode, tokenCount: Int): Unit = {
+    if (!folder.isDirectory && !folder.mkdirs() && !folder.isDirectory)
+      throw new IOException("Unable to create AST cache folder " + folder.getPath)
+    val temporary = Files.createTempFile(folder.toPath, contentHash, ".tmp")
+    try {
+      Files.write(temporary, encode(tree, tokenCount))
+      Files.move(temporary, treeFile(contentHash).toPath, StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+    finally {
+      Files.deleteIfExists(temporary): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+}
+
+
+object ASTCache {
+
+  // Identifies files written by this class. The version must be increased whenever this format
+  // changes. Changes to the grammar are detected by the parser fingerprint.
+  private val Magic = 0x4E415354  // "NAST"
+  private val Version = 2
+
+  /**
+   * A hash of the token names and the generated class of the parser. It changes whenever the
+   * grammar changes, so trees built from an older grammar are never loaded.
+   */
+  private[nessie] lazy val ParserFingerprint: Array[Byte] = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    for (name <- NesCParser.tokenNames) {
+      digest.update(name.getBytes(StandardCharsets.UTF_8))
+      digest.update(0.toByte)
+    }
+    val classFile = classOf[NesCParser].getResourceAsStream("NesCParser.class")
+    if (classFile != null) {
+      try {
+        digest.update(classFile.readAllBytes())
+      }
+      finally {
+        classFile.close()
+      }
+    }
+    digest.digest()
+  }
+
+
+  /** Writes numbers in the variable length encoding: seven bits to a byte, low bits first. */
+  private final class Encoder extends ByteArrayOutputStream {
+    def writeNumber(value: Int): Unit = {
+      var remaining = value
+      while ((remaining & ~0x7F) != 0) {
+        write((remaining & 0x7F) | 0x80)
+        remaining >>>= 7
+      }
+      write(remaining)
+    }
+
+    // Small negative numbers are written as small odd numbers.
+    def writeSigned(value: Int): Unit = writeNumber((value << 1) ^ (value >> 31))
+
+    def writeInt(value: Int): Unit = {
+      write(value >>> 24)
+      write(value >>> 16)
+      write(value >>> 8)
+      write(value)
+    }
+  }
+
+  private def readNumber(buffer: ByteBuffer): Int = {
+    var result = 0
+    var shift = 0
+    var b = buffer.get()
+    while (b < 0) {
+      if (shift > 28) throw new IOException("Malformed number")
+      result |= (b & 0x7F) << shift
+      shift += 7
+      b = buffer.get()
+    }
+    result | (b << shift)
+  }
+
+  private def readSigned(buffer: ByteBuffer): Int = {
+    val value = readNumber(buffer)
+    (value >>> 1) ^ -(value & 1)
+  }
+
+
+  /**
+   * Converts a tree to its binary form. The tree is walked without recursion.
+   *
+   * @param tree The tree to convert.
+   * @param tokenCount The number of tokens in the text of the tree.
+   * @return The binary form of the tree.
+   */
+  private[nessie] def encode(tree: ASTNode, tokenCount: Int): Array[Byte] = {
+    // Number the distinct texts and list the nodes in depth first order.
+    val textIds = mutable.HashMap[String, Int]()
+    val texts = mutable.ArrayBuffer[String]()
+    val nodes = mutable.ArrayBuffer[ASTNode]()
+    val pending = mutable.Stack[ASTNode](tree)
+    while (pending.nonEmpty) {
+      val node = pending.pop()
+      nodes += node
+      if (!node.isNil && !textIds.contains(node.text)) {
+        textIds(node.text) = texts.length
+        texts += node.text
+      }
+      for (child <- node.children.reverseIterator) pending.push(child)
+    }
+
+    val output = new Encoder
+    output.writeInt(Magic)
+    output.writeInt(Version)
+    output.write(ParserFingerprint)
+    output.writeNumber(tokenCount)
+    output.writeNumber(texts.length)
+    for (text <- texts) {
+      val bytes = text.getBytes(StandardCharsets.UTF_8)
+      output.writeNumber(bytes.length)
+      output.write(bytes)
+    }
+    output.writeNumber(nodes.length)
+    var previousLine = 0
+    for (node <- nodes) {
+      output.writeNumber(node.tokenType)
+      output.writeNumber(if (node.isNil) 0 else textIds(node.text) + 1)
+      output.writeNumber(node.children.length)
+      output.writeSigned(node.line - previousLine)
+      output.writeNumber(node.positionInLine)
+      previousLine = node.line
+    }
+    output.toByteArray
+  }
+
+
+  // Reads the fingerprint in the header and checks that it's the fingerprint of this parser.
+  private def hasParserFingerprint(buffer: ByteBuffer): Boolean = {
+    val fingerprint = new Array[Byte](ParserFingerprint.length)
+    buffer.get(fingerprint)
+    Arrays.equals(fingerprint, ParserFingerprint)
+  }
+
+
+  /**
+   * Converts the binary form of a tree back to a tree. Nodes with the same text share a single
+   * string. The tree is built without recursion.
+   *
+   * @param buffer The binary form of the tree, starting at the buffer's position.
+   * @return The tree and the number of tokens in its text, or None if the buffer does not hold
+   * a tree in the current format built by the current parser.
+   */
+  private[nessie] def decode(buffer: ByteBuffer): Option[(ASTNode, Int)] = {
+    try {
+      if (buffer.getInt() != Magic || buffer.getInt() != Version || !hasParserFingerprint(buffer)) None
+      else {
+        val tokenCount = readNumber(buffer)
+        val texts = new Array[String](readNumber(buffer))
+        var bytes = new Array[Byte](64)
+        for (i <- texts.indices) {
+          val length = readNumber(buffer)
+          if (length > bytes.length) bytes = new Array[Byte](math.max(length, 2 * bytes.length))
+          buffer.get(bytes, 0, length)
+          texts(i) = new String(bytes, 0, length, StandardCharsets.UTF_8)
+        }
+
+        val size = readNumber(buffer)
+        val tokenTypes = new Array[Int](size)
+        val textIds = new Array[Int](size)
+        val childCounts = new Array[Int](size)
+        val lines = new Array[Int](size)
+        val positions = new Array[Int](size)
+        var line = 0
+        for (i <- 0 until size) {
+          tokenTypes(i) = readNumber(buffer)
+          textIds(i) = readNumber(buffer) - 1
+          childCounts(i) = readNumber(buffer)
+          line += readSigned(buffer)
+          lines(i) = line
+          positions(i) = readNumber(buffer)
+        }
+
+        // Build the nodes from last to first. The children of each node are then the most
+        // recently built nodes, and the first child is on top of the stack.
+        val built = new Array[ASTNode](size)
+        var top = 0
+        for (i <- size - 1 to 0 by -1) {
+          val childCount = childCounts(i)
+          if (childCount > top) throw new IOException("Malformed tree")
+          val children = Vector.newBuilder[ASTNode]
+          for (_ <- 0 until childCount) {
+            top -= 1
+            children += built(top)
+          }
+          val node = ASTNode(tokenTypes(i), if (textIds(i) == -1) null else texts(textIds(i)), children.result(), None, None)
+          node.line = lines(i)
+          node.positionInLine = positions(i)
+          node.freshenParentAndChildIndexes()
+          built(top) = node
+          top += 1
+        }
+        if (top != 1) throw new IOException("Malformed tree")
+        Some((built(0), tokenCount))
+      }
+    }
+    catch {
+      case _: BufferUnderflowException | _: IndexOutOfBoundsException |
+           _: NegativeArraySizeException | _: IOException => None
+    }
+  }
+
+}
@@ -0,0 +1,257 @@
+package edu.vtc.nessie
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Paths}
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import scala.jdk.CollectionConverters._
+
+/**
+ * Records what was used to produce each file in the output folder. For each file the manifest
+ * holds a hash of its preprocessed text. The manifest as a whole also holds a hash of those
+ * settings that affect the output. A file whose preprocessed text and settings are unchanged
+ * since the last run can keep its previous output without being parsed, processed, or rewritten
+ * again. The settings hash also covers the compiler itself, so output made by a different build
+ * of Nessie is never kept.
+ *
+ * The manifest is stored as a text file in the output folder. The first line holds the settings
+ * hash. Each remaining line holds a content hash and a file name separated by a space. Entries
+ * can be recorded and forgotten concurrently by multiple workers.
+ *
+ * @param outputFolder The folder holding the outputs described by this manifest.
+ * @param settingsHash The hash of the settings used for the current run.
+ */
+class BuildManifest(outputFolder: File, val settingsHash: String) {
+  import BuildManifest._
+
+  private val entries = new ConcurrentHashMap[String, String]()
+
+  /** True if a manifest was found and it was made with the same settings as this run. */
+  private var valid = false
+
+
+  /**
+   * Reads the manifest left in the output folder by a previous run, if any. If the manifest is
+   * missing, unreadable, or was written using different settings, no entries are loaded.
+   *
+   * @return True if the previous entries were loaded; false if a full rebuild is necessary.
+   */
+  def load(): Boolean = {
+    val manifestFile = new File(outputFolder, ManifestName)
+    if (manifestFile.isFile) {
+      var inputFile: BufferedReader = null
+      try {
+        inputFile = new BufferedReader(new FileReader(manifestFile, StandardCharsets.UTF_8))
+        if (inputFile.readLine() == settingsHash) {
+          var line = inputFile.readLine()
+          while (line != null) {
+            val fields = line.split(" ", 2)
+            if (fields.length == 2) entries.put(fields(1), fields(0))
+            line = inputFile.readLine()
+          }
+          valid = true
+        }
+      }
+      catch {
+        // A damaged manifest just means everything is rebuilt.
+        case _: IOException => entries.clear()
+      }
+      finally {
+        if (inputFile != null) inputFile.close()
+      }
+    }
+    valid
+  }
+
+
+  /**
+   * Checks if a file's previous output can be reused.
+   *
+   * @param fileName The name of the file relative to the input and output folders.
+   * @param contentHash The hash of the file's preprocessed text in this run.
+   * @return True if the output exists and was produced from identical preprocessed text.
+   */
+  def isUpToDate(fileName: String, contentHash: String): Boolean = {
+    entries.get(fileName) == contentHash && new File(outputFolder, fileName).isFile
+  }
+
+
+  /**
+   * Checks if a file has an output that was completed, without regard to what it was produced
+   * from.
+   *
+   * @param fileName The name of the file relative to the input and output folders.
+   * @return True if the output exists and has an entry.
+   */
+  def hasOutput(fileName: String): Boolean = {
+    entries.containsKey(fileName) && new File(outputFolder, fileName).isFile
+  }
+
+
+  /**
+   * Records that the output for a file was produced from text with the given hash.
+   */
+  def record(fileName: String, contentHash: String): Unit = {
+    entries.put(fileName, contentHash): @annotation.nowarn("msg=discarded non-Unit value")
+  }
+
+
+  /**
+   * Removes the entry for a file. This should be done before the output of a file is
+   * regenerated so that an incomplete output is never mistaken for a good one.
+   */
+  def forget(fileName: String): Unit = {
+    entries.remove(fileName): @annotation.nowarn("msg=discarded non-Unit value")
+  }
+
+
+  /**
+   * Deletes the outputs of files that were compiled by a previous run but that are no longer
+   * part of the program.
+   *
+   * @param currentFiles The names of the files in the program.
+   */
+  def removeStaleOutputs(currentFiles: Array[String]): Unit = {
+    val currentFileSet = currentFiles.toSet
+    val it = entries.keySet().iterator()
+    while (it.hasNext) {
+      val fileName = it.next()
+      if (!currentFileSet.contains(fileName)) {
+        new File(outputFolder, fileName).delete()
+        it.remove()
+      }
+    }
+  }
+
+
+  /**
+   * Writes the manifest into the output folder. The manifest is first written to a temporary
+   * file and then renamed so that an interrupted save does not leave a damaged manifest.
+   *
+   * @throws IOException if the manifest can't be written.
+   */
+  def save(): Unit = {
+    val manifestFile = new File(outputFolder, ManifestName)
+    val temporaryFile = new File(outputFolder, ManifestName + ".new")
+    val outputFile = new PrintWriter(temporaryFile, StandardCharsets.UTF_8)
+    try {
+      outputFile.println(settingsHash)
+      val sortedNames = entries.keySet().toArray(new Array[String](0)).sorted
+      for (fileName <- sortedNames) {
+        outputFile.println(entries.get(fileName) + " " + fileName)
+      }
+    }
+    finally {
+      outputFile.close()
+    }
+    if (manifestFile.exists() && !manifestFile.delete())
+      throw new IOException("Unable to replace build manifest " + manifestFile.getPath)
+    if (!temporaryFile.renameTo(manifestFile))
+      throw new IOException("Unable to write build manifest " + manifestFile.getPath)
+  }
+
+}
+
+
+object BuildManifest {
+
+  /** The name of the manifest file in the output folder. */
+  val ManifestName = ".nessie-manifest"
+
+  /**
+   * Changing this invalidates all existing manifests. It should be updated whenever the format
+   * of the manifest changes. Changes to the compiler are covered by CompilerFingerprint.
+   */
+  private val FormatVersion = "1"
+
+  /**
+   * A hash of the compiler that is running. This is the hash of the jar file holding Nessie or,
+   * when Nessie runs from a folder of class files as during development, the hash of every file
+   * in that folder. If neither can be found, the version recorded in the jar's manifest is used.
+   */
+  private[nessie] lazy val CompilerFingerprint: String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    val location = Option(classOf[BuildManifest].getProtectionDomain.getCodeSource)
+      .flatMap(source => Option(source.getLocation)).map(url => Paths.get(url.toURI))
+    location match {
+      case Some(jar) if Files.isRegularFile(jar) =>
+        digest.update(Files.readAllBytes(jar))
+
+      case Some(folder) if Files.isDirectory(folder) =>
+        val walk = Files.walk(folder)
+        val files = try {
+          walk.iterator.asScala.filter(Files.isRegularFile(_)).toVector.sortBy(_.toString)
+        }
+        finally {
+          walk.close()
+        }
+        for (file <- files) {
+          digest.update(folder.relativize(file).toString.getBytes(StandardCharsets.UTF_8))
+          digest.update(0.toByte)
+          digest.update(Files.readAllBytes(file))
+        }
+
+      case _ =>
+        val version = Option(classOf[BuildManifest].getPackage.getImplementationVersion).getOrElse("")
+        digest.update(version.getBytes(StandardCharsets.UTF_8))
+    }
+    toHex(digest.digest())
+  }
+
+  private def toHex(digest: Array[Byte]): String = {
+    val result = new StringBuilder
+    for (b <- digest) result.append(f"${b & 0xFF}%02x")
+    result.toString
+  }
+
+  /**
+   * Computes the hash of a file's contents.
+   *
+   * @param file The file to hash.
+   * @return The hash as a string of hex digits.
+   * @throws IOException if the file can't be read.
+   */
+  def hashFile(file: File): String = hashBytes(Files.readAllBytes(file.toPath))
+
+  /**
+   * Computes the hash of text held in memory.
+   *
+   * @param contents The bytes to hash.
+   * @return The hash as a string of hex digits.
+   */
+  def hashBytes(contents: Array[Byte]): String = hashBuffer(ByteBuffer.wrap(contents))
+
+  /**
+   * Computes the hash of text held in a buffer, such as a memory mapped file.
+   *
+   * @param contents The bytes to hash, from the buffer's position to its limit. The position is
+   * not changed.
+   * @return The hash as a string of hex digits.
+   */
+  def hashBuffer(contents: ByteBuffer): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(contents.duplicate())
+    toHex(digest.digest())
+  }
+
+  /**
+   * Computes the hash of a collection of (name, value) settings together with the compiler that
+   * uses them. The order of the pairs is not significant.
+   *
+   * @param relevantSettings The settings that affect Nessie's output.
+   * @param compiler The fingerprint of the compiler producing the output.
+   * @return The hash as a string of hex digits.
+   */
+  def hashSettings(relevantSettings: Map[String, Option[String]], compiler: String = CompilerFingerprint): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    digest.update(FormatVersion.getBytes(StandardCharsets.UTF_8))
+    digest.update(s"\n$compiler".getBytes(StandardCharsets.UTF_8))
+    for ((name, value) <- relevantSettings.toSeq.sortBy(_._1)) {
+      digest.update(s"\n$name=${value.getOrElse("")}".getBytes(StandardCharsets.UTF_8))
+    }
+    toHex(digest.digest())
+  }
+
+}
@@ -0,0 +1,311 @@
+package edu.vtc.nessie
+
+import java.io.{File, IOException, PrintWriter}
+import java.lang.management.{ManagementFactory, MemoryType}
+import java.nio.charset.StandardCharsets
+import java.util.Locale
+import java.util.concurrent.ConcurrentLinkedQueue
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+import edu.vtc.nesc.ASTNode
+
+/**
+ * Collects performance statistics for the files compiled in a run and writes them as a JSON
+ * report. For each phase of each file the wall time, the CPU time, the bytes allocated, and the
+ * peak size of the heap are measured. Each file also has counts of the bytes it was read from
+ * and written to, the tokens it was lexed into, and the nodes in its abstract syntax tree.
+ *
+ * CPU time and allocation are measured for the thread that runs the phase. Work a phase hands
+ * to other threads, such as the rewriting of a very large file in parallel, is only included in
+ * its wall time. The statistics of different files can be collected concurrently. However, the
+ * peak heap size is a property of the whole JVM; it is only meaningful for one phase when files
+ * are compiled one at a time.
+ */
+class BuildStatistics {
+  import BuildStatistics._
+
+  private val files = new ConcurrentLinkedQueue[FileStatistics]()
+  private val startTime = System.nanoTime()
+
+
+  /**
+   * Starts collecting the statistics of a file. The returned object should only be used by one
+   * thread at a time.
+   *
+   * @param fileName The name of the file relative to the input and output folders.
+   * @return The statistics of the file.
+   */
+  def file(fileName: String): FileStatistics = {
+    val result = new FileStatistics(fileName)
+    files.add(result)
+    result
+  }
+
+
+  /**
+   * Writes the report. It holds the statistics of every file, their totals, and a list of the
+   * files that took the most time.
+   *
+   * @param reportFile The file to write.
+   * @param slowestCount The number of files in the list of the slowest files.
+   * @throws IOException if the report can't be written.
+   */
+  def writeJson(reportFile: File, slowestCount: Int = 10): Unit = {
+    val wallNanos = System.nanoTime() - startTime
+    val allFiles = files.asScala.toSeq.sortBy(_.fileName)
+    val phaseTotals = mutable.LinkedHashMap[String, PhaseStatistics]()
+    for (file <- allFiles; (phase, statistics) <- file.phases) {
+      phaseTotals(phase) = phaseTotals.getOrElse(phase, PhaseStatistics(0, 0, 0, 0)) + statistics
+    }
+
+    val json = new JsonWriter
+    json.beginObject()
+    json.field("wallMillis", millis(wallNanos))
+    json.field("cpuTimeSupported", threads.isThreadCpuTimeSupported)
+    json.field("allocationSupported", allocationSupported)
+
+    json.key("totals")
+    json.beginObject()
+    json.field("files", allFiles.size)
+    json.field("compiled", allFiles.count(_.status == Compiled))
+    json.field("sourceBytes", allFiles.map(_.sourceBytes).sum)
+    json.field("preprocessedBytes", allFiles.map(_.preprocessedBytes).sum)
+    json.field("outputBytes", allFiles.map(_.outputBytes).sum)
+    json.field("tokens", allFiles.map(_.tokens).sum)
+    json.field("nodes", allFiles.map(_.nodes).sum)
+    writePhases(json, phaseTotals)
+    json.endObject()
+
+    json.key("slowest")
+    json.beginArray()
+    for (file <- allFiles.filter(_.phases.nonEmpty).sortBy(-_.wallNanos).take(slowestCount)) {
+      json.beginObject()
+      json.field("file", file.fileName)
+      json.field("wallMillis", millis(file.wallNanos))
+      json.endObject()
+    }
+    json.endArray()
+
+    json.key("files")
+    json.beginArray()
+    for (file <- allFiles) {
+      json.beginObject()
+      json.field("file", file.fileName)
+      json.field("status", file.status)
+      json.field("wallMillis", millis(file.wallNanos))
+      json.field("sourceBytes", file.sourceBytes)
+      json.field("preprocessedBytes", file.preprocessedBytes)
+      json.field("outputBytes", file.outputBytes)
+      json.field("tokens", file.tokens)
+      json.field("nodes", file.nodes)
+      writePhases(json, file.phases)
+      json.endObject()
+    }
+    json.endArray()
+    json.endObject()
+
+    val outputFile = new PrintWriter(reportFile, StandardCharsets.UTF_8)
+    try {
+      outputFile.println(json.result)
+    }
+    finally {
+      outputFile.close()
+    }
+    if (outputFile.checkError()) throw new IOException("Unable to write statistics report " + reportFile.getPath)
+  }
+
+}
+
+
+object BuildStatistics {
+
+  // The values of FileStatistics.status.
+  val Skipped   = "skipped"    // No dependency changed so the file was not even preprocessed.
+  val Unchanged = "unchanged"  // The preprocessed text was unchanged so the output was kept.
+  val Compiled  = "compiled"
+
+  private val threads = ManagementFactory.getThreadMXBean
+
+  // Allocation can only be measured with the extended interface of HotSpot based JVMs.
+  private val allocationThreads = threads match {
+    case extended: com.sun.management.ThreadMXBean if extended.isThreadAllocatedMemorySupported =>
+      extended.setThreadAllocatedMemoryEnabled(true)
+      Some(extended)
+    case _ =>
+      None
+  }
+
+  private def allocationSupported: Boolean = allocationThreads.isDefined
+
+  private def currentCpuNanos: Long =
+    if (threads.isCurrentThreadCpuTimeSupported) threads.getCurrentThreadCpuTime else 0
+
+  private def currentAllocatedBytes: Long =
+    allocationThreads.map(_.getThreadAllocatedBytes(Thread.currentThread.getId)).getOrElse(0L)
+
+  private def millis(nanos: Long): Double = nanos / 1.0e6
+
+  private val heapPools =
+    ManagementFactory.getMemoryPoolMXBeans.asScala.toSeq.filter(pool => pool.getType == MemoryType.HEAP && pool.isValid)
+
+  // The peak usage of each pool is recorded by the JVM when the pool is checked and before and
+  // after each collection. The sum of the peaks is thus close to, but may exceed, the actual
+  // peak size of the heap.
+  private def resetPeakHeap(): Unit = heapPools foreach { _.resetPeakUsage() }
+
+  private def peakHeapBytes: Long = heapPools.map(_.getPeakUsage.getUsed).sum
+
+
+  /**
+   * The resources used by one phase.
+   *
+   * @param wallNanos The elapsed time in nanoseconds.
+   * @param cpuNanos The CPU time used by the phase's thread in nanoseconds.
+   * @param allocatedBytes The bytes allocated by the phase's thread.
+   * @param peakHeapBytes The largest size of the heap during the phase.
+   */
+  final case class PhaseStatistics(wallNanos: Long, cpuNanos: Long, allocatedBytes: Long, peakHeapBytes: Long) {
+
+    /** Combines the resources used by two phases. The combined peak is the larger one. */
+    def +(other: PhaseStatistics): PhaseStatistics =
+      PhaseStatistics(wallNanos + other.wallNanos,
+                      cpuNanos + other.cpuNanos,
+                      allocatedBytes + other.allocatedBytes,
+                      math.max(peakHeapBytes, other.peakHeapBytes))
+  }
+
+
+  /**
+   * The statistics of one file.
+   *
+   * @param fileName The name of the file relative to the input and output folders.
+   */
+  final class FileStatistics(val fileName: String) {
+    var status = Skipped
+    var sourceBytes = 0L
+    var preprocessedBytes = 0L
+    var outputBytes = 0L
+    var tokens = 0L
+    var nodes = 0L
+
+    /** The resources used by each phase, in the order the phases were run. */
+    val phases = mutable.LinkedHashMap[String, PhaseStatistics]()
+
+    def wallNanos: Long = phases.values.map(_.wallNanos).sum
+
+
+    /**
+     * Runs a phase and adds the resources it uses to the statistics of this file.
+     *
+     * @param phase The name of the phase.
+     * @param body The work of the phase.
+     * @return The result of the phase.
+     */
+    def measure[T](phase: String)(body: => T): T = {
+      val startWall = System.nanoTime()
+      val startCpu = currentCpuNanos
+      val startAllocated = currentAllocatedBytes
+      resetPeakHeap()
+      try {
+        body
+      }
+      finally {
+        val used = PhaseStatistics(
+          System.nanoTime() - startWall, currentCpuNanos - startCpu, currentAllocatedBytes - startAllocated, peakHeapBytes)
+        phases(phase) = phases.get(phase).map(_ + used).getOrElse(used)
+      }
+    }
+  }
+
+
+  /** Counts the nodes in an abstract syntax tree. */
+  def countNodes(root: ASTNode): Long = {
+    var count = 0L
+    val pending = mutable.Stack[ASTNode](root)
+    while (pending.nonEmpty) {
+      val node = pending.pop()
+      count += 1
+      node.children foreach { pending.push(_) }
+    }
+    count
+  }
+
+
+  private def writePhases(json: JsonWriter, phases: collection.Map[String, PhaseStatistics]): Unit = {
+    json.key("phases")
+    json.beginObject()
+    for ((phase, statistics) <- phases) {
+      json.key(phase)
+      json.beginObject()
+      json.field("wallMillis", millis(statistics.wallNanos))
+      json.field("cpuMillis", millis(statistics.cpuNanos))
+      json.field("allocatedBytes", statistics.allocatedBytes)
+      json.field("peakHeapBytes", statistics.peakHeapBytes)
+      json.endObject()
+    }
+    json.endObject()
+  }
+
+
+  /** Builds JSON text, adding the commas and indentation between members as needed. */
+  private final class JsonWriter {
+    private val text = new StringBuilder
+    private var depth = 0
+    private var needComma = false
+    private var afterKey = false
+
+    private def startValue(): Unit = {
+      if (afterKey) afterKey = false
+      else {
+        if (needComma) text.append(',')
+        if (depth > 0) text.append('\n').append("  " * depth): @annotation.nowarn("msg=discarded non-Unit value")
+      }
+    }
+
+    private def end(bracket: Char): Unit = {
+      depth -= 1
+      if (needComma) text.append('\n').append("  " * depth)
+      text.append(bracket)
+      needComma = true
+    }
+
+    def beginObject(): Unit = { startValue(); text.append('{'); depth += 1; needComma = false }
+    def endObject(): Unit = end('}')
+    def beginArray(): Unit = { startValue(); text.append('['); depth += 1; needComma = false }
+    def endArray(): Unit = end(']')
+
+    def key(name: String): Unit = {
+      startValue()
+      text.append(quoted(name)).append(": ")
+      afterKey = true
+    }
+
+    private def value(literal: String): Unit = {
+      startValue()
+      text.append(literal)
+      needComma = true
+    }
+
+    def field(name: String, x: String): Unit  = { key(name); value(quoted(x)) }
+    def field(name: String, x: Long): Unit    = { key(name); value(x.toString) }
+    def field(name: String, x: Double): Unit  = { key(name); value(String.format(Locale.ROOT, "%.3f", Double.box(x))) }
+    def field(name: String, x: Boolean): Unit = { key(name); value(x.toString) }
+
+    def result: String = text.toString
+
+    private def quoted(s: String): String = {
+      val result = new StringBuilder("\"")
+      for (ch <- s) ch match {
+        case '"'  => result.append("\\\"")
+        case '\\' => result.append("\\\\")
+        case '\n' => result.append("\\n")
+        case '\r' => result.append("\\r")
+        case '\t' => result.append("\\t")
+        case _ if ch < ' ' => result.append(f"\\u${ch.toInt}%04x")
+        case _ => result.append(ch)
+      }
+      result.append('"').toString
+    }
+  }
+
+}
@@ -0,0 +1,27 @@
+package edu.vtc.nessie
+
+import java.io.{File, IOException}
+
+/**
+ * A thin client for CompileServer. It takes the same command line as Main and has the server
+ * run it in the current folder. The port of the server is taken from the NESSIE_PORT
+ * environment variable if it is set.
+ */
+object CompileClient {
+
+  def main(args: Array[String]): Unit = {
+    val port = Option(System.getenv("NESSIE_PORT")).map(_.toInt).getOrElse(CompileServer.DefaultPort)
+    val status =
+      try {
+        CompileServer.request(port, new File(System.getProperty("user.dir")), args, System.out)
+      }
+      catch {
+        case e: IOException =>
+          println("No Nessie compile server available on port " + port + ": " + e.getMessage)
+          println("Start one with: java -jar Nessie.jar -server=" + port)
+          1
+      }
+    System.exit(status)
+  }
+
+}
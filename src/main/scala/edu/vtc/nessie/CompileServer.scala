@@ -0,0 +1,213 @@
+package edu.vtc.nessie
+
+import java.io._
+import java.net.{InetAddress, ServerSocket, Socket}
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption}
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.{MessageDigest, SecureRandom}
+import scala.util.control.NonFatal
+import org.antlr.runtime.{ANTLRStringStream, CommonTokenStream}
+import edu.vtc.nesc.{ASTNode, ASTNodeAdaptor}
+import edu.vtc.nesc.parser.{Emitter, NesCLexer, NesCParser, SyntaxViewer}
+
+/**
+ * A compile server keeps Nessie loaded in a long lived process so that each compilation does
+ * not pay for starting the JVM, loading the parser, and warming up the JIT compiler. It also
+ * keeps the caches of included files and header regions from one compilation to the next.
+ * CompileClient sends the server a command line, which the server runs as if it had been given
+ * to Nessie directly, and the console output of the run is sent back to the client.
+ *
+ * The server only accepts connections from the local host. Since any local user can connect,
+ * the server also writes a random token to a file in the home folder of the user running it
+ * that only that user can read. A request must start with the token; other requests are
+ * rejected without being run. Requests are handled one at a time; each request can still
+ * compile its files in parallel.
+ *
+ * A request consists of the token and the client's working folder followed by the number of
+ * command line arguments and the arguments themselves, written with DataOutputStream. The
+ * response is a series of blocks of console output, each preceded by its length, followed by a
+ * zero length and the exit status of the run. A rejected request gets the same response: a block
+ * with the reason it was rejected, then the zero length and an exit status of 1.
+ */
+object CompileServer {
+
+  /** The port used when none is specified. */
+  val DefaultPort = 7413
+
+  /**
+   * Runs a compile server. This method does not return unless the server socket fails.
+   *
+   * @param port The port on which to listen.
+   * @throws IOException if the server socket can't be created.
+   */
+  def serve(port: Int): Unit = {
+    val server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress)
+    // The token is only written once the port is ours so that a running server's token is kept.
+    val token = writeToken(server.getLocalPort)
+    try {
+      warmUp()
+      println("Nessie compile server listening on port " + server.getLocalPort)
+      while (!server.isClosed) handle(server.accept(), token)
+    }
+    finally {
+      server.close()
+      Files.deleteIfExists(tokenFile(server.getLocalPort).toPath): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+
+  /** The file holding the token of the server on a port. */
+  private[nessie] def tokenFile(port: Int): File =
+    new File(System.getProperty("user.home"), ".nessie-server-" + port)
+
+
+  /**
+   * Creates a new random token and writes it to the token file of a port. The file can only be
+   * read by its owner. It's written under a temporary name and then renamed so that it's never
+   * seen with other permissions or partly written.
+   *
+   * @return The token.
+   * @throws IOException if the token file can't be written.
+   */
+  private def writeToken(port: Int): String = {
+    val bytes = new Array[Byte](32)
+    new SecureRandom().nextBytes(bytes)
+    val token = bytes.map(b => f"${b & 0xFF}%02x").mkString
+
+    val file = tokenFile(port)
+    val folder = file.getAbsoluteFile.getParentFile.toPath
+    val temporary =
+      if (!folder.getFileSystem.supportedFileAttributeViews.contains("posix"))
+        Files.createTempFile(folder, file.getName, ".tmp")
+      else
+        Files.createTempFile(folder, file.getName, ".tmp",
+                             PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+    try {
+      Files.write(temporary, token.getBytes(StandardCharsets.UTF_8))
+      Files.move(temporary, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+    finally {
+      Files.deleteIfExists(temporary): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+    token
+  }
+
+
+  /** Loads and initializes the parser and rewriter so the first request doesn't have to. */
+  private def warmUp(): Unit = {
+    val text = "interface WarmUp { command error_t start(uint8_t x); event void done(error_t e); }"
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(new ANTLRStringStream(text))))
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    parser.setSymbols(Main.initializeGlobalSymbols())
+    val tree = parser.nesC_file().getTree.asInstanceOf[ASTNode]
+    new SyntaxViewer(new Emitter(), Main.createProcessor(tree).process()).rewrite()
+  }
+
+
+  /** Runs one request if it carries the server's token and sends the response. */
+  private def handle(socket: Socket, token: String): Unit = {
+    try {
+      val input = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+      val response = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+      val requestToken = input.readUTF()
+      val output = new PrintStream(new BufferedOutputStream(new BlockOutputStream(response)), true, "UTF-8")
+      val status =
+        if (!MessageDigest.isEqual(requestToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+          output.println("Request Rejected: the token does not match the token of this server")
+          1
+        }
+        else {
+          val directory = new File(input.readUTF())
+          val args = Array.fill(input.readInt())(input.readUTF())
+          try {
+            Main.run(args, Some(directory), output)
+          }
+          catch {
+            case NonFatal(e) =>
+              output.println("Internal Error: " + e)
+              1
+          }
+        }
+      output.flush()
+      response.writeInt(0)
+      response.writeInt(status)
+      response.flush()
+    }
+    catch {
+      // The client went away. There is no one to report this to.
+      case _: IOException =>
+    }
+    finally {
+      socket.close()
+    }
+  }
+
+
+  /** Sends everything written to it as blocks preceded by their length. */
+  private class BlockOutputStream(response: DataOutputStream) extends OutputStream {
+    override def write(b: Int): Unit = write(Array(b.toByte), 0, 1)
+
+    override def write(b: Array[Byte], off: Int, len: Int): Unit = {
+      if (len > 0) {
+        response.writeInt(len)
+        response.write(b, off, len)
+      }
+    }
+
+    override def flush(): Unit = response.flush()
+  }
+
+
+  /**
+   * Sends a command line to a compile server and copies the console output of the run to a
+   * stream. The request carries the token the server wrote to its token file.
+   *
+   * @param port The port of the server on the local host.
+   * @param directory The folder relative paths in the command line are resolved against.
+   * @param args The command line.
+   * @param output The stream where the console output of the run is written.
+   * @return The exit status of the run.
+   * @throws IOException if the server's token can't be read or the server can't be reached.
+   */
+  def request(port: Int, directory: File, args: Array[String], output: OutputStream): Int = {
+    val token = new String(Files.readAllBytes(tokenFile(port).toPath), StandardCharsets.UTF_8)
+    request(port, token, directory, args, output)
+  }
+
+
+  /**
+   * Sends a command line to a compile server along with the given token. The other parameters
+   * and the result are those of the request method above.
+   */
+  private[nessie] def request(port: Int, token: String, directory: File, args: Array[String], output: OutputStream): Int = {
+    val socket = new Socket(InetAddress.getLoopbackAddress, port)
+    try {
+      val request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+      request.writeUTF(token)
+      request.writeUTF(directory.getAbsolutePath)
+      request.writeInt(args.length)
+      for (arg <- args) request.writeUTF(arg)
+      request.flush()
+
+      val response = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+      val buffer = new Array[Byte](8192)
+      var length = response.readInt()
+      while (length > 0) {
+        while (length > 0) {
+          val count = response.read(buffer, 0, math.min(length, buffer.length))
+          if (count < 0) throw new EOFException("Compile server closed the connection")
+          output.write(buffer, 0, count)
+          length -= count
+        }
+        output.flush()
+        length = response.readInt()
+      }
+      response.readInt()
+    }
+    finally {
+      socket.close()
+    }
+  }
+
+}
@@ -0,0 +1,147 @@
+package edu.vtc.nessie;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events emitted by Nessie. A recording of a build, for example one made by starting the JVM with
+ * -XX:StartFlightRecording, shows these events next to the JVM's own data about threads, garbage collection, and
+ * allocation. The events are defined in Java since Flight Recorder reads the fields of an event class directly.
+ *
+ * When no recording is active, or an event is disabled, creating and committing the event costs almost nothing. Work
+ * done only to fill in the fields of an event is skipped unless the event will actually be recorded.
+ */
+public final class CompilerEvents {
+
+    private CompilerEvents()
+    {
+    }
+
+
+    /** The compilation of all the files in a run or, in watch mode, in one round. */
+    @Name("edu.vtc.nessie.Compilation")
+    @Label("Compilation")
+    @Category("Nessie")
+    @StackTrace(false)
+    public static final class CompilationEvent extends Event {
+        @Label("Files")
+        @Description("The number of files in the program")
+        public int files;
+
+        @Label("Stale Files")
+        @Description("The number of files that had to be preprocessed again")
+        public int staleFiles;
+    }
+
+
+    /** The compilation of one file through all phases. */
+    @Name("edu.vtc.nessie.File")
+    @Label("File")
+    @Category("Nessie")
+    @StackTrace(false)
+    public static final class FileEvent extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Status")
+        @Description("Either 'compiled' or 'unchanged' if the preprocessed text was the same as before")
+        public String status;
+    }
+
+
+    /** One phase of the compilation of a file: preprocess, parse, process, or rewrite. */
+    @Name("edu.vtc.nessie.Phase")
+    @Label("Phase")
+    @Category("Nessie")
+    @StackTrace(false)
+    public static final class PhaseEvent extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Phase")
+        public String phase;
+    }
+
+
+    /** The parsing of one preprocessed file, or the loading of its tree from the AST cache. */
+    @Name("edu.vtc.nessie.Parse")
+    @Label("Parse")
+    @Category("Nessie")
+    @StackTrace(false)
+    public static final class ParseEvent extends Event {
+        @Label("Source")
+        public String source;
+
+        @Label("Characters")
+        @Description("The number of characters parsed, or zero if the tree was loaded from the AST cache")
+        public int characters;
+
+        @Label("Tokens")
+        @Description("The number of tokens, not counting those on hidden channels")
+        public int tokens;
+
+        @Label("Cached")
+        @Description("True if the tree was loaded from the AST cache instead of being parsed")
+        public boolean cached;
+    }
+
+
+    /**
+     * The time spent in one pass of a processor. Since the passes of a processor are applied together in a single
+     * traversal of the tree, every pass of the traversal has the same duration. The time spent in the pass itself is
+     * given separately.
+     */
+    @Name("edu.vtc.nessie.ProcessorPass")
+    @Label("Processor Pass")
+    @Category("Nessie")
+    @StackTrace(false)
+    public static final class PassEvent extends Event {
+        @Label("Processor")
+        public String processor;
+
+        @Label("Pass")
+        @Description("The position of the pass in the processor's list of passes")
+        public int pass;
+
+        @Label("Pass Class")
+        public String passClass;
+
+        @Label("Pass Time")
+        @Description("The time spent in the pass's enter and leave methods")
+        @Timespan(Timespan.NANOSECONDS)
+        public long passTime;
+
+        @Label("Nodes")
+        @Description("The number of nodes visited")
+        public long nodes;
+    }
+
+
+    /** A run of an external C preprocessor. */
+    @Name("edu.vtc.nessie.ExternalPreprocessor")
+    @Label("External Preprocessor")
+    @Category("Nessie")
+    @StackTrace(false)
+    public static final class PreprocessorEvent extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Command")
+        public String command;
+
+        @Label("Exit Status")
+        public int exitStatus;
+
+        @Label("Output Size")
+        @Description("The size of the preprocessed text when it is captured, otherwise zero")
+        @DataAmount
+        public long outputBytes;
+    }
+
+}
@@ -11,22 +11,21 @@ class ConfigurationProcessor(root: ASTNode) extends Processor(root) {
 
   private var myName: String = ""
 
-  override def process(): ASTNode = {
-
-    def processSubtree(node: ASTNode): ASTNode = {
-      node match {
-        // Record my name when I see it.
-        case ASTNode(NesCLexer.COMPONENT_DEFINITION, text, children, parent, symbolTable) =>
+  /** The name of the configuration. This is known after process is called. */
+  def name: String = myName
+
+  override protected val passes: Seq[RewritePass] = Seq(
+    new RewritePass {
+      // Record my name when I see it.
+      override def enter(node: ASTNode): Unit = node match {
+        case ASTNode(NesCLexer.COMPONENT_DEFINITION, _, children, _, _) =>
           myName = children(1).text
-          ASTNode(NesCLexer.COMPONENT_DEFINITION, text, children map processSubtree, parent, symbolTable)
-
-        // Default case just passes control into the child subtrees.
-        case ASTNode(tokenType, text, children, parent, symbolTable) =>
-          ASTNode(tokenType, text, children map processSubtree, parent, symbolTable)
+        case _ =>
       }
-    }
 
-    processSubtree(root)
-  }
+      // The COMPONENT_DEFINITION is a child of the root, so nothing further down is examined.
+      override def visitsChildren(node: ASTNode): Boolean = node.tokenType == NesCLexer.FILE
+    }
+  )
 
 }
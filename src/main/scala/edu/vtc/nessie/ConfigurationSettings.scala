@@ -190,8 +190,19 @@ object ConfigurationSettings {
       throw new BadValidationException("Invalid boolean string")
   }
 
-  // TODO: Do some real validation here.
-  def basicIntegerValidator(raw: String) = raw
+  /**
+   * Validates integer settings. Leading and trailing white space is removed.
+   *
+   * @param raw The string to validate.
+   * @throws BadValidationException if the raw string is not a decimal integer.
+   */
+  def basicIntegerValidator(raw: String) = {
+    val trimmedRaw = raw.trim
+    if (trimmedRaw.toIntOption.isDefined)
+      trimmedRaw
+    else
+      throw new BadValidationException("Invalid integer string")
+  }
 
   /*
    * Validates simple strings. Every string is considered valid.
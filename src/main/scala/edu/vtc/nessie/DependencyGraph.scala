@@ -0,0 +1,377 @@
+package edu.vtc.nessie
+
+import java.io._
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+import edu.vtc.nesc.ASTNode
+import edu.vtc.nesc.parser.NesCLexer
+
+/**
+ * Records what each file in the program depends on so that a run can skip the files that could
+ * not have changed. A file depends on the files its preprocessed text came from, as named by the
+ * line markers written by the preprocessor, and on the folders searched for included files,
+ * since a new header in one of them could be found instead of the one used before. A file also
+ * depends on the interfaces and components it refers to: the interfaces a component uses or
+ * provides and the components a configuration wires together. Those named by a file in the
+ * program are followed transitively.
+ *
+ * Each dependency is recorded with a stamp taken when the file was compiled. For a file the
+ * stamp is its size and modification time; for a folder it is a hash of the names it holds,
+ * not counting nesC files. A file is stale if any of its own stamps differ, if it has no
+ * output, or if a file it refers to is stale. Only stale files need to be preprocessed again.
+ * Whether their preprocessed text actually changed is still decided by the build manifest.
+ *
+ * The graph is stored as a text file in the output folder. The first line holds the settings
+ * hash. The entry of each file starts with an "F" line naming it, followed by "D" and "I"
+ * lines giving the stamp and path of each folder and file it depends on, and "R" lines giving
+ * the names it refers to. Entries can be recorded concurrently by multiple workers.
+ *
+ * @param outputFolder The folder holding the outputs described by this graph.
+ * @param settingsHash The hash of the settings used for the current run.
+ */
+class DependencyGraph(outputFolder: File, val settingsHash: String) {
+  import DependencyGraph._
+
+  private val entries = new ConcurrentHashMap[String, Entry]()
+
+  // The stamps of the search folders, taken before the files being compiled were preprocessed.
+  @volatile private var folderStamps = Seq[(String, String)]()
+
+
+  /**
+   * Reads the graph left in the output folder by a previous run, if any. If the graph is
+   * missing, unreadable, or was written using different settings, no entries are loaded.
+   *
+   * @return True if the previous entries were loaded.
+   */
+  def load(): Boolean = {
+    val graphFile = new File(outputFolder, GraphName)
+    var valid = false
+    if (graphFile.isFile) {
+      var inputFile: BufferedReader = null
+      try {
+        inputFile = new BufferedReader(new FileReader(graphFile, StandardCharsets.UTF_8))
+        if (inputFile.readLine() == settingsHash) {
+          var current: Option[(String, Entry)] = None
+          def finish(): Unit = current foreach { case (fileName, entry) => entries.put(fileName, entry) }
+
+          var line = inputFile.readLine()
+          while (line != null) {
+            // Names and paths come last on each line since they might contain spaces.
+            val fields = line.split(" ", 2)
+            val stampedPath = if (fields.length == 2) fields(1).split(" ", 2) else Array[String]()
+            (fields(0), current) match {
+              case ("F", _) if fields.length == 2 =>
+                finish()
+                current = Some((fields(1), Entry(Vector(), Vector(), Vector())))
+              case ("D", Some((fileName, entry))) if stampedPath.length == 2 =>
+                current = Some((fileName, entry.copy(folders = entry.folders :+ (stampedPath(1) -> stampedPath(0)))))
+              case ("I", Some((fileName, entry))) if stampedPath.length == 2 =>
+                current = Some((fileName, entry.copy(files = entry.files :+ (stampedPath(1) -> stampedPath(0)))))
+              case ("R", Some((fileName, entry))) if fields.length == 2 =>
+                current = Some((fileName, entry.copy(references = entry.references :+ fields(1))))
+              case _ =>
+                throw new IOException("Malformed dependency graph line: " + line)
+            }
+            line = inputFile.readLine()
+          }
+          finish()
+          valid = true
+        }
+      }
+      catch {
+        // A damaged graph just means everything is considered stale.
+        case _: IOException => entries.clear()
+      }
+      finally {
+        if (inputFile != null) inputFile.close()
+      }
+    }
+    valid
+  }
+
+
+  /**
+   * Finds the files that must be compiled again. The stamps of the search folders are taken at
+   * this time and are recorded with each file compiled afterwards.
+   *
+   * @param fileNames The names of the files in the program.
+   * @param searchFolders The folders searched for included files.
+   * @param hasOutput A function that returns true if a file has a usable output.
+   * @return The names of the stale files.
+   */
+  def staleFiles(fileNames: Seq[String], searchFolders: Seq[File], hasOutput: String => Boolean): Set[String] = {
+    folderStamps = searchFolders.map(_.getAbsolutePath).distinct.map(path => path -> folderStamp(new File(path)))
+    val currentFolders = folderStamps.toMap
+    val fileStamps = mutable.Map[String, String]()
+
+    def isOutOfDate(fileName: String): Boolean = {
+      val entry = entries.get(fileName)
+      entry == null || !hasOutput(fileName) ||
+        entry.folders.exists { case (path, stamp) => !currentFolders.get(path).contains(stamp) } ||
+        entry.files.exists { case (path, stamp) => fileStamps.getOrElseUpdate(path, fileStamp(new File(path))) != stamp }
+    }
+
+    // Follow the references backwards from the files that changed themselves.
+    val programFiles = fileNames.toSet
+    val referringFiles = mutable.Map[String, List[String]]()
+    for (fileName <- fileNames; entry <- Option(entries.get(fileName)); name <- entry.references.distinct) {
+      val referencedFile = name + ".nc"
+      if (programFiles.contains(referencedFile) && referencedFile != fileName) {
+        referringFiles(referencedFile) = fileName :: referringFiles.getOrElse(referencedFile, Nil)
+      }
+    }
+    val stale = mutable.Set[String]()
+    val pending = mutable.Stack[String]()
+    for (fileName <- fileNames if isOutOfDate(fileName)) pending.push(fileName)
+    while (pending.nonEmpty) {
+      val fileName = pending.pop()
+      if (stale.add(fileName)) referringFiles.getOrElse(fileName, Nil) foreach { pending.push(_) }
+    }
+    stale.toSet
+  }
+
+
+  /**
+   * Records the dependencies of a file that was just compiled. A file that was modified after
+   * compilation started is given a stamp that never matches so that the file is considered
+   * stale again next time.
+   *
+   * @param fileName The name of the file relative to the input and output folders.
+   * @param includedFiles The files the file's preprocessed text came from.
+   * @param references The names of the interfaces and components the file refers to.
+   * @param startTime The time, in milliseconds, when the file's compilation started.
+   */
+  def record(fileName: String, includedFiles: Seq[File], references: Seq[String], startTime: Long): Unit = {
+    val files = includedFiles.map(_.getAbsolutePath).distinct map { path =>
+      val file = new File(path)
+      // Allow for file systems that record modification times to the second.
+      val stamp = if (file.lastModified >= startTime - 1000) Unstamped else fileStamp(file)
+      path -> stamp
+    }
+    entries.put(fileName, Entry(folderStamps.toVector, files.toVector, references.distinct.toVector)):
+      @annotation.nowarn("msg=discarded non-Unit value")
+  }
+
+
+  /**
+   * Returns the names of the interfaces and components a file referred to when it was last
+   * compiled, or an empty sequence if the file is not in the graph.
+   */
+  def references(fileName: String): Seq[String] =
+    Option(entries.get(fileName)).map(_.references).getOrElse(Seq())
+
+
+  /**
+   * Removes the entry for a file. This should be done before the file is compiled again so that
+   * a failed compilation leaves the file stale.
+   */
+  def forget(fileName: String): Unit = {
+    entries.remove(fileName): @annotation.nowarn("msg=discarded non-Unit value")
+  }
+
+
+  /**
+   * Removes the entries of files that are no longer part of the program.
+   *
+   * @param currentFiles The names of the files in the program.
+   */
+  def removeStaleEntries(currentFiles: Array[String]): Unit = {
+    val currentFileSet = currentFiles.toSet
+    entries.keySet().removeIf(!currentFileSet.contains(_)): @annotation.nowarn("msg=discarded non-Unit value")
+  }
+
+
+  /**
+   * Writes the graph into the output folder. The graph is first written to a temporary file and
+   * then renamed so that an interrupted save does not leave a damaged graph.
+   *
+   * @throws IOException if the graph can't be written.
+   */
+  def save(): Unit = {
+    val graphFile = new File(outputFolder, GraphName)
+    val temporaryFile = new File(outputFolder, GraphName + ".new")
+    val outputFile = new PrintWriter(temporaryFile, StandardCharsets.UTF_8)
+    try {
+      outputFile.println(settingsHash)
+      for ((fileName, entry) <- sortedEntries) {
+        outputFile.println("F " + fileName)
+        for ((path, stamp) <- entry.folders) outputFile.println(s"D $stamp $path")
+        for ((path, stamp) <- entry.files) outputFile.println(s"I $stamp $path")
+        for (name <- entry.references) outputFile.println("R " + name)
+      }
+    }
+    finally {
+      outputFile.close()
+    }
+    if (graphFile.exists() && !graphFile.delete())
+      throw new IOException("Unable to replace dependency graph " + graphFile.getPath)
+    if (!temporaryFile.renameTo(graphFile))
+      throw new IOException("Unable to write dependency graph " + graphFile.getPath)
+  }
+
+
+  /**
+   * Writes the graph in the DOT language of Graphviz for inspection. Each file of the program is
+   * connected to the files it includes and the interfaces and components it refers to. The
+   * search folders are left out since every file depends on them.
+   *
+   * @param file The file to write.
+   * @throws IOException if the file can't be written.
+   */
+  def writeDot(file: File): Unit = {
+    def quoted(name: String): String = "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\""
+
+    val outputFile = new PrintWriter(file, StandardCharsets.UTF_8)
+    try {
+      outputFile.println("digraph dependencies {")
+      for ((fileName, entry) <- sortedEntries) {
+        outputFile.println(s"  ${quoted(fileName)} [shape=box];")
+        for ((path, _) <- entry.files) outputFile.println(s"  ${quoted(fileName)} -> ${quoted(path)};")
+        for (name <- entry.references) {
+          outputFile.println(s"  ${quoted(fileName)} -> ${quoted(name + ".nc")} [style=dashed];")
+        }
+      }
+      outputFile.println("}")
+    }
+    finally {
+      outputFile.close()
+    }
+    if (outputFile.checkError()) throw new IOException("Unable to write dependency graph " + file.getPath)
+  }
+
+
+  private def sortedEntries: Seq[(String, Entry)] =
+    entries.asScala.toSeq.sortBy(_._1)
+
+}
+
+
+object DependencyGraph {
+
+  /** The name of the dependency graph file in the output folder. */
+  val GraphName = ".nessie-dependencies"
+
+  // The stamp given to a file that changed while it was being compiled. It matches no file.
+  private val Unstamped = "?"
+
+  /**
+   * The dependencies of one file.
+   *
+   * @param folders The path and stamp of each search folder.
+   * @param files The path and stamp of each file the preprocessed text came from.
+   * @param references The names of the interfaces and components referred to.
+   */
+  private final case class Entry(folders   : Vector[(String, String)],
+                                 files     : Vector[(String, String)],
+                                 references: Vector[String])
+
+  private def fileStamp(file: File): String =
+    if (file.isFile) s"${file.length}:${file.lastModified}" else "missing"
+
+  private def folderStamp(folder: File): String = {
+    val names = folder.list()
+    if (names == null) "missing"
+    else {
+      val headerNames = names.filterNot(_.endsWith(".nc")).sorted
+      BuildManifest.hashBytes(headerNames.mkString("\n").getBytes(StandardCharsets.UTF_8))
+    }
+  }
+
+
+  /**
+   * Finds the files named by the line markers in preprocessed text. Both the "# LINE FILE" form
+   * written by the preprocessor and the "#line LINE FILE" form are recognized. Names in angle
+   * brackets, such as "<built-in>", do not refer to files and are left out.
+   *
+   * @param text The preprocessed text.
+   * @return The names of the files, in the order they first appear.
+   */
+  def includedFiles(text: Array[Byte]): Seq[String] = includedFiles(ByteBuffer.wrap(text))
+
+  /**
+   * Finds the files named by the line markers in preprocessed text held in a buffer, such as a
+   * memory mapped file, as done by includedFiles for an array.
+   *
+   * @param buffer The preprocessed text, from the buffer's position to its limit. The position
+   * is not changed.
+   * @return The names of the files, in the order they first appear.
+   */
+  def includedFiles(buffer: ByteBuffer): Seq[String] = {
+    val text = buffer.slice()
+    val length = text.limit()
+    val names = mutable.LinkedHashSet[String]()
+    var lineStart = 0
+    while (lineStart < length) {
+      var lineEnd = lineStart
+      while (lineEnd < length && text.get(lineEnd) != '\n') lineEnd += 1
+      if (text.get(lineStart) == '#') lineMarkerName(text, lineStart + 1, lineEnd) foreach { names += _ }
+      lineStart = lineEnd + 1
+    }
+    names.toSeq
+  }
+
+  // Reads the file name of a line marker, starting just after the '#'.
+  private def lineMarkerName(text: ByteBuffer, start: Int, end: Int): Option[String] = {
+    var i = start
+    def skipSpaces(): Unit = while (i < end && (text.get(i) == ' ' || text.get(i) == '\t')) i += 1
+
+    skipSpaces()
+    if (end - i >= 4 && (0 until 4).forall(k => text.get(i + k) == "line".charAt(k))) i += 4
+    skipSpaces()
+    val digitsStart = i
+    while (i < end && text.get(i) >= '0' && text.get(i) <= '9') i += 1
+    if (i == digitsStart) return None
+    skipSpaces()
+    if (i >= end || text.get(i) != '"') return None
+    i += 1
+
+    // The bytes are collected and then decoded together since a name may contain UTF-8
+    // sequences of several bytes.
+    val nameStart = i
+    val name = new ByteArrayOutputStream()
+    while (i < end && text.get(i) != '"') {
+      if (text.get(i) == '\\' && i + 1 < end) i += 1
+      name.write(text.get(i))
+      i += 1
+    }
+    if (i >= end || name.size == 0 || text.get(nameStart) == '<') None
+    else Some(name.toString(StandardCharsets.UTF_8))
+  }
+
+
+  /**
+   * Finds the names of the interfaces and components referred to by a file: the interfaces in
+   * its uses and provides clauses and the components named in its components declarations.
+   * These are all inside the interface or component, so when the root is a FILE node only its
+   * last child is searched, not the declarations of the headers.
+   *
+   * @param root The abstract syntax tree of the file.
+   * @return The names referred to, in the order they first appear.
+   */
+  def references(root: ASTNode): Seq[String] = {
+    val names = mutable.LinkedHashSet[String]()
+    val start = if (root.tokenType == NesCLexer.FILE && root.children.nonEmpty) root.children.last else root
+    val pending = mutable.Stack[ASTNode](start)
+    while (pending.nonEmpty) {
+      val node = pending.pop()
+      node.tokenType match {
+        case NesCLexer.INTERFACE_TYPE =>
+          names += node.children(0).text
+
+        case NesCLexer.COMPONENT_DECLARATION =>
+          val componentRef = node.children(0)
+          if (componentRef.tokenType == NesCLexer.COMPONENT_INSTANTIATION) names += componentRef.children(0).text
+          else names += componentRef.text
+
+        case _ =>
+      }
+      for (child <- node.children.reverseIterator) pending.push(child)
+    }
+    names.toSeq
+  }
+
+}
@@ -0,0 +1,77 @@
+package edu.vtc.nessie
+
+import java.io.{Closeable, File}
+import java.nio.file.{FileSystems, Path, StandardWatchEventKinds, WatchKey}
+import java.util.concurrent.TimeUnit
+import scala.collection.mutable
+import scala.jdk.CollectionConverters._
+
+/**
+ * Watches folders for files that are created, modified, or deleted. Only the files directly in
+ * each folder are watched, not those in its subfolders. Editors often save a file as a burst of
+ * several events, and several files are often saved together, so changes are collected until
+ * the folders have been quiet for a while.
+ *
+ * @param folders The folders to watch. Folders that don't exist are ignored.
+ * @throws java.io.IOException if a folder can't be watched.
+ */
+class FolderWatcher(folders: Seq[File]) extends Closeable {
+  import FolderWatcher._
+
+  private val service = FileSystems.getDefault.newWatchService()
+  private val watchedFolders = mutable.Map[WatchKey, Path]()
+
+  for (folder <- folders.filter(_.isDirectory).map(_.getCanonicalFile).distinct) {
+    val key = folder.toPath.register(
+      service,
+      StandardWatchEventKinds.ENTRY_CREATE,
+      StandardWatchEventKinds.ENTRY_MODIFY,
+      StandardWatchEventKinds.ENTRY_DELETE)
+    watchedFolders(key) = folder.toPath
+  }
+
+  /** The folders actually being watched. */
+  def watched: Seq[File] = watchedFolders.values.map(_.toFile).toSeq
+
+
+  /**
+   * Waits for changes. This method blocks until at least one change occurs and then continues
+   * to collect changes until none have occurred for the given time.
+   *
+   * @param quietMillis The time, in milliseconds, without changes that ends a burst.
+   * @return The changes in the burst.
+   * @throws InterruptedException if the waiting thread is interrupted.
+   */
+  def awaitChanges(quietMillis: Long): Changes = {
+    val files = mutable.Set[File]()
+    var overflow = false
+    var key = service.take()
+    while (key != null) {
+      for (event <- key.pollEvents().asScala) {
+        if (event.kind == StandardWatchEventKinds.OVERFLOW) overflow = true
+        else {
+          val name = event.context.asInstanceOf[Path]
+          watchedFolders.get(key) foreach { folder => files += folder.resolve(name).toFile }
+        }
+      }
+      key.reset()
+      key = service.poll(quietMillis, TimeUnit.MILLISECONDS)
+    }
+    Changes(files.toSet, overflow)
+  }
+
+  override def close(): Unit = service.close()
+}
+
+
+object FolderWatcher {
+
+  /**
+   * The changes found by a watcher.
+   *
+   * @param files The files created, modified, or deleted.
+   * @param overflow True if some changes were lost, in which case any file might have changed.
+   */
+  final case class Changes(files: Set[File], overflow: Boolean)
+
+}
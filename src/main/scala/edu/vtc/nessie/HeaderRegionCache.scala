@@ -0,0 +1,362 @@
+package edu.vtc.nessie
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import scala.collection.mutable.ArrayBuffer
+import org.antlr.runtime._
+import edu.vtc.nesc.{ASTNode, ASTNodeAdaptor, CompactAST, NesCScanner, TokenBuffer, TokenBufferStream}
+import edu.vtc.nesc.parser._
+
+/**
+ * Parses preprocessed nesC files while reusing the parse of header text shared between files.
+ * Every file in a nesC program includes largely the same headers, so most of each preprocessed
+ * file is text that has already been parsed for some other file.
+ *
+ * The line markers written by the preprocessor show where each header included by the main file
+ * begins and ends. Each such region that appears at global scope before the interface or
+ * component is parsed on its own as a translation unit. The resulting subtrees are remembered
+ * together with the names the region added to the global scope. If another file contains a
+ * region with exactly the same tokens, and the global scope holds exactly the same names when
+ * the region is reached, the remembered subtrees are copied and the remembered names are added
+ * without parsing the region again. The subtrees are remembered as a CompactAST, which takes
+ * much less memory than the ASTNodes and is never modified. The state of the global scope
+ * matters because it decides which identifiers are type names. Regions are looked up by a hash
+ * of their tokens and the fingerprint of the global scope, and the names in the global scope are
+ * then compared in full.
+ *
+ * Only the regions used most recently are kept, so a cache used by a long running process does
+ * not grow without limit.
+ *
+ * If any part of a file can't be parsed on its own without errors, for example because a header
+ * was included in the middle of a declaration, the entire file is parsed again in the usual way.
+ * The result is thus always the same as parsing the whole file at once. The cache can be used by
+ * any number of threads at once.
+ *
+ * The file is scanned into a TokenBuffer once; the regions and the file as a whole are parsed
+ * from that buffer.
+ */
+class HeaderRegionCache(maximumRegions: Int = HeaderRegionCache.DefaultMaximumRegions) {
+  import HeaderRegionCache._
+
+  // Ordered by access so that the least recently used region is dropped first. Guarded by itself.
+  private val regions = new java.util.LinkedHashMap[RegionKey, RegionParse](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[RegionKey, RegionParse]): Boolean =
+      size > maximumRegions
+  }
+  private val hits = new AtomicLong()
+  private val misses = new AtomicLong()
+
+  /** The number of regions whose parse was reused. */
+  def regionHits: Long = hits.get
+
+  /** The number of regions that had to be parsed. */
+  def regionMisses: Long = misses.get
+
+  /** The number of regions currently kept. */
+  def regionCount: Int = regions.synchronized { regions.size }
+
+
+  /**
+   * Parses a preprocessed nesC file.
+   *
+   * @param input The text to parse.
+   * @param createSymbols A function that returns the initial symbols to use for the file. It
+   * may be called a second time if the file has to be parsed again as a whole.
+   * @return The abstract syntax tree of the file, as produced by the nesC_file rule.
+   * @throws RecognitionException if there is an unhandled parsing problem.
+   */
+  def parse(input: CharStream, createSymbols: () => ParserSymbolsManager): ASTNode =
+    parseFile(input, createSymbols).tree
+
+
+  /**
+   * Parses a preprocessed nesC file as done by parse and also counts its tokens and errors.
+   *
+   * @return The abstract syntax tree of the file with the number of its tokens and errors.
+   * @throws RecognitionException if there is an unhandled parsing problem.
+   */
+  def parseFile(input: CharStream, createSymbols: () => ParserSymbolsManager): FileParse = {
+    val scanner = new NesCScanner(input)
+    val tokens = scanner.scan()
+
+    val headerRegions = findRegions(tokens)
+    val segmented =
+      if (headerRegions.isEmpty) None
+      else parseSegments(tokens, headerRegions, createSymbols())
+
+    // The segments are only used if they were parsed without errors.
+    val (tree, parserErrors) = segmented map { (_, 0) } getOrElse {
+      val parser = new NesCParser(new TokenBufferStream(tokens))
+      parser.setTreeAdaptor(new ASTNodeAdaptor)
+      parser.setSymbols(createSymbols())
+      val fileTree = parser.nesC_file().getTree.asInstanceOf[ASTNode]
+      (fileTree, parser.getNumberOfSyntaxErrors)
+    }
+    FileParse(tree, tokens.significantSize, scanner.numberOfErrors + parserErrors)
+  }
+
+
+  /**
+   * Parses a file in segments: the header regions and the text between them are parsed as
+   * translation units, and the rest of the file is parsed as a nesC file.
+   *
+   * @return The tree of the file or None if some segment could not be parsed cleanly.
+   */
+  private def parseSegments(tokens       : TokenBuffer,
+                            headerRegions: Seq[Region],
+                            symbols      : ParserSymbolsManager): Option[ASTNode] = {
+    val topLevelNodes = new ArrayBuffer[ASTNode]()
+    var position = 0
+    var failed = false
+
+    def parseGap(end: Int): Unit = {
+      if (!failed && hasSignificantTokens(tokens, position, end)) {
+        parseRange(tokens, position, end, symbols, _.translation_unit()) match {
+          case Some(tree) => topLevelNodes ++= nodesOf(tree)
+          case None       => failed = true
+        }
+      }
+    }
+
+    for (region <- headerRegions if !failed) {
+      parseGap(region.start)
+      if (!failed) {
+        reuseOrParse(tokens, region, symbols) match {
+          case Some(nodes) => topLevelNodes ++= nodes
+          case None        => failed = true
+        }
+      }
+      position = region.end
+    }
+
+    if (failed) None
+    else {
+      parseRange(tokens, position, tokens.size, symbols, _.nesC_file()) map { fileTree =>
+        val root = new ASTNodeAdaptor().create(fileTree.tokenType, fileTree.text).asInstanceOf[ASTNode]
+        for (node <- topLevelNodes) root.addChild(node)
+        for (node <- fileTree.children) root.addChild(node)
+        root
+      }
+    }
+  }
+
+
+  /**
+   * Obtains the top level nodes of a header region, either by copying an earlier parse of the
+   * same region or by parsing it now.
+   */
+  private def reuseOrParse(tokens: TokenBuffer, region: Region, symbols: ParserSymbolsManager): Option[Seq[ASTNode]] = {
+    val key = RegionKey(regionHash(tokens, region), symbols.globalFingerprint)
+    val firstLine = tokens.line(region.start)
+    val previous =
+      if (symbols.scopeDepth != 1) None
+      else regions.synchronized { Option(regions.get(key)) } filter { regionParse =>
+        symbols.hasGlobalScope(regionParse.globalScope)
+      }
+    previous match {
+      case Some(regionParse) =>
+        hits.incrementAndGet()
+        symbols.replay(regionParse.additions)
+        val lineDelta = firstLine - regionParse.firstLine
+        Some(regionParse.tree.roots.map(root => regionParse.tree.toASTNode(root.index, lineDelta)))
+
+      case None =>
+        misses.incrementAndGet()
+        val globalScope = symbols.saveGlobalScope()
+        var additions: java.util.List[ParserSymbolsManager.GlobalAddition] = null
+        symbols.startRecording()
+        val result =
+          try {
+            parseRange(tokens, region.start, region.end, symbols, _.translation_unit())
+          }
+          finally {
+            additions = symbols.stopRecording()
+          }
+        result map { tree =>
+          val nodes = nodesOf(tree)
+          val regionParse = RegionParse(CompactAST(nodes), additions, globalScope, firstLine)
+          regions.synchronized { regions.put(key, regionParse) }
+          nodes
+        }
+    }
+  }
+
+}
+
+
+object HeaderRegionCache {
+
+  /** The number of regions kept when no other limit is given. */
+  val DefaultMaximumRegions = 1024
+
+  /**
+   * The result of parsing a file.
+   *
+   * @param tree The abstract syntax tree of the file.
+   * @param tokenCount The number of tokens in the file, not counting those on hidden channels.
+   * @param errorCount The number of errors reported while scanning and parsing the file.
+   */
+  final case class FileParse(tree: ASTNode, tokenCount: Int, errorCount: Int)
+
+  /** A range of token indices [start, end) holding the text of an included header. */
+  private final case class Region(start: Int, end: Int)
+
+  /**
+   * Identifies a header region.
+   *
+   * @param textHash The SHA-256 hash of the region's tokens.
+   * @param globalFingerprint The fingerprint of the global scope when the region was reached.
+   */
+  private final case class RegionKey(textHash: String, globalFingerprint: Long)
+
+  /**
+   * The result of parsing a header region.
+   *
+   * @param tree The top level nodes of the region and their subtrees.
+   * @param additions The names the region added to the global scope.
+   * @param globalScope The names in the global scope when the region was reached.
+   * @param firstLine The line where the region started in the file where it was parsed.
+   */
+  private final case class RegionParse(tree       : CompactAST,
+                                       additions  : java.util.List[ParserSymbolsManager.GlobalAddition],
+                                       globalScope: ParserSymbolsManager.GlobalScope,
+                                       firstLine  : Int)
+
+  private def hasSignificantTokens(tokens: TokenBuffer, start: Int, end: Int): Boolean =
+    tokens.significantBefore(end) > tokens.significantBefore(start)
+
+
+  /**
+   * Parses a range of tokens with the given rule.
+   *
+   * @return The tree produced or None if there were syntax errors or not all tokens were used.
+   */
+  private def parseRange(tokens : TokenBuffer,
+                         start  : Int,
+                         end    : Int,
+                         symbols: ParserSymbolsManager,
+                         rule   : NesCParser => ParserRuleReturnScope): Option[ASTNode] = {
+    val stream = new TokenBufferStream(tokens, start, end)
+    val parser = new NesCParser(stream) {
+      // Errors are not displayed since the file will be parsed again as a whole.
+      override def emitErrorMessage(message: String): Unit = { }
+    }
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    parser.setSymbols(symbols)
+    try {
+      val tree = rule(parser).getTree.asInstanceOf[ASTNode]
+      if (parser.getNumberOfSyntaxErrors == 0 && stream.LA(1) == Token.EOF) Some(tree) else None
+    }
+    catch {
+      case _: RecognitionException => None
+    }
+  }
+
+
+  /** Returns the top level nodes of a tree. A nil root holds a list of nodes. */
+  private def nodesOf(tree: ASTNode): Seq[ASTNode] = {
+    if (tree == null) Seq()
+    else if (tree.isNil) tree.children
+    else Seq(tree)
+  }
+
+
+  /** Hashes the text of the region's tokens, each followed by a NUL character. */
+  private def regionHash(tokens: TokenBuffer, region: Region): String = {
+    val digest = MessageDigest.getInstance("SHA-256")
+    for (i <- region.start until region.end if tokens.isSignificant(i)) {
+      digest.update(tokens.text(i).getBytes(StandardCharsets.UTF_8))
+      digest.update(0.toByte)
+    }
+    digest.digest().map(b => f"${b & 0xFF}%02x").mkString
+  }
+
+
+  /**
+   * Locates the headers included by the main file before its interface or component. Each
+   * region starts with the line marker that enters the header and ends just before the line
+   * marker that returns to the main file. The returning marker is left out since it names the
+   * main file, which would prevent the region from matching in other files.
+   */
+  private def findRegions(tokens: TokenBuffer): Seq[Region] = {
+    val result = new ArrayBuffer[Region]()
+    var depth = 0
+    var nesting = 0
+    var regionStart = -1
+    var i = 0
+    var done = false
+
+    while (i < tokens.size && !done) {
+      if (!tokens.isSignificant(i)) {
+        i += 1
+      }
+      else if (tokens.tokenType(i) == NesCLexer.HASH) {
+        val (markerEnd, flags) = scanLineMarker(tokens, i)
+        if (flags.contains("1")) {
+          if (depth == 0 && nesting == 0) regionStart = i
+          depth += 1
+        }
+        else if (flags.contains("2") && depth > 0) {
+          depth -= 1
+          if (depth == 0 && regionStart >= 0) {
+            result += Region(regionStart, i)
+            regionStart = -1
+          }
+        }
+        i = markerEnd
+      }
+      else {
+        if (depth == 0) {
+          tokens.tokenType(i) match {
+            case NesCLexer.INTERFACE | NesCLexer.MODULE | NesCLexer.CONFIGURATION |
+                 NesCLexer.GENERIC   | NesCLexer.COMPONENT if nesting == 0 =>
+              done = true
+            case NesCLexer.LBRACE | NesCLexer.LPARENS | NesCLexer.LBRACKET =>
+              nesting += 1
+            case NesCLexer.RBRACE | NesCLexer.RPARENS | NesCLexer.RBRACKET =>
+              nesting -= 1
+            case _ =>
+          }
+        }
+        i += 1
+      }
+    }
+    result.toSeq
+  }
+
+
+  /**
+   * Reads a line marker of the form # LINE "FILE" FLAGS... starting at the '#' at the given
+   * index. The flags are the constants on the same line as the '#'.
+   *
+   * @return The index just past the marker and its flags.
+   */
+  private def scanLineMarker(tokens: TokenBuffer, start: Int): (Int, Seq[String]) = {
+    val line = tokens.line(start)
+    val significant = (start + 1 until tokens.size).iterator.filter(tokens.isSignificant)
+    val flags = new ArrayBuffer[String]()
+    var end = start + 1
+    var expected = List(NesCLexer.CONSTANT, NesCLexer.STRING_LITERAL)
+    var done = false
+    while (!done && significant.hasNext) {
+      val i = significant.next()
+      expected match {
+        case tokenType :: rest =>
+          if (tokens.tokenType(i) == tokenType) {
+            expected = rest
+            end = i + 1
+          }
+          else done = true
+        case Nil =>
+          if (tokens.tokenType(i) == NesCLexer.CONSTANT && tokens.line(i) == line) {
+            flags += tokens.text(i)
+            end = i + 1
+          }
+          else done = true
+      }
+    }
+    if (expected.nonEmpty) (start + 1, Seq()) else (end, flags.toSeq)
+  }
+
+}
@@ -11,22 +11,24 @@ class InterfaceProcessor(root: ASTNode) extends Processor(root) {
 
   private var myName: String = ""
 
-  override def process(): ASTNode = {
-
-    def processSubtree(node: ASTNode): ASTNode = {
-      node match {
-        // Record my name when I see it.
-        case ASTNode(NesCLexer.INTERFACE_TYPE, text, children, parent, symbolTable) =>
-          myName = children(1).text
-          ASTNode(NesCLexer.INTERFACE_TYPE, text, children map processSubtree, parent, symbolTable)
-
-        // Default case just passes control into the child subtrees.
-        case ASTNode(tokenType, text, children, parent, symbolTable) =>
-          ASTNode(tokenType, text, children map processSubtree, parent, symbolTable)
+  /** The name of the interface. This is known after process is called. */
+  def name: String = myName
+
+  override protected val passes: Seq[RewritePass] = Seq(
+    new RewritePass {
+      // Record my name when I see it. Interface tokens also appear in uses-provides
+      // specifications, where the first child is an INTERFACE_TYPE.
+      override def enter(node: ASTNode): Unit = node match {
+        case ASTNode(NesCLexer.INTERFACE, _, children, _, _)
+          if children(0).tokenType != NesCLexer.INTERFACE_TYPE =>
+          myName = children(0).text
+        case _ =>
       }
-    }
 
-    processSubtree(root)
-  }
+      // The interface definition is a child of the root. Its own children, and the header
+      // declarations that precede it, are not needed.
+      override def visitsChildren(node: ASTNode): Boolean = node.tokenType == NesCLexer.FILE
+    }
+  )
 
 }
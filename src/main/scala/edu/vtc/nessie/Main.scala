@@ -6,11 +6,17 @@
 //-----------------------------------------------------------------------
 package edu.vtc.nessie
 
-import java.io.{File, IOException, PrintStream}
+import java.io.{ByteArrayOutputStream, File, IOException, InputStream, PrintStream}
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
 import java.util.{ArrayList, HashMap}
+import java.util.concurrent.{Callable, ExecutionException, Executors}
+import scala.util.control.NonFatal
 import org.antlr.runtime._
-import org.antlr.runtime.tree.CommonTree
+import edu.vtc.nesc.{ASTNode, MappedCharStream}
 import edu.vtc.nesc.parser._
+import edu.vtc.nesc.preprocessor.{IncludeCache, Preprocessor}
 import edu.vtc.nessie.Main.CommandLineException
 
 /**
@@ -24,7 +30,7 @@ object Main {
 
   private val globalSymbols = new ParserSymbolsManager()
 
-  private def initializeGlobalSymbols(): ParserSymbolsManager = {
+  private[nessie] def initializeGlobalSymbols(): ParserSymbolsManager = {
     val globalSymbols = new ParserSymbolsManager()
 
     // These are type names built into the compiler other than the standard types defined by the
@@ -55,22 +61,54 @@ object Main {
 
   // Lists all configurable parameters along with their validation functions.
   private val configurableItems = Map(
+    "CacheFolder"     -> ConfigurationSettings.basicStringValidator  _,
     "DebugMode"       -> ConfigurationSettings.basicBooleanValidator _,
+    "DependencyGraph" -> ConfigurationSettings.basicStringValidator  _,
     "IncludePaths"    -> ConfigurationSettings.basicStringValidator  _,
     "InputFolder"     -> ConfigurationSettings.basicStringValidator  _,
+    "Jobs"            -> ConfigurationSettings.basicIntegerValidator _,
+    "KeepIntermediate" -> ConfigurationSettings.basicBooleanValidator _,
     "OutputFolder"    -> ConfigurationSettings.basicStringValidator  _,
     "Preprocessor"    -> ConfigurationSettings.basicStringValidator  _,
     "ShowSettings"    -> ConfigurationSettings.basicBooleanValidator _,
     "SourceFile"      -> ConfigurationSettings.basicStringValidator  _,
-    "TemporaryFolder" -> ConfigurationSettings.basicStringValidator  _)
+    "StatisticsReport" -> ConfigurationSettings.basicStringValidator _,
+    "Streaming"       -> ConfigurationSettings.basicBooleanValidator _,
+    "SystemIncludePaths" -> ConfigurationSettings.basicStringValidator _,
+    "TemporaryFolder" -> ConfigurationSettings.basicStringValidator  _,
+    "Watch"           -> ConfigurationSettings.basicBooleanValidator _)
+
+  // Creates a collection of configurable settings holding the default values.
+  private def defaultSettings(): ConfigurationSettings = {
+    val defaults = new ConfigurationSettings(configurableItems)
+    defaults.setDefaults(Map(
+        "InputFolder"     -> ".",
+        "Jobs"            -> Runtime.getRuntime.availableProcessors.toString,
+        "OutputFolder"    -> "Nessie-Out",
+        "Preprocessor"    -> "cpp",
+        "SystemIncludePaths" -> "/usr/local/include:/usr/include",
+        "TemporaryFolder" -> "Nessie-Tmp"))
+    defaults
+  }
+
+  // The current collection of configurable settings. These are set up again for each run so a
+  // compile server doesn't carry the settings of one request into the next.
+  private var settings = defaultSettings()
+
+  // The folder relative paths are resolved against, or None to use the process's own working
+  // folder. A compile server uses the working folder of the client that made the request.
+  private var workingFolder: Option[File] = None
+
+  // Holds the source files read by the internal preprocessor. It remains valid across runs
+  // because each file is checked for changes before its cached contents are used.
+  private val includeCache = new IncludeCache
 
-  // The current collection of configurable settings.
-  private val settings = new ConfigurationSettings(configurableItems)
-  settings.setDefaults(Map(
-      "InputFolder"     -> ".",
-      "OutputFolder"    -> "Nessie-Out",
-      "Preprocessor"    -> "cpp",
-      "TemporaryFolder" -> "Nessie-Tmp"))
+  // Holds the parse of header text shared between files. Each region is keyed by the hash of
+  // its text, so the cache remains valid across runs as well. Only recently used regions are kept.
+  private val regionCache = new HeaderRegionCache
+
+  // In watch mode, the time in milliseconds without further changes that ends a burst of them.
+  private val watchQuietMillis = 300L
 
 
   /**
@@ -80,8 +118,8 @@ object Main {
    *
    * @param abstractSyntax The abstract syntax tree to be dumped.
    */
-  private def dumpSyntax(abstractSyntax: CommonTree): Unit = {
-    val viewer = new SyntaxViewer(System.out, abstractSyntax)
+  private def dumpSyntax(abstractSyntax: ASTNode): Unit = {
+    val viewer = new SyntaxViewer(Console.out, abstractSyntax)
     println("*** AST ==> ")
     viewer.writeAST()
     println()
@@ -103,16 +141,24 @@ object Main {
       "java -jar Nessie.jar [options]",
       "",
       "options:",
+      "  -cache={path} Folder where parsed trees are kept for reuse by later builds",
       "  -config={path} Name of configuration file; ~/.nessie used by default",
       "",
       "  -d         Activate debug mode. In this mode -f must be used",
+      "  -deps={path} Write the dependency graph to a file in Graphviz format",
       "  -f={path}  Name of file to process (debug mode only!)",
       "  -i={path}  Folder containing input. Default ='.'",
       "  -I={paths} Colon delimited list of folders for #include processing",
+      "  -j={n}     Number of files compiled in parallel. Default=number of cores",
+      "  -keep      Write preprocessed files to the temporary folder when streaming",
       "  -o={path}  Folder were object code is placed. Default='Nessie-Out'",
-      "  -p={path}  Program to use for preprocessing. Default='cpp'",
+      "  -p={path}  Program to use for preprocessing, or 'internal'. Default='cpp'",
       "  -s         Display configuration settings and perform no additional processing",
-      "  -t={path}  Folder where preprocessed output is placed. Default='Nessie-Tmp'"
+      "  -server[={port}] Run as a compile server for CompileClient. Default port=" + CompileServer.DefaultPort,
+      "  -stats={path} Write time, size, and allocation statistics of each file as JSON",
+      "  -stream    Pass preprocessed text directly to the parser instead of using files",
+      "  -t={path}  Folder where preprocessed output is placed. Default='Nessie-Tmp'",
+      "  -watch     After compiling, recompile files when they or the headers change"
     )
 
     for (line <- message) {
@@ -152,13 +198,20 @@ object Main {
     // TODO: This list is getting a little long for this hacked approach. Use a loop.
     println("Nessie Settings:\n")
     println("DebugMode       = " + configurationValue("DebugMode"))
+    println("DependencyGraph = " + configurationValue("DependencyGraph"))
     println("IncludePaths    = " + configurationValue("IncludePaths"))
     println("InputFolder     = " + configurationValue("InputFolder"))
+    println("Jobs            = " + configurationValue("Jobs"))
+    println("KeepIntermediate = " + configurationValue("KeepIntermediate"))
     println("OutputFolder    = " + configurationValue("OutputFolder"))
     println("Preprocessor    = " + configurationValue("Preprocessor"))
     println("ShowSettings    = " + configurationValue("ShowSettings"))
     println("SourceFile      = " + configurationValue("SourceFile"))
+    println("StatisticsReport = " + configurationValue("StatisticsReport"))
+    println("Streaming       = " + configurationValue("Streaming"))
+    println("SystemIncludePaths = " + configurationValue("SystemIncludePaths"))
     println("TemporaryFolder = " + configurationValue("TemporaryFolder"))
+    println("Watch           = " + configurationValue("Watch"))
   }
     
     
@@ -204,6 +257,12 @@ object Main {
 
       // This approach makes it easy to customize option handling on a per-option basis.
       optionComponents(0) match {
+        case "cache" =>
+          if (optionComponents.length == 1) {
+            throw new CommandLineException("-cache option requires a parameter")
+          }
+          commandLineOptions.put("cache", optionComponents(1))
+
         case "config" =>
           if (optionComponents.length == 1) {
             throw new CommandLineException("-config option requires a parameter")
@@ -215,6 +274,12 @@ object Main {
             throw new CommandLineException("-d option does not require a parameter")
           }
           commandLineOptions.put("d", "true")
+
+        case "deps" =>
+          if (optionComponents.length == 1) {
+            throw new CommandLineException("-deps option requires a parameter")
+          }
+          commandLineOptions.put("deps", optionComponents(1))
           
         case "f" =>
           if (optionComponents.length == 1) {
@@ -238,6 +303,18 @@ object Main {
           }
           commandLineOptions.put("I", includePath)
 
+        case "j" =>
+          if (optionComponents.length == 1) {
+            throw new CommandLineException("-j option requires a parameter")
+          }
+          commandLineOptions.put("j", optionComponents(1))
+
+        case "keep" =>
+          if (optionComponents.length != 1) {
+            throw new CommandLineException("-keep option does not require a parameter")
+          }
+          commandLineOptions.put("keep", "true")
+
         case "o" =>
           if (optionComponents.length == 1) {
             throw new CommandLineException("-o option requires a parameter")
@@ -256,12 +333,37 @@ object Main {
           }
           commandLineOptions.put("s", "true")
 
+        case "server" =>
+          val port = if (optionComponents.length == 1) CompileServer.DefaultPort.toString else optionComponents(1)
+          if (port.isEmpty || !port.forall(_.isDigit)) {
+            throw new CommandLineException("-server option requires a numeric port")
+          }
+          commandLineOptions.put("server", port)
+
+        case "stats" =>
+          if (optionComponents.length == 1) {
+            throw new CommandLineException("-stats option requires a parameter")
+          }
+          commandLineOptions.put("stats", optionComponents(1))
+
+        case "stream" =>
+          if (optionComponents.length != 1) {
+            throw new CommandLineException("-stream option does not require a parameter")
+          }
+          commandLineOptions.put("stream", "true")
+
         case "t" =>
           if (optionComponents.length == 1) {
             throw new CommandLineException("-t option requires a parameter")
           }
           commandLineOptions.put("t", optionComponents(1))
 
+        case "watch" =>
+          if (optionComponents.length != 1) {
+            throw new CommandLineException("-watch option does not require a parameter")
+          }
+          commandLineOptions.put("watch", "true")
+
         case _ =>
           throw new CommandLineException( "Unrecognized option found: '" + optionComponents(0) + "'")
       }
@@ -282,7 +384,9 @@ object Main {
     while (it.hasNext) {
       val key = it.next()
       key match {
+        case "cache" => settings.put("CacheFolder", commandLineOptions.get(key))
         case "d" => settings.put("DebugMode",   commandLineOptions.get(key))
+        case "deps" => settings.put("DependencyGraph", commandLineOptions.get(key))
         case "f" => settings.put("SourceFile",  commandLineOptions.get(key))
         case "i" => settings.put("InputFolder", commandLineOptions.get(key))
         case "I" => {
@@ -294,16 +398,37 @@ object Main {
           }
           settings.put("IncludePaths", includePaths)
         }
+        case "j" => settings.put("Jobs",            commandLineOptions.get(key))
+        case "keep" => settings.put("KeepIntermediate", commandLineOptions.get(key))
         case "o" => settings.put("OutputFolder",    commandLineOptions.get(key))
         case "p" => settings.put("Preprocessor",    commandLineOptions.get(key))
         case "s" => settings.put("ShowSettings",    commandLineOptions.get(key))
+        case "stats" => settings.put("StatisticsReport", commandLineOptions.get(key))
+        case "stream" => settings.put("Streaming",  commandLineOptions.get(key))
         case "t" => settings.put("TemporaryFolder", commandLineOptions.get(key))
+        case "watch" => settings.put("Watch",       commandLineOptions.get(key))
         case  _  => // Do nothing.
       }
     }
   }
     
     
+  /**
+   * Resolves a path named in the settings. Relative paths are taken relative to the working
+   * folder of the run.
+   *
+   * @param name The path to resolve.
+   * @return The file with that path.
+   */
+  private def resolve(name: String): File = {
+    val file = new File(name)
+    workingFolder match {
+      case Some(folder) if !file.isAbsolute => new File(folder, name)
+      case _ => file
+    }
+  }
+
+
   /**
    * Creates an empty temporary folder. This method creates a folder to hold the results of
    * preprocessing. It uses the name as specified by the command line options. If the folder
@@ -319,7 +444,7 @@ object Main {
       throw new InvalidTemporaryFolderException("No temporary folder specified")
     else {
       val Some(temporaryFolderName) = temporaryFolderSetting
-      val temporaryFolder = new File(temporaryFolderName)
+      val temporaryFolder = resolve(temporaryFolderName)
     
       if (temporaryFolder.exists()) {
         if (!FileManager.deleteFolder(temporaryFolder)) {
@@ -333,233 +458,384 @@ object Main {
     
     
   /**
-   * Creates an empty output folder. This method creates a folder to hold the results of
-   * Nessie's generation. It uses the name as specified by the command line options. If the
-   * folder exists, it is first erased. In this way the method ensures that the output folder is
-   * empty when it returns.
+   * Prepares the output folder. This method creates a folder to hold the results of Nessie's
+   * generation. It uses the name as specified by the command line options. If the folder exists
+   * it is normally left alone so that the outputs of unchanged files can be reused. However, if
+   * a full rebuild is requested the folder is first erased. In that case the method ensures that
+   * the output folder is empty when it returns.
    * 
+   * @param fullRebuild True if the existing contents of the output folder should be erased.
    * @throws edu.vtc.Nessie.Main.InvalidOutputFolderException if there is a problem creating the
    * temporary folder (for example if there are permission problems).
    */
-  private def prepareOutputFolder(): Unit = {
+  private def prepareOutputFolder(fullRebuild: Boolean): Unit = {
     val outputFolderSetting = settings("OutputFolder")
     if (outputFolderSetting == None)
       throw new InvalidOutputFolderException("No output folder specified")
     else {
       val Some(outputFolderName) = outputFolderSetting
-      val outputFolder = new File(outputFolderName)
+      val outputFolder = resolve(outputFolderName)
         
-      if (outputFolder.exists()) {
+      if (outputFolder.exists() && fullRebuild) {
         if (!FileManager.deleteFolder(outputFolder)) {
           throw new InvalidOutputFolderException("Unable to completely delete existing output folder")
         }
       }
-      if (!outputFolder.mkdir())
+      if (!outputFolder.isDirectory && !outputFolder.mkdir())
         throw new InvalidOutputFolderException("Unable to create output folder")
     }
   }
     
     
+  // This is hackish. I need to build up the same environment as the nesC compiler sees.
+  // Unfortunately the build scripts (Makefiles, etc) used with TinyOS are very complicated
+  // and hard to understand. Thus it's next to impossible (for me) to be sure I have this
+  // 100% correct. In any case it should be configurable so that users can specify different
+  // platforms with different "extras," to borrow a term from the TinyOS build scripts.
+  //
+  // Really the notion of separate preprocessing of nesC files is flawed anyway. The nesC
+  // compiler actually (in effect) alternates between preprocessing and compiling as it
+  // processes the top level configuration and all the components and interfaces it uses. In
+  // general you can't accurately preprocess nesC one file at a time like I'm trying to do
+  // here.
+  //
+  private val preprocessorDefinitions = Seq(
+    "__GNUC__=4",             // TODO: Does cpp have a command line option for setting __GNUC__?
+    "__MSP430_TI_HEADERS__",  // The nesC compiler appears to behave as if this is set.
+    "__MSP430_HAS_ADC12__")
+
+
+  /**
+   * Computes the folders searched for #include processing. These are the standard TinyOS
+   * folders followed by the additional folders specified in the configuration.
+   */
+  private def preprocessorIncludePaths(): Seq[String] = {
+    val tosDir = "/opt/tinyos-2.1.2/tos"
+    val standardPaths = Seq(
+      "/usr/msp430/include",
+      s"$tosDir/types",
+      s"$tosDir/lib/serial",
+      s"$tosDir/lib/mac/tkn154",
+      s"$tosDir/chips/msp430/adc12",
+      s"$tosDir/chips/stm25p",
+      s"$tosDir/chips/cc2420_tkn154",
+      s"$tosDir/platforms/telosb",
+      s"$tosDir/platforms/telosb/mac/tkn154",
+      s"$tosDir/platforms/telosb/mac/tkn154/timer",
+      "build/telosb")
+
+    // Now add additional include paths specified in the configuration.
+    val allPaths = settings("IncludePaths") match {
+      case Some(includePathsString) => standardPaths ++ includePathsString.split(":")
+      case None                     => standardPaths
+    }
+    if (workingFolder.isEmpty) allPaths else allPaths map { resolve(_).getPath }
+  }
+
+
+  /**
+   * Computes the folders where included files might be found: the folder containing the
+   * program, the folders used for #include processing, and the system include folders.
+   *
+   * @param inputFolder The folder containing the program.
+   */
+  private def searchFolders(inputFolder: File): Seq[File] = {
+    val systemPaths = settings("SystemIncludePaths") match {
+      case Some(pathsString) => pathsString.split(":").toSeq.filter(_.nonEmpty)
+      case None              => Seq()
+    }
+    inputFolder +: (preprocessorIncludePaths() ++ systemPaths).map(resolve)
+  }
+
+
+  /**
+   * Creates the internal preprocessor if the configuration selects it. A single instance is
+   * used for all files in a run so that the work done on shared headers can be reused.
+   *
+   * @return The internal preprocessor or None if an external preprocessor is to be used.
+   */
+  private def createPreprocessor(): Option[Preprocessor] = {
+    settings("Preprocessor") match {
+      case Some("internal") =>
+        val systemPaths = settings("SystemIncludePaths") match {
+          case Some(pathsString) => pathsString.split(":").toSeq.filter(_.nonEmpty)
+          case None              => Seq()
+        }
+        // GCC includes stdc-predef.h implicitly. It's included here as well so the output of
+        // both preprocessors is the same.
+        Some(new Preprocessor(
+          preprocessorIncludePaths(), systemPaths, preprocessorDefinitions, Seq("stdc-predef.h"), includeCache))
+      case _ =>
+        None
+    }
+  }
+
+
   /**
-   * Preprocess the input program. This method runs the standard C preprocessor over all files
-   * in the input program, placing the result into a previously specified temporary folder. If
-   * the external process returns a bad status value, this method displays a message to the
-   * standard output but it otherwise continues working. Under such circumstances it is likely,
-   * however, that the resulting preprocessed program is invalid.
+   * A thread that collects everything written to a stream. This is used to read the standard
+   * error of an external process while its standard output is read elsewhere; reading only one
+   * of them risks a deadlock if the process fills the pipe of the other.
+   *
+   * @param source The stream to read.
+   */
+  private class StreamDrain(source: InputStream) extends Thread {
+    private val buffer = new ByteArrayOutputStream()
+    setDaemon(true)
+
+    override def run(): Unit = {
+      try {
+        source.transferTo(buffer): @annotation.nowarn("msg=discarded non-Unit value")
+      }
+      catch {
+        // The process went away. Whatever was collected is still available.
+        case _: IOException =>
+      }
+    }
+
+    /** Waits for the stream to end and returns its contents. */
+    def contents: String = {
+      join()
+      buffer.toString
+    }
+  }
+
+
+  /**
+   * Preprocess one file of the input program. This method runs the selected preprocessor over
+   * the given file. The result is either placed into a previously specified temporary folder or,
+   * when streaming, returned directly so that it never touches the disk. If the preprocessor
+   * reports errors, this method displays a message to the log but it otherwise continues
+   * working. Under such circumstances it is likely, however, that the resulting preprocessed
+   * text is invalid.
    * 
    * @param inputFolder The name of the folder containing the program to preprocess.
-   * @param nesCFiles A list of files to preprocess.
-   * @param temporaryFolder The name of the folder where the preprocessed result is to go.
+   * @param fileName The file to preprocess.
+   * @param temporaryFolder The name of the folder where the preprocessed result is to go, or
+   * None if the result is to be returned instead.
+   * @param preprocessor The internal preprocessor to use, or None to run an external program.
+   * @param log The stream where progress messages and preprocessor diagnostics are written.
+   * @return The preprocessed text if no temporary folder is given, otherwise None.
    * @throws java.io.IOException if there is a problem with file I/O.
    * @throws java.lang.InterruptedException if the external C preprocessor is interrupted.
    */
   private def preprocess(inputFolder    : File,
-                         nesCFiles      : Array[String],
-                         temporaryFolder: File): Unit = {
-
-    for (fileName <- nesCFiles) {
-      val inputName = new File(inputFolder, fileName)
-      val outputName = new File(temporaryFolder, fileName)
-      println("PREPROCESSING " + inputName.getPath + " TO " + outputName.getPath)
-
-      // Prepare the preprocessor command line.
-      val commandLine = new ArrayList[String]()
-      val Some(preprocessorName) = settings("Preprocessor")
-      commandLine.add(preprocessorName)
-
-      // This is hackish. I need to build up the same environment as the nesC compiler sees.
-      // Unfortunately the build scripts (Makefiles, etc) used with TinyOS are very complicated
-      // and hard to understand. Thus it's next to impossible (for me) to be sure I have this
-      // 100% correct. In any case it should be configurable so that users can specify different
-      // platforms with different "extras," to borrow a term from the TinyOS build scripts.
-      //
-      // Really the notion of separate preprocessing of nesC files is flawed anyway. The nesC
-      // compiler actually (in effect) alternates between preprocessing and compiling as it
-      // processes the top level configuration and all the components and interfaces it uses. In
-      // general you can't accurately preprocess nesC one file at a time like I'm trying to do
-      // here.
-      //
+                         fileName       : String,
+                         temporaryFolder: Option[File],
+                         preprocessor   : Option[Preprocessor],
+                         log            : PrintStream): Option[Array[Byte]] = {
+
+    val inputName = new File(inputFolder, fileName)
+    val outputName = temporaryFolder map { new File(_, fileName) }
+    outputName match {
+      case Some(name) => log.println("PREPROCESSING " + inputName.getPath + " TO " + name.getPath)
+      case None       => log.println("PREPROCESSING " + inputName.getPath)
+    }
 
-      commandLine.add("-D__GNUC__=4")             // TODO: Does cpp have a command line option for setting __GNUC__?
-      commandLine.add("-D__MSP430_TI_HEADERS__")  // The nesC compiler appears to behave as if this is set.
-      commandLine.add("-D__MSP430_HAS_ADC12__")
-
-      val tosDir = "/opt/tinyos-2.1.2/tos"
-      commandLine.add(s"-I/usr/msp430/include")
-      commandLine.add(s"-I$tosDir/types")
-      commandLine.add(s"-I$tosDir/lib/serial")
-      commandLine.add(s"-I$tosDir/lib/mac/tkn154")
-      commandLine.add(s"-I$tosDir/chips/msp430/adc12")
-      commandLine.add(s"-I$tosDir/chips/stm25p")
-      commandLine.add(s"-I$tosDir/chips/cc2420_tkn154")
-      commandLine.add(s"-I$tosDir/platforms/telosb")
-      commandLine.add(s"-I$tosDir/platforms/telosb/mac/tkn154")
-      commandLine.add(s"-I$tosDir/platforms/telosb/mac/tkn154/timer")
-      commandLine.add(s"-Ibuild/telosb")
-
-      // Now add additional include paths specified in the configuration.
-      settings("IncludePaths") match {
-        case Some(includePathsString) =>
-          val includePaths = includePathsString.split(":")
-          for (path <- includePaths) {
-            commandLine.add("-I" + path)
-          }
-        case None =>  // Do nothing.
-      }
-      commandLine.add(inputName.getPath)
-      commandLine.add(outputName.getPath)
-      val cppCommand = new ProcessBuilder(commandLine)
+    val (text, succeeded) = preprocessor match {
+      case Some(internalPreprocessor) =>
+        val result = internalPreprocessor.preprocess(inputName, log)
+        // The preprocessor reads files as ISO-8859-1 so this reproduces the original bytes.
+        val resultBytes = result.text.getBytes(StandardCharsets.ISO_8859_1)
+        outputName match {
+          case Some(name) =>
+            Files.write(name.toPath, resultBytes)
+            (None, result.errorCount == 0)
+          case None =>
+            (Some(resultBytes), result.errorCount == 0)
+        }
 
-      // Run the preprocessor and display its standard error to the console.
-      val cpp = cppCommand.start()
-      val errorStream = cpp.getErrorStream
-      var rawByte = 0
-      while ({ rawByte = errorStream.read(); rawByte != -1}) System.out.print(rawByte.toChar)
-      val exitStatus = cpp.waitFor()
-      if (exitStatus != 0) {
-        println("  *** previous operation failed! ***")
-      }
+      case None =>
+        // Prepare the preprocessor command line. Without an output file cpp writes to stdout.
+        val commandLine = new ArrayList[String]()
+        val Some(preprocessorName) = settings("Preprocessor")
+        commandLine.add(preprocessorName)
+        for (definition <- preprocessorDefinitions) commandLine.add("-D" + definition)
+        for (path <- preprocessorIncludePaths()) commandLine.add("-I" + path)
+        commandLine.add(inputName.getPath)
+        outputName foreach { name => commandLine.add(name.getPath) }
+        val cppCommand = new ProcessBuilder(commandLine)
+        workingFolder foreach { cppCommand.directory(_) }
+
+        // Run the preprocessor and display its standard error in the log.
+        val event = new CompilerEvents.PreprocessorEvent
+        event.begin()
+        val cpp = cppCommand.start()
+        val errorDrain = new StreamDrain(cpp.getErrorStream)
+        errorDrain.start()
+        val capturedText = if (outputName.isEmpty) Some(cpp.getInputStream.readAllBytes()) else None
+        val exitStatus = cpp.waitFor()
+        event.end()
+        if (event.shouldCommit) {
+          event.file = fileName
+          event.command = String.join(" ", commandLine)
+          event.exitStatus = exitStatus
+          event.outputBytes = capturedText.map(_.length.toLong).getOrElse(0L)
+          event.commit()
+        }
+        log.print(errorDrain.contents)
+        (capturedText, exitStatus == 0)
+    }
+    if (!succeeded) {
+      log.println("  *** previous operation failed! ***")
     }
+    text
   }
     
     
   /**
-   * Execute Nessie's parsing phase. This method parses all the (preprocessed) input files into
-   * a collection of abstract syntax trees that are used by the rest of Nessie. In addition
-   * various bits of information about the input files are noticed and recorded.
+   * Execute Nessie's parsing phase on one file. This method parses (preprocessed) input text
+   * into an abstract syntax tree that is used by the rest of Nessie. If an AST cache is used
+   * and holds the tree of the same text, that tree is loaded instead and the text is not even
+   * read. A tree parsed without errors is added to the cache.
    * 
-   * @param temporaryFolder The folder where the files to parse are stored.
-   * @param nesCFiles A list of files to parse.
-   * @return A mapping of file names to abstract syntax trees for those files.
-   * @throws java.io.IOException if there is a problem with file I/O.
+   * @param sourceName The name of the text to parse, for display.
+   * @param openInput Returns the text to parse. It comes either from a file in the temporary
+   * folder or directly from the preprocessor.
+   * @param contentHash The hash of the text.
+   * @param astCache The cache of parsed trees, or None if no cache is used.
+   * @param log The stream where progress messages are written.
+   * @return The abstract syntax tree of the file and the number of tokens in the file.
    * @throws org.antlr.runtime.RecognitionException if there is an unhandled parsing problem.
    */
-  private def parsingPhase(temporaryFolder: File,
-                           nesCFiles      : Array[String]): Map[String, CommonTree] = {
-
-    var ASTCollection = Map[String, CommonTree]()
-
-    for (fileName <- nesCFiles) {
-      val inputName = new File(temporaryFolder, fileName)
-      println("PARSING " + inputName.getPath)
-
-      val lex = new NesCLexer(new ANTLRFileStream(inputName.getPath))
-      val tokens = new CommonTokenStream(lex)
-      val parser = new NesCParser(tokens)
-      parser.setSymbols(initializeGlobalSymbols())
-      val result = parser.nesC_file()
-
-      // For now unconditionally output the abstract syntax tree.
-      val antlrAbstractSyntax = result.getTree.asInstanceOf[CommonTree]
-      ASTCollection += (fileName -> antlrAbstractSyntax)
+  private def parsingPhase(sourceName : String,
+                           openInput  : () => CharStream,
+                           contentHash: String,
+                           astCache   : Option[ASTCache],
+                           log        : PrintStream): (ASTNode, Int) = {
+
+    val event = new CompilerEvents.ParseEvent
+    event.begin()
+    val cached = astCache flatMap { _.load(contentHash) }
+    val result @ (_, tokenCount) = cached match {
+      case Some(loaded) =>
+        log.println("LOADING " + sourceName + " FROM AST CACHE")
+        loaded
+
+      case None =>
+        log.println("PARSING " + sourceName)
+        val input = openInput()
+        val parse = regionCache.parseFile(input, () => initializeGlobalSymbols())
+        if (parse.errorCount == 0) {
+          astCache foreach { cache =>
+            try {
+              cache.store(contentHash, parse.tree, parse.tokenCount)
+            }
+            catch {
+              // The cache only saves time. The file is compiled anyway if its tree can't be kept.
+              case e: IOException =>
+                log.println("  *** unable to store " + sourceName + " in AST cache: " + e.getMessage + " ***")
+            }
+          }
+        }
+        event.characters = input.size
+        (parse.tree, parse.tokenCount)
+    }
+    event.end()
+    if (event.shouldCommit) {
+      event.source = sourceName
+      event.tokens = tokenCount
+      event.cached = cached.isDefined
+      event.commit()
     }
-    ASTCollection
+    result
   }
 
 
   /**
-   * Process the abstract syntax trees created during parsing. This method transforms the trees
-   * by removing all Spartan RPC related constructs and replacing them with appropriate
-   * constructs using pure nesC.
+   * Examines an abstract syntax tree and returns an instance of an appropriate Processor
+   * object. A different kind of processor is returned depending on if the AST represents an
+   * interface, a configuration, or a module.
    *
-   * @param parsedResults A collection of (filename, AST) pairs for all files in the program.
-   * @return A collection of (filename, AST) pairs for the transformed program.
+   * @param root The abstract syntax tree to examine.
+   * @return An appropriate processor instance for this tree or null if no appropriate
+   * Processor could be determined.
    */
-  private def processingPhase(outputFolder : File,
-                              parsedResults: Map[String, CommonTree]): Map[String, CommonTree] = {
-
-    import edu.vtc.nesc.{ASTNode, TreeConverter}
-
-    /**
-     * Examines an abstract syntax tree and returns an instance of an appropriate Processor
-     * object. A different kind of processor is returned depending on if the AST represents an
-     * interface, a configuration, or a module.
-     *
-     * @param root The abstract syntax tree to examine.
-     * @return An appropriate processor instance for this tree or null if no appropriate
-     * Processor could be determined.
-     */
-    def createProcessor(root: ASTNode): Processor = {
-      // TODO: Handle binary components in a more intelligent way.
-
-      def scanSubtree(node: ASTNode): Processor = {
-        val nullProcessor: Processor = null
-        node match {
-
-          // Interface tokens can appear in uses-provides specifications as well as when
-          // defining interfaces.
-          case ASTNode(NesCLexer.INTERFACE, _, children, _, _)
-            if children(0).tokenType != NesCLexer.INTERFACE_TYPE => new InterfaceProcessor(root)
-
-          // Handle both modules and configurations here.
-          case ASTNode(NesCLexer.COMPONENT_DEFINITION, _, children, _, _) =>
-            val ASTNode(NesCLexer.COMPONENT_KIND, _, kindChildren, _, _) = children(0)
-
-            kindChildren(0).tokenType match {
-              case NesCLexer.CONFIGURATION => new ConfigurationProcessor(root)
-              case NesCLexer.MODULE => new ModuleProcessor(root)
-
-              // Generic configurations are handled with the same processor as non-generic ones
-              // (for now).
-              case NesCLexer.GENERIC =>
-                kindChildren(1).tokenType match {
-                  case NesCLexer.CONFIGURATION => new ConfigurationProcessor(root)
-                  case NesCLexer.MODULE => new ModuleProcessor(root)
-                  case _ => nullProcessor  // This should never arise for syntactically correct input.
-                }
-              case _ => nullProcessor      // This will be used for binary components (causing problems later).
-            }
-          case ASTNode(_, _, children, _, _) =>
-            (children map scanSubtree).foldLeft(nullProcessor)( (x, y) => if (x != null) x else y )
-        }
+  private[nessie] def createProcessor(root: ASTNode): Processor = {
+    // TODO: Handle binary components in a more intelligent way.
+
+    def processorFor(node: ASTNode): Processor = {
+      val nullProcessor: Processor = null
+      node match {
+
+        // Interface tokens can appear in uses-provides specifications as well as when
+        // defining interfaces.
+        case ASTNode(NesCLexer.INTERFACE, _, children, _, _)
+          if children(0).tokenType != NesCLexer.INTERFACE_TYPE => new InterfaceProcessor(root)
+
+        // Handle both modules and configurations here.
+        case ASTNode(NesCLexer.COMPONENT_DEFINITION, _, children, _, _) =>
+          val ASTNode(NesCLexer.COMPONENT_KIND, _, kindChildren, _, _) = children(0)
+
+          kindChildren(0).tokenType match {
+            case NesCLexer.CONFIGURATION => new ConfigurationProcessor(root)
+            case NesCLexer.MODULE => new ModuleProcessor(root)
+
+            // Generic configurations are handled with the same processor as non-generic ones
+            // (for now).
+            case NesCLexer.GENERIC =>
+              kindChildren(1).tokenType match {
+                case NesCLexer.CONFIGURATION => new ConfigurationProcessor(root)
+                case NesCLexer.MODULE => new ModuleProcessor(root)
+                case _ => nullProcessor  // This should never arise for syntactically correct input.
+              }
+            case _ => nullProcessor      // This will be used for binary components (causing problems later).
+          }
+        case _ => nullProcessor
       }
-      scanSubtree(root)
     }
 
-    var processedResults = Map[String, CommonTree]()
-    for ((fileName, antlrAbstractSyntax) <- parsedResults) {
-      println("PROCESSING " + fileName)
-      val abstractSyntax = TreeConverter.ANTLRToScala(antlrAbstractSyntax)
-      val treeProcessor = createProcessor(abstractSyntax)
-      val processedAbstractSyntax = treeProcessor.process()
-      val processedAntlrAbstractSyntax = TreeConverter.scalaToANTLR(processedAbstractSyntax)
-      processedResults += (fileName -> processedAntlrAbstractSyntax)
+    // The interface or component is the last child of the root; the children before it hold
+    // the declarations of the headers. The root's children are therefore searched from the
+    // last so that the search usually ends without examining any declarations. Below the
+    // root, nodes are searched in depth first order.
+    val pending = scala.collection.mutable.Stack[ASTNode](root)
+    var result: Processor = null
+    while (result == null && pending.nonEmpty) {
+      val node = pending.pop()
+      result = processorFor(node)
+      if (result == null) {
+        if (node eq root) root.children foreach { pending.push(_) }
+        else node.children.reverseIterator foreach { pending.push(_) }
+      }
     }
-    processedResults
+    result
+  }
+
+
+  /**
+   * Process the abstract syntax tree of one file. This method transforms the tree by removing
+   * all Spartan RPC related constructs and replacing them with appropriate constructs using
+   * pure nesC.
+   *
+   * @param fileName The name of the file from which the tree was parsed.
+   * @param abstractSyntax The abstract syntax tree of the file.
+   * @param log The stream where progress messages are written.
+   * @return The transformed abstract syntax tree.
+   */
+  private def processingPhase(fileName      : String,
+                              abstractSyntax: ASTNode,
+                              log           : PrintStream): ASTNode = {
+    log.println("PROCESSING " + fileName)
+    val treeProcessor = createProcessor(abstractSyntax)
+    treeProcessor.process()
   }
 
 
   /**
-   * Outputs the (potentially modified) abstract syntax trees to ordinary nesC files in the
-   * output folder. Also copies any additional files required by Nessie's transformations.
+   * Outputs the (potentially modified) abstract syntax tree of one file to an ordinary nesC file
+   * in the output folder.
    *
-   * @param outputFolder The folder where the rewritten output files are stored.
-   * @param processedResults A collection of abstract syntax trees representing the source
+   * @param outputFolder The folder where the rewritten output file is stored.
+   * @param fileName The name of the file to write.
+   * @param abstractSyntax The abstract syntax tree to write.
+   * @param log The stream where progress messages are written.
    * @throws IOException if there is a problem with file I/O.
    */
-  private def rewritingPhase(outputFolder    : File,
-                             processedResults: Map[String, CommonTree]): Unit = {
-    
+  private def rewritingPhase(outputFolder  : File,
+                             fileName      : String,
+                             abstractSyntax: ASTNode,
+                             log           : PrintStream): Unit = {
+
     // Make path adjustments so that the output paths work as Cygwin paths.
     def windowsToCygwinPath(path: String) = {
       val withUnixDelimiters = path.replace("\\\\", "/").replace("\\", "/")
@@ -571,26 +847,316 @@ object Main {
         withUnixDelimiters
     }
 
-    for ((fileName, antlrAbstractSyntax) <- processedResults) {
-      val outputName = new File(outputFolder, fileName)
-      println("REWRITING " + outputName.getPath)
-      val outputStream = new PrintStream(outputName)
-      val viewer = new SyntaxViewer(outputStream, antlrAbstractSyntax)
+    val outputName = new File(outputFolder, fileName)
+    log.println("REWRITING " + outputName.getPath)
+    val output = Emitter.open(outputName)
+    try {
+      val viewer = new SyntaxViewer(output, abstractSyntax)
       viewer.rewrite()
     }
+    finally {
+      output.close()
+    }
   }
-    
+
+
+  /**
+   * Sends a single file through all of Nessie's phases: preprocessing, parsing, processing, and
+   * rewriting. Progress messages are written to the given log rather than directly to the
+   * console so that files compiled concurrently do not interleave their output. If the
+   * preprocessed text of the file is the same as when its existing output was produced, the
+   * remaining phases are skipped and the existing output is kept.
+   *
+   * When streaming, the preprocessed text is passed to the parser in memory. It is only
+   * written to the temporary folder if one is given, as a debugging aid. The files named by the
+   * line markers in the preprocessed text, and the interfaces and components named by the file,
+   * are recorded in the dependency graph. If statistics are being collected, each phase is
+   * measured. Flight Recorder events are emitted for the file and each of its phases.
+   *
+   * @param inputFolder The folder containing the program.
+   * @param temporaryFolder The folder where preprocessed files are placed, if any.
+   * @param outputFolder The folder where rewritten files are placed.
+   * @param manifest The manifest describing the existing contents of the output folder.
+   * @param dependencies The dependency graph of the program.
+   * @param preprocessor The internal preprocessor to use, or None to run an external program.
+   * @param astCache The cache of parsed trees, or None if no cache is used.
+   * @param streaming True if the preprocessed text is to be kept in memory.
+   * @param fileName The file to compile.
+   * @param statistics The statistics of the file, or None if they are not being collected.
+   * @param log The stream where progress messages are written.
+   */
+  private def compileFile(inputFolder    : File,
+                          temporaryFolder: Option[File],
+                          outputFolder   : File,
+                          manifest       : BuildManifest,
+                          dependencies   : DependencyGraph,
+                          preprocessor   : Option[Preprocessor],
+                          astCache       : Option[ASTCache],
+                          streaming      : Boolean,
+                          fileName       : String,
+                          statistics     : Option[BuildStatistics.FileStatistics],
+                          log            : PrintStream): Unit = {
+
+    def measure[T](phase: String)(body: => T): T = {
+      val event = new CompilerEvents.PhaseEvent
+      event.begin()
+      try {
+        statistics match {
+          case Some(fileStatistics) => fileStatistics.measure(phase)(body)
+          case None                 => body
+        }
+      }
+      finally {
+        event.end()
+        if (event.shouldCommit) {
+          event.file = fileName
+          event.phase = phase
+          event.commit()
+        }
+      }
+    }
+
+    val fileEvent = new CompilerEvents.FileEvent
+    fileEvent.begin()
+    val startTime = System.currentTimeMillis
+    // The preprocessed text is either in memory or mapped from the temporary folder. It's only
+    // referred to by this variable so that it can be released as soon as it has been parsed.
+    var text: ByteBuffer = null
+    val sourceName =
+      if (streaming) {
+        val Some(preprocessedText) = measure("preprocess") { preprocess(inputFolder, fileName, None, preprocessor, log) }
+        temporaryFolder foreach { folder =>
+          Files.write(new File(folder, fileName).toPath, preprocessedText)
+        }
+        text = ByteBuffer.wrap(preprocessedText)
+        fileName
+      }
+      else {
+        val Some(folder) = temporaryFolder
+        measure("preprocess") { preprocess(inputFolder, fileName, temporaryFolder, preprocessor, log) }
+        val preprocessedFile = new File(folder, fileName)
+        text = MappedCharStream.mapFile(preprocessedFile)
+        preprocessedFile.getPath
+      }
+    val contentHash = BuildManifest.hashBuffer(text)
+    val includedFiles = new File(inputFolder, fileName) +: DependencyGraph.includedFiles(text).map(resolve)
+    statistics foreach { fileStatistics =>
+      fileStatistics.status = BuildStatistics.Unchanged
+      fileStatistics.sourceBytes = new File(inputFolder, fileName).length
+      fileStatistics.preprocessedBytes = text.remaining
+    }
+
+    if (manifest.isUpToDate(fileName, contentHash)) {
+      log.println("UP TO DATE " + new File(outputFolder, fileName).getPath)
+      // The same text names the same interfaces and components as before.
+      dependencies.record(fileName, includedFiles, dependencies.references(fileName), startTime)
+      fileEvent.status = BuildStatistics.Unchanged
+    }
+    else {
+      manifest.forget(fileName)
+      dependencies.forget(fileName)
+      val (parsedResult, tokenCount) = measure("parse") {
+        parsingPhase(sourceName, () => new MappedCharStream(text, sourceName), contentHash, astCache, log)
+      }
+      text = null
+      val references = DependencyGraph.references(parsedResult)
+      val processedResult = measure("process") { processingPhase(fileName, parsedResult, log) }
+      measure("rewrite") { rewritingPhase(outputFolder, fileName, processedResult, log) }
+      statistics foreach { fileStatistics =>
+        fileStatistics.status = BuildStatistics.Compiled
+        fileStatistics.tokens = tokenCount
+        fileStatistics.nodes = BuildStatistics.countNodes(parsedResult)
+        fileStatistics.outputBytes = new File(outputFolder, fileName).length
+      }
+      manifest.record(fileName, contentHash)
+      dependencies.record(fileName, includedFiles, references, startTime)
+      fileEvent.status = BuildStatistics.Compiled
+    }
+    fileEvent.end()
+    if (fileEvent.shouldCommit) {
+      fileEvent.file = fileName
+      fileEvent.commit()
+    }
+  }
+
+
+  /**
+   * Carries the failure of a file compiled by a worker along with the output the file produced
+   * before it failed.
+   *
+   * @param log The output of the file.
+   * @param cause The reason the file failed.
+   */
+  private class FileFailure(val log: String, cause: Throwable) extends Exception(cause)
+
+
+  /**
+   * Compiles all the given files using a pool of worker threads. Each file is sent through the
+   * entire pipeline by a single worker. The output of each file is buffered and displayed once
+   * the file is finished, in the same order as the files are listed. Thus the console output is
+   * the same regardless of how many workers are used. If any file fails, the first failure (in
+   * file order) is rethrown after the remaining work is abandoned. The output the failed file
+   * produced before failing is displayed first, as it would be when compiling sequentially.
+   *
+   * @param nesCFiles The files to compile.
+   * @param jobs The number of worker threads to use.
+   * @param compile A function that compiles a single file, writing messages to the given log.
+   */
+  private def compileInParallel(nesCFiles: Array[String],
+                                jobs     : Int,
+                                compile  : (String, PrintStream) => Unit): Unit = {
+
+    val pool = Executors.newFixedThreadPool(jobs)
+    try {
+      val pendingResults = nesCFiles map { fileName =>
+        pool.submit(new Callable[String] {
+          def call(): String = {
+            val logBuffer = new ByteArrayOutputStream()
+            val log = new PrintStream(logBuffer)
+            try {
+              compile(fileName, log)
+            }
+            catch {
+              case e: Throwable =>
+                log.flush()
+                throw new FileFailure(logBuffer.toString, e)
+            }
+            log.flush()
+            logBuffer.toString
+          }
+        })
+      }
+
+      for (pendingResult <- pendingResults) {
+        try {
+          print(pendingResult.get())
+        }
+        catch {
+          case e: ExecutionException =>
+            e.getCause match {
+              case failure: FileFailure =>
+                print(failure.log)
+                throw failure.getCause
+              case cause =>
+                throw cause
+            }
+        }
+      }
+    }
+    finally {
+      // Abandons any files still waiting if an earlier file failed.
+      pool.shutdownNow(): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+
+  /**
+   * Watches the input folder and the include folders and recompiles the program after each
+   * burst of changes. The dependency graph limits each compilation to the files affected by the
+   * changes, and of those only the files whose preprocessed text changed are compiled further.
+   * The output folder is updated in place. This method only returns if watching fails.
+   *
+   * @param inputFolder The folder containing the program.
+   * @param generatedFolders The folders Nessie writes into. Changes to them are ignored when
+   * they are inside a watched folder.
+   * @param manifest The manifest describing the contents of the output folder.
+   * @param dependencies The dependency graph of the program.
+   * @param sourceFile The only file to compile in debug mode, or None to compile all the nesC
+   * files in the input folder.
+   * @param compileFiles A function that compiles the given files.
+   */
+  private def watchAndCompile(inputFolder     : File,
+                              generatedFolders: Seq[File],
+                              manifest        : BuildManifest,
+                              dependencies    : DependencyGraph,
+                              sourceFile      : Option[String],
+                              compileFiles    : Array[String] => Unit): Unit = {
+    val watcher = new FolderWatcher(inputFolder +: preprocessorIncludePaths().map(new File(_)))
+    try {
+      val ignoredFiles = generatedFolders.map(_.getCanonicalFile).toSet
+      while (true) {
+        println("\nWATCHING " + watcher.watched.size + " folders for changes")
+        val changes = watcher.awaitChanges(watchQuietMillis)
+        val changedFiles = changes.files -- ignoredFiles
+
+        val currentFiles = sourceFile match {
+          case Some(fileName) => Array(fileName)
+          case None =>
+            val fileNames = inputFolder.list(new nesCFilter()).sorted
+            manifest.removeStaleOutputs(fileNames)
+            dependencies.removeStaleEntries(fileNames)
+            fileNames
+        }
+
+        // A failure only stops the compilation of this burst of changes.
+        try {
+          if (changes.overflow || changedFiles.nonEmpty) compileFiles(currentFiles)
+          else {
+            manifest.save()
+            dependencies.save()
+          }
+        }
+        catch {
+          case NonFatal(e) => println("*** Compilation failed: " + e)
+        }
+      }
+    }
+    finally {
+      watcher.close()
+    }
+  }
+
 
   def main(args: Array[String]): Unit = {
+    System.exit(run(args, None, System.out))
+  }
+
+
+  /**
+   * Runs Nessie with the given command line. This does the work of the main method without
+   * exiting, so that a compile server can run Nessie many times in the same process. Runs must
+   * not overlap. The caches of included files and header regions are kept from one run to the
+   * next.
+   *
+   * @param args The command line.
+   * @param directory The folder relative paths are resolved against, or None to use the
+   * process's working folder.
+   * @param output The stream where all console output of the run is written.
+   * @return The exit status of the run.
+   */
+  private[nessie] def run(args: Array[String], directory: Option[File], output: PrintStream): Int = {
+    Console.withOut(output) {
+      settings = defaultSettings()
+      workingFolder = directory
+      try {
+        runWithSettings(args)
+      }
+      finally {
+        Console.out.flush()
+      }
+    }
+  }
+
+
+  private def runWithSettings(args: Array[String]): Int = {
     var returnCode = 0
     try {
       // Deal with the command line.
       val commandLineOptions = new HashMap[String, String]()
       analyzeCommandLine(args, commandLineOptions)
+
+      // Start a compile server if requested. Requests to a server can't start another one.
+      if (commandLineOptions.containsKey("server")) {
+        if (workingFolder.isDefined) {
+          throw new CommandLineException("-server can't be used through a compile server")
+        }
+        CompileServer.serve(commandLineOptions.get("server").toInt)
+        return 0
+      }
             
       // Deal with the configuration file and set up the final configuration.
       val configurationFileName = commandLineOptions.get("config")
-      if (configurationFileName != null) settings.readConfigurationFile(configurationFileName)
+      if (configurationFileName != null) settings.readConfigurationFile(resolve(configurationFileName).getPath)
       copyOptionsToConfiguration(commandLineOptions)
 
       // Check for debug mode iff -f selected.
@@ -601,7 +1167,7 @@ object Main {
       val fileSelected = settings("SourceFile") != None
       if ((debugMode && !fileSelected) || (!debugMode && fileSelected)) {
         println("\nERROR: Debug mode if and only if -f selected")
-        System.exit(1)
+        return 1
       }
             
       // If requested, just display the resulting configuration settings and terminate.
@@ -612,49 +1178,127 @@ object Main {
           if (showSettingsString == "true") {
             displayConfiguration()
             if (debugMode) {
-              System.out.print("\nDEBUG mode active! Processing file: ")
+              print("\nDEBUG mode active! Processing file: ")
               val Some(fileName) = settings("SourceFile")
               println(fileName)
             }
             println("\nNo further processing done: -s selected")
-            System.exit(1)
+            return 1
           }
       }
 
       // Proceed with the main job.
-      prepareTemporaryFolder()
-      prepareOutputFolder()
-
       val Some(inputFolderName    ) = settings("InputFolder"    )
       val Some(temporaryFolderName) = settings("TemporaryFolder")
       val Some(outputFolderName   ) = settings("OutputFolder"   )
 
-      val inputFolder     = new File(inputFolderName    )
-      val temporaryFolder = new File(temporaryFolderName)
-      val outputFolder    = new File(outputFolderName   )
+      val inputFolder     = resolve(inputFolderName    )
+      val temporaryFolder = resolve(temporaryFolderName)
+      val outputFolder    = resolve(outputFolderName   )
+
+      // Only the settings that change the output of a file for the same preprocessed text need
+      // to be considered here. Changes to other settings that influence preprocessing show up
+      // in the preprocessed text itself.
+      //
+      val manifest = new BuildManifest(outputFolder, BuildManifest.hashSettings(Map(
+        "IncludePaths" -> settings("IncludePaths"),
+        "Preprocessor" -> settings("Preprocessor"))))
+      val dependencies = new DependencyGraph(outputFolder, manifest.settingsHash)
+
+      // The graph is needed to skip files, so the outputs can't be reused without it.
+      val fullRebuild = !manifest.load() || !dependencies.load()
+
+      val streaming = settings("Streaming") match {
+        case Some(streamingString) => streamingString == "true"
+        case None                  => false
+      }
+      val keepIntermediate = settings("KeepIntermediate") match {
+        case Some(keepString) => keepString == "true"
+        case None             => false
+      }
+
+      // When streaming the temporary folder is only needed if its contents are to be kept.
+      val usedTemporaryFolder =
+        if (streaming && !keepIntermediate) None
+        else {
+          prepareTemporaryFolder()
+          Some(temporaryFolder)
+        }
+      prepareOutputFolder(fullRebuild)
       val nesCFiles =
         if (!debugMode)
-          inputFolder.list(new nesCFilter())
+          inputFolder.list(new nesCFilter()).sorted
         else {
           val Some(sourceFileName) = settings("SourceFile")
           Array(sourceFileName)
         }
             
-      println("\nPREPROCESSING")
-      println("=============")
-      preprocess(inputFolder, nesCFiles, temporaryFolder)
-           
-      println("\nPARSING")
-      println("=======")
-      val parsedResults = parsingPhase(temporaryFolder, nesCFiles)
-
-      println("\nPROCESSING")
-      println("==========")
-      val processedResults = processingPhase(outputFolder, parsedResults)
-
-      println("\nREWRITING")
-      println("=========")
-      rewritingPhase(outputFolder, processedResults)
+      val jobs = settings("Jobs") match {
+        case Some(jobsString) => jobsString.toInt
+        case None             => 1
+      }
+      if (jobs < 1) throw new CommandLineException("The number of jobs must be at least one")
+
+      val watch = settings("Watch") match {
+        case Some(watchString) => watchString == "true"
+        case None              => false
+      }
+      if (watch && workingFolder.isDefined) {
+        throw new CommandLineException("-watch can't be used through a compile server")
+      }
+
+      if (!debugMode) {
+        manifest.removeStaleOutputs(nesCFiles)
+        dependencies.removeStaleEntries(nesCFiles)
+      }
+      val dependencyDump = settings("DependencyGraph") map { resolve(_) }
+      val statisticsReport = settings("StatisticsReport") map { resolve(_) }
+
+      val preprocessor = createPreprocessor()
+      val astCache = settings("CacheFolder") map { name => new ASTCache(resolve(name)) }
+
+      val compile = compileFile(
+        inputFolder, usedTemporaryFolder, outputFolder, manifest, dependencies, preprocessor, astCache, streaming, _, _, _)
+
+      // Compiles the stale files among those given. The others are not even preprocessed.
+      def compileFiles(fileNames: Array[String]): Unit = {
+        println("\nCOMPILING")
+        println("=========")
+        val statistics = statisticsReport map { _ => new BuildStatistics }
+        val event = new CompilerEvents.CompilationEvent
+        event.begin()
+        val staleFiles = dependencies.staleFiles(fileNames.toSeq, searchFolders(inputFolder), manifest.hasOutput)
+        val compileIfStale = (fileName: String, log: PrintStream) => {
+          val fileStatistics = statistics map { _.file(fileName) }
+          if (staleFiles.contains(fileName)) compile(fileName, fileStatistics, log)
+          else log.println("UP TO DATE " + new File(outputFolder, fileName).getPath)
+        }
+        try {
+          if (jobs == 1 || staleFiles.size <= 1)
+            for (fileName <- fileNames) compileIfStale(fileName, Console.out)
+          else
+            compileInParallel(fileNames, jobs, compileIfStale)
+        }
+        finally {
+          // Files that were completed before any failure don't need to be compiled again.
+          manifest.save()
+          dependencies.save()
+          event.end()
+          if (event.shouldCommit) {
+            event.files = fileNames.length
+            event.staleFiles = staleFiles.size
+            event.commit()
+          }
+        }
+        dependencyDump foreach { dependencies.writeDot(_) }
+        for (report <- statisticsReport; collected <- statistics) collected.writeJson(report)
+      }
+
+      compileFiles(nesCFiles)
+      if (watch) {
+        val sourceFile = if (debugMode) Some(nesCFiles(0)) else None
+        watchAndCompile(inputFolder, Seq(outputFolder, temporaryFolder), manifest, dependencies, sourceFile, compileFiles)
+      }
     }
     catch {
       case e: CommandLineException =>
@@ -662,6 +1306,10 @@ object Main {
         displayUsage()
         returnCode = 1
 
+      case e: ConfigurationSettings.BadValidationException =>
+        println("Bad Configuration: " + e.getMessage)
+        returnCode = 1
+
       case e: InvalidOutputFolderException =>
         println("Bad Output Folder: " + e.getMessage)
         returnCode = 1
@@ -671,11 +1319,10 @@ object Main {
         returnCode = 1
 
       case e: RecognitionException =>
-        e.printStackTrace()
+        e.printStackTrace(Console.out)
         returnCode = 1
     }
-
-    System.exit(returnCode)
+    returnCode
   }
 
 }
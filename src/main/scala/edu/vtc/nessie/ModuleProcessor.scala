@@ -5,28 +5,28 @@ import edu.vtc.nesc.parser.NesCLexer
 
 /**
  * Instances of this class process the abstract syntax tree of module definitions.
- * @param root The top node of the AST of the configuration definition.
+ * @param root The top node of the AST of the module definition.
  */
 class ModuleProcessor(root: ASTNode) extends Processor(root) {
 
   private var myName: String = ""
 
-  override def process(): ASTNode = {
+  /** The name of the module. This is known after process is called. */
+  def name: String = myName
 
-    def processSubtree(node: ASTNode): ASTNode = {
-      node match {
-        // Record my name when I see it.
-        case ASTNode(NesCLexer.MODULE, text, children, parent, symbolTable) =>
-            myName = children(1).text
-            ASTNode(NesCLexer.MODULE, text, children map processSubtree, parent, symbolTable)
-
-        // Default case just passes control into the child subtrees.
-        case ASTNode(tokenType, text, children, parent, symbolTable) =>
-          ASTNode(tokenType, text, children map processSubtree, parent, symbolTable)
+  override protected val passes: Seq[RewritePass] = Seq(
+    new RewritePass {
+      // Record my name when I see it. The MODULE token itself is in the COMPONENT_KIND node.
+      override def enter(node: ASTNode): Unit = node match {
+        case ASTNode(NesCLexer.COMPONENT_DEFINITION, _, children, _, _) =>
+          myName = children(1).text
+        case _ =>
       }
-    }
 
-    processSubtree(root)
-  }
+      // Only the root's children need to be seen. The module is one of them and the others are
+      // declarations from the headers.
+      override def visitsChildren(node: ASTNode): Boolean = node.tokenType == NesCLexer.FILE
+    }
+  )
 
 }
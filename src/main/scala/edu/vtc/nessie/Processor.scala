@@ -2,6 +2,68 @@ package edu.vtc.nessie
 
 import edu.vtc.nesc.ASTNode
 
+/**
+ * The base of the classes that process abstract syntax trees. The work of a processor is done
+ * by its passes, which are applied together in a single traversal of the tree.
+ * @param root The top node of the AST to process.
+ */
 abstract class Processor(root: ASTNode) {
-  def process() = root
+
+  /** The passes applied by process, in order. */
+  protected def passes: Seq[RewritePass] = Seq()
+
+  /**
+   * Applies the passes to the tree. If processor pass events are being recorded by the Flight
+   * Recorder, the time spent in each pass is measured and recorded as well.
+   * @return The processed tree. Subtrees that no pass changed are shared with the original.
+   */
+  def process(): ASTNode = {
+    val firstEvent = new CompilerEvents.PassEvent
+    if (!firstEvent.isEnabled) RewritePass.run(root, passes)
+    else {
+      val timedPasses = passes.map(new Processor.TimedPass(_))
+      val events = firstEvent +: timedPasses.drop(1).map(_ => new CompilerEvents.PassEvent)
+      events foreach { _.begin() }
+      try {
+        RewritePass.run(root, timedPasses)
+      }
+      finally {
+        for (((event, timedPass), index) <- events.zip(timedPasses).zipWithIndex) {
+          event.end()
+          if (event.shouldCommit) {
+            event.processor = getClass.getSimpleName
+            event.pass = index
+            event.passClass = timedPass.pass.getClass.getName
+            event.passTime = timedPass.nanos
+            event.nodes = timedPass.nodes
+            event.commit()
+          }
+        }
+      }
+    }
+  }
+}
+
+
+object Processor {
+
+  /** A pass that measures the time spent in another pass. */
+  private final class TimedPass(val pass: RewritePass) extends RewritePass {
+    var nanos = 0L
+    var nodes = 0L
+
+    override def enter(node: ASTNode): Unit = {
+      val start = System.nanoTime()
+      try pass.enter(node) finally nanos += System.nanoTime() - start
+      nodes += 1
+    }
+
+    override def visitsChildren(node: ASTNode): Boolean = pass.visitsChildren(node)
+
+    override def leave(node: ASTNode): ASTNode = {
+      val start = System.nanoTime()
+      try pass.leave(node) finally nanos += System.nanoTime() - start
+    }
+  }
+
 }
@@ -0,0 +1,141 @@
+package edu.vtc.nessie
+
+import edu.vtc.nesc.ASTNode
+
+/**
+ * A transformation of abstract syntax trees. Passes are applied by RewritePass.run, which
+ * visits each node once no matter how many passes are given. Each node is first entered by
+ * every pass, in order, before its children are visited. After its children have been
+ * rewritten, the node is left by every pass, in order, with each pass receiving the result of
+ * the one before it.
+ *
+ * A pass that does not change a node should return the node it was given. Only nodes that
+ * change, and the ancestors of such nodes, are copied; unchanged subtrees are shared between
+ * the original tree and the result.
+ */
+trait RewritePass {
+
+  /**
+   * Called before the children of a node are visited. This is where passes that only examine
+   * the tree do their work.
+   *
+   * @param node The node in the original tree.
+   */
+  def enter(node: ASTNode): Unit = { }
+
+  /**
+   * Tells whether the pass needs to visit the children of a node. This is asked after the node
+   * is entered. When no pass needs them, the children are not visited at all and the subtree
+   * is passed to the result unchanged. A pass that only cares about a few parts of the tree can
+   * thus avoid the cost of visiting the rest.
+   *
+   * @param node The node in the original tree.
+   */
+  def visitsChildren(node: ASTNode): Boolean = true
+
+  /**
+   * Called after the children of a node have been rewritten.
+   *
+   * @param node The node to rewrite. Its children are the rewritten children. If no child
+   * changed this is the node in the original tree.
+   * @return The replacement for the node or the node itself if it is unchanged.
+   */
+  def leave(node: ASTNode): ASTNode = node
+
+}
+
+
+object RewritePass {
+
+  /**
+   * Applies passes to a tree in a single traversal. The traversal does not use recursion and,
+   * when nothing changes, allocates nothing per node. The original tree is not modified. Since
+   * unchanged subtrees are shared, the parent links of their nodes continue to refer to the
+   * original tree. Copied nodes keep the parent, symbol table, and position of the node they
+   * replace.
+   *
+   * @param root The root of the tree to rewrite.
+   * @param passes The passes to apply.
+   * @return The rewritten tree. This is root itself if no pass changed anything.
+   */
+  def run(root: ASTNode, passes: Seq[RewritePass]): ASTNode = {
+    val passArray = passes.toArray
+    if (passArray.isEmpty) root
+    else new Traversal(passArray).run(root)
+  }
+
+
+  /** The state of one traversal. The stack of nodes being visited is kept in parallel arrays. */
+  private final class Traversal(passes: Array[RewritePass]) {
+    private var nodes = new Array[ASTNode](64)
+    private var nextChild = new Array[Int](64)
+    // The rewritten children of each node being visited, or null while none has changed.
+    private var newChildren = new Array[Array[ASTNode]](64)
+    private var depth = 0
+
+    private def push(node: ASTNode): Unit = {
+      if (depth == nodes.length) {
+        nodes = java.util.Arrays.copyOf(nodes, 2 * depth)
+        nextChild = java.util.Arrays.copyOf(nextChild, 2 * depth)
+        newChildren = java.util.Arrays.copyOf(newChildren, 2 * depth)
+      }
+      var visitChildren = false
+      for (pass <- passes) {
+        pass.enter(node)
+        if (pass.visitsChildren(node)) visitChildren = true
+      }
+      nodes(depth) = node
+      nextChild(depth) = if (visitChildren) 0 else node.children.length
+      newChildren(depth) = null
+      depth += 1
+    }
+
+    // Finishes the node at the top of the stack and returns its replacement.
+    private def pop(): ASTNode = {
+      depth -= 1
+      val original = nodes(depth)
+      val children = newChildren(depth)
+      nodes(depth) = null
+      newChildren(depth) = null
+      var result =
+        if (children == null) original
+        else {
+          val copy = ASTNode(original.tokenType, original.text, children.toVector, original.parent, original.symbolTable)
+          copy.line = original.line
+          copy.positionInLine = original.positionInLine
+          copy
+        }
+      for (pass <- passes) result = pass.leave(result)
+      result
+    }
+
+    def run(root: ASTNode): ASTNode = {
+      var result: ASTNode = null
+      push(root)
+      while (depth > 0) {
+        val top = depth - 1
+        val node = nodes(top)
+        val index = nextChild(top)
+        if (index < node.children.length) {
+          nextChild(top) = index + 1
+          push(node.children(index))
+        }
+        else {
+          val replacement = pop()
+          if (depth == 0) result = replacement
+          else {
+            val parent = depth - 1
+            val position = nextChild(parent) - 1
+            val siblings = nodes(parent).children
+            if (newChildren(parent) == null && (replacement ne siblings(position))) {
+              newChildren(parent) = siblings.toArray
+            }
+            if (newChildren(parent) != null) newChildren(parent)(position) = replacement
+          }
+        }
+      }
+      result
+    }
+  }
+
+}
@@ -0,0 +1,107 @@
+package edu.vtc.nesc
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import org.antlr.runtime.CommonTokenStream
+import org.antlr.runtime.tree.Tree
+import edu.vtc.nesc.parser.{NesCLexer, NesCParser, ParserSymbolsManager}
+
+class CompactASTSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val testPositive = new File(new File("testData", "Syntax"), "Positive")
+
+  private def parse(file: File): ASTNode = {
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(MappedCharStream(file))))
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    val symbols = new ParserSymbolsManager()
+    symbols.addType("error_t")
+    parser.setSymbols(symbols)
+    parser.nesC_file().getTree.asInstanceOf[ASTNode]
+  }
+
+  /** Describes a tree including the position of each node. */
+  private def describe(tree: Tree): String = {
+    val children = (0 until tree.getChildCount).map(i => describe(tree.getChild(i)))
+    tree.getText + "@" + tree.getLine + ":" + tree.getCharPositionInLine + children.mkString("(", " ", ")")
+  }
+
+
+  test("Round trip through the compact form") {
+    for (file <- testPositive.listFiles().sortBy(_.getName) if file.getName.endsWith(".nc")) {
+      val tree = parse(file)
+      val compact = CompactAST(tree)
+      withClue(file.getName) {
+        describe(compact.toASTNode()) should be (describe(tree))
+        if (tree.children.nonEmpty) {
+          val last = compact.root.children.last
+          describe(compact.toASTNode(last.index)) should be (describe(tree.children.last))
+        }
+      }
+    }
+  }
+
+  test("Equal texts share an identifier") {
+    val root = ASTNode(NesCLexer.COMPOUND_STATEMENT, "{", Vector(), None, None)
+    for (name <- Seq("x", "y", "x")) root.addChild(ASTNode(NesCLexer.RAW_IDENTIFIER, new String(name), Vector(), None, None))
+    val compact = CompactAST(root)
+    compact.size should be (4)
+    compact.textId(1) should be (compact.textId(3))
+    compact.textId(1) should not be (compact.textId(2))
+    compact.text(3) should be ("x")
+  }
+
+  test("Lists of trees") {
+    val first = ASTNode(NesCLexer.RAW_IDENTIFIER, "a", Vector(), None, None)
+    first.addChild(ASTNode(NesCLexer.RAW_IDENTIFIER, "b", Vector(), None, None))
+    val second = ASTNode(NesCLexer.RAW_IDENTIFIER, "c", Vector(), None, None)
+    second.line = 3
+    val compact = CompactAST(Seq(first, second))
+    compact.roots.map(_.text) should be (Vector("a", "c"))
+    compact.roots.map(_.parent) should be (Vector(None, None))
+    describe(compact.toASTNode(compact.roots(0).index)) should be (describe(first))
+    val converted = compact.toASTNode(compact.roots(1).index, 10)
+    converted.text should be ("c")
+    converted.line should be (13)
+  }
+
+  test("Deep trees") {
+    val depth = 200000
+    val root = ASTNode(NesCLexer.RAW_IDENTIFIER, "0", Vector(), None, None)
+    root.line = 1
+    var current = root
+    for (i <- 1 until depth) {
+      val child = ASTNode(NesCLexer.RAW_IDENTIFIER, i.toString, Vector(), None, None)
+      child.line = i + 1
+      current.addChild(child)
+      current = child
+    }
+
+    var converted = CompactAST(root).toASTNode(0, 10)
+    for (i <- 1 until depth) {
+      converted.children.length should be (1)
+      converted.children.head.parent.get should be theSameInstanceAs converted
+      converted = converted.children.head
+      converted.text should be (i.toString)
+      converted.line should be (i + 11)
+    }
+    converted.children should be (empty)
+  }
+
+  test("Nodes can be matched like ASTNodes") {
+    val root = ASTNode(NesCLexer.COMPOUND_STATEMENT, "{", Vector(), None, None)
+    root.addChild(ASTNode(NesCLexer.RAW_IDENTIFIER, "x", Vector(), None, None))
+    root.addChild(ASTNode(NesCLexer.RAW_IDENTIFIER, "y", Vector(), None, None))
+    val names = CompactAST(root).root match {
+      case CompactAST.Node(NesCLexer.COMPOUND_STATEMENT, "{", children, None) =>
+        children map {
+          case CompactAST.Node(NesCLexer.RAW_IDENTIFIER, name, _, Some(parent)) if parent.text == "{" => name
+          case _ => "?"
+        }
+      case _ => Vector()
+    }
+    names should be (Vector("x", "y"))
+  }
+
+}
@@ -0,0 +1,61 @@
+package edu.vtc.nesc
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import org.antlr.runtime.{ANTLRStringStream, CharStream, Token}
+import edu.vtc.nesc.parser.NesCLexer
+
+class MappedCharStreamSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val syntaxPositive = new File(new File("testData", "Syntax"), "Positive")
+
+  /** Describes every token produced by the lexer, including its position. */
+  private def describeTokens(input: CharStream): Seq[String] = {
+    val lexer = new NesCLexer(input)
+    Iterator.continually(lexer.nextToken()).takeWhile(_.getType != Token.EOF).map { token =>
+      s"${token.getType} ${token.getText} ${token.getLine}:${token.getCharPositionInLine}"
+    }.toSeq
+  }
+
+
+  test("Tokens match ANTLRStringStream") {
+    for (file <- syntaxPositive.listFiles.filter(_.getName.endsWith(".nc"))) {
+      val text = new String(Files.readAllBytes(file.toPath), StandardCharsets.UTF_8)
+      withClue(file.getName) {
+        describeTokens(MappedCharStream(file)) should be (describeTokens(new ANTLRStringStream(text)))
+      }
+    }
+  }
+
+  test("Text that is not ASCII") {
+    val text = "int x; /* café € */\nchar *s = \"ü\";\nint y;\n"
+    val stream = MappedCharStream(text.getBytes(StandardCharsets.UTF_8), "test")
+    stream.size should be (text.length)
+    stream.substring(0, text.length - 1) should be (text)
+    describeTokens(MappedCharStream(text.getBytes(StandardCharsets.UTF_8), "test")) should be (
+      describeTokens(new ANTLRStringStream(text)))
+  }
+
+  test("Mark and rewind") {
+    val stream = MappedCharStream("ab\ncd".getBytes(StandardCharsets.UTF_8), "test")
+    stream.consume()
+    val marker = stream.mark()
+    stream.consume()
+    stream.consume()
+    stream.getLine should be (2)
+    stream.LA(1) should be ('c')
+    stream.LA(-1) should be ('\n')
+    stream.rewind(marker)
+    stream.index should be (1)
+    stream.getLine should be (1)
+    stream.getCharPositionInLine should be (1)
+    stream.LA(1) should be ('b')
+    stream.seek(5)
+    stream.LA(1) should be (CharStream.EOF)
+  }
+
+}
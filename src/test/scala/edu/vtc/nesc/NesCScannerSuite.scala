@@ -0,0 +1,110 @@
+package edu.vtc.nesc
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import scala.collection.mutable.ArrayBuffer
+import org.antlr.runtime.{ANTLRStringStream, CommonTokenStream, Token, TokenStream}
+import edu.vtc.nesc.parser.{NesCLexer, NesCParser, ParserSymbolsManager}
+
+class NesCScannerSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val syntaxPositive = new File(new File("testData", "Syntax"), "Positive")
+
+  /** Describes every token produced by NesCLexer and any errors it reported. */
+  private def lexerTokens(text: String): (Seq[String], Seq[String]) = {
+    val errors = new ArrayBuffer[String]()
+    val lexer = new NesCLexer(new ANTLRStringStream(text)) {
+      override def emitErrorMessage(message: String): Unit = { errors += message }
+    }
+    val tokens = new CommonTokenStream(lexer)
+    tokens.fill()
+    val descriptions = new ArrayBuffer[String]()
+    val it = tokens.getTokens.iterator()
+    while (it.hasNext) descriptions += it.next().toString
+    (descriptions.toSeq, errors.toSeq)
+  }
+
+  /** Describes every token found by NesCScanner and any errors it reported. */
+  private def scannerTokens(text: String): (Seq[String], Seq[String]) = {
+    val errors = new ArrayBuffer[String]()
+    val scanner = new NesCScanner(new ANTLRStringStream(text)) {
+      override def emitErrorMessage(message: String): Unit = { errors += message }
+    }
+    val buffer = scanner.scan()
+    ((0 until buffer.size).map(buffer.token(_).toString) :+ buffer.eofToken.toString, errors.toSeq)
+  }
+
+  private def parse(tokens: TokenStream): String = {
+    val parser = new NesCParser(tokens)
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    parser.setSymbols(new ParserSymbolsManager)
+    parser.nesC_file().getTree.asInstanceOf[ASTNode].toStringTree
+  }
+
+  private def nesCFiles: Seq[File] = syntaxPositive.listFiles.filter(_.getName.endsWith(".nc")).toSeq
+
+
+  test("Tokens match NesCLexer") {
+    for (file <- nesCFiles) {
+      val text = new String(java.nio.file.Files.readAllBytes(file.toPath), "UTF-8")
+      withClue(file.getName) {
+        scannerTokens(text) should be (lexerTokens(text))
+      }
+    }
+  }
+
+  test("Keywords, suffixes, and punctuators") {
+    val text = "intx int8_tx __extension__x __extension__ 0x1fUL 1lu 1Lu 1lU a...b a<-b <<= >>= //c\r\n/**/"
+    scannerTokens(text) should be (lexerTokens(text))
+  }
+
+  test("Errors match NesCLexer") {
+    for (text <- Seq("int $x;", "a..b", "0xg", "\"abc", "'a", "/* abc", "/* abc *", "// abc", "x\\y`")) {
+      withClue(text) {
+        scannerTokens(text) should be (lexerTokens(text))
+      }
+    }
+  }
+
+  test("Parsing matches CommonTokenStream") {
+    for (file <- nesCFiles) {
+      val text = new String(java.nio.file.Files.readAllBytes(file.toPath), "UTF-8")
+      withClue(file.getName) {
+        val buffer = NesCScanner.scan(new ANTLRStringStream(text))
+        parse(new TokenBufferStream(buffer)) should be (
+          parse(new CommonTokenStream(new NesCLexer(new ANTLRStringStream(text)))))
+      }
+    }
+  }
+
+  test("Ranges and lookahead") {
+    val buffer = NesCScanner.scan(new ANTLRStringStream("a /* x */ b c d"))
+    buffer.size should be (9)
+    buffer.significantSize should be (4)
+    buffer.text(2) should be ("/* x */")
+    buffer.channel(2) should be (Token.HIDDEN_CHANNEL)
+
+    val stream = new TokenBufferStream(buffer, 1, 7)
+    stream.LT(1).getText should be ("b")
+    stream.LT(1).getTokenIndex should be (4)
+    stream.LA(2) should be (NesCLexer.RAW_IDENTIFIER)
+    stream.LA(3) should be (Token.EOF)
+    val marker = stream.mark()
+    stream.consume()
+    stream.LT(-1).getText should be ("b")
+    stream.toString(stream.LT(-1), stream.LT(1)) should be ("b c")
+    stream.rewind(marker)
+    stream.index should be (4)
+    stream.seek(5)
+    stream.LT(1).getText should be ("c")
+    stream.consume()
+    stream.LT(1).getType should be (Token.EOF)
+    stream.index should be (7)
+    stream.consume()
+    stream.LT(-1).getType should be (Token.EOF)
+    stream.index should be (8)
+  }
+
+}
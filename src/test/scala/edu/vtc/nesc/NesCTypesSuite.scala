@@ -0,0 +1,97 @@
+package edu.vtc.nesc
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import NesCTypes._
+
+class NesCTypesSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private def bigStructure(name: String, memberCount: Int, lastType: Representation): Structure = {
+    val members = (0 until memberCount).toList map { i =>
+      ("m" + i, if (i == memberCount - 1) lastType else Pointer(Structure("inner", List(("x", Int8)))))
+    }
+    Structure(name, members)
+  }
+
+
+  test("Equal types are interned to the same instance") {
+    val tables = new TypeTables
+    val first = tables.intern(Function(Int16, List(Pointer(Char), Array(UInt8, "4"))))
+    val second = tables.intern(Function(Int16, List(Pointer(Char), Array(UInt8, "4"))))
+    first should be theSameInstanceAs second
+    tables.typeId(Pointer(Char)) should be (tables.typeId(Pointer(Char)))
+    tables.typeId(Pointer(Char)) should not be (tables.typeId(Pointer(UInt8)))
+
+    // The parts of an interned type are also interned.
+    val Function(_, List(pointer, _)) = first
+    pointer should be theSameInstanceAs tables.intern(Pointer(Char))
+  }
+
+  test("Separate runs do not share tables") {
+    val firstRun = new TypeTables
+    val secondRun = new TypeTables
+    firstRun.intern(Pointer(Char)) should not be theSameInstanceAs (secondRun.intern(Pointer(Char)))
+  }
+
+  test("Remembered subtype results are kept per environment") {
+    val tables = new TypeTables
+    val narrow = tables.environment(Map[String, Representation]("T" -> Int8))
+    val wide = tables.environment(Map[String, Representation]("T" -> Int32))
+    tables.areSubtypes(narrow, TypeVariable("T"), Int16) should be (true)
+    tables.areSubtypes(wide, TypeVariable("T"), Int16) should be (false)
+    tables.areSubtypes(narrow, TypeVariable("T"), Int16) should be (true)
+  }
+
+  test("Remembered results are reused by later queries") {
+    val tables = new TypeTables
+    val delta = tables.environment(Map[String, Representation]())
+    tables.areSubtypes(delta, bigStructure("left", 100, Int8), bigStructure("right", 100, Int16)) should be (true)
+    val remembered = tables.rememberedResults
+    remembered should be > 0
+
+    // Equal types built separately have the same IDs, so the query is answered from the table.
+    tables.areSubtypes(delta, bigStructure("left", 100, Int8), bigStructure("right", 100, Int16)) should be (true)
+    tables.rememberedResults should be (remembered)
+
+    tables.leastUpperBound(Int8, Int16) should be (Int16)
+    tables.leastUpperBound(Int8, Int16) should be (Int16)
+    tables.rememberedResults should be (remembered + 1)
+  }
+
+  test("Subtyping") {
+    val delta = Map[String, Representation]("T" -> Int8, "U" -> Int32)
+    areSubtypes(delta, Int8, Int32) should be (true)
+    areSubtypes(delta, Int32, Int8) should be (false)
+    areSubtypes(delta, TypeVariable("T"), TypeVariable("U")) should be (true)
+    areSubtypes(delta, TypeVariable("U"), TypeVariable("T")) should be (false)
+    areSubtypes(delta, Array(Char, "10"), Array(Char, "")) should be (true)
+    areSubtypes(delta, UInt16, Top) should be (true)
+
+    val wide = Structure("wide", List(("a", Int8), ("b", Int16)))
+    val narrow = Structure("narrow", List(("a", Int16)))
+    areSubtypes(delta, wide, narrow) should be (true)
+    areSubtypes(delta, narrow, wide) should be (false)
+    areSubtypes(delta, Structure("other", List(("c", Int8))), narrow) should be (false)
+  }
+
+  test("Subtyping of large structures") {
+    val memberCount = 20000
+    val delta = Map[String, Representation]()
+    areSubtypes(delta, bigStructure("left", memberCount, Int8), bigStructure("right", memberCount, Int16)) should be (true)
+    areSubtypes(delta, bigStructure("left", memberCount, Int16), bigStructure("right", memberCount, Int8)) should be (false)
+    memberType(bigStructure("s", memberCount, UInt32), "m" + (memberCount - 1)) should be (UInt32)
+  }
+
+  test("Least upper bounds") {
+    leastUpperBound(Int8, Int16) should be (Int16)
+    leastUpperBound(UInt32, UInt8) should be (UInt32)
+    a [NesCTypeException] should be thrownBy leastUpperBound(Int8, UInt8)
+
+    val tables = new TypeTables
+    tables.leastUpperBound(Pointer(Char), Pointer(Char)) should be theSameInstanceAs tables.intern(Pointer(Char))
+    a [NesCTypeException] should be thrownBy tables.leastUpperBound(Int8, UInt8)
+    a [NesCTypeException] should be thrownBy tables.leastUpperBound(Int8, UInt8)
+  }
+
+}
@@ -0,0 +1,78 @@
+package edu.vtc.nesc
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import edu.vtc.nesc.parser.NesCLexer
+
+class ScopeIndexSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private def node(tokenType: Int, text: String, symbols: Option[Symbols] = None): ASTNode =
+    ASTNode(tokenType, text, Vector(), None, symbols)
+
+  private def symbols(structures: Map[String, NesCTypes.Representation] = Map(),
+                      types     : Map[String, NesCTypes.Representation] = Map(),
+                      variables : Map[String, NesCTypes.Representation] = Map()): Option[Symbols] =
+    Some(Symbols(structures, types, variables))
+
+  /** Creates a file scope holding a function scope holding a block scope. */
+  private def nestedScopes(): (ASTNode, Seq[ASTNode]) = {
+    val file = node(NesCLexer.FILE, "FILE", symbols(
+      structures = Map("s" -> NesCTypes.Structure("s", List())),
+      types      = Map("t" -> NesCTypes.Int8),
+      variables  = Map("x" -> NesCTypes.Int16, "y" -> NesCTypes.Int16)))
+    val function = node(NesCLexer.FUNCTION_DEFINITION, "FUNCTION_DEFINITION", symbols(
+      variables = Map("y" -> NesCTypes.UInt8, "z" -> NesCTypes.Char)))
+    val statement = node(NesCLexer.COMPOUND_STATEMENT, "{")
+    val block = node(NesCLexer.COMPOUND_STATEMENT, "{", symbols(
+      types     = Map("t" -> NesCTypes.UInt32),
+      variables = Map("z" -> NesCTypes.Int32)))
+    val use = node(NesCLexer.RAW_IDENTIFIER, "z")
+    file.addChild(function)
+    function.addChild(statement)
+    statement.addChild(block)
+    block.addChild(use)
+    (file, Seq(file, function, statement, block, use))
+  }
+
+
+  test("Lookups match Symbols") {
+    val (root, nodes) = nestedScopes()
+    val index = new ScopeIndex(root)
+    index.size should be (nodes.length)
+    for (start <- nodes; name <- Seq("s", "t", "x", "y", "z", "missing"); round <- 1 to 2) {
+      withClue(start.text + " " + name + " round " + round) {
+        index.lookupVariable(start, name) should be (Symbols.lookupVariable(start, name))
+        index.lookupTypeVariable(start, name) should be (Symbols.lookupTypeVariable(start, name))
+        index.lookupStructVariable(start, name) should be (Symbols.lookupStructVariable(start, name))
+      }
+    }
+    index.lookupVariable(nodes(4), "y") should be (NesCTypes.UInt8)
+    index.lookupVariable(nodes(4), "missing") should be (NesCTypes.Uninit)
+  }
+
+  test("Indexing a subtree includes the scopes around it") {
+    val (_, nodes) = nestedScopes()
+    val index = new ScopeIndex(nodes(2))
+    index.size should be (3)
+    index.lookupVariable(nodes(2), "x") should be (NesCTypes.Int16)
+    index.lookupVariable(nodes(4), "z") should be (NesCTypes.Int32)
+
+    // Nodes outside the subtree are looked up directly.
+    index.lookupVariable(nodes(1), "z") should be (NesCTypes.Char)
+  }
+
+  test("Very deep trees") {
+    val root = node(NesCLexer.FILE, "FILE", symbols(variables = Map("x" -> NesCTypes.Int16)))
+    var current = root
+    for (i <- 1 to 100000) {
+      val child = node(NesCLexer.COMPOUND_STATEMENT, "{", if (i % 1000 == 0) symbols() else None)
+      current.addChild(child)
+      current = child
+    }
+    val index = new ScopeIndex(root)
+    index.lookupVariable(current, "x") should be (NesCTypes.Int16)
+    index.lookupVariable(current, "missing") should be (NesCTypes.Uninit)
+  }
+
+}
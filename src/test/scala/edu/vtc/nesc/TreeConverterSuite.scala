@@ -0,0 +1,68 @@
+package edu.vtc.nesc
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import org.antlr.runtime.CommonToken
+import org.antlr.runtime.tree.CommonTree
+import edu.vtc.nesc.parser.NesCLexer
+
+class TreeConverterSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  // Large enough that a quadratic conversion or a recursive one would fail.
+  private val wideCount = 200000
+  private val deepCount = 200000
+
+  private def leaf(text: String): CommonTree = new CommonTree(new CommonToken(NesCLexer.RAW_IDENTIFIER, text))
+
+  /** Creates a node with a long list of children, like a file with many declarations. */
+  private def wideTree(): CommonTree = {
+    val root = leaf("root")
+    for (i <- 0 until wideCount) root.addChild(leaf("x" + i))
+    root
+  }
+
+  /** Creates a tree that is a single chain of nodes, like a long else-if ladder. */
+  private def deepTree(): CommonTree = {
+    val root = leaf("0")
+    var current = root
+    for (i <- 1 until deepCount) {
+      val child = leaf(i.toString)
+      current.addChild(child)
+      current = child
+    }
+    root
+  }
+
+
+  test("Very wide trees") {
+    val converted = TreeConverter.ANTLRToScala(wideTree())
+    converted.children.length should be (wideCount)
+    converted.children.last.text should be ("x" + (wideCount - 1))
+    converted.children.head.parent.get should be theSameInstanceAs converted
+
+    val restored = TreeConverter.scalaToANTLR(converted)
+    restored.getChildCount should be (wideCount)
+    for (i <- 0 until wideCount) restored.getChild(i).getText should be ("x" + i)
+  }
+
+  test("Very deep trees") {
+    var node = TreeConverter.ANTLRToScala(deepTree())
+    for (i <- 1 until deepCount) {
+      node.children.length should be (1)
+      node.children.head.parent.get should be theSameInstanceAs node
+      node = node.children.head
+      node.text should be (i.toString)
+    }
+    node.children should be (empty)
+
+    var tree: org.antlr.runtime.tree.Tree = TreeConverter.scalaToANTLR(TreeConverter.ANTLRToScala(deepTree()))
+    for (i <- 1 until deepCount) {
+      tree.getChildCount should be (1)
+      tree = tree.getChild(0)
+      tree.getText should be (i.toString)
+    }
+    tree.getChildCount should be (0)
+  }
+
+}
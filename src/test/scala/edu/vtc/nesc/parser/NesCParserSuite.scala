@@ -3,8 +3,9 @@ package edu.vtc.nesc.parser
 import org.scalatest._
 import funsuite._
 import matchers._
-import java.io.{FileInputStream, File}
-import org.antlr.runtime.{CommonTokenStream, ANTLRInputStream}
+import java.io.File
+import org.antlr.runtime.{ANTLRStringStream, CommonTokenStream}
+import edu.vtc.nesc.MappedCharStream
 
 class NesCParserSuite extends AnyFunSuite with Assertions with should.Matchers {
   
@@ -59,17 +60,11 @@ class NesCParserSuite extends AnyFunSuite with Assertions with should.Matchers {
     
     for (testCaseName <- testCaseNames) {
       val testCase = new File(syntaxPositive, testCaseName)
-      val testFile = new FileInputStream(testCase.getPath)
-      try {
-        val lex = new NesCLexer(new ANTLRInputStream(testFile))
-        val tokens = new CommonTokenStream(lex)
-        val parser = new NesCParser(tokens)
-        parser.setSymbols(symbolInitializer())
-        doParse(parser)
-      }
-      finally {
-        testFile.close()
-      }
+      val lex = new NesCLexer(MappedCharStream(testCase))
+      val tokens = new CommonTokenStream(lex)
+      val parser = new NesCParser(tokens)
+      parser.setSymbols(symbolInitializer())
+      doParse(parser)
     }
   }
 
@@ -182,6 +177,28 @@ class NesCParserSuite extends AnyFunSuite with Assertions with should.Matchers {
     doStatementTests(testCaseNames)
   }
 
+  test("Nested If Statement Test") {
+    // Each else clause is found by backtracking over the statement before it. Without
+    // memoization the time doubles with each level of nesting.
+    val depth = 40
+    val text = new StringBuilder
+    for (i <- 0 until depth) text.append(s"if (x > $i) { x = x - 1; ")
+    text.append("x = 0;")
+    for (i <- 0 until depth) text.append(s" } else { x = $i; }")
+
+    def parseStatement(text: String): Int = {
+      val parser = new NesCParser(new CommonTokenStream(new NesCLexer(new ANTLRStringStream(text))))
+      parser.setSymbols(initializeEmptySymbols())
+      parser.statement()
+      parser.getNumberOfSyntaxErrors
+    }
+
+    parseStatement(text.toString) should be (0)
+
+    // A statement that was tried before a type was declared must be tried again afterwards.
+    parseStatement("{ typedef int T; if (x) { T * const p = 0; } else { T * q; } }") should be (0)
+  }
+
   test("Basic Declaration Test") {
     val testCaseNames =
       Array("Declaration0000.nc", "Declaration0010.nc", "Declaration0020.nc", "Declaration0030.nc")
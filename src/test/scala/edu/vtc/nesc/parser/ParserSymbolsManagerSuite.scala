@@ -0,0 +1,128 @@
+package edu.vtc.nesc.parser
+
+import org.scalatest._
+import funsuite._
+import matchers._
+
+class ParserSymbolsManagerSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  test("Inner names hide outer names until their scope is exited") {
+    val symbols = new ParserSymbolsManager
+    symbols.addType("T")
+    symbols.isType("T") should be (true)
+
+    symbols.enterScope()
+    symbols.addIdentifier("T")
+    symbols.isType("T") should be (false)
+    symbols.enterScope()
+    symbols.addType("T")
+    symbols.isType("T") should be (true)
+    symbols.exitScope()
+    symbols.isType("T") should be (false)
+    symbols.exitScope()
+    symbols.isType("T") should be (true)
+
+    // Names bound only in an inner scope disappear with it.
+    symbols.enterScope()
+    symbols.addType("U")
+    symbols.isType("U") should be (true)
+    symbols.exitScope()
+    symbols.isType("U") should be (false)
+    symbols.scopeDepth should be (1)
+  }
+
+  test("Redefinitions in the same scope are ignored") {
+    val symbols = new ParserSymbolsManager
+    symbols.addType("T")
+    symbols.addIdentifier("T")
+    symbols.isType("T") should be (true)
+    symbols.addIdentifier("x")
+    symbols.addType("x")
+    symbols.isType("x") should be (false)
+
+    // Exiting a scope removes only its own binding of a redefined name.
+    symbols.enterScope()
+    symbols.addIdentifier("T")
+    symbols.addType("T")
+    symbols.isType("T") should be (false)
+    symbols.exitScope()
+    symbols.isType("T") should be (true)
+  }
+
+  test("Scopes can be nested deeply") {
+    val depth = 100
+    val symbols = new ParserSymbolsManager
+    for (level <- 1 to depth) {
+      symbols.enterScope()
+      if (level % 2 == 0) symbols.addType("T") else symbols.addIdentifier("T")
+      symbols.addType("T" + level)
+    }
+    symbols.scopeDepth should be (depth + 1)
+    for (level <- depth to 1 by -1) {
+      symbols.isType("T") should be (level % 2 == 0)
+      symbols.isType("T" + level) should be (true)
+      symbols.exitScope()
+      symbols.isType("T" + level) should be (false)
+    }
+    symbols.isType("T") should be (false)
+    symbols.scopeDepth should be (1)
+  }
+
+  test("The global fingerprint doesn't depend on the order of the names") {
+    val first = new ParserSymbolsManager
+    first.addType("a_t")
+    first.addIdentifier("b")
+    first.addType("c_t")
+    val second = new ParserSymbolsManager
+    second.addType("c_t")
+    second.addIdentifier("b")
+    second.addType("a_t")
+    second.globalFingerprint should be (first.globalFingerprint)
+
+    // Names in inner scopes and ignored redefinitions don't count.
+    second.enterScope()
+    second.addType("d_t")
+    second.globalFingerprint should be (first.globalFingerprint)
+    second.exitScope()
+    second.addIdentifier("a_t")
+    second.globalFingerprint should be (first.globalFingerprint)
+
+    // A name that is a type in one scope and not in the other does count.
+    val third = new ParserSymbolsManager
+    third.addType("a_t")
+    third.addType("b")
+    third.addType("c_t")
+    third.globalFingerprint should not be (first.globalFingerprint)
+  }
+
+  test("Replaying recorded names reproduces the global scope") {
+    val recorded = new ParserSymbolsManager
+    recorded.addType("a_t")
+    val before = recorded.saveGlobalScope()
+    recorded.startRecording()
+    recorded.addType("b_t")
+    recorded.addIdentifier("c")
+    recorded.enterScope()
+    recorded.addType("inner_t")
+    recorded.exitScope()
+    recorded.addIdentifier("a_t")
+    val additions = recorded.stopRecording()
+    recorded.addType("after_t")
+
+    // Only additions to the global scope are recorded, including ignored redefinitions.
+    additions.size should be (3)
+
+    val replayed = new ParserSymbolsManager
+    replayed.addType("a_t")
+    replayed.hasGlobalScope(before) should be (true)
+    replayed.replay(additions)
+    replayed.isType("a_t") should be (true)
+    replayed.isType("b_t") should be (true)
+    replayed.isType("c") should be (false)
+    replayed.isType("inner_t") should be (false)
+    replayed.addType("after_t")
+    replayed.globalFingerprint should be (recorded.globalFingerprint)
+    replayed.hasGlobalScope(recorded.saveGlobalScope()) should be (true)
+  }
+
+}
@@ -0,0 +1,80 @@
+package edu.vtc.nesc.parser
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import org.antlr.runtime.CommonTokenStream
+import edu.vtc.nesc.{ASTNode, ASTNodeAdaptor, MappedCharStream}
+
+class SyntaxViewerSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private def parse(text: String): ASTNode = {
+    val input = MappedCharStream(text.getBytes(StandardCharsets.UTF_8), "test")
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(input)))
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    parser.setSymbols(new ParserSymbolsManager)
+    parser.nesC_file().getTree.asInstanceOf[ASTNode]
+  }
+
+  private def render(tree: ASTNode): String = {
+    val output = new Emitter()
+    new SyntaxViewer(output, tree).rewrite()
+    output.toString
+  }
+
+
+  test("Large files are rendered as if in order") {
+    // Declarations from a header are left out after the #include is written.
+    val text = new StringBuilder
+    for (i <- 0 until 1000) text.append(s"int x$i = $i;\n")
+    text.append("# 1 \"header.h\" 1\n")
+    for (i <- 0 until 300) text.append(s"char h$i;\n")
+    text.append("# 2 \"main.nc\" 2\n")
+    for (i <- 0 until 1000) text.append(s"void f$i(int a) { a = a + $i; }\n")
+    text.append("interface X { }\n")
+    val file = parse(text.toString)
+    file.children.length should be > 2000
+
+    // Each declaration rendered separately, with the same rules for line directives.
+    val expected = new StringBuilder
+    var suppressed = false
+    for (child <- file.children) {
+      if (child.tokenType == NesCLexer.LINE_DIRECTIVE) {
+        val header = child.children(0).text.endsWith(".h\"")
+        if (header && !suppressed) expected.append("#include " + child.children(0).text + "\n")
+        suppressed = header
+      }
+      else if (!suppressed) {
+        expected.append(render(ASTNode(NesCLexer.NULL, "NULL", Vector(child), None, None)).dropRight(1))
+      }
+    }
+    expected.append("\n")
+
+    val actual = render(file)
+    actual should be (expected.toString)
+    actual should include ("x999")
+    actual should not include ("h299")
+  }
+
+  test("Text is written to files in blocks") {
+    val file = File.createTempFile("emitter", ".nc")
+    try {
+      val line = "char* s = \"été\";\n"
+      val output = Emitter.open(file)
+      try {
+        for (_ <- 0 until 20000) output.print(line)
+      }
+      finally {
+        output.close()
+      }
+      new String(Files.readAllBytes(file.toPath), StandardCharsets.UTF_8) should be (line * 20000)
+    }
+    finally {
+      file.delete(): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+}
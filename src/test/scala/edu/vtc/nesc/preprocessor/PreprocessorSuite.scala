@@ -0,0 +1,88 @@
+package edu.vtc.nesc.preprocessor
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.{ByteArrayOutputStream, File, PrintStream}
+
+class PreprocessorSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val testRoot         = new File("testData")
+  private val testPreprocessor = new File(testRoot, "Preprocessor")
+  private val includeFolder    = new File(testPreprocessor, "include")
+
+  /**
+   * Removes line markers and blank lines from preprocessed text and joins the remaining lines.
+   * This makes it possible to check the tokens produced without depending on exactly how the
+   * preprocessor lays out its output.
+   */
+  private def significantText(text: String): String = {
+    text.split("\n").filterNot(line => line.trim.isEmpty || line.startsWith("# ")).map(_.trim).mkString(" ")
+  }
+
+  private def preprocess(preprocessor: Preprocessor, fileName: String): (Preprocessor.Result, String) = {
+    val diagnostics = new ByteArrayOutputStream()
+    val log = new PrintStream(diagnostics)
+    val result = preprocessor.preprocess(new File(testPreprocessor, fileName), log)
+    log.flush()
+    (result, diagnostics.toString)
+  }
+
+
+  test("Macro expansion") {
+    val preprocessor = new Preprocessor(Seq(includeFolder.getPath), Seq(), Seq())
+    val (result, diagnostics) = preprocess(preprocessor, "Expansion.nc")
+    assert(result.errorCount == 0, diagnostics)
+    significantText(result.text) should be (
+      "typedef unsigned char uint8_t; " +
+      "int squared = ((1 + 2) * (1 + 2)); " +
+      "char *name = \"a \\\"b\\\"\"; " +
+      "int value1 = 11; " +
+      "void f(void) { printf(\"none\"); printf(\"two %d %d\",1, 2); }")
+  }
+
+
+  test("Line markers") {
+    val preprocessor = new Preprocessor(Seq(includeFolder.getPath), Seq(), Seq())
+    val (result, _) = preprocess(preprocessor, "Expansion.nc")
+    val markers = result.text.split("\n").filter(_.startsWith("# ")).toSeq
+    val headerName = includeFolder.getPath + "/defs.h"
+    val mainName = new File(testPreprocessor, "Expansion.nc").getPath
+    markers.take(3) should be (Seq(
+      "# 1 \"" + mainName + "\"",
+      "# 1 \"" + headerName + "\" 1",
+      "# 2 \"" + mainName + "\" 2"))
+  }
+
+
+  test("Header reuse") {
+    val preprocessor = new Preprocessor(Seq(includeFolder.getPath), Seq(), Seq())
+    val (first, _) = preprocess(preprocessor, "Expansion.nc")
+    preprocessor.headerCacheHits should be (0)
+    val (second, _) = preprocess(preprocessor, "Expansion.nc")
+    preprocessor.headerCacheHits should be (1)
+    second.text should be (first.text)
+
+    // A different macro table prevents reuse.
+    val configured = new Preprocessor(Seq(includeFolder.getPath), Seq(), Seq("DEFS_H"))
+    val (guarded, _) = preprocess(configured, "Expansion.nc")
+    configured.headerCacheHits should be (0)
+    significantText(guarded.text) should not include ("uint8_t")
+  }
+
+
+  test("Condition evaluation") {
+    def evaluate(expression: String): Long =
+      ConditionEvaluator.evaluate(PPToken.tokenize(expression).toSeq)
+
+    evaluate("1 + 2 * 3") should be (7)
+    evaluate("(1 + 2) * 3") should be (9)
+    evaluate("0x10 >> 2 == 4 && 'A' == 65") should be (1)
+    evaluate("UNDEFINED || 010 == 8") should be (1)
+    evaluate("1 ? 2 : 3") should be (2)
+    evaluate("-1 < 0") should be (1)
+    an [ConditionEvaluator.ConditionException] should be thrownBy evaluate("1 / 0")
+    an [ConditionEvaluator.ConditionException] should be thrownBy evaluate("(1")
+  }
+
+}
@@ -0,0 +1,75 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.ByteBuffer
+import java.nio.file.Files
+import org.antlr.runtime.ANTLRFileStream
+import edu.vtc.nesc.ASTNode
+
+class ASTCacheSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val syntaxPositive = new File(new File("testData", "Syntax"), "Positive")
+
+  private def nesCFiles: Seq[File] = syntaxPositive.listFiles.filter(_.getName.endsWith(".nc")).toSeq.sortBy(_.getName)
+
+  /** Describes a tree including the position of each node and the links between nodes. */
+  private def describe(node: ASTNode): String = {
+    node.children.zipWithIndex foreach { case (child, i) =>
+      child.parent should be (Some(node))
+      child.getChildIndex should be (i)
+    }
+    node.toString + "@" + node.line + ":" + node.positionInLine + node.children.map(describe).mkString("(", " ", ")")
+  }
+
+  private def parseFile(file: File): HeaderRegionCache.FileParse =
+    new HeaderRegionCache().parseFile(new ANTLRFileStream(file.getPath), () => Main.initializeGlobalSymbols())
+
+
+  test("Trees survive encoding") {
+    for (file <- nesCFiles) {
+      val parse = parseFile(file)
+      val Some((tree, tokens)) = ASTCache.decode(ByteBuffer.wrap(ASTCache.encode(parse.tree, parse.tokenCount)))
+      withClue(file.getName) {
+        describe(tree) should be (describe(parse.tree))
+        tokens should be (parse.tokenCount)
+      }
+    }
+  }
+
+  test("Stored trees are loaded") {
+    val folder = Files.createTempDirectory("nessie-ast").toFile
+    val cache = new ASTCache(new File(folder, "cache"))
+    val file = nesCFiles.head
+    val parse = parseFile(file)
+    val hash = BuildManifest.hashBytes(Files.readAllBytes(file.toPath))
+
+    cache.load(hash) should be (None)
+    cache.store(hash, parse.tree, parse.tokenCount)
+    val Some((tree, tokens)) = cache.load(hash)
+    describe(tree) should be (describe(parse.tree))
+    tokens should be (parse.tokenCount)
+    cache.treeHits should be (1)
+    cache.treeMisses should be (1)
+
+    // A damaged file is treated as missing.
+    val treeFile = new File(cache.folder, hash + ".ast")
+    Files.write(treeFile.toPath, Files.readAllBytes(treeFile.toPath).take(40))
+    cache.load(hash) should be (None)
+    Files.write(treeFile.toPath, Array[Byte](1, 2, 3))
+    cache.load(hash) should be (None)
+  }
+
+  test("Trees built by another parser are not loaded") {
+    val parse = parseFile(nesCFiles.head)
+    val encoded = ASTCache.encode(parse.tree, parse.tokenCount)
+    ASTCache.decode(ByteBuffer.wrap(encoded)) should not be (None)
+
+    // The fingerprint follows the magic number and the version.
+    encoded(8) = (encoded(8) ^ 1).toByte
+    ASTCache.decode(ByteBuffer.wrap(encoded)) should be (None)
+  }
+
+}
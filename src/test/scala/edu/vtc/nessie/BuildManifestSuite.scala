@@ -0,0 +1,127 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+class BuildManifestSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val settingsHash = BuildManifest.hashSettings(Map("Preprocessor" -> Some("internal")))
+
+  /** Runs a test with an empty output folder. */
+  private def withOutputFolder(test: File => Any): Unit = {
+    val outputFolder = Files.createTempDirectory("nessie-manifest").toFile
+    try {
+      test(outputFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+    finally {
+      FileManager.deleteFolder(outputFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+  /** Writes an output file and records it in the manifest as produced from the given text. */
+  private def produce(manifest: BuildManifest, outputFolder: File, fileName: String, text: String): Unit = {
+    Files.write(new File(outputFolder, fileName).toPath, text.getBytes(StandardCharsets.UTF_8))
+    manifest.record(fileName, hash(text))
+  }
+
+  private def hash(text: String): String = BuildManifest.hashBytes(text.getBytes(StandardCharsets.UTF_8))
+
+
+  test("Unchanged files are up to date") {
+    withOutputFolder { outputFolder =>
+      val manifest = new BuildManifest(outputFolder, settingsHash)
+      manifest.load() should be (false)
+      produce(manifest, outputFolder, "A.nc", "interface A { }")
+      manifest.save()
+
+      val reloaded = new BuildManifest(outputFolder, settingsHash)
+      reloaded.load() should be (true)
+      reloaded.isUpToDate("A.nc", hash("interface A { }")) should be (true)
+      reloaded.hasOutput("A.nc") should be (true)
+
+      // An output that was removed must be produced again.
+      new File(outputFolder, "A.nc").delete() should be (true)
+      reloaded.isUpToDate("A.nc", hash("interface A { }")) should be (false)
+    }
+  }
+
+  test("Files are rebuilt when their content hash changes") {
+    withOutputFolder { outputFolder =>
+      val manifest = new BuildManifest(outputFolder, settingsHash)
+      produce(manifest, outputFolder, "A.nc", "interface A { }")
+      manifest.save()
+
+      val reloaded = new BuildManifest(outputFolder, settingsHash)
+      reloaded.load() should be (true)
+      reloaded.isUpToDate("A.nc", hash("interface A { command void f(); }")) should be (false)
+
+      // A forgotten entry is not up to date even if the text is the same.
+      reloaded.forget("A.nc")
+      reloaded.isUpToDate("A.nc", hash("interface A { }")) should be (false)
+      reloaded.hasOutput("A.nc") should be (false)
+    }
+  }
+
+  test("Everything is rebuilt when the settings hash changes") {
+    withOutputFolder { outputFolder =>
+      val manifest = new BuildManifest(outputFolder, settingsHash)
+      produce(manifest, outputFolder, "A.nc", "interface A { }")
+      manifest.save()
+
+      val otherSettings = BuildManifest.hashSettings(Map("Preprocessor" -> Some("cpp")))
+      otherSettings should not be (settingsHash)
+      val reordered = BuildManifest.hashSettings(Map("B" -> None, "A" -> Some("1")))
+      BuildManifest.hashSettings(Map("A" -> Some("1"), "B" -> None)) should be (reordered)
+
+      val reloaded = new BuildManifest(outputFolder, otherSettings)
+      reloaded.load() should be (false)
+      reloaded.isUpToDate("A.nc", hash("interface A { }")) should be (false)
+      reloaded.hasOutput("A.nc") should be (false)
+    }
+  }
+
+  test("Everything is rebuilt when the compiler changes") {
+    withOutputFolder { outputFolder =>
+      val manifest = new BuildManifest(outputFolder, settingsHash)
+      produce(manifest, outputFolder, "A.nc", "interface A { }")
+      manifest.save()
+
+      val settings = Map("Preprocessor" -> Some("internal"))
+      BuildManifest.hashSettings(settings, BuildManifest.CompilerFingerprint) should be (settingsHash)
+      BuildManifest.CompilerFingerprint should have length 64
+      val otherCompiler = BuildManifest.hashSettings(settings, hash("another build of Nessie"))
+      otherCompiler should not be (settingsHash)
+
+      val reloaded = new BuildManifest(outputFolder, otherCompiler)
+      reloaded.load() should be (false)
+      reloaded.isUpToDate("A.nc", hash("interface A { }")) should be (false)
+    }
+  }
+
+  test("Outputs of removed files are deleted") {
+    withOutputFolder { outputFolder =>
+      val manifest = new BuildManifest(outputFolder, settingsHash)
+      produce(manifest, outputFolder, "A.nc", "interface A { }")
+      produce(manifest, outputFolder, "B.nc", "interface B { }")
+      manifest.save()
+
+      val reloaded = new BuildManifest(outputFolder, settingsHash)
+      reloaded.load() should be (true)
+      reloaded.removeStaleOutputs(Array("A.nc"))
+      new File(outputFolder, "A.nc").isFile should be (true)
+      new File(outputFolder, "B.nc").exists() should be (false)
+      reloaded.hasOutput("B.nc") should be (false)
+      reloaded.save()
+
+      val afterRemoval = new BuildManifest(outputFolder, settingsHash)
+      afterRemoval.load() should be (true)
+      afterRemoval.hasOutput("A.nc") should be (true)
+      afterRemoval.hasOutput("B.nc") should be (false)
+    }
+  }
+
+}
@@ -0,0 +1,45 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+class BuildStatisticsSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  test("Phases are measured and reported") {
+    val statistics = new BuildStatistics
+    val slow = statistics.file("Slow \"1\".nc")
+    slow.measure("parse") { Thread.sleep(20) }
+    slow.measure("parse") { Thread.sleep(20) }
+    slow.measure("rewrite") { new Array[Byte](1 << 20).length } should be (1 << 20)
+    slow.status = BuildStatistics.Compiled
+    slow.tokens = 12
+    statistics.file("Skipped.nc")
+
+    slow.phases.keys.toSeq should be (Seq("parse", "rewrite"))
+    slow.phases("parse").wallNanos should be >= 40000000L
+    slow.phases("rewrite").peakHeapBytes should be >= (1L << 20)
+    an [IllegalStateException] should be thrownBy {
+      slow.measure("process") { throw new IllegalStateException }
+    }
+    slow.phases.keys.toSeq should be (Seq("parse", "rewrite", "process"))
+
+    val report = File.createTempFile("nessie-stats", ".json")
+    try {
+      statistics.writeJson(report)
+      val text = new String(Files.readAllBytes(report.toPath), StandardCharsets.UTF_8)
+      text should startWith ("{")
+      text should include ("\"file\": \"Slow \\\"1\\\".nc\"")
+      text should include ("\"status\": \"skipped\"")
+      text should include ("\"tokens\": 12")
+      text.indexOf("\"slowest\"") should be < text.indexOf("\"Skipped.nc\"")
+    }
+    finally {
+      report.delete(): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+}
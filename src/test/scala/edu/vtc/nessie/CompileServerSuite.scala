@@ -0,0 +1,111 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.{ByteArrayOutputStream, File, IOException}
+import java.net.ServerSocket
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermissions
+
+class CompileServerSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private def freePort(): Int = {
+    val socket = new ServerSocket(0)
+    try socket.getLocalPort finally socket.close()
+  }
+
+  private def startServer(port: Int): Unit = {
+    // A token left by an earlier server on this port would be sent until the new one is written.
+    CompileServer.tokenFile(port).delete()
+    val serverOutput = new java.io.PrintStream(new ByteArrayOutputStream())
+    val thread = new Thread(() => Main.run(Array("-server=" + port), None, serverOutput): @annotation.nowarn("msg=discarded non-Unit value"))
+    thread.setDaemon(true)
+    thread.start()
+  }
+
+  private def request(port: Int, directory: File, args: String*): (Int, String) = {
+    val output = new ByteArrayOutputStream()
+    val status = CompileServer.request(port, directory, args.toArray, output)
+    (status, output.toString("UTF-8"))
+  }
+
+
+  /** Sends a request that asks for the settings, waiting for the server to start. */
+  private def awaitServer(port: Int, directory: File): (Int, String) = {
+    var settings: (Int, String) = null
+    var attempts = 0
+    while (settings == null) {
+      try {
+        settings = request(port, directory, "-s", "-config=/dev/null")
+      }
+      catch {
+        case e: IOException =>
+          attempts += 1
+          if (attempts == 100) throw e
+          Thread.sleep(100)
+      }
+    }
+    settings
+  }
+
+
+  test("Requests run in the client's folder") {
+    val port = freePort()
+    startServer(port)
+
+    val workFolder = Files.createTempDirectory("nessie-server").toFile
+    val inputFolder = new File(workFolder, "in")
+    inputFolder.mkdir() should be (true)
+    val source = new File(new File(new File("testData", "Syntax"), "Positive"), "Configuration0100.nc")
+    Files.copy(source.toPath, new File(inputFolder, "X.nc").toPath)
+
+    try {
+      val settings = awaitServer(port, workFolder)
+      settings._1 should be (1)
+      settings._2 should include ("Nessie Settings")
+
+      for (round <- 1 to 2) {
+        val (status, output) =
+          request(port, workFolder, "-i=in", "-o=out", "-config=/dev/null", "-p=internal", "-stream", "-j=1")
+        withClue(output) {
+          status should be (0)
+          new File(new File(workFolder, "out"), "X.nc").isFile should be (true)
+          if (round == 2) output should include ("UP TO DATE")
+        }
+      }
+
+      val (status, output) = request(port, workFolder, "-bogus")
+      status should be (1)
+      output should include ("Unrecognized option")
+    }
+    finally {
+      CompileServer.tokenFile(port).delete()
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+  test("Requests without the server's token are rejected") {
+    val port = freePort()
+    startServer(port)
+
+    val workFolder = Files.createTempDirectory("nessie-server").toFile
+    try {
+      awaitServer(port, workFolder)._2 should include ("Nessie Settings")
+      if (CompileServer.tokenFile(port).toPath.getFileSystem.supportedFileAttributeViews.contains("posix")) {
+        PosixFilePermissions.toString(Files.getPosixFilePermissions(CompileServer.tokenFile(port).toPath)) should be ("rw-------")
+      }
+
+      val output = new ByteArrayOutputStream()
+      val status = CompileServer.request(port, "guess", workFolder, Array("-s", "-config=/dev/null"), output)
+      status should be (1)
+      output.toString("UTF-8") should include ("Request Rejected")
+      output.toString("UTF-8") should not include ("Nessie Settings")
+    }
+    finally {
+      CompileServer.tokenFile(port).delete()
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+}
@@ -0,0 +1,100 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import org.antlr.runtime.{ANTLRStringStream, CommonTokenStream}
+import edu.vtc.nesc.{ASTNode, ASTNodeAdaptor, MappedCharStream}
+import edu.vtc.nesc.parser.{NesCLexer, NesCParser, ParserSymbolsManager}
+
+class DependencyGraphSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private def parse(text: String): ASTNode = {
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(new ANTLRStringStream(text))))
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    parser.setSymbols(new ParserSymbolsManager())
+    parser.nesC_file().getTree.asInstanceOf[ASTNode]
+  }
+
+  private def withFolder[T](body: File => T): T = {
+    val folder = Files.createTempDirectory("nessie-deps").toFile
+    try body(folder)
+    finally FileManager.deleteFolder(folder): @annotation.nowarn("msg=discarded non-Unit value")
+  }
+
+
+  test("Line markers name the included files") {
+    val text =
+      "# 0 \"<built-in>\"\n" +
+      "# 1 \"in/X.nc\"\n" +
+      "# 1 \"/usr/include/a b.h\" 1 3 4\n" +
+      "int x;\n" +
+      "#line 7 \"in\\\\y.h\"\n" +
+      "# 2 \"in/X.nc\" 2\n" +
+      "interface X { }\n"
+    val expected = Seq("in/X.nc", "/usr/include/a b.h", "in\\y.h")
+    DependencyGraph.includedFiles(text.getBytes(StandardCharsets.US_ASCII)) should be (expected)
+
+    // A mapped file is read in place, and only between the buffer's position and limit.
+    withFolder { folder =>
+      val file = new File(folder, "X.nc")
+      Files.write(file.toPath, text.getBytes(StandardCharsets.US_ASCII))
+      val mapped = MappedCharStream.mapFile(file)
+      DependencyGraph.includedFiles(mapped) should be (expected)
+      BuildManifest.hashBuffer(mapped) should be (BuildManifest.hashFile(file))
+      mapped.position(text.indexOf("int x;"))
+      DependencyGraph.includedFiles(mapped) should be (Seq("in\\y.h", "in/X.nc"))
+      mapped.position() should be (text.indexOf("int x;"))
+    }
+
+    // Names are encoded in UTF-8.
+    val encoded = "# 1 \"in/X.nc\"\n# 1 \"in/\u00e9t\u00e9.h\" 1\n".getBytes(StandardCharsets.UTF_8)
+    DependencyGraph.includedFiles(encoded) should be (Seq("in/X.nc", "in/\u00e9t\u00e9.h"))
+  }
+
+  test("Interfaces and components are referenced") {
+    val module = parse("module M { uses interface Timer<int>; provides interface Boot as B; } implementation { }")
+    DependencyGraph.references(module) should be (Seq("Timer", "Boot"))
+    val configuration = parse("configuration C { } implementation { components M, new T() as U, M as N; }")
+    DependencyGraph.references(configuration) should be (Seq("M", "T"))
+  }
+
+  test("Changes reach the files that depend on them") {
+    withFolder { outputFolder =>
+      val folder = new File(outputFolder, "in")
+      folder.mkdir()
+      val header    = new File(folder, "h.h")
+      val interface = new File(folder, "I.nc")
+      Files.write(header.toPath, "#define X 1\n".getBytes(StandardCharsets.US_ASCII))
+      Files.write(interface.toPath, "interface I { }\n".getBytes(StandardCharsets.US_ASCII))
+      header.setLastModified(1000000000000L)
+      interface.setLastModified(1000000000000L)
+
+      val files = Seq("C.nc", "I.nc", "M.nc", "N.nc")
+      val graph = new DependencyGraph(outputFolder, "settings")
+      graph.staleFiles(files, Seq(folder), _ => true) should be (files.toSet)
+      graph.record("C.nc", Seq(), Seq("M", "Other"), System.currentTimeMillis)
+      graph.record("I.nc", Seq(interface), Seq(), System.currentTimeMillis)
+      graph.record("M.nc", Seq(header), Seq("I"), System.currentTimeMillis)
+      graph.record("N.nc", Seq(header), Seq(), System.currentTimeMillis)
+      graph.save()
+
+      val loaded = new DependencyGraph(outputFolder, "settings")
+      loaded.load() should be (true)
+      loaded.references("C.nc") should be (Seq("M", "Other"))
+      loaded.staleFiles(files, Seq(folder), _ => true) should be (Set())
+      loaded.staleFiles(files, Seq(folder), _ != "N.nc") should be (Set("N.nc"))
+
+      interface.setLastModified(1100000000000L)
+      loaded.staleFiles(files, Seq(folder), _ => true) should be (Set("I.nc", "M.nc", "C.nc"))
+      header.setLastModified(1100000000000L)
+      loaded.staleFiles(files, Seq(folder), _ => true) should be (Set("I.nc", "M.nc", "N.nc", "C.nc"))
+
+      new DependencyGraph(outputFolder, "other settings").load() should be (false)
+    }
+  }
+
+}
@@ -0,0 +1,31 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.file.Files
+
+class FolderWatcherSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  test("A burst of changes is reported at once") {
+    val folder = Files.createTempDirectory("nessie-watch").toFile.getCanonicalFile
+    val watcher = new FolderWatcher(Seq(folder, new File(folder, "missing")))
+    try {
+      watcher.watched should be (Seq(folder))
+      val first  = new File(folder, "A.nc")
+      val second = new File(folder, "B.nc")
+      Files.write(first.toPath, "interface A { }\n".getBytes("UTF-8"))
+      Files.write(second.toPath, "interface B { }\n".getBytes("UTF-8"))
+      Files.write(first.toPath, "interface A { command void f(); }\n".getBytes("UTF-8"))
+      val changes = watcher.awaitChanges(500)
+      changes.files should contain allOf (first, second)
+    }
+    finally {
+      watcher.close()
+      folder.listFiles().foreach(_.delete())
+      folder.delete(): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+}
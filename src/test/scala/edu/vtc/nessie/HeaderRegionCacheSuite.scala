@@ -0,0 +1,93 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import org.antlr.runtime.{ANTLRFileStream, CommonTokenStream}
+import org.antlr.runtime.tree.{CommonTree, Tree}
+import edu.vtc.nesc.parser.{NesCLexer, NesCParser, ParserSymbolsManager}
+
+class HeaderRegionCacheSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val testPositive = new File(new File("testData", "Syntax"), "Positive")
+
+  // These files contain line markers for headers included before the component.
+  private val markedFiles = Array("Configuration0300.nc", "Module0210.nc", "Module0220.nc", "Module0230.nc")
+
+  private def createSymbols(): ParserSymbolsManager = {
+    val symbols = new ParserSymbolsManager()
+    symbols.addType("error_t")
+    symbols
+  }
+
+  private def parseWhole(fileName: String): CommonTree = {
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(new ANTLRFileStream(fileName))))
+    parser.setSymbols(createSymbols())
+    parser.nesC_file().getTree.asInstanceOf[CommonTree]
+  }
+
+  /** Describes a tree including the line of each node. */
+  private def describe(tree: Tree): String = {
+    val children = (0 until tree.getChildCount).map(i => describe(tree.getChild(i)))
+    tree.getText + "@" + tree.getLine + children.mkString("(", " ", ")")
+  }
+
+
+  test("Segmented parse matches whole parse") {
+    val cache = new HeaderRegionCache
+    for (round <- 1 to 2; fileName <- markedFiles) {
+      val path = new File(testPositive, fileName).getPath
+      val expected = parseWhole(path)
+      val actual = cache.parse(new ANTLRFileStream(path), () => createSymbols())
+      withClue(fileName + " round " + round) {
+        describe(actual) should be (describe(expected))
+      }
+    }
+    cache.regionMisses should be > 0L
+    cache.regionHits should be >= cache.regionMisses
+  }
+
+  test("Only recently used regions are kept") {
+    val cache = new HeaderRegionCache(maximumRegions = 1)
+    for (fileName <- markedFiles) {
+      val path = new File(testPositive, fileName).getPath
+      val actual = cache.parse(new ANTLRFileStream(path), () => createSymbols())
+      withClue(fileName) {
+        describe(actual) should be (describe(parseWhole(path)))
+      }
+      cache.regionCount should be <= 1
+    }
+  }
+
+  test("Regions are only reused with the same global names") {
+    val cache = new HeaderRegionCache
+    val path = new File(testPositive, markedFiles(0)).getPath
+    def otherSymbols(): ParserSymbolsManager = {
+      val symbols = createSymbols()
+      symbols.addType("other_t")
+      symbols
+    }
+    cache.parse(new ANTLRFileStream(path), () => createSymbols())
+    val hits = cache.regionHits
+    cache.parse(new ANTLRFileStream(path), () => otherSymbols())
+    cache.regionHits should be (hits)
+
+    // The saved names are compared in full, whatever the order in which they were added.
+    val symbols = new ParserSymbolsManager()
+    symbols.addType("a_t")
+    symbols.addIdentifier("b")
+    val saved = symbols.saveGlobalScope()
+    val reordered = new ParserSymbolsManager()
+    reordered.addIdentifier("b")
+    reordered.addType("a_t")
+    reordered.hasGlobalScope(saved) should be (true)
+    val changed = new ParserSymbolsManager()
+    changed.addType("a_t")
+    changed.addType("b")
+    changed.hasGlobalScope(saved) should be (false)
+    reordered.addType("c_t")
+    reordered.hasGlobalScope(saved) should be (false)
+  }
+
+}
@@ -3,11 +3,204 @@ package edu.vtc.nessie
 import org.scalatest._
 import funsuite._
 import matchers._
+import java.io.{ByteArrayOutputStream, File, PrintStream}
+import java.nio.file.Files
 
 class MainSuite extends AnyFunSuite with Assertions with should.Matchers {
 
+  private val syntaxPositive = new File(new File("testData", "Syntax"), "Positive")
+
+  // Whole interfaces and configurations that Nessie compiles without errors.
+  private def programFiles: Seq[File] =
+    syntaxPositive.listFiles.toSeq
+      .filter(file => file.getName.startsWith("Interface") || file.getName.startsWith("Configuration"))
+      .sortBy(_.getName)
+
+  // Every component and interface, including modules that use headers.
+  private def componentFiles: Seq[File] =
+    syntaxPositive.listFiles.toSeq
+      .filter(file => Seq("Module", "Configuration", "Interface").exists(file.getName.startsWith))
+      .sortBy(_.getName)
+
+  /** Creates a work folder holding the given files in its "in" folder. */
+  private def createWorkFolder(files: Seq[File] = programFiles): File = {
+    val workFolder = Files.createTempDirectory("nessie-main").toFile
+    val inputFolder = new File(workFolder, "in")
+    inputFolder.mkdir() should be (true)
+    for (file <- files) Files.copy(file.toPath, new File(inputFolder, file.getName).toPath)
+    workFolder
+  }
+
+  /**
+   * Compiles the program in a work folder into the given output folder.
+   *
+   * @return The exit status and the console output of the run.
+   */
+  private def compile(workFolder: File, outputName: String, options: String*): (Int, String) = {
+    val console = new ByteArrayOutputStream()
+    val args = Array("-i=in", "-o=" + outputName, "-t=tmp-" + outputName, "-config=/dev/null", "-p=internal") ++ options
+    val status = Main.run(args, Some(workFolder), new PrintStream(console, true, "UTF-8"))
+    (status, console.toString("UTF-8"))
+  }
+
+  /** Returns the contents of the rewritten files in an output folder by name. */
+  private def outputs(outputFolder: File): Map[String, Seq[Byte]] =
+    outputFolder.listFiles.toSeq
+      .filter(_.getName.endsWith(".nc"))
+      .map(file => file.getName -> Files.readAllBytes(file.toPath).toSeq)
+      .toMap
+
+  /** Returns the names of the files in the lines of the console output with a given prefix. */
+  private def filesIn(console: String, prefix: String): Seq[String] =
+    console.linesIterator.filter(_.startsWith(prefix)).map(line => new File(line.substring(prefix.length)).getName).toSeq
+
+
   test("Dummy Test") {
     println("Hello, World!")
   }
 
+  test("Parallel compilation matches sequential compilation") {
+    val workFolder = createWorkFolder()
+    try {
+      val (sequentialStatus, sequentialConsole) = compile(workFolder, "sequential", "-j=1")
+      val (parallelStatus, parallelConsole) = compile(workFolder, "parallel", "-j=4")
+      withClue(sequentialConsole + parallelConsole) {
+        sequentialStatus should be (0)
+        parallelStatus should be (0)
+      }
+
+      val expected = outputs(new File(workFolder, "sequential"))
+      expected.keySet should be (programFiles.map(_.getName).toSet)
+      outputs(new File(workFolder, "parallel")) should be (expected)
+
+      // Messages are displayed in file order however the work is divided.
+      val fileOrder = programFiles.map(_.getName)
+      filesIn(sequentialConsole, "REWRITING ") should be (fileOrder)
+      filesIn(parallelConsole, "REWRITING ") should be (fileOrder)
+      filesIn(parallelConsole, "PARSING ") should be (fileOrder)
+    }
+    finally {
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+  test("A failed file shows its output in parallel compilation") {
+    val workFolder = createWorkFolder()
+    try {
+      // A folder named like a nesC file can't be preprocessed.
+      new File(new File(workFolder, "in"), "Broken.nc").mkdir() should be (true)
+      val (sequentialStatus, sequentialConsole) = compile(workFolder, "sequential", "-j=1")
+      val (parallelStatus, parallelConsole) = compile(workFolder, "parallel", "-j=4")
+      sequentialStatus should be (1)
+      parallelStatus should be (1)
+      filesIn(sequentialConsole, "PREPROCESSING ") should be (Seq("Broken.nc"))
+      parallelConsole should be (sequentialConsole.replace("sequential", "parallel"))
+    }
+    finally {
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+  test("Streaming matches compiling through files") {
+    val workFolder = createWorkFolder()
+    try {
+      val (fileStatus, fileConsole) = compile(workFolder, "files", "-j=1")
+      val (streamStatus, streamConsole) = compile(workFolder, "stream", "-j=1", "-stream")
+      val (keptStatus, keptConsole) = compile(workFolder, "kept", "-j=1", "-stream", "-keep")
+      withClue(fileConsole + streamConsole + keptConsole) {
+        fileStatus should be (0)
+        streamStatus should be (0)
+        keptStatus should be (0)
+      }
+
+      val expected = outputs(new File(workFolder, "files"))
+      expected.keySet should be (programFiles.map(_.getName).toSet)
+      outputs(new File(workFolder, "stream")) should be (expected)
+      outputs(new File(workFolder, "kept")) should be (expected)
+
+      // Only a kept stream leaves the preprocessed text behind, and it's the same text.
+      new File(workFolder, "tmp-stream").exists() should be (false)
+      outputs(new File(workFolder, "tmp-kept")) should be (outputs(new File(workFolder, "tmp-files")))
+    }
+    finally {
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+  test("The internal preprocessor matches cpp") {
+    val workFolder = createWorkFolder(componentFiles)
+    try {
+      compile(workFolder, "cpp", "-j=1", "-p=cpp")
+      compile(workFolder, "internal", "-j=1", "-p=internal")
+
+      val expected = outputs(new File(workFolder, "cpp"))
+      expected.keySet should be (componentFiles.map(_.getName).toSet)
+      val actual = outputs(new File(workFolder, "internal"))
+      for (name <- expected.keys.toSeq.sorted) {
+        withClue(name + ": ") {
+          new String(actual(name).toArray, "UTF-8") should be (new String(expected(name).toArray, "UTF-8"))
+        }
+      }
+    }
+    finally {
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+  test("An unusable AST cache does not stop compilation") {
+    val workFolder = createWorkFolder()
+    try {
+      // A file where the cache folder should be can't be replaced by a folder.
+      Files.write(new File(workFolder, "cache").toPath, Array[Byte]())
+      val (status, console) = compile(workFolder, "out", "-j=4", "-cache=cache")
+      withClue(console) {
+        status should be (0)
+        console should include ("unable to store")
+      }
+      outputs(new File(workFolder, "out")).keySet should be (programFiles.map(_.getName).toSet)
+    }
+    finally {
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
+  test("Only changed files are compiled again") {
+    val workFolder = createWorkFolder()
+    val inputFolder = new File(workFolder, "in")
+    val outputFolder = new File(workFolder, "out")
+    val fileOrder = programFiles.map(_.getName)
+
+    def compileAgain(options: String*): String = {
+      val (status, console) = compile(workFolder, "out", options: _*)
+      withClue(console) { status should be (0) }
+      console
+    }
+
+    try {
+      filesIn(compileAgain(), "REWRITING ") should be (fileOrder)
+
+      // Nothing changed.
+      val unchanged = compileAgain()
+      filesIn(unchanged, "REWRITING ") should be (empty)
+      filesIn(unchanged, "UP TO DATE ") should be (fileOrder)
+
+      // One file changed.
+      val changedFile = new File(inputFolder, "Interface0000.nc")
+      Files.write(changedFile.toPath, "interface Interface0000 { command void changed(); }\n".getBytes("UTF-8"))
+      filesIn(compileAgain(), "REWRITING ") should be (Seq("Interface0000.nc"))
+      new String(Files.readAllBytes(new File(outputFolder, "Interface0000.nc").toPath), "UTF-8") should include ("changed")
+
+      // One file removed.
+      new File(inputFolder, "Interface0010.nc").delete() should be (true)
+      filesIn(compileAgain(), "REWRITING ") should be (empty)
+      new File(outputFolder, "Interface0010.nc").exists() should be (false)
+
+      // The settings changed.
+      filesIn(compileAgain("-I=extra"), "REWRITING ") should be (fileOrder.filter(_ != "Interface0010.nc"))
+    }
+    finally {
+      FileManager.deleteFolder(workFolder): @annotation.nowarn("msg=discarded non-Unit value")
+    }
+  }
+
 }
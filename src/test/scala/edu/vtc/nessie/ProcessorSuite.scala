@@ -0,0 +1,133 @@
+package edu.vtc.nessie
+
+import org.scalatest._
+import funsuite._
+import matchers._
+import java.io.File
+import java.nio.file.Files
+import jdk.jfr.Recording
+import jdk.jfr.consumer.RecordingFile
+import scala.jdk.CollectionConverters._
+import org.antlr.runtime.CommonTokenStream
+import edu.vtc.nesc.{ASTNode, ASTNodeAdaptor, MappedCharStream}
+import edu.vtc.nesc.parser.{NesCLexer, NesCParser, ParserSymbolsManager}
+
+class ProcessorSuite extends AnyFunSuite with Assertions with should.Matchers {
+
+  private val testPositive = new File(new File("testData", "Syntax"), "Positive")
+
+  private def parse(fileName: String): ASTNode = {
+    val input = MappedCharStream(new File(testPositive, fileName))
+    val parser = new NesCParser(new CommonTokenStream(new NesCLexer(input)))
+    parser.setTreeAdaptor(new ASTNodeAdaptor)
+    val symbols = new ParserSymbolsManager()
+    symbols.addType("error_t")
+    parser.setSymbols(symbols)
+    parser.nesC_file().getTree.asInstanceOf[ASTNode]
+  }
+
+  /** Renames every identifier with the given name. */
+  private class Rename(from: String, to: String) extends RewritePass {
+    var visited = 0
+    override def enter(node: ASTNode): Unit = visited += 1
+    override def leave(node: ASTNode): ASTNode =
+      if (node.tokenType == NesCLexer.RAW_IDENTIFIER && node.text == from)
+        ASTNode(node.tokenType, to, node.children, node.parent, node.symbolTable)
+      else node
+  }
+
+
+  test("Processors record the name and leave the tree unchanged") {
+    val module = parse("Module0100.nc")
+    val moduleProcessor = new ModuleProcessor(module)
+    moduleProcessor.process() should be theSameInstanceAs module
+    moduleProcessor.name should be ("X")
+
+    val configuration = parse("Configuration0100.nc")
+    val configurationProcessor = new ConfigurationProcessor(configuration)
+    configurationProcessor.process() should be theSameInstanceAs configuration
+    configurationProcessor.name should be ("X")
+
+    val interface = parse("Interface0010.nc")
+    val interfaceProcessor = new InterfaceProcessor(interface)
+    interfaceProcessor.process() should be theSameInstanceAs interface
+    interfaceProcessor.name should be ("X")
+  }
+
+  test("Only changed paths are copied") {
+    val tree = parse("Module0100.nc")
+    val original = tree.toStringTree
+    val rename = new Rename("counter_t", "count_t")
+    val result = RewritePass.run(tree, Seq(rename))
+
+    result.toStringTree should be (original.replace("counter_t", "count_t"))
+    tree.toStringTree should be (original)
+    result should not be theSameInstanceAs (tree)
+
+    // The component kind and name don't contain the identifier, so they are shared.
+    val (before, after) = (tree.children(0), result.children(0))
+    after.children(0) should be theSameInstanceAs before.children(0)
+    after.children(1) should be theSameInstanceAs before.children(1)
+  }
+
+  test("Passes are fused into one traversal") {
+    val tree = parse("Module0100.nc")
+    val first = new Rename("counter_t", "a_t")
+    val second = new Rename("a_t", "b_t")
+    val result = RewritePass.run(tree, Seq(first, second))
+
+    result.toStringTree should be (tree.toStringTree.replace("counter_t", "b_t"))
+    first.visited should be (second.visited)
+    val nodeCount = tree.toStringTree.count(_ == '(')
+    first.visited should be >= nodeCount
+  }
+
+  test("Children no pass needs are not visited") {
+    val tree = parse("Module0210.nc")
+    val topLevel = new Rename("x", "y") {
+      override def visitsChildren(node: ASTNode): Boolean = node.tokenType == NesCLexer.FILE
+    }
+    RewritePass.run(tree, Seq(topLevel)) should be theSameInstanceAs tree
+    topLevel.visited should be (1 + tree.children.length)
+
+    // A node's children are visited by every pass if any pass needs them.
+    val everything = new Rename("x", "y")
+    val both = new Rename("x", "y") {
+      override def visitsChildren(node: ASTNode): Boolean = node.tokenType == NesCLexer.FILE
+    }
+    RewritePass.run(tree, Seq(everything, both))
+    both.visited should be (everything.visited)
+    both.visited should be > (1 + tree.children.length)
+
+    // Header declarations come before the module, which is still found.
+    tree.children.length should be > 1
+    Main.createProcessor(tree) shouldBe a [ModuleProcessor]
+    DependencyGraph.references(tree) should be (DependencyGraph.references(tree.children.last))
+  }
+
+  test("Passes are recorded by the Flight Recorder") {
+    val tree = parse("Module0100.nc")
+    val recording = new Recording()
+    val dump = Files.createTempFile("nessie", ".jfr")
+    try {
+      recording.enable("edu.vtc.nessie.ProcessorPass")
+      recording.start()
+      val processor = new ModuleProcessor(tree)
+      processor.process() should be theSameInstanceAs tree
+      recording.stop()
+      recording.dump(dump)
+
+      val events = RecordingFile.readAllEvents(dump).asScala
+      events.map(_.getEventType.getName) should be (Seq("edu.vtc.nessie.ProcessorPass"))
+      events.head.getString("processor") should be ("ModuleProcessor")
+      events.head.getInt("pass") should be (0)
+      // The pass only needs the root and its children.
+      events.head.getLong("nodes") should be (1L + tree.children.length)
+    }
+    finally {
+      recording.close()
+      Files.delete(dump)
+    }
+  }
+
+}
@@ -0,0 +1,17 @@
+#include "defs.h"
+#include <defs.h>
+
+#if defined(DEFS_H) && SQUARE(3) == 9
+int squared = SQUARE(1 + 2);
+#else
+int wrong;
+#endif
+
+char *name = STRING(  a   "b" );
+int PASTE(value, 1) = __LINE__;
+
+void f(void) {
+  LOG("none");
+  LOG("two %d %d", 1,
+      2);
+}
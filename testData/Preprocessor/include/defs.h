@@ -0,0 +1,11 @@
+#ifndef DEFS_H
+#define DEFS_H
+
+#define SQUARE(x) ((x) * (x))
+#define PASTE(a, b) a ## b
+#define STRING(x) #x
+#define LOG(format, ...) printf(format, ## __VA_ARGS__)
+
+typedef unsigned char uint8_t;
+
+#endif